@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler and checks them against a baseline, for use in CI. The results
+ * are written as JMH JSON to <code>target/jmh-result.json</code> and as a flat
+ * <code>target/benchmarks.properties</code> file holding, for each benchmark, its score in ns/op and its
+ * allocation in bytes/op. That file can be kept as the baseline of later runs:
+ * <pre>
+ * java -Dbaseline=benchmarks-baseline.properties -Dtolerance=0.25 -jar target/benchmarks.jar
+ * </pre>
+ * The run fails with exit status 1 if any benchmark is slower, or allocates more, than the baseline by more
+ * than the tolerance (25% by default). The <code>benchmarks</code> system property restricts the run to
+ * benchmarks matching a regular expression.
+ */
+public class BenchmarkRunner {
+    static private final String ALLOCATION = ".alloc";
+
+    static public void main(String ... args) throws RunnerException, IOException {
+        Options options = new OptionsBuilder()
+                .include(System.getProperty("benchmarks", "org\\.dasein\\.cloud\\.jclouds\\.vcloud\\..*Benchmark.*"))
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-result.json")
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+        Properties current = new Properties();
+
+        for( RunResult result : results ) {
+            String name = result.getParams().getBenchmark();
+            Result allocation = getAllocation(result);
+
+            current.setProperty(name, String.valueOf(result.getPrimaryResult().getScore()));
+            if( allocation != null ) {
+                current.setProperty(name + ALLOCATION, String.valueOf(allocation.getScore()));
+            }
+        }
+        store(current, new File("target/benchmarks.properties"));
+
+        String baseline = System.getProperty("baseline");
+
+        if( baseline != null ) {
+            double tolerance = Double.parseDouble(System.getProperty("tolerance", "0.25"));
+            int regressions = compare(load(new File(baseline)), current, tolerance);
+
+            if( regressions > 0 ) {
+                System.err.println(regressions + " benchmark(s) regressed by more than " + Math.round(tolerance * 100) + "%");
+                System.exit(1);
+            }
+        }
+    }
+
+    static private int compare(@Nonnull Properties baseline, @Nonnull Properties current, double tolerance) {
+        TreeMap<String,String> sorted = new TreeMap<String,String>();
+        int regressions = 0;
+
+        for( Map.Entry<Object,Object> entry : current.entrySet() ) {
+            sorted.put((String)entry.getKey(), (String)entry.getValue());
+        }
+        for( Map.Entry<String,String> entry : sorted.entrySet() ) {
+            String before = baseline.getProperty(entry.getKey());
+
+            if( before == null ) {
+                continue;
+            }
+            double was = Double.parseDouble(before);
+            double now = Double.parseDouble(entry.getValue());
+            boolean regressed = (now > was * (1.0 + tolerance) && now - was > 1.0);
+
+            System.out.println((regressed ? "REGRESSED " : "ok        ") + entry.getKey() + ": " + was + " -> " + now);
+            if( regressed ) {
+                regressions++;
+            }
+        }
+        return regressions;
+    }
+
+    static private @Nullable Result getAllocation(@Nonnull RunResult result) {
+        for( Map.Entry<String,Result> entry : result.getSecondaryResults().entrySet() ) {
+            if( entry.getKey().endsWith("gc.alloc.rate.norm") ) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    static private @Nonnull Properties load(@Nonnull File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+
+        try {
+            properties.load(in);
+        }
+        finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    static private void store(@Nonnull Properties properties, @Nonnull File file) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+
+        try {
+            properties.store(out, "Benchmark scores (ns/op) and allocations (bytes/op)");
+        }
+        finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.dasein.cloud.CloudException;
+import org.jclouds.rest.ApiContext;
+import org.jclouds.vcloud.VCloudApi;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the ID and name conversions of {@link VcloudDirector} that run for every resource listed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class DirectorBenchmark {
+    private ApiContext<VCloudApi> ctx;
+    private URI                   href;
+    private String                id;
+    private VcloudDirector        provider;
+
+    @Setup
+    public void setUp() throws CloudException {
+        Fixtures fixtures = Fixtures.getInstance();
+
+        provider = fixtures.newDirector();
+        ctx = provider.getCloudClient();
+        href = fixtures.getVm().getHref();
+        id = provider.toId(ctx, href);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ctx.close();
+    }
+
+    @Benchmark
+    public String toId() {
+        return provider.toId(ctx, href);
+    }
+
+    @Benchmark
+    public URI toHref() {
+        return provider.toHref(ctx, id);
+    }
+
+    @Benchmark
+    public String validateName() {
+        return provider.validateName("Web Tier #42 (Production) - Ubuntu 12.04");
+    }
+}
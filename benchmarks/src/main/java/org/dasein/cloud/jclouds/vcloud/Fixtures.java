@@ -0,0 +1,270 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.jclouds.vcloud.client.InterceptingApiContext;
+import org.jclouds.http.functions.ParseSax;
+import org.jclouds.rest.ApiContext;
+import org.jclouds.rest.config.SaxParserModule;
+import org.jclouds.vcloud.VCloudApi;
+import org.jclouds.vcloud.domain.Org;
+import org.jclouds.vcloud.domain.VApp;
+import org.jclouds.vcloud.domain.VAppTemplate;
+import org.jclouds.vcloud.domain.Vm;
+import org.jclouds.vcloud.domain.network.OrgNetwork;
+import org.jclouds.vcloud.xml.OrgHandler;
+import org.jclouds.vcloud.xml.OrgNetworkHandler;
+import org.jclouds.vcloud.xml.VAppHandler;
+import org.jclouds.vcloud.xml.VAppTemplateHandler;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Domain objects parsed with the jclouds SAX handlers from the vCloud XML recorded under
+ * <code>/fixtures</code>, and a {@link VcloudDirector} whose API context serves them instead of calling a
+ * Director. Every API method returning one of the fixture types answers with that fixture regardless of its
+ * arguments, so the adapter code under test runs exactly as it would against a cloud, interceptors included.
+ */
+public class Fixtures {
+    static public final String ACCOUNT  = "bench-org";
+    static public final String ENDPOINT = "https://vcd.example.com/api";
+    static public final String REGION   = "bench";
+    static public final String VERSION  = "1.0";
+
+    static private Fixtures instance;
+
+    static public synchronized @Nonnull Fixtures getInstance() {
+        if( instance == null ) {
+            instance = new Fixtures();
+        }
+        return instance;
+    }
+
+    /**
+     * A provider connected to a fake context whose API calls are answered from the fixtures.
+     */
+    static public class FixtureDirector extends VcloudDirector {
+        private final Fixtures fixtures;
+
+        FixtureDirector(@Nonnull Fixtures fixtures) {
+            this.fixtures = fixtures;
+        }
+
+        @Override
+        public @Nonnull ApiContext<VCloudApi> getCloudClient() throws CloudException {
+            return InterceptingApiContext.wrap(fixtures.context, getApiInterceptors());
+        }
+    }
+
+    private class Stub implements InvocationHandler {
+        private final ConcurrentHashMap<Class<?>,Object> views = new ConcurrentHashMap<Class<?>,Object>();
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            Class<?> type = method.getReturnType();
+
+            if( name.equals("close") ) {
+                return null;
+            }
+            else if( name.equals("toString") ) {
+                return "Fixture " + proxy.getClass().getInterfaces()[0].getSimpleName();
+            }
+            else if( name.equals("hashCode") ) {
+                return System.identityHashCode(proxy);
+            }
+            else if( name.equals("equals") ) {
+                return (proxy == args[0]);
+            }
+            else if( name.equals("getApi") ) {
+                return view(VCloudApi.class);
+            }
+            else if( name.equals("getEndpoint") ) {
+                return ENDPOINT;
+            }
+            else if( name.equals("getVersion") ) {
+                return VERSION;
+            }
+            else if( type.isInstance(org) && type != Object.class ) {
+                return org;
+            }
+            else if( type.isInstance(network) && type != Object.class ) {
+                return network;
+            }
+            else if( type.isInstance(vApp) && type != Object.class ) {
+                return vApp;
+            }
+            else if( type.isInstance(template) && type != Object.class ) {
+                return template;
+            }
+            else if( type.isInstance(vm) && type != Object.class ) {
+                return vm;
+            }
+            else if( type.isInterface() ) {
+                return view(type);
+            }
+            throw new UnsupportedOperationException("No fixture for " + method);
+        }
+
+        private @Nonnull Object view(@Nonnull Class<?> type) {
+            Object view = views.get(type);
+
+            if( view == null ) {
+                view = Proxy.newProxyInstance(Fixtures.class.getClassLoader(), new Class<?>[] { type }, this);
+                views.putIfAbsent(type, view);
+            }
+            return view;
+        }
+    }
+
+    private final ApiContext<VCloudApi> context;
+    private final ParseSax.Factory      factory;
+    private final Injector              injector;
+    private final OrgNetwork            network;
+    private final Org                   org;
+    private final VAppTemplate          template;
+    private final VApp                  vApp;
+    private final byte[]                vAppXml;
+    private final Vm                    vm;
+
+    @SuppressWarnings("unchecked")
+    private Fixtures() {
+        injector = Guice.createInjector(new SaxParserModule());
+        factory = injector.getInstance(ParseSax.Factory.class);
+        vAppXml = read("vapp.xml");
+        org = parse(factory.create(injector.getInstance(OrgHandler.class)), "org.xml");
+        network = parse(factory.create(injector.getInstance(OrgNetworkHandler.class)), "orgnetwork.xml");
+        vApp = parse(factory.create(injector.getInstance(VAppHandler.class)), "vapp.xml");
+        template = parse(factory.create(injector.getInstance(VAppTemplateHandler.class)), "vapptemplate.xml");
+        vm = vApp.getChildren().iterator().next();
+        context = (ApiContext<VCloudApi>)Proxy.newProxyInstance(Fixtures.class.getClassLoader(), new Class<?>[] { ApiContext.class }, new Stub());
+    }
+
+    private @Nonnull byte[] read(@Nonnull String name) {
+        InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name);
+
+        if( in == null ) {
+            throw new IllegalStateException("Missing fixture " + name);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+
+            while( (n = in.read(buffer)) != -1 ) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+        catch( IOException e ) {
+            throw new IllegalStateException("Unable to read fixture " + name, e);
+        }
+        finally {
+            try { in.close(); }
+            catch( IOException ignore ) { }
+        }
+    }
+
+    private @Nonnull <T> T parse(@Nonnull ParseSax<T> parser, @Nonnull String name) {
+        InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name);
+
+        if( in == null ) {
+            throw new IllegalStateException("Missing fixture " + name);
+        }
+        try {
+            return parser.parse(in);
+        }
+        finally {
+            try { in.close(); }
+            catch( IOException ignore ) { }
+        }
+    }
+
+    public @Nonnull OrgNetwork getNetwork() {
+        return network;
+    }
+
+    public @Nonnull Org getOrg() {
+        return org;
+    }
+
+    public @Nonnull VAppTemplate getTemplate() {
+        return template;
+    }
+
+    public @Nonnull VApp getVApp() {
+        return vApp;
+    }
+
+    public @Nonnull Vm getVm() {
+        return vm;
+    }
+
+    /**
+     * @return the recorded vApp document
+     */
+    public @Nonnull byte[] getVAppXml() {
+        return vAppXml.clone();
+    }
+
+    /**
+     * Parses a vApp document the way jclouds does.
+     * @param in the document
+     * @return the jclouds vApp
+     */
+    public @Nonnull VApp parseVApp(@Nonnull InputStream in) {
+        return factory.create(injector.getInstance(VAppHandler.class)).parse(in);
+    }
+
+    /**
+     * @return a new provider connected to the fixture context
+     */
+    public @Nonnull FixtureDirector newDirector() {
+        ProviderContext ctx = new ProviderContext();
+        Properties custom = new Properties();
+
+        // there is no Director behind the fixtures to answer conditional GETs
+        custom.setProperty("vcloud.httpCache.maxBytes", "0");
+        ctx.setAccountNumber(ACCOUNT);
+        ctx.setAccessPublic("bench".getBytes());
+        ctx.setAccessPrivate("bench".getBytes());
+        ctx.setEndpoint(ENDPOINT);
+        ctx.setRegionId(REGION);
+        ctx.setCustomProperties(custom);
+        FixtureDirector provider = new FixtureDirector(this);
+
+        provider.connect(ctx);
+        return provider;
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.compute;
+
+import java.util.concurrent.TimeUnit;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.compute.MachineImage;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.jclouds.vcloud.Fixtures;
+import org.dasein.cloud.jclouds.vcloud.VcloudDirector;
+import org.jclouds.rest.ApiContext;
+import org.jclouds.vcloud.VCloudApi;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the conversion of jclouds VMs and vApp templates into Dasein objects, including the network and
+ * template lookups they make through the (fixture) API.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class ConversionBenchmark {
+    static private final String[] ADDRESSES = {
+        "10.112.78.20", "192.168.1.14", "172.16.4.9", "172.31.255.1", "172.32.0.1", "203.0.113.20", "8.8.8.8"
+    };
+
+    private ApiContext<VCloudApi> ctx;
+    private Fixtures              fixtures;
+    private VappTemplateSupport   imageSupport;
+    private VcloudVMSupport       vmSupport;
+
+    @Setup
+    public void setUp() throws CloudException {
+        VcloudDirector provider;
+
+        fixtures = Fixtures.getInstance();
+        provider = fixtures.newDirector();
+        ctx = provider.getCloudClient();
+        imageSupport = provider.getComputeServices().getImageSupport();
+        vmSupport = provider.getComputeServices().getVirtualMachineSupport();
+    }
+
+    @TearDown
+    public void tearDown() {
+        ctx.close();
+    }
+
+    @Benchmark
+    public void isPublicIp(Blackhole bh) {
+        for( String address : ADDRESSES ) {
+            bh.consume(vmSupport.isPublicIp(address));
+        }
+    }
+
+    @Benchmark
+    public MachineImage toMachineImage() {
+        return imageSupport.toMachineImage(ctx, fixtures.getOrg(), fixtures.getTemplate());
+    }
+
+    @Benchmark
+    public VirtualMachine toVirtualMachine() throws CloudException, InternalException {
+        return vmSupport.toVirtualMachine(ctx, fixtures.getVApp(), fixtures.getVm());
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.compute;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.jclouds.vcloud.Fixtures;
+import org.dasein.cloud.jclouds.vcloud.VcloudDirector;
+import org.jclouds.rest.ApiContext;
+import org.jclouds.vcloud.VCloudApi;
+import org.jclouds.vcloud.domain.VApp;
+import org.jclouds.vcloud.domain.Vm;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares listing the VMs of a vApp document through the jclouds domain graph with the StAX projection of
+ * {@link VAppSummaryParser}, for vApps of one and of many VMs. The <code>parse</code> benchmarks measure
+ * parsing alone, the <code>list</code> benchmarks parsing plus conversion into Dasein VMs. Run through
+ * {@link org.dasein.cloud.jclouds.vcloud.BenchmarkRunner} to see the allocation per operation as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class ListingBenchmark {
+    @Param({ "1", "25" })
+    public int vms;
+
+    private ApiContext<VCloudApi> ctx;
+    private byte[]                document;
+    private Fixtures              fixtures;
+    private VcloudVMSupport       vmSupport;
+
+    @Setup
+    public void setUp() throws Exception {
+        VcloudDirector provider;
+
+        fixtures = Fixtures.getInstance();
+        provider = fixtures.newDirector();
+        ctx = provider.getCloudClient();
+        vmSupport = provider.getComputeServices().getVirtualMachineSupport();
+        document = replicate(new String(fixtures.getVAppXml(), "utf-8"), vms).getBytes("utf-8");
+    }
+
+    /**
+     * Repeats the single VM of the recorded vApp so that the document lists the specified number of VMs.
+     */
+    static private String replicate(String xml, int count) {
+        int start = xml.indexOf("<Vm ");
+        int end = xml.indexOf("</Vm>") + "</Vm>".length();
+        String vm = xml.substring(start, end);
+        StringBuilder children = new StringBuilder();
+
+        for( int i=0; i<count; i++ ) {
+            children.append(vm.replace("vm-4001", "vm-" + (4001 + i)));
+        }
+        return xml.substring(0, start) + children + xml.substring(end);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ctx.close();
+    }
+
+    @Benchmark
+    public VApp parseJclouds() {
+        return fixtures.parseVApp(new ByteArrayInputStream(document));
+    }
+
+    @Benchmark
+    public void parseStreaming(Blackhole bh) throws CloudException {
+        bh.consume(VAppSummaryParser.parse(new ByteArrayInputStream(document)));
+    }
+
+    @Benchmark
+    public void listJclouds(Blackhole bh) throws CloudException, InternalException {
+        VApp app = fixtures.parseVApp(new ByteArrayInputStream(document));
+
+        for( Vm vm : app.getChildren() ) {
+            bh.consume(vmSupport.toVirtualMachine(ctx, app, vm));
+        }
+    }
+
+    @Benchmark
+    public void listStreaming(Blackhole bh) throws CloudException, InternalException {
+        bh.consume(vmSupport.toVirtualMachines(ctx, VAppSummaryParser.parse(new ByteArrayInputStream(document))));
+    }
+}
@@ -22,14 +22,38 @@ import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor
 
 import java.io.IOException;
 import java.net.URI;
-import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.log4j.Logger;
 import org.dasein.cloud.AbstractCloud;
 import org.dasein.cloud.CloudException;
 import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.jclouds.vcloud.client.ApiInterceptor;
+import org.dasein.cloud.jclouds.vcloud.client.CircuitBreaker;
+import org.dasein.cloud.jclouds.vcloud.client.ConditionalGetInterceptor;
+import org.dasein.cloud.jclouds.vcloud.client.DirectorExecutors;
+import org.dasein.cloud.jclouds.vcloud.client.DirectorHttp;
+import org.dasein.cloud.jclouds.vcloud.client.GovernorInterceptor;
+import org.dasein.cloud.jclouds.vcloud.client.HrefCodec;
+import org.dasein.cloud.jclouds.vcloud.client.HttpCache;
+import org.dasein.cloud.jclouds.vcloud.client.InterceptingApiContext;
+import org.dasein.cloud.jclouds.vcloud.client.RequestGovernor;
+import org.dasein.cloud.jclouds.vcloud.client.RequestTrace;
+import org.dasein.cloud.jclouds.vcloud.client.ResilienceInterceptor;
+import org.dasein.cloud.jclouds.vcloud.client.RetryPolicy;
+import org.dasein.cloud.jclouds.vcloud.client.SingleFlight;
+import org.dasein.cloud.jclouds.vcloud.client.SingleFlightInterceptor;
+import org.dasein.cloud.jclouds.vcloud.client.TracingInterceptor;
 import org.dasein.cloud.jclouds.vcloud.compute.VcloudComputeServices;
+import org.dasein.cloud.jclouds.vcloud.metrics.ApiMetricsInterceptor;
+import org.dasein.cloud.jclouds.vcloud.metrics.JmxMetricsSink;
+import org.dasein.cloud.jclouds.vcloud.metrics.MetricsSink;
+import org.dasein.cloud.jclouds.vcloud.metrics.OperationTimer;
+import org.dasein.cloud.jclouds.vcloud.metrics.OperationTimerInterceptor;
 import org.dasein.cloud.jclouds.vcloud.network.VcloudNetworkServices;
 import org.dasein.cloud.storage.BlobStoreSupport;
 import org.dasein.cloud.storage.StorageServices;
@@ -56,8 +80,48 @@ import javax.annotation.Nullable;
 public class VcloudDirector extends AbstractCloud {
     static private final Logger logger = Logger.getLogger(VcloudDirector.class);
     
+    /**
+     * Everything this provider builds from one {@link ProviderContext}. The whole holder is replaced when a
+     * different context is connected so that nothing built for the previous context (its organization, its
+     * HTTP session, its services and their caches) leaks into the next one. Fields are created once under the
+     * holder's monitor; none of the initializers performs I/O while holding it.
+     */
+    static private final class ContextState {
+        private volatile List<ApiInterceptor>  apiInterceptors;
+        private volatile VcloudComputeServices computeServices;
+        private final ProviderContext          context;
+        private volatile VcloudVDC             dataCenterServices;
+        private volatile DirectorHttp          directorHttp;
+        private volatile MetricsSink           metrics;
+        private volatile VcloudNetworkServices networkServices;
+        private volatile Org                   org;
+
+        private ContextState(@Nullable ProviderContext context) { this.context = context; }
+    }
+
+    private transient volatile ContextState state;
+
     public VcloudDirector() { }
-    
+
+    /**
+     * @return the memoized state of the context currently connected, replaced if the context has changed
+     */
+    private @Nonnull ContextState getState() {
+        ProviderContext ctx = getContext();
+        ContextState current = state;
+
+        if( current == null || current.context != ctx ) {
+            synchronized( this ) {
+                current = state;
+                if( current == null || current.context != ctx ) {
+                    current = new ContextState(ctx);
+                    state = current;
+                }
+            }
+        }
+        return current;
+    }
+
     @Override
     public @Nonnull String getCloudName() {
         ProviderContext ctx = getContext();
@@ -104,35 +168,329 @@ public class VcloudDirector extends AbstractCloud {
                 .endpoint(endpoint)
                 .overrides(overrides)
                 .modules(ImmutableSet.of(new Log4JLoggingModule(), new ExecutorServiceModule(sameThreadExecutor(), sameThreadExecutor())));
-        return builder.build();
+        return InterceptingApiContext.wrap(builder.<ApiContext<VCloudApi>>build(), getApiInterceptors());
+    }
+
+    /**
+     * Provides the interceptors applied, in order, to every call made through the API returned by
+     * {@link #getCloudClient()}: identical concurrent reads are coalesced first (completed reads may be reused
+     * for <code>vcloud.singleFlight.reuseMillis</code>, default 0), lookups of orgs, VDCs, networks, catalogs and
+     * vApp templates are then served through a conditional GET cache of <code>vcloud.httpCache.maxBytes</code>
+     * (default 8MB, 0 to disable), and the remaining calls are retried and guarded by the circuit breaker,
+     * admitted by the request governor, measured and traced.
+     * @return the interceptors
+     */
+    public @Nonnull List<ApiInterceptor> getApiInterceptors() {
+        ContextState s = getState();
+        List<ApiInterceptor> interceptors = s.apiInterceptors;
+
+        if( interceptors == null ) {
+            synchronized( s ) {
+                if( s.apiInterceptors == null ) {
+                    ArrayList<ApiInterceptor> list = new ArrayList<ApiInterceptor>();
+                    RequestGovernor governor = getRequestGovernor();
+                    CircuitBreaker breaker = getCircuitBreaker();
+                    ProviderContext ctx = s.context;
+
+                    if( ctx != null && ctx.getEndpoint() != null && ctx.getAccountNumber() != null ) {
+                        SingleFlight group = SingleFlight.getInstance(ctx.getEndpoint().trim(), ctx.getAccountNumber());
+
+                        list.add(new SingleFlightInterceptor(group, getCustomProperty("vcloud.singleFlight.reuseMillis", 0L), getMetrics()));
+
+                        long cacheBytes = getCustomProperty("vcloud.httpCache.maxBytes", 8L * 1024L * 1024L);
+
+                        if( cacheBytes > 0L ) {
+                            try {
+                                HttpCache cache = HttpCache.getInstance(ctx.getEndpoint().trim(), ctx.getAccountNumber(), cacheBytes);
+
+                                // ahead of the governor: the conditional GET takes its own governor slot
+                                list.add(new ConditionalGetInterceptor(getDirectorHttp(), cache, getMetrics()));
+                            }
+                            catch( CloudException e ) {
+                                logger.warn("Conditional GET cache disabled: " + e.getMessage());
+                            }
+                        }
+                    }
+                    if( breaker != null ) {
+                        list.add(new ResilienceInterceptor(getRetryPolicy(), breaker, getMetrics()));
+                    }
+                    if( governor != null ) {
+                        list.add(new GovernorInterceptor(governor, getMetrics()));
+                    }
+                    if( ctx != null && ctx.getEndpoint() != null ) {
+                        list.add(new ApiMetricsInterceptor(getMetrics(), ctx.getEndpoint().trim()));
+                    }
+                    list.add(new OperationTimerInterceptor());
+                    list.add(new TracingInterceptor(getCustomProperty("vcloud.trace.slowMillis", RequestTrace.DEFAULT_SLOW_MILLIS)));
+                    s.apiInterceptors = Collections.unmodifiableList(list);
+                }
+                interceptors = s.apiInterceptors;
+            }
+        }
+        return interceptors;
+    }
+
+    /**
+     * Provides the retry policy for Director calls, configured by the <code>vcloud.retry.attempts</code> (total
+     * attempts, default 4), <code>vcloud.retry.baseMillis</code> (default 500) and
+     * <code>vcloud.retry.maxMillis</code> (default 10000) custom properties.
+     * @return the retry policy for the current context
+     */
+    public @Nonnull RetryPolicy getRetryPolicy() {
+        return new RetryPolicy((int)getCustomProperty("vcloud.retry.attempts", 4L), getCustomProperty("vcloud.retry.baseMillis", 500L), getCustomProperty("vcloud.retry.maxMillis", 10000L));
+    }
+
+    /**
+     * Provides the circuit breaker of the current endpoint, configured by the <code>vcloud.breaker.threshold</code>
+     * (consecutive failures, default 5, 0 to disable) and <code>vcloud.breaker.openMillis</code> (default 30000)
+     * custom properties.
+     * @return the breaker for the current endpoint, or <code>null</code> if there is no context or endpoint
+     */
+    public @Nullable CircuitBreaker getCircuitBreaker() {
+        ProviderContext ctx = getContext();
+
+        if( ctx == null || ctx.getEndpoint() == null ) {
+            return null;
+        }
+        CircuitBreaker breaker = CircuitBreaker.getInstance(ctx.getEndpoint().trim());
+
+        breaker.configure((int)getCustomProperty("vcloud.breaker.threshold", 5L), getCustomProperty("vcloud.breaker.openMillis", 30000L));
+        return breaker;
+    }
+
+    /**
+     * Determines whether parallel Director work (listing fan-out, metrics reads, bulk termination) runs on
+     * virtual threads. The <code>vcloud.threads</code> custom property selects <code>auto</code> (the default,
+     * virtual threads on Java 21 and later), <code>virtual</code> or <code>platform</code>.
+     * @return true if parallel work runs on virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return DirectorExecutors.isVirtual(getCustomProperty("vcloud.threads", DirectorExecutors.getDefaultMode()));
+    }
+
+    /**
+     * Creates an executor for parallel Director work in the execution mode of this context. The caller must
+     * shut it down.
+     * @param name the prefix of the thread names
+     * @param threads the maximum number of tasks running at once
+     * @return the executor
+     */
+    public @Nonnull ExecutorService newExecutor(@Nonnull String name, int threads) {
+        return DirectorExecutors.newExecutor(name, threads, isVirtualThreads());
+    }
+
+    /**
+     * Provides the request budget shared by every connection to this organization on this endpoint. The limits
+     * come from the <code>vcloud.governor.rate</code> (requests per second, default 0 for no rate limit),
+     * <code>vcloud.governor.burst</code> (default the rate) and <code>vcloud.governor.maxInFlight</code>
+     * (default 16, 0 for no limit) custom properties.
+     * @return the governor for the current context, or <code>null</code> if there is no context or endpoint
+     */
+    public @Nullable RequestGovernor getRequestGovernor() {
+        ProviderContext ctx = getContext();
+
+        if( ctx == null || ctx.getEndpoint() == null || ctx.getAccountNumber() == null ) {
+            return null;
+        }
+        long rate = getCustomProperty("vcloud.governor.rate", 0L);
+        RequestGovernor governor = RequestGovernor.getInstance(ctx.getEndpoint().trim(), ctx.getAccountNumber());
+
+        governor.configure(rate, (int)getCustomProperty("vcloud.governor.burst", Math.max(1L, rate)), (int)getCustomProperty("vcloud.governor.maxInFlight", 16L));
+        return governor;
+    }
+
+    /**
+     * Looks up a custom property of the current provider context.
+     * @param name the name of the property
+     * @param defaultValue the value to use if there is no context or the property is not set
+     * @return the property value or the default
+     */
+    public @Nullable String getCustomProperty(@Nonnull String name, @Nullable String defaultValue) {
+        ProviderContext ctx = getContext();
+
+        if( ctx == null ) {
+            return defaultValue;
+        }
+        Properties p = ctx.getCustomProperties();
+
+        if( p == null ) {
+            return defaultValue;
+        }
+        String value = p.getProperty(name);
+
+        return ((value == null || value.trim().equals("")) ? defaultValue : value.trim());
+    }
+
+    /**
+     * Looks up a numeric custom property of the current provider context.
+     * @param name the name of the property
+     * @param defaultValue the value to use if the property is not set or is not a valid number
+     * @return the property value or the default
+     */
+    public long getCustomProperty(@Nonnull String name, long defaultValue) {
+        String value = getCustomProperty(name, null);
+
+        if( value == null ) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        }
+        catch( NumberFormatException e ) {
+            logger.warn("Ignoring invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Provides the sink to which all timings and counters for this cloud are reported. The sink is the shared
+     * {@link JmxMetricsSink} unless the <code>vcloud.metrics.sink</code> custom property names another
+     * {@link MetricsSink} implementation with a public no-argument constructor.
+     * @return the metrics sink for this provider
+     */
+    public @Nonnull MetricsSink getMetrics() {
+        ContextState s = getState();
+        MetricsSink metrics = s.metrics;
+
+        if( metrics == null ) {
+            synchronized( s ) {
+                if( s.metrics == null ) {
+                    String cname = getCustomProperty("vcloud.metrics.sink", null);
+                    MetricsSink sink = null;
+
+                    if( cname != null ) {
+                        try {
+                            sink = (MetricsSink)Class.forName(cname).newInstance();
+                        }
+                        catch( Throwable t ) {
+                            logger.warn("Unable to load metrics sink " + cname + ", falling back to JMX: " + t.getMessage());
+                        }
+                    }
+                    s.metrics = (sink == null ? JmxMetricsSink.getInstance() : sink);
+                }
+                metrics = s.metrics;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Starts timing a long running operation on the calling thread. See {@link OperationTimer}.
+     * @param operation the operation name
+     * @param target the resource being acted on
+     * @return the running timer
+     */
+    public @Nonnull OperationTimer startOperation(@Nonnull String operation, @Nullable String target) {
+        return OperationTimer.start(getMetrics(), operation, target, getCustomProperty("vcloud.operation.slowMillis", OperationTimer.DEFAULT_SLOW_MILLIS));
     }
     
+    /**
+     * Provides raw HTTP access to the Director for operations that jclouds does not support. The session is
+     * shared by all callers of this provider. XML documents are requested gzip compressed unless the
+     * <code>vcloud.http.gzip</code> custom property is <code>false</code>.
+     * @return the HTTP client for the current context
+     * @throws CloudException no context or endpoint is set
+     */
+    public @Nonnull DirectorHttp getDirectorHttp() throws CloudException {
+        ContextState s = getState();
+        DirectorHttp http = s.directorHttp;
+
+        if( http == null ) {
+            ProviderContext ctx = s.context;
+
+            if( ctx == null ) {
+                throw new CloudException("No context was set for this request");
+            }
+            String endpoint = ctx.getEndpoint();
+
+            if( endpoint == null || endpoint.trim().equals("") ) {
+                throw new CloudException("No endpoint was defined for this request");
+            }
+            synchronized( s ) {
+                if( s.directorHttp == null ) {
+                    http = new DirectorHttp(endpoint.trim(), new VCloudApiMetadata().getVersion(), new String(ctx.getAccessPublic()) + "@" + ctx.getAccountNumber(), new String(ctx.getAccessPrivate()));
+                    http.setSlowCallMillis(getCustomProperty("vcloud.trace.slowMillis", RequestTrace.DEFAULT_SLOW_MILLIS));
+                    http.setGovernor(getRequestGovernor(), getMetrics());
+                    http.setResilience(getRetryPolicy(), getCircuitBreaker());
+                    http.setCompression(!"false".equalsIgnoreCase(getCustomProperty("vcloud.http.gzip", "true")));
+                    s.directorHttp = http;
+                }
+                http = s.directorHttp;
+            }
+        }
+        return http;
+    }
+
     @Override
     public @Nonnull VcloudComputeServices getComputeServices() {
-        return new VcloudComputeServices(this);
+        ContextState s = getState();
+        VcloudComputeServices services = s.computeServices;
+
+        if( services == null ) {
+            synchronized( s ) {
+                if( s.computeServices == null ) {
+                    s.computeServices = new VcloudComputeServices(this);
+                }
+                services = s.computeServices;
+            }
+        }
+        return services;
     }
     
     @Override
     public @Nonnull VcloudVDC getDataCenterServices() {
-        return new VcloudVDC(this);
+        ContextState s = getState();
+        VcloudVDC services = s.dataCenterServices;
+
+        if( services == null ) {
+            synchronized( s ) {
+                if( s.dataCenterServices == null ) {
+                    s.dataCenterServices = new VcloudVDC(this);
+                }
+                services = s.dataCenterServices;
+            }
+        }
+        return services;
     }
     
     public @Nonnull VcloudNetworkServices getNetworkServices() {
-        return new VcloudNetworkServices(this);
+        ContextState s = getState();
+        VcloudNetworkServices services = s.networkServices;
+
+        if( services == null ) {
+            synchronized( s ) {
+                if( s.networkServices == null ) {
+                    s.networkServices = new VcloudNetworkServices(this);
+                }
+                services = s.networkServices;
+            }
+        }
+        return services;
     }
     
-    private transient volatile Org currentOrg;
-    
+    /**
+     * Provides the organization of the current context, fetched once per context. Concurrent first callers may
+     * each fetch it (the lookup is coalesced by the single flight interceptor); the first result is kept.
+     * @return the organization named by the account number of the current context
+     * @throws CloudException no context was set or the organization could not be loaded
+     */
     public @Nonnull Org getOrg() throws CloudException {
-        ProviderContext ctx = getContext();
-        
-        if( ctx == null ) {
-            throw new CloudException("No context was established for this request");
-        }
-        if( currentOrg == null ) {
-            currentOrg = getOrg(ctx.getAccountNumber());
+        ContextState s = getState();
+        Org org = s.org;
+
+        if( org == null ) {
+            if( s.context == null ) {
+                throw new CloudException("No context was established for this request");
+            }
+            org = getOrg(s.context.getAccountNumber());
+            synchronized( s ) {
+                if( s.org == null ) {
+                    s.org = org;
+                }
+                org = s.org;
+            }
         }
-        return currentOrg;
+        return org;
     }
     
     public @Nonnull Org getOrg(URI href) throws CloudException {
@@ -196,35 +554,42 @@ public class VcloudDirector extends AbstractCloud {
         }
     }
 
-    public @Nonnull URI toHref(ApiContext<VCloudApi> ctx, String id) {
-        try {
-            return new URI(ctx.getProviderMetadata().getEndpoint() + "/v" + ctx.getProviderMetadata().getApiMetadata().getVersion() + id);
-        }
-        catch( URISyntaxException e ) {
-            throw new RuntimeException(e);
+    private transient volatile HrefCodec hrefCodec;
+
+    /**
+     * @param ctx the API context whose endpoint and version the hrefs belong to
+     * @return the codec translating between resource IDs and hrefs under that endpoint
+     */
+    public @Nonnull HrefCodec getHrefCodec(@Nonnull ApiContext<VCloudApi> ctx) {
+        String endpoint = ctx.getProviderMetadata().getEndpoint();
+        String version = ctx.getProviderMetadata().getApiMetadata().getVersion();
+        HrefCodec codec = hrefCodec;
+
+        if( codec == null || !codec.isFor(endpoint, version) ) {
+            codec = new HrefCodec(endpoint, version, (int)getCustomProperty("vcloud.hrefCache.size", HrefCodec.DEFAULT_CACHE_SIZE));
+            hrefCodec = codec;
         }
+        return codec;
     }
-    
+
+    /**
+     * @param ctx the API context
+     * @param id a resource ID such as <code>/vApp/vm-1234</code>
+     * @return the href of the resource
+     * @throws IllegalArgumentException the ID is not a valid resource ID
+     */
+    public @Nonnull URI toHref(@Nonnull ApiContext<VCloudApi> ctx, @Nonnull String id) {
+        return getHrefCodec(ctx).toHref(id);
+    }
+
+    /**
+     * @param ctx the API context
+     * @param uri the href of a resource
+     * @return the resource ID
+     * @throws IllegalArgumentException the href does not belong to the API of this context
+     */
     public @Nonnull String toId(@Nonnull ApiContext<VCloudApi> ctx, @Nonnull URI uri) {
-        String endpoint = ctx.getProviderMetadata().getEndpoint();
-        String str = uri.toASCIIString();
-        int extra;
-        
-        if( (str.startsWith("http:") && endpoint.startsWith("http:")) || (str.startsWith("https:") && endpoint.startsWith("https:")) ) {
-            extra = 0;
-        }
-        else if( str.startsWith("https:") && endpoint.startsWith("http:") ) {
-            extra = 1;
-        }
-        else if( str.startsWith("http:") && endpoint.startsWith("https") ) {
-            extra = -1;
-        }
-        else {
-            throw new RuntimeException("Unknown protocol endpoints " + str + " against " + endpoint);
-        }
-        int idx = ((ctx.getProviderMetadata().getEndpoint() + "/v" + ctx.getProviderMetadata().getApiMetadata().getVersion()).length()) + extra;
-        
-        return str.substring(idx);
+        return getHrefCodec(ctx).toId(uri);
     }
 
     
@@ -237,6 +602,7 @@ public class VcloudDirector extends AbstractCloud {
         while( busy ) {
             try { Thread.sleep(1500L); }
             catch( InterruptedException ignore ) { /* ignore */ }
+            OperationTimer.polled();
             vm = ctx.getApi().getVmApi().getVm(vm.getHref());
             if( vm == null ) {
                 return null;
@@ -264,6 +630,7 @@ public class VcloudDirector extends AbstractCloud {
         while( busy ) {
             try { Thread.sleep(1500L); }
             catch( InterruptedException ignore ) { }
+            OperationTimer.polled();
             vapp = ctx.getApi().getVAppApi().getVApp(vapp.getHref());
             if( vapp == null ) {
                 return null;
@@ -282,18 +649,47 @@ public class VcloudDirector extends AbstractCloud {
         return vapp;
     }
     
+    /**
+     * Waits for the task with the specified href, typically one returned by a call made through
+     * {@link #getDirectorHttp()}, to complete.
+     * @param taskHref the href of the task
+     * @throws CloudException the task failed
+     */
+    public void waitForTask(@Nonnull URI taskHref) throws CloudException {
+        ApiContext<VCloudApi> ctx = getCloudClient();
+        Task task;
+
+        try {
+            task = ctx.getApi().getTaskApi().getTask(taskHref);
+        }
+        finally {
+            ctx.close();
+        }
+        if( task != null ) {
+            waitForTask(task);
+        }
+    }
+
     public void waitForTask(@Nonnull Task task) throws CloudException {
+        int maxFailures = (int)getCustomProperty("vcloud.task.maxLookupFailures", 5L);
+        int failures = 0;
+
         while( task != null && (task.getStatus().equals(TaskStatus.RUNNING) || task.getStatus().equals(TaskStatus.QUEUED)) ) {
             try { Thread.sleep(5000L); }
             catch( InterruptedException ignore ) { }
+            OperationTimer.polled();
             ApiContext<VCloudApi> ctx = getCloudClient();
             
             try {
                 try {
                     task = ctx.getApi().getTaskApi().getTask(task.getHref());
+                    failures = 0;
                 }
                 catch( RuntimeException e ) {
                     logger.warn("Error looking up task: " + e.getMessage());
+                    if( ++failures >= maxFailures ) {
+                        throw new CloudException("Unable to track task " + task.getHref() + " after " + failures + " failed lookups: " + e.getMessage());
+                    }
                 }
             }
             finally {
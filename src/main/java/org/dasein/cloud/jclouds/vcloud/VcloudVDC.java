@@ -26,12 +26,14 @@ import java.util.Collections;
 import java.util.Locale;
 import java.util.Map;
 
+import org.apache.log4j.Logger;
 import org.dasein.cloud.CloudException;
 import org.dasein.cloud.InternalException;
 import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.dc.DataCenter;
 import org.dasein.cloud.dc.DataCenterServices;
 import org.dasein.cloud.dc.Region;
+import org.dasein.cloud.jclouds.vcloud.metrics.OperationTimer;
 import org.jclouds.rest.ApiContext;
 import org.jclouds.vcloud.VCloudApi;
 import org.jclouds.vcloud.domain.ReferenceType;
@@ -41,7 +43,9 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 public class VcloudVDC implements DataCenterServices {
-    private VcloudDirector provider;
+    static private final Logger logger = Logger.getLogger(VcloudVDC.class);
+
+    private final VcloudDirector provider;
     
     VcloudVDC(@Nonnull VcloudDirector cloud) { provider = cloud; }
 
@@ -90,7 +94,23 @@ public class VcloudVDC implements DataCenterServices {
         ApiContext<VCloudApi> ctx = provider.getCloudClient();
 
         try {
-            return ctx.getApi().getVDCApi().getVDC(provider.toHref(ctx, vdcId));
+            URI href;
+
+            try {
+                href = provider.toHref(ctx, vdcId);
+            }
+            catch( IllegalArgumentException e ) {
+                logger.debug("getVDC(): " + e.getMessage());
+                return null;
+            }
+            return ctx.getApi().getVDCApi().getVDC(href);
+        }
+        catch( RuntimeException e ) {
+            logger.error("Error getting VDC " + vdcId + ": " + e.getMessage());
+            if( logger.isDebugEnabled() ) {
+                e.printStackTrace();
+            }
+            throw new CloudException(e);
         }
         finally {
             ctx.close();
@@ -102,11 +122,11 @@ public class VcloudVDC implements DataCenterServices {
         if( providerRegionId != null && !providerRegionId.equals(getContext().getRegionId()) ) {
             return Collections.emptyList();
         }
+        OperationTimer timer = provider.startOperation("listDataCenters", providerRegionId);
         ApiContext<VCloudApi> ctx = provider.getCloudClient();
 
         try {
             Map<String,ReferenceType> map = provider.getOrg().getVDCs();
-            System.out.println("Data centers=" + map);
             ArrayList<DataCenter> dcs = new ArrayList<DataCenter>();
             
             if( map == null ) {
@@ -120,11 +140,14 @@ public class VcloudVDC implements DataCenterServices {
                     dcs.add(dc);
                 }
             }
-            System.out.println("Result=" + dcs);
+            if( logger.isDebugEnabled() ) {
+                logger.debug("Data centers in " + providerRegionId + ": " + dcs);
+            }
             return dcs;
         }
         finally {
             ctx.close();
+            timer.finish();
         }
     }
 
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A single invocation of a jclouds feature API method (for example <code>VAppApi.getVApp(URI)</code>) as
+ * it passes through the chain of {@link ApiInterceptor}s.
+ */
+public class ApiCall {
+    private final Object[]             args;
+    private int                        index;
+    private final List<ApiInterceptor> interceptors;
+    private final Method               method;
+    private final Object               target;
+
+    ApiCall(@Nonnull Object target, @Nonnull Method method, @Nullable Object[] args, @Nonnull List<ApiInterceptor> interceptors) {
+        this.target = target;
+        this.method = method;
+        this.args = args;
+        this.interceptors = interceptors;
+        this.index = 0;
+    }
+
+    public @Nullable Object[] getArguments() {
+        return args;
+    }
+
+    public @Nonnull Method getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the name of the API method being called, such as <code>getVApp</code>
+     */
+    public @Nonnull String getName() {
+        return method.getName();
+    }
+
+    /**
+     * Passes control to the next interceptor in the chain or, at the end of the chain, to jclouds. An
+     * interceptor may call this method more than once (to retry a call, for example).
+     * @return the result of the call
+     * @throws Throwable the exception thrown by jclouds, unwrapped from any reflection wrapper
+     */
+    public Object proceed() throws Throwable {
+        int current = index;
+
+        if( current < interceptors.size() ) {
+            index++;
+            try {
+                return interceptors.get(current).intercept(this);
+            }
+            finally {
+                index = current;
+            }
+        }
+        try {
+            return method.invoke(target, args);
+        }
+        catch( InvocationTargetException e ) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return method.getDeclaringClass().getSimpleName() + "." + method.getName();
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Hook around every call made through the jclouds {@link org.jclouds.vcloud.VCloudApi} handed out by
+ * {@link org.dasein.cloud.jclouds.vcloud.VcloudDirector#getCloudClient()}. Interceptors are applied in
+ * order; each one must call {@link ApiCall#proceed()} to pass control to the next interceptor and,
+ * eventually, to jclouds.
+ */
+public interface ApiInterceptor {
+    public Object intercept(@Nonnull ApiCall call) throws Throwable;
+}
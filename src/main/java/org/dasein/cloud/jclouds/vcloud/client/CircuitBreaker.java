@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Stops calls to a Director endpoint that is down so that threads fail fast instead of piling up behind
+ * connection and read timeouts. After <code>threshold</code> consecutive endpoint failures (see
+ * {@link RetryPolicy#isEndpointFailure(Throwable)}) the breaker opens and every call is refused with a
+ * {@link CircuitOpenException} for <code>openMillis</code>. It then lets a single trial call through: if the
+ * trial succeeds the breaker closes, otherwise it opens again. Breakers are shared by all organizations on
+ * the same endpoint, since a cell outage affects them all.
+ */
+public class CircuitBreaker {
+    static private final Logger logger = Logger.getLogger(CircuitBreaker.class);
+
+    static private final ConcurrentHashMap<String,CircuitBreaker> breakers = new ConcurrentHashMap<String,CircuitBreaker>();
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * @param endpoint the Director endpoint
+     * @return the breaker for the endpoint
+     */
+    static public @Nonnull CircuitBreaker getInstance(@Nonnull String endpoint) {
+        CircuitBreaker breaker = breakers.get(endpoint);
+
+        if( breaker == null ) {
+            breaker = new CircuitBreaker(endpoint);
+            CircuitBreaker existing = breakers.putIfAbsent(endpoint, breaker);
+
+            if( existing != null ) {
+                breaker = existing;
+            }
+        }
+        return breaker;
+    }
+
+    private final String endpoint;
+    private int          failures;
+    private long         openedAt;
+    private long         openMillis = 30000L;
+    private State        state = State.CLOSED;
+    private int          threshold = 5;
+    private boolean      trialRunning;
+
+    private CircuitBreaker(@Nonnull String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * @param threshold the consecutive endpoint failures that open the breaker, or 0 to disable it
+     * @param openMillis how long the breaker stays open before a trial call
+     */
+    public synchronized void configure(int threshold, long openMillis) {
+        this.threshold = threshold;
+        this.openMillis = Math.max(1L, openMillis);
+        if( threshold < 1 ) {
+            state = State.CLOSED;
+            failures = 0;
+        }
+    }
+
+    public synchronized @Nonnull State getState() {
+        return state;
+    }
+
+    /**
+     * Asks permission to make a call.
+     * @return true if the call is the trial of a half open breaker and must be reported as such
+     * @throws CircuitOpenException the breaker is open
+     */
+    public synchronized boolean allow() {
+        if( state == State.CLOSED ) {
+            return false;
+        }
+        long remaining = openedAt + openMillis - System.currentTimeMillis();
+
+        if( remaining > 0L || trialRunning ) {
+            throw new CircuitOpenException(endpoint, Math.max(0L, remaining));
+        }
+        state = State.HALF_OPEN;
+        trialRunning = true;
+        return true;
+    }
+
+    /**
+     * Reports a call that reached the endpoint and got an answer, even an error answer about the request itself.
+     * @param trial the value returned by {@link #allow()}
+     */
+    public synchronized void succeeded(boolean trial) {
+        if( trial ) {
+            trialRunning = false;
+        }
+        failures = 0;
+        if( state != State.CLOSED ) {
+            state = State.CLOSED;
+            logger.info("vCloud endpoint " + endpoint + " has recovered; calls resumed");
+        }
+    }
+
+    /**
+     * Reports a call that ended without an outcome, for example because the thread was interrupted while
+     * waiting for a governor slot or the request could not be written. The call says nothing about the
+     * endpoint, so no failure is counted, but a trial that ends this way hands the trial to the next caller
+     * rather than leaving the breaker half open for good.
+     * @param trial the value returned by {@link #allow()}
+     */
+    public synchronized void abandoned(boolean trial) {
+        if( trial ) {
+            trialRunning = false;
+            if( state == State.HALF_OPEN ) {
+                state = State.OPEN;
+            }
+        }
+    }
+
+    /**
+     * Reports a call that failed because of the endpoint.
+     * @param trial the value returned by {@link #allow()}
+     * @return true if this failure opened the breaker
+     */
+    public synchronized boolean failed(boolean trial) {
+        if( trial ) {
+            trialRunning = false;
+        }
+        failures++;
+        if( threshold > 0 && (trial || (state == State.CLOSED && failures >= threshold)) ) {
+            boolean opened = (state == State.CLOSED);
+
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            if( opened ) {
+                logger.warn("vCloud endpoint " + endpoint + " failed " + failures + " times in a row; suspending calls for " + openMillis + "ms");
+            }
+            return opened;
+        }
+        return false;
+    }
+}
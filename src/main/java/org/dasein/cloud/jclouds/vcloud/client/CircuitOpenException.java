@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Thrown instead of calling the Director while the {@link CircuitBreaker} of its endpoint is open.
+ */
+public class CircuitOpenException extends RuntimeException {
+    private static final long serialVersionUID = -2467291058132405716L;
+
+    private final long retryAfterMillis;
+
+    public CircuitOpenException(@Nonnull String endpoint, long retryAfterMillis) {
+        super("The vCloud endpoint " + endpoint + " is unavailable; calls are suspended for another " + retryAfterMillis + "ms");
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * @return the time until the breaker lets a trial call through
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.jclouds.vcloud.metrics.MetricsSink;
+import org.dasein.cloud.jclouds.vcloud.metrics.OperationTimer;
+import org.jclouds.http.functions.ParseSax;
+import org.jclouds.rest.config.SaxParserModule;
+import org.jclouds.vcloud.xml.CatalogHandler;
+import org.jclouds.vcloud.xml.OrgHandler;
+import org.jclouds.vcloud.xml.OrgNetworkHandler;
+import org.jclouds.vcloud.xml.VAppTemplateHandler;
+import org.jclouds.vcloud.xml.VDCHandler;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Serves the lookups of rarely changing Director entities (orgs, VDCs, networks, catalogs and vApp
+ * templates) through an {@link HttpCache}. The document is fetched with {@link DirectorHttp#getConditional}
+ * using the validators of the cached copy; on a 304 the previously parsed object is returned as is, otherwise
+ * the new document is parsed with the same jclouds SAX handler jclouds itself would use. Any failure of the
+ * conditional path falls back to the regular jclouds call so that its error semantics (such as
+ * <code>null</code> for a missing entity) are preserved.
+ */
+public class ConditionalGetInterceptor implements ApiInterceptor {
+    static private final Logger logger = Logger.getLogger(ConditionalGetInterceptor.class);
+
+    static private final Map<String,Class<?>> handlers = new HashMap<String,Class<?>>();
+
+    static {
+        handlers.put("OrgApi.getOrg", OrgHandler.class);
+        handlers.put("VDCApi.getVDC", VDCHandler.class);
+        handlers.put("NetworkApi.getNetwork", OrgNetworkHandler.class);
+        handlers.put("CatalogApi.getCatalog", CatalogHandler.class);
+        handlers.put("VAppTemplateApi.getVAppTemplate", VAppTemplateHandler.class);
+    }
+
+    static private Injector injector;
+
+    static private synchronized @Nonnull Injector getInjector() {
+        if( injector == null ) {
+            injector = Guice.createInjector(new SaxParserModule());
+        }
+        return injector;
+    }
+
+    private final HttpCache   cache;
+    private final DirectorHttp http;
+    private final MetricsSink sink;
+
+    public ConditionalGetInterceptor(@Nonnull DirectorHttp http, @Nonnull HttpCache cache, @Nonnull MetricsSink sink) {
+        this.http = http;
+        this.cache = cache;
+        this.sink = sink;
+    }
+
+    @Override
+    public Object intercept(@Nonnull ApiCall call) throws Throwable {
+        Class<?> handler = handlers.get(call.toString());
+        Object[] args = call.getArguments();
+
+        if( handler == null || args == null || args.length != 1 || !(args[0] instanceof URI) ) {
+            return call.proceed();
+        }
+        URI href = (URI)args[0];
+        String key = href.toString();
+        HttpCache.Entry cached = cache.get(key);
+        DirectorHttp.ConditionalResponse response;
+
+        try {
+            OperationTimer.apiCalled();
+            response = http.getConditional(href, (cached == null ? null : cached.etag), (cached == null ? null : cached.lastModified));
+        }
+        catch( CloudException e ) {
+            if( logger.isDebugEnabled() ) {
+                logger.debug("Conditional GET of " + href + " failed, deferring to jclouds: " + e.getMessage());
+            }
+            cache.remove(key);
+            return call.proceed();
+        }
+        if( response.notModified ) {
+            if( cached != null ) {
+                cache.hit(cached, sink);
+                return cached.value;
+            }
+            return call.proceed();
+        }
+        cache.miss(sink);
+        Object value;
+
+        try {
+            value = parse(handler, response.body);
+        }
+        catch( RuntimeException e ) {
+            logger.warn("Unable to parse " + href + ", deferring to jclouds: " + e.getMessage());
+            return call.proceed();
+        }
+        if( value != null && (response.etag != null || response.lastModified != null) ) {
+            cache.put(key, new HttpCache.Entry(response.etag, response.lastModified, response.body.length, value));
+        }
+        else {
+            cache.remove(key);
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object parse(@Nonnull Class<?> handler, @Nonnull byte[] body) {
+        Injector i = getInjector();
+        ParseSax.HandlerWithResult<Object> h = (ParseSax.HandlerWithResult<Object>)i.getInstance(handler);
+
+        return i.getInstance(ParseSax.Factory.class).create(h).parse(new ByteArrayInputStream(body));
+    }
+}
@@ -0,0 +1,237 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Creates the executors that run blocking Director work in parallel: listing fan-out, metrics reads, bulk
+ * termination and image capture. On a runtime with virtual threads (Java 21 and later) the work runs on
+ * virtual threads, one per task, so that thousands of tasks blocked on Director I/O, task polls or the
+ * {@link RequestGovernor} cost next to nothing; the concurrency limit a caller asks for is still enforced with
+ * a semaphore. On older runtimes, or in <code>platform</code> mode, a fixed pool of daemon platform threads of
+ * that size is used as before. Virtual threads are looked up reflectively so that the adapter still builds and
+ * runs on Java 6.
+ * <p>
+ * The mode is <code>auto</code> (virtual threads when available), <code>virtual</code> or
+ * <code>platform</code>, taken from the <code>vcloud.threads</code> custom property of a context or, for
+ * executors shared by all contexts, the <code>vcloud.threads</code> system property.
+ * </p>
+ */
+public final class DirectorExecutors {
+    static private final Logger logger = Logger.getLogger(DirectorExecutors.class);
+
+    static public final String MODE_AUTO     = "auto";
+    static public final String MODE_PLATFORM = "platform";
+    static public final String MODE_VIRTUAL  = "virtual";
+
+    static private final Method builderFactory;
+    static private final Method builderName;
+    static private final Method ofVirtual;
+    static private final Method threadPerTask;
+
+    static {
+        Method factory = null, name = null, virtual = null, perTask = null;
+
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+
+            virtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            // on Java 19 and 20 virtual threads are a preview feature that fails here unless enabled
+            factory.invoke(virtual.invoke(null));
+        }
+        catch( Throwable t ) {
+            virtual = null;
+        }
+        ofVirtual = virtual;
+        builderName = (virtual == null ? null : name);
+        builderFactory = (virtual == null ? null : factory);
+        threadPerTask = (virtual == null ? null : perTask);
+    }
+
+    static private volatile boolean warned;
+
+    private DirectorExecutors() { }
+
+    /**
+     * @return the mode for executors not tied to a context, from the <code>vcloud.threads</code> system property
+     */
+    static public @Nonnull String getDefaultMode() {
+        return System.getProperty("vcloud.threads", MODE_AUTO);
+    }
+
+    /**
+     * @return true if the runtime supports virtual threads
+     */
+    static public boolean isVirtualAvailable() {
+        return (ofVirtual != null);
+    }
+
+    /**
+     * Resolves an execution mode.
+     * @param mode <code>auto</code>, <code>virtual</code> or <code>platform</code>; anything else means <code>auto</code>
+     * @return true if work should run on virtual threads
+     */
+    static public boolean isVirtual(@Nullable String mode) {
+        if( MODE_PLATFORM.equalsIgnoreCase(mode) ) {
+            return false;
+        }
+        if( MODE_VIRTUAL.equalsIgnoreCase(mode) && !isVirtualAvailable() && !warned ) {
+            warned = true;
+            logger.warn("Virtual threads were requested but are not supported by Java " + System.getProperty("java.version") + ", using platform threads");
+        }
+        return isVirtualAvailable();
+    }
+
+    /**
+     * @param name the prefix of the thread names, which are numbered from 1
+     * @param virtual true for virtual threads, ignored if they are not available
+     * @return a factory of daemon threads
+     */
+    static public @Nonnull ThreadFactory newThreadFactory(@Nonnull final String name, boolean virtual) {
+        if( virtual && isVirtualAvailable() ) {
+            try {
+                return (ThreadFactory)builderFactory.invoke(builderName.invoke(ofVirtual.invoke(null), name + " ", 1L));
+            }
+            catch( Exception e ) {
+                logger.warn("Unable to create virtual threads, using platform threads: " + e.getMessage());
+            }
+        }
+        final AtomicInteger count = new AtomicInteger(0);
+
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread t = new Thread(r);
+
+                t.setName(name + " " + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Creates an executor running at most the specified number of tasks at once. The caller must shut it down.
+     * @param name the prefix of the thread names
+     * @param threads the maximum number of tasks running at once, or 0 for no limit
+     * @param virtual true to run every task on its own virtual thread, ignored if they are not available
+     * @return the executor
+     */
+    static public @Nonnull ExecutorService newExecutor(@Nonnull String name, int threads, boolean virtual) {
+        ThreadFactory factory = newThreadFactory(name, virtual);
+
+        if( virtual && isVirtualAvailable() ) {
+            try {
+                ExecutorService perTask = (ExecutorService)threadPerTask.invoke(null, factory);
+
+                return (threads < 1 ? perTask : new BoundedExecutor(perTask, threads));
+            }
+            catch( Exception e ) {
+                logger.warn("Unable to create a virtual thread executor, using platform threads: " + e.getMessage());
+                factory = newThreadFactory(name, false);
+            }
+        }
+        return (threads < 1 ? Executors.newCachedThreadPool(factory) : Executors.newFixedThreadPool(threads, factory));
+    }
+
+    /**
+     * Runs every task on its own thread of a thread-per-task executor once one of a limited number of permits is
+     * free. Tasks waiting for a permit are parked virtual threads, which are cheap. Like the queue of a fixed
+     * pool, the waiting tasks are dropped by {@link #shutdownNow()}: their threads are interrupted out of the wait
+     * and return without running, while {@link #shutdown()} lets them run.
+     */
+    static private class BoundedExecutor extends AbstractExecutorService {
+        private final ExecutorService delegate;
+        private final Semaphore       permits;
+        private volatile boolean      stopped;
+
+        BoundedExecutor(@Nonnull ExecutorService delegate, int permits) {
+            this.delegate = delegate;
+            this.permits = new Semaphore(permits, true);
+        }
+
+        @Override
+        public void execute(@Nonnull final Runnable command) {
+            delegate.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        permits.acquire();
+                    }
+                    catch( InterruptedException e ) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    try {
+                        if( !stopped ) {
+                            command.run();
+                        }
+                    }
+                    finally {
+                        permits.release();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public @Nonnull List<Runnable> shutdownNow() {
+            stopped = true;
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, @Nonnull TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+}
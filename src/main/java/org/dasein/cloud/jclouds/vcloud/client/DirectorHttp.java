@@ -0,0 +1,776 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.jclouds.vcloud.metrics.MetricsSink;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Minimal authenticated HTTP access to the vCloud Director REST API for the operations jclouds does not model,
+ * such as enabling downloads, OVF transfers and the metrics endpoints. A session is established on first use
+ * with the same credentials jclouds uses and transparently re-established when the Director answers 401.
+ * Like the jclouds context built by {@link org.dasein.cloud.jclouds.vcloud.VcloudDirector#getCloudClient()},
+ * all certificates and host names are trusted.
+ */
+public class DirectorHttp {
+    static private final Logger logger = Logger.getLogger(DirectorHttp.class);
+
+    static public final String AUTH_HEADER = "x-vcloud-authorization";
+
+    static private final int CONNECT_TIMEOUT = 30000;
+    static private final int READ_TIMEOUT    = 300000;
+
+    /**
+     * Supplies the body of a request. The body may be written more than once if the request has to be repeated
+     * after the session is re-established.
+     */
+    public interface Body {
+        /**
+         * @return the exact length of the body in bytes, or -1 to stream it in chunked mode
+         */
+        public long getLength();
+
+        public @Nullable String getContentType();
+
+        public void writeTo(@Nonnull OutputStream out) throws IOException;
+    }
+
+    static private SSLSocketFactory trustingSocketFactory;
+
+    static private synchronized @Nonnull SSLSocketFactory getTrustingSocketFactory() throws CloudException {
+        if( trustingSocketFactory == null ) {
+            try {
+                SSLContext ssl = SSLContext.getInstance("TLS");
+
+                ssl.init(null, new TrustManager[] { new X509TrustManager() {
+                    public void checkClientTrusted(X509Certificate[] chain, String authType) { }
+                    public void checkServerTrusted(X509Certificate[] chain, String authType) { }
+                    public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
+                } }, new SecureRandom());
+                trustingSocketFactory = ssl.getSocketFactory();
+            }
+            catch( Exception e ) {
+                throw new CloudException(e);
+            }
+        }
+        return trustingSocketFactory;
+    }
+
+    static private final HostnameVerifier trustingVerifier = new HostnameVerifier() {
+        public boolean verify(String host, SSLSession session) { return true; }
+    };
+
+    /**
+     * Parses an XML document with namespace awareness.
+     * @param in the stream holding the document, which is closed by this method
+     * @return the parsed document
+     * @throws CloudException the document could not be read or parsed
+     */
+    static public @Nonnull Document parse(@Nonnull InputStream in) throws CloudException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+
+            factory.setNamespaceAware(true);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+
+            return builder.parse(in);
+        }
+        catch( Exception e ) {
+            throw new CloudException(e);
+        }
+        finally {
+            try { in.close(); }
+            catch( IOException ignore ) { }
+        }
+    }
+
+    /**
+     * Finds all descendants of a node with the specified local name, regardless of namespace.
+     * @param node the node to search
+     * @param localName the local name of the elements
+     * @return the matching elements in document order
+     */
+    static public @Nonnull List<Element> elements(@Nonnull Node node, @Nonnull String localName) {
+        NodeList list = (node instanceof Document ? ((Document)node).getElementsByTagNameNS("*", localName) : ((Element)node).getElementsByTagNameNS("*", localName));
+        ArrayList<Element> elements = new ArrayList<Element>();
+
+        for( int i=0; i<list.getLength(); i++ ) {
+            elements.add((Element)list.item(i));
+        }
+        return elements;
+    }
+
+    /**
+     * Finds the href of the first <code>Link</code> element with the specified relation.
+     * @param doc the document to search
+     * @param rel the link relation, e.g. <code>download:default</code>
+     * @return the link target or <code>null</code> if there is no such link
+     */
+    static public @Nullable URI link(@Nonnull Node doc, @Nonnull String rel) {
+        for( Element link : elements(doc, "Link") ) {
+            if( rel.equals(link.getAttribute("rel")) ) {
+                return URI.create(link.getAttribute("href"));
+            }
+        }
+        return null;
+    }
+
+    private final String             accept;
+    private volatile CircuitBreaker  breaker;
+    private volatile boolean         compression = true;
+    private final String             endpoint;
+    private volatile RequestGovernor governor;
+    private final ReentrantLock      loginLock = new ReentrantLock();
+    private final String             password;
+    private volatile RetryPolicy     retryPolicy;
+    private volatile MetricsSink     sink;
+    private volatile long            slowMillis = RequestTrace.DEFAULT_SLOW_MILLIS;
+    private volatile String          token;
+    private final String             user;
+    private final String             version;
+
+    /**
+     * @param endpoint the API endpoint, for example <code>https://vcd.example.com/api</code>
+     * @param version the API version spoken by jclouds, for example <code>1.0</code>
+     * @param user the user in <code>user@org</code> form
+     * @param password the password
+     */
+    public DirectorHttp(@Nonnull String endpoint, @Nonnull String version, @Nonnull String user, @Nonnull String password) {
+        this.endpoint = (endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length()-1) : endpoint);
+        this.version = version;
+        this.user = user;
+        this.password = password;
+        this.accept = "application/*+xml;version=" + version;
+    }
+
+    /**
+     * Issues a request and returns the connection once a successful (2xx) status, or a 304 in answer to a
+     * conditional request, has been received. The caller owns the connection and must close its input stream.
+     * @param method the HTTP method
+     * @param uri the target of the request
+     * @param headers additional request headers
+     * @param body the request body, if any
+     * @return the open connection
+     * @throws CloudException the request failed or the Director returned an error status
+     */
+    public @Nonnull HttpURLConnection execute(@Nonnull String method, @Nonnull URI uri, @Nullable Map<String,String> headers, @Nullable Body body) throws CloudException {
+        String session = getToken();
+        boolean relogged = false;
+
+        for( int attempt=1; ; attempt++ ) {
+            HttpURLConnection connection = null;
+            RequestGovernor admittedBy = null;
+            boolean reported = false;
+            boolean trial = false;
+            long start = 0L;
+            boolean failed = true;
+
+            try {
+                trial = allow();
+                admittedBy = admit();
+                connection = open(method, uri, headers, session);
+                if( body != null ) {
+                    long length = body.getLength();
+
+                    connection.setDoOutput(true);
+                    if( body.getContentType() != null ) {
+                        connection.setRequestProperty("Content-Type", body.getContentType());
+                    }
+                    if( length >= 0L && length <= Integer.MAX_VALUE ) {
+                        connection.setFixedLengthStreamingMode((int)length);
+                    }
+                    else {
+                        connection.setChunkedStreamingMode(64 * 1024);
+                    }
+                    OutputStream out = connection.getOutputStream();
+
+                    try {
+                        body.writeTo(out);
+                    }
+                    finally {
+                        out.close();
+                    }
+                }
+                start = System.nanoTime();
+                int code = connection.getResponseCode();
+
+                if( code == HttpURLConnection.HTTP_UNAUTHORIZED && !relogged ) {
+                    drain(connection);
+                    reportSuccess(trial);
+                    reported = true;
+                    relogged = true;
+                    session = login(session);
+                    continue;
+                }
+                if( RetryPolicy.isRetryableStatus(code) ) {
+                    String error = drain(connection);
+
+                    reportFailure(trial);
+                    reported = true;
+                    if( body == null && backoff(method, uri, attempt, code + ": " + error) ) {
+                        continue;
+                    }
+                    throw new CloudException(method + " " + uri + " failed with " + code + ": " + error);
+                }
+                reportSuccess(trial);
+                reported = true;
+                if( (code < 200 || code > 299) && code != HttpURLConnection.HTTP_NOT_MODIFIED ) {
+                    String error = drain(connection);
+
+                    throw new CloudException(method + " " + uri + " failed with " + code + ": " + error);
+                }
+                failed = false;
+                return connection;
+            }
+            catch( IOException e ) {
+                if( connection != null ) {
+                    connection.disconnect();
+                }
+                if( RetryPolicy.isConnectionFailure(e) ) {
+                    reportFailure(trial);
+                    reported = true;
+                    if( method.equals("GET") && backoff(method, uri, attempt, e.getMessage()) ) {
+                        continue;
+                    }
+                }
+                else {
+                    reportSuccess(trial);
+                    reported = true;
+                }
+                throw new CloudException(e);
+            }
+            finally {
+                if( !reported ) {
+                    // interrupted while admitted, or a runtime failure before any answer
+                    reportAbandoned(trial);
+                }
+                if( admittedBy != null ) {
+                    admittedBy.release(sink);
+                }
+                if( start > 0L ) {
+                    RequestTrace.completed(method, uri, (System.nanoTime() - start) / 1000000L, slowMillis, failed);
+                }
+            }
+        }
+    }
+
+    private boolean allow() throws CloudException {
+        CircuitBreaker cb = breaker;
+
+        try {
+            return (cb != null && cb.allow());
+        }
+        catch( CircuitOpenException e ) {
+            throw new CloudException(e.getMessage());
+        }
+    }
+
+    private void reportAbandoned(boolean trial) {
+        CircuitBreaker cb = breaker;
+
+        if( cb != null ) {
+            cb.abandoned(trial);
+        }
+    }
+
+    private void reportFailure(boolean trial) {
+        CircuitBreaker cb = breaker;
+
+        if( cb != null ) {
+            cb.failed(trial);
+        }
+    }
+
+    private void reportSuccess(boolean trial) {
+        CircuitBreaker cb = breaker;
+
+        if( cb != null ) {
+            cb.succeeded(trial);
+        }
+    }
+
+    private boolean backoff(@Nonnull String method, @Nonnull URI uri, int attempt, @Nullable String reason) throws CloudException {
+        RetryPolicy policy = retryPolicy;
+
+        if( policy == null || attempt >= policy.getMaxAttempts() ) {
+            return false;
+        }
+        long delay = policy.getDelay(attempt);
+
+        if( logger.isDebugEnabled() ) {
+            logger.debug("Retrying " + method + " " + uri + " in " + delay + "ms after attempt " + attempt + " failed: " + reason);
+        }
+        try {
+            Thread.sleep(delay);
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new CloudException("Interrupted while retrying " + method + " " + uri);
+        }
+        return true;
+    }
+
+    private @Nullable RequestGovernor admit() throws CloudException {
+        RequestGovernor g = governor;
+
+        if( g == null ) {
+            return null;
+        }
+        try {
+            g.acquire(sink, RequestGovernor.takeBackground());
+            return g;
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new CloudException("Interrupted while waiting for the request budget of " + endpoint);
+        }
+    }
+
+    /**
+     * Fetches and parses an XML document.
+     * @param uri the document location
+     * @return the parsed document
+     * @throws CloudException the request failed
+     */
+    public @Nonnull Document get(@Nonnull URI uri) throws CloudException {
+        HttpURLConnection connection = execute("GET", uri, negotiate(null), null);
+
+        try {
+            return parse(openBody(connection));
+        }
+        catch( IOException e ) {
+            throw new CloudException(e);
+        }
+    }
+
+    /**
+     * Opens an XML document for streaming, for example with StAX.
+     * @param uri the document location
+     * @return the decoded document, which the caller must close
+     * @throws CloudException the request failed
+     */
+    public @Nonnull InputStream getStream(@Nonnull URI uri) throws CloudException {
+        HttpURLConnection connection = execute("GET", uri, negotiate(null), null);
+
+        try {
+            return openBody(connection);
+        }
+        catch( IOException e ) {
+            throw new CloudException(e);
+        }
+    }
+
+    /**
+     * Fetches a resource into memory. Only suitable for small resources such as OVF descriptors.
+     * @param uri the resource location
+     * @return the resource content
+     * @throws CloudException the request failed
+     */
+    public @Nonnull byte[] getBytes(@Nonnull URI uri) throws CloudException {
+        HttpURLConnection connection = execute("GET", uri, negotiate(null), null);
+
+        try {
+            return readAll(openBody(connection));
+        }
+        catch( IOException e ) {
+            throw new CloudException(e);
+        }
+    }
+
+    /**
+     * The answer to a conditional GET: either a new body with its validators, or notice that the cached copy
+     * identified by the validators sent is still current.
+     */
+    static public class ConditionalResponse {
+        public final byte[]  body;
+        public final String  etag;
+        public final String  lastModified;
+        public final boolean notModified;
+
+        public ConditionalResponse(@Nullable byte[] body, @Nullable String etag, @Nullable String lastModified, boolean notModified) {
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.notModified = notModified;
+        }
+    }
+
+    /**
+     * Fetches a document unless it is unchanged since it was last fetched.
+     * @param uri the document location
+     * @param etag the entity tag of the cached copy, if any, sent as <code>If-None-Match</code>
+     * @param lastModified the modification time of the cached copy, if any, sent as <code>If-Modified-Since</code>
+     * @return the response
+     * @throws CloudException the request failed
+     */
+    public @Nonnull ConditionalResponse getConditional(@Nonnull URI uri, @Nullable String etag, @Nullable String lastModified) throws CloudException {
+        HashMap<String,String> headers = new HashMap<String,String>();
+
+        if( etag != null ) {
+            headers.put("If-None-Match", etag);
+        }
+        if( lastModified != null ) {
+            headers.put("If-Modified-Since", lastModified);
+        }
+        HttpURLConnection connection = execute("GET", uri, negotiate(headers), null);
+
+        try {
+            String newTag = connection.getHeaderField("ETag");
+            String newModified = connection.getHeaderField("Last-Modified");
+
+            if( connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED ) {
+                connection.disconnect();
+                return new ConditionalResponse(null, (newTag == null ? etag : newTag), (newModified == null ? lastModified : newModified), true);
+            }
+            return new ConditionalResponse(readAll(openBody(connection)), newTag, newModified, false);
+        }
+        catch( IOException e ) {
+            throw new CloudException(e);
+        }
+    }
+
+    /**
+     * Adds <code>Accept-Encoding: gzip</code> to the headers of a request for an XML document, unless
+     * compression has been turned off. Requests for disk images and other binary content should not use this.
+     * @param headers the request headers, if any
+     * @return the headers to send
+     */
+    public @Nullable Map<String,String> negotiate(@Nullable Map<String,String> headers) {
+        if( !compression ) {
+            return headers;
+        }
+        HashMap<String,String> negotiated = new HashMap<String,String>();
+
+        if( headers != null ) {
+            negotiated.putAll(headers);
+        }
+        negotiated.put("Accept-Encoding", "gzip");
+        return negotiated;
+    }
+
+    /**
+     * Opens the body of a successful response, decoding it according to its <code>Content-Encoding</code>.
+     * @param connection the connection returned by {@link #execute(String, URI, Map, Body)}
+     * @return the decoded body, which the caller must close
+     * @throws IOException the body could not be opened
+     */
+    public @Nonnull InputStream openBody(@Nonnull HttpURLConnection connection) throws IOException {
+        return InflaterPool.decode(connection.getInputStream(), connection.getContentEncoding(), sink);
+    }
+
+    static private @Nonnull byte[] readAll(@Nonnull InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+
+            while( (n = in.read(buffer)) != -1 ) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    public @Nonnull String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Admits every request through the specified governor so that raw HTTP calls share the budget of the
+     * jclouds calls to the same organization.
+     * @param governor the governor, or <code>null</code> for no governance
+     * @param sink the sink receiving the governor and transfer metrics
+     */
+    public void setGovernor(@Nullable RequestGovernor governor, @Nonnull MetricsSink sink) {
+        this.sink = sink;
+        this.governor = governor;
+    }
+
+    /**
+     * Determines whether XML documents are requested gzip compressed. Compressed documents are inflated
+     * transparently and their wire and decoded sizes reported to the sink passed to
+     * {@link #setGovernor(RequestGovernor, MetricsSink)}.
+     * @param compression true to request compressed documents
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Retries requests that the Director refused as overloaded and, for GET requests, requests whose connection
+     * failed, and stops issuing requests while the breaker of the endpoint is open. Requests with a body are
+     * not retried since the body may be a one-shot stream.
+     * @param policy the retry policy, or <code>null</code> for no retries
+     * @param breaker the breaker of the endpoint, or <code>null</code> for none
+     */
+    public void setResilience(@Nullable RetryPolicy policy, @Nullable CircuitBreaker breaker) {
+        this.retryPolicy = policy;
+        this.breaker = breaker;
+    }
+
+    /**
+     * Sets the time a request may take before it is logged as slow. The time is measured from the moment the
+     * request has been sent until the response status arrives, so uploading a large body does not count.
+     * @param slowMillis the threshold in milliseconds
+     */
+    public void setSlowCallMillis(long slowMillis) {
+        this.slowMillis = slowMillis;
+    }
+
+    /**
+     * @return the vCloud XML namespace matching the API version in use
+     */
+    public @Nonnull String getNamespace() {
+        return (version.startsWith("1.0") ? "http://www.vmware.com/vcloud/v1" : "http://www.vmware.com/vcloud/v1.5");
+    }
+
+    /**
+     * @return the user the session belongs to, in <code>user@org</code> form
+     */
+    public @Nonnull String getUser() {
+        return user;
+    }
+
+    /**
+     * @return the versioned API root, for example <code>https://vcd.example.com/api/v1.0</code>
+     */
+    public @Nonnull String getVersionedEndpoint() {
+        return endpoint + "/v" + version;
+    }
+
+    /**
+     * Ends the Director session, if one was established. A later request simply logs in again.
+     */
+    public void logout() {
+        String t;
+
+        loginLock.lock();
+        try {
+            t = token;
+            token = null;
+        }
+        finally {
+            loginLock.unlock();
+        }
+        if( t == null ) {
+            return;
+        }
+        HttpURLConnection connection = null;
+
+        try {
+            connection = open("POST", URI.create(getVersionedEndpoint() + "/logout"), null, t);
+            int code = connection.getResponseCode();
+
+            if( logger.isDebugEnabled() ) {
+                logger.debug("Ended Director session for " + user + " at " + endpoint + " (" + code + ")");
+            }
+        }
+        catch( IOException e ) {
+            logger.debug("Unable to log out of " + endpoint + ": " + e.getMessage());
+        }
+        catch( CloudException e ) {
+            logger.debug("Unable to log out of " + endpoint + ": " + e.getMessage());
+        }
+        finally {
+            if( connection != null ) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Posts to an action link and parses the response, which for most actions is the <code>Task</code> tracking it.
+     * @param uri the action link
+     * @param contentType the content type of the body, if any
+     * @param xml the XML body, if any
+     * @return the parsed response
+     * @throws CloudException the request failed
+     */
+    public @Nonnull Document post(@Nonnull URI uri, @Nullable final String contentType, @Nullable String xml) throws CloudException {
+        Body body = null;
+
+        if( xml != null ) {
+            final byte[] bytes;
+
+            try {
+                bytes = xml.getBytes("utf-8");
+            }
+            catch( IOException e ) {
+                throw new CloudException(e);
+            }
+            body = new Body() {
+                public long getLength() { return bytes.length; }
+                public String getContentType() { return contentType; }
+                public void writeTo(@Nonnull OutputStream out) throws IOException { out.write(bytes); }
+            };
+        }
+        HttpURLConnection connection = execute("POST", uri, negotiate(null), body);
+
+        try {
+            return parse(openBody(connection));
+        }
+        catch( IOException e ) {
+            throw new CloudException(e);
+        }
+    }
+
+    private @Nonnull String drain(@Nonnull HttpURLConnection connection) {
+        InputStream in = connection.getErrorStream();
+
+        if( in == null ) {
+            return "";
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+
+            while( (n = in.read(buffer)) != -1 ) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), "utf-8");
+        }
+        catch( IOException e ) {
+            return "";
+        }
+        finally {
+            try { in.close(); }
+            catch( IOException ignore ) { }
+        }
+    }
+
+    private @Nonnull String getToken() throws CloudException {
+        String t = token;
+
+        return (t == null ? login(null) : t);
+    }
+
+    private @Nonnull String login(@Nullable String stale) throws CloudException {
+        // a lock rather than a monitor so that virtual threads waiting for the session do not pin their carrier
+        loginLock.lock();
+        try {
+            return establish(stale);
+        }
+        finally {
+            loginLock.unlock();
+        }
+    }
+
+    private @Nonnull String establish(@Nullable String stale) throws CloudException {
+        if( token != null && !token.equals(stale) ) {
+            return token;
+        }
+        URI uri = URI.create(getVersionedEndpoint() + "/login");
+        HttpURLConnection connection = null;
+
+        try {
+            connection = open("POST", uri, null, null);
+            connection.setRequestProperty("Authorization", "Basic " + BaseEncoding.base64().encode((user + ":" + password).getBytes("utf-8")));
+            int code = connection.getResponseCode();
+
+            if( code < 200 || code > 299 ) {
+                throw new CloudException("Login to " + endpoint + " failed with " + code + ": " + drain(connection));
+            }
+            String t = connection.getHeaderField(AUTH_HEADER);
+
+            if( t == null ) {
+                throw new CloudException("No session token was returned by " + uri);
+            }
+            connection.getInputStream().close();
+            if( logger.isDebugEnabled() ) {
+                logger.debug("Established Director session for " + user + " at " + endpoint);
+            }
+            token = t;
+            return t;
+        }
+        catch( IOException e ) {
+            throw new CloudException(e);
+        }
+        finally {
+            if( connection != null ) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private @Nonnull HttpURLConnection open(@Nonnull String method, @Nonnull URI uri, @Nullable Map<String,String> headers, @Nullable String session) throws IOException, CloudException {
+        HttpURLConnection connection = (HttpURLConnection)uri.toURL().openConnection();
+
+        if( connection instanceof HttpsURLConnection ) {
+            ((HttpsURLConnection)connection).setSSLSocketFactory(getTrustingSocketFactory());
+            ((HttpsURLConnection)connection).setHostnameVerifier(trustingVerifier);
+        }
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setInstanceFollowRedirects(true);
+        connection.setRequestProperty("Accept", accept);
+        String requestId = RequestTrace.current();
+
+        if( requestId != null ) {
+            connection.setRequestProperty(RequestTrace.HEADER, requestId);
+        }
+        if( session != null ) {
+            connection.setRequestProperty(AUTH_HEADER, session);
+        }
+        if( headers != null ) {
+            for( Map.Entry<String,String> header : headers.entrySet() ) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        return connection;
+    }
+}
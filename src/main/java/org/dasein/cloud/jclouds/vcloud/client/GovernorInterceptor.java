@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import java.util.concurrent.CancellationException;
+
+import javax.annotation.Nonnull;
+
+import org.dasein.cloud.jclouds.vcloud.metrics.MetricsSink;
+
+/**
+ * Admits every API call through the {@link RequestGovernor} of the organization being called.
+ */
+public class GovernorInterceptor implements ApiInterceptor {
+    private final RequestGovernor governor;
+    private final MetricsSink     sink;
+
+    public GovernorInterceptor(@Nonnull RequestGovernor governor, @Nonnull MetricsSink sink) {
+        this.governor = governor;
+        this.sink = sink;
+    }
+
+    @Override
+    public Object intercept(@Nonnull ApiCall call) throws Throwable {
+        try {
+            governor.acquire(sink, RequestGovernor.takeBackground());
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting to call " + call);
+        }
+        try {
+            return call.proceed();
+        }
+        finally {
+            governor.release(sink);
+        }
+    }
+}
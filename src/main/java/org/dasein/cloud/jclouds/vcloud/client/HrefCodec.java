@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Translates between Dasein resource IDs such as <code>/vApp/vm-1234</code> and the hrefs of the vCloud API
+ * under a single endpoint. The versioned base is computed once for both the http and https forms of the
+ * endpoint so the translation is a prefix check and a substring, and hrefs are interned so that repeated
+ * lookups of the same resource do not parse a new {@link URI}. Input that does not belong to the endpoint
+ * is rejected with an {@link IllegalArgumentException} naming the offending value.
+ */
+public class HrefCodec {
+    static public final int DEFAULT_CACHE_SIZE = 10000;
+
+    private final String                       base;
+    private final int                          cacheSize;
+    private final String                       endpoint;
+    private final ConcurrentHashMap<String,URI> hrefs;
+    private final String                       httpBase;
+    private final String                       httpsBase;
+    private final String                       pathBase;
+    private final String                       version;
+
+    public HrefCodec(@Nonnull String endpoint, @Nonnull String version) {
+        this(endpoint, version, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param endpoint the API endpoint, e.g. <code>https://vcd.example.com/api</code>
+     * @param version the API version, e.g. <code>1.0</code>
+     * @param cacheSize the number of hrefs to intern, 0 to disable interning
+     */
+    public HrefCodec(@Nonnull String endpoint, @Nonnull String version, int cacheSize) {
+        String trimmed = endpoint.trim();
+        URI uri;
+
+        while( trimmed.endsWith("/") ) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+        try {
+            uri = new URI(trimmed);
+        }
+        catch( URISyntaxException e ) {
+            throw new IllegalArgumentException("Invalid vCloud endpoint " + endpoint + ": " + e.getMessage());
+        }
+        if( uri.getScheme() == null || uri.getRawAuthority() == null || !(uri.getScheme().equalsIgnoreCase("http") || uri.getScheme().equalsIgnoreCase("https")) ) {
+            throw new IllegalArgumentException("The vCloud endpoint must be an absolute http or https URL: " + endpoint);
+        }
+        String rest = "://" + uri.getRawAuthority() + (uri.getRawPath() == null ? "" : uri.getRawPath()) + "/v" + version;
+
+        this.endpoint = endpoint;
+        this.version = version;
+        this.cacheSize = cacheSize;
+        this.base = uri.getScheme().toLowerCase() + rest;
+        this.httpBase = "http" + rest;
+        this.httpsBase = "https" + rest;
+        this.pathBase = (uri.getRawPath() == null ? "" : uri.getRawPath()) + "/v" + version + "/";
+        this.hrefs = new ConcurrentHashMap<String,URI>(Math.max(16, Math.min(cacheSize, 1024)));
+    }
+
+    /**
+     * @return the versioned base of every href, e.g. <code>https://vcd.example.com/api/v1.0</code>
+     */
+    public @Nonnull String getBase() {
+        return base;
+    }
+
+    /**
+     * @param endpoint an API endpoint
+     * @param version an API version
+     * @return true if this codec was built for the specified endpoint and version
+     */
+    public boolean isFor(@Nonnull String endpoint, @Nonnull String version) {
+        return this.endpoint.equals(endpoint) && this.version.equals(version);
+    }
+
+    /**
+     * @param id a resource ID such as <code>/vApp/vm-1234</code>
+     * @return the href of the resource under this endpoint
+     * @throws IllegalArgumentException the ID is empty, relative or not a valid URI path
+     */
+    public @Nonnull URI toHref(@Nonnull String id) {
+        URI href = hrefs.get(id);
+
+        if( href != null ) {
+            return href;
+        }
+        if( id.length() < 2 || id.charAt(0) != '/' ) {
+            throw new IllegalArgumentException("Invalid vCloud resource ID: \"" + id + "\"");
+        }
+        try {
+            href = new URI(base + id);
+        }
+        catch( URISyntaxException e ) {
+            throw new IllegalArgumentException("Invalid vCloud resource ID: \"" + id + "\" (" + e.getReason() + ")");
+        }
+        intern(id, href);
+        return href;
+    }
+
+    /**
+     * Maps an href to its resource ID. Hrefs on the same host as the endpoint are matched by prefix regardless of
+     * protocol; hrefs on another host (for example behind a load balancer) are matched on the versioned API path.
+     * @param href the href of a resource
+     * @return the resource ID
+     * @throws IllegalArgumentException the href does not point into this API
+     */
+    public @Nonnull String toId(@Nonnull URI href) {
+        String str = href.toASCIIString();
+        String id;
+
+        if( str.startsWith(httpsBase) ) {
+            id = str.substring(httpsBase.length());
+        }
+        else if( str.startsWith(httpBase) ) {
+            id = str.substring(httpBase.length());
+        }
+        else {
+            String path = href.getRawPath();
+
+            if( path == null || !path.startsWith(pathBase) ) {
+                throw new IllegalArgumentException("The href " + str + " does not belong to the vCloud API at " + base);
+            }
+            id = path.substring(pathBase.length() - 1);
+            if( href.getRawQuery() != null ) {
+                id = id + "?" + href.getRawQuery();
+            }
+        }
+        if( id.length() < 2 || id.charAt(0) != '/' ) {
+            throw new IllegalArgumentException("The href " + str + " does not identify a resource of the vCloud API at " + base);
+        }
+        if( str.startsWith(base) ) {
+            intern(id, href);
+        }
+        return id;
+    }
+
+    private void intern(@Nonnull String id, @Nonnull URI href) {
+        if( cacheSize < 1 ) {
+            return;
+        }
+        if( hrefs.size() >= cacheSize ) {
+            hrefs.clear();
+        }
+        hrefs.putIfAbsent(id, href);
+    }
+}
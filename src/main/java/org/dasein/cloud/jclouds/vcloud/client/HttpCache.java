@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.jclouds.vcloud.metrics.MetricsSink;
+
+/**
+ * Size-bounded LRU of Director documents keyed by href, holding the validators (<code>ETag</code> and
+ * <code>Last-Modified</code>) the Director sent with each document and the object parsed from it. The size of
+ * an entry is the length of the document it was parsed from. Caches are shared per endpoint and organization.
+ * <p>
+ * Hits (a 304 answered from the cache) and misses are counted in <code>httpCache.hits</code> and
+ * <code>httpCache.misses</code>, the document bytes that did not have to be transferred in
+ * <code>httpCache.bytesSaved</code>, and the hit ratio in percent and the cached bytes are published as the
+ * <code>httpCache.hitRatio</code> and <code>httpCache.bytes</code> gauges.
+ * </p>
+ */
+public class HttpCache {
+    static private final ConcurrentHashMap<String,HttpCache> caches = new ConcurrentHashMap<String,HttpCache>();
+
+    /**
+     * @param endpoint the Director endpoint
+     * @param org the organization
+     * @param maxBytes the capacity of a new cache
+     * @return the cache shared by all connections to the organization on the endpoint
+     */
+    static public @Nonnull HttpCache getInstance(@Nonnull String endpoint, @Nonnull String org, long maxBytes) {
+        String key = endpoint + "|" + org;
+        HttpCache cache = caches.get(key);
+
+        if( cache == null ) {
+            cache = new HttpCache(maxBytes);
+            HttpCache existing = caches.putIfAbsent(key, cache);
+
+            if( existing != null ) {
+                cache = existing;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * A cached document.
+     */
+    static public class Entry {
+        public final String etag;
+        public final String lastModified;
+        public final int    size;
+        public final Object value;
+
+        public Entry(@Nullable String etag, @Nullable String lastModified, int size, @Nonnull Object value) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.value = value;
+        }
+    }
+
+    private long                             bytes;
+    private final AtomicLong                 bytesSaved = new AtomicLong();
+    private final LinkedHashMap<String,Entry> entries   = new LinkedHashMap<String,Entry>(64, 0.75f, true);
+    private final AtomicLong                 hits       = new AtomicLong();
+    private final long                       maxBytes;
+    private final AtomicLong                 misses     = new AtomicLong();
+
+    public HttpCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized @Nullable Entry get(@Nonnull String href) {
+        return entries.get(href);
+    }
+
+    public synchronized void put(@Nonnull String href, @Nonnull Entry entry) {
+        if( entry.size > maxBytes ) {
+            return;
+        }
+        Entry old = entries.put(href, entry);
+
+        if( old != null ) {
+            bytes -= old.size;
+        }
+        bytes += entry.size;
+        Iterator<Map.Entry<String,Entry>> it = entries.entrySet().iterator();
+
+        while( bytes > maxBytes && it.hasNext() ) {
+            bytes -= it.next().getValue().size;
+            it.remove();
+        }
+    }
+
+    public synchronized void remove(@Nonnull String href) {
+        Entry old = entries.remove(href);
+
+        if( old != null ) {
+            bytes -= old.size;
+        }
+    }
+
+    /**
+     * Records a document served from the cache.
+     * @param entry the entry that was served
+     * @param sink the sink receiving the cache metrics
+     */
+    public void hit(@Nonnull Entry entry, @Nonnull MetricsSink sink) {
+        hits.incrementAndGet();
+        bytesSaved.addAndGet(entry.size);
+        sink.increment("httpCache.hits", 1L);
+        sink.increment("httpCache.bytesSaved", entry.size);
+        publish(sink);
+    }
+
+    /**
+     * Records a document that had to be transferred.
+     * @param sink the sink receiving the cache metrics
+     */
+    public void miss(@Nonnull MetricsSink sink) {
+        misses.incrementAndGet();
+        sink.increment("httpCache.misses", 1L);
+        publish(sink);
+    }
+
+    private void publish(@Nonnull MetricsSink sink) {
+        sink.gauge("httpCache.hitRatio", Math.round(getHitRatio() * 100.0));
+        sink.gauge("httpCache.bytes", getBytes());
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the fraction of lookups answered from the cache, from 0 to 1
+     */
+    public double getHitRatio() {
+        long h = hits.get(), total = h + misses.get();
+
+        return (total == 0L ? 0.0 : ((double)h) / total);
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,280 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.jclouds.vcloud.metrics.MetricsSink;
+
+/**
+ * Decodes response bodies according to their <code>Content-Encoding</code>, inflating gzip bodies with
+ * {@link Inflater}s taken from a bounded pool instead of allocating (and leaving to finalization) the native
+ * inflater a {@link java.util.zip.GZIPInputStream} creates for every response.
+ * <p>
+ * When a decoded body is closed, the bytes received are added to <code>http.bytes.wire</code>, the bytes
+ * delivered to <code>http.bytes.decoded</code> and the difference to <code>http.bytes.saved</code>.
+ * </p>
+ */
+public final class InflaterPool {
+    static private final int MAX_POOLED = 32;
+
+    static private final ConcurrentLinkedQueue<Inflater> pool   = new ConcurrentLinkedQueue<Inflater>();
+    static private final AtomicInteger                   pooled = new AtomicInteger();
+
+    static private @Nonnull Inflater borrow() {
+        Inflater inflater = pool.poll();
+
+        if( inflater == null ) {
+            return new Inflater(true);
+        }
+        pooled.decrementAndGet();
+        return inflater;
+    }
+
+    static private void release(@Nonnull Inflater inflater) {
+        inflater.reset();
+        if( pooled.incrementAndGet() <= MAX_POOLED ) {
+            pool.offer(inflater);
+        }
+        else {
+            pooled.decrementAndGet();
+            inflater.end();
+        }
+    }
+
+    /**
+     * Wraps a raw response body in a stream delivering the decoded body.
+     * @param raw the body as received
+     * @param contentEncoding the <code>Content-Encoding</code> of the response, if any
+     * @param sink the sink receiving the byte counts, if any
+     * @return the decoded body, which must be closed to return its inflater to the pool
+     * @throws IOException the gzip header could not be read or the encoding is not supported
+     */
+    static public @Nonnull InputStream decode(@Nonnull InputStream raw, @Nullable String contentEncoding, @Nullable MetricsSink sink) throws IOException {
+        if( contentEncoding == null || contentEncoding.trim().equals("") || contentEncoding.trim().equalsIgnoreCase("identity") ) {
+            return new IdentityBody(raw, sink);
+        }
+        if( contentEncoding.trim().equalsIgnoreCase("gzip") || contentEncoding.trim().equalsIgnoreCase("x-gzip") ) {
+            CountingStream counted = new CountingStream(raw);
+
+            readHeader(counted);
+            return new GzipBody(counted, sink);
+        }
+        raw.close();
+        throw new ZipException("Unsupported content encoding: " + contentEncoding);
+    }
+
+    static private void readHeader(@Nonnull InputStream in) throws IOException {
+        if( readByte(in) != 0x1f || readByte(in) != 0x8b ) {
+            throw new ZipException("Not in gzip format");
+        }
+        if( readByte(in) != 8 ) {
+            throw new ZipException("Unsupported gzip compression method");
+        }
+        int flags = readByte(in);
+
+        skip(in, 6);
+        if( (flags & 4) != 0 ) {
+            skip(in, readByte(in) | (readByte(in) << 8));
+        }
+        if( (flags & 8) != 0 ) {
+            while( readByte(in) != 0 ) { }
+        }
+        if( (flags & 16) != 0 ) {
+            while( readByte(in) != 0 ) { }
+        }
+        if( (flags & 2) != 0 ) {
+            skip(in, 2);
+        }
+    }
+
+    static private int readByte(@Nonnull InputStream in) throws IOException {
+        int b = in.read();
+
+        if( b == -1 ) {
+            throw new EOFException("Truncated gzip stream");
+        }
+        return b;
+    }
+
+    static private void skip(@Nonnull InputStream in, int count) throws IOException {
+        for( int i=0; i<count; i++ ) {
+            readByte(in);
+        }
+    }
+
+    static private void record(@Nullable MetricsSink sink, long wire, long decoded) {
+        if( sink != null ) {
+            sink.increment("http.bytes.wire", wire);
+            sink.increment("http.bytes.decoded", decoded);
+            sink.increment("http.bytes.saved", decoded - wire);
+        }
+    }
+
+    static private class CountingStream extends FilterInputStream {
+        long count;
+
+        CountingStream(@Nonnull InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+
+            if( b != -1 ) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+
+            if( n > 0 ) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    static private class IdentityBody extends CountingStream {
+        private boolean           closed;
+        private final MetricsSink sink;
+
+        IdentityBody(@Nonnull InputStream in, @Nullable MetricsSink sink) {
+            super(in);
+            this.sink = sink;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if( !closed ) {
+                closed = true;
+                record(sink, count, count);
+            }
+            super.close();
+        }
+    }
+
+    static private class GzipBody extends InflaterInputStream {
+        private boolean              closed;
+        private final CountingStream counted;
+        private final CRC32          crc = new CRC32();
+        private boolean              eof;
+        private final Inflater       inflater;
+        private final MetricsSink    sink;
+
+        GzipBody(@Nonnull CountingStream in, @Nullable MetricsSink sink) {
+            this(in, borrow(), sink);
+        }
+
+        private GzipBody(@Nonnull CountingStream in, @Nonnull Inflater inflater, @Nullable MetricsSink sink) {
+            super(in, inflater, 8192);
+            this.counted = in;
+            this.inflater = inflater;
+            this.sink = sink;
+        }
+
+        @Override
+        public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+            if( eof ) {
+                return -1;
+            }
+            int n = super.read(b, off, len);
+
+            if( n == -1 ) {
+                eof = true;
+                checkTrailer();
+                return -1;
+            }
+            crc.update(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (eof ? 0 : super.available());
+        }
+
+        private void checkTrailer() throws IOException {
+            byte[] trailer = new byte[8];
+            int have = Math.min(inflater.getRemaining(), 8);
+
+            System.arraycopy(buf, len - inflater.getRemaining(), trailer, 0, have);
+            while( have < 8 ) {
+                int n = in.read(trailer, have, 8 - have);
+
+                if( n == -1 ) {
+                    throw new EOFException("Truncated gzip trailer");
+                }
+                have += n;
+            }
+            if( littleEndian(trailer, 0) != crc.getValue() || littleEndian(trailer, 4) != (inflater.getBytesWritten() & 0xffffffffL) ) {
+                throw new ZipException("Corrupt gzip stream");
+            }
+        }
+
+        private long littleEndian(@Nonnull byte[] b, int off) {
+            return (b[off] & 0xffL) | ((b[off+1] & 0xffL) << 8) | ((b[off+2] & 0xffL) << 16) | ((b[off+3] & 0xffL) << 24);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if( closed ) {
+                return;
+            }
+            closed = true;
+            try {
+                record(sink, counted.count, inflater.getBytesWritten());
+                super.close();
+            }
+            finally {
+                release(inflater);
+            }
+        }
+    }
+}
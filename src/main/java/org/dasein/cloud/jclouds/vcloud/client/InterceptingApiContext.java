@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.jclouds.rest.ApiContext;
+import org.jclouds.vcloud.VCloudApi;
+
+/**
+ * Wraps a jclouds {@link ApiContext} so that every call made through one of the feature APIs returned by
+ * {@link VCloudApi} (<code>getVAppApi()</code>, <code>getVmApi()</code>, <code>getTaskApi()</code>, ...)
+ * is routed through a chain of {@link ApiInterceptor}s. All other methods of the context are passed
+ * straight through to jclouds.
+ */
+public class InterceptingApiContext implements InvocationHandler {
+    @SuppressWarnings("unchecked")
+    static public @Nonnull ApiContext<VCloudApi> wrap(@Nonnull ApiContext<VCloudApi> ctx, @Nonnull List<ApiInterceptor> interceptors) {
+        if( interceptors.isEmpty() ) {
+            return ctx;
+        }
+        return (ApiContext<VCloudApi>)Proxy.newProxyInstance(InterceptingApiContext.class.getClassLoader(), new Class<?>[] { ApiContext.class }, new InterceptingApiContext(ctx, interceptors));
+    }
+
+    static private Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        }
+        catch( InvocationTargetException e ) {
+            throw e.getCause();
+        }
+    }
+
+    static private boolean isFeatureAccessor(@Nonnull Method method) {
+        Class<?> type = method.getReturnType();
+
+        return (type.isInterface() && method.getParameterTypes().length == 0 && method.getName().startsWith("get") && method.getName().endsWith("Api"));
+    }
+
+    private final ApiContext<VCloudApi>  delegate;
+    private final List<ApiInterceptor>   interceptors;
+    private volatile VCloudApi           api;
+
+    private InterceptingApiContext(@Nonnull ApiContext<VCloudApi> delegate, @Nonnull List<ApiInterceptor> interceptors) {
+        this.delegate = delegate;
+        this.interceptors = interceptors;
+    }
+
+    private @Nonnull VCloudApi getApi() {
+        if( api == null ) {
+            api = (VCloudApi)Proxy.newProxyInstance(InterceptingApiContext.class.getClassLoader(), new Class<?>[] { VCloudApi.class }, new ApiHandler(delegate.getApi()));
+        }
+        return api;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if( method.getName().equals("getApi") && method.getParameterTypes().length == 0 ) {
+            return getApi();
+        }
+        if( method.getName().equals("equals") && args != null && args.length == 1 ) {
+            return (proxy == args[0]);
+        }
+        if( method.getName().equals("hashCode") && args == null ) {
+            return System.identityHashCode(proxy);
+        }
+        return call(delegate, method, args);
+    }
+
+    private class ApiHandler implements InvocationHandler {
+        private final VCloudApi target;
+
+        public ApiHandler(@Nonnull VCloudApi target) { this.target = target; }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object result = call(target, method, args);
+
+            if( result != null && isFeatureAccessor(method) ) {
+                return Proxy.newProxyInstance(InterceptingApiContext.class.getClassLoader(), new Class<?>[] { method.getReturnType() }, new FeatureHandler(result));
+            }
+            return result;
+        }
+    }
+
+    private class FeatureHandler implements InvocationHandler {
+        private final Object target;
+
+        public FeatureHandler(@Nonnull Object target) { this.target = target; }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if( method.getDeclaringClass().equals(Object.class) ) {
+                return call(target, method, args);
+            }
+            return new ApiCall(target, method, args, interceptors).proceed();
+        }
+    }
+}
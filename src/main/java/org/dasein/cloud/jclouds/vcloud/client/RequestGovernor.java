@@ -0,0 +1,263 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnull;
+
+import org.dasein.cloud.jclouds.vcloud.metrics.MetricScope;
+import org.dasein.cloud.jclouds.vcloud.metrics.MetricsSink;
+
+/**
+ * Request budget for one organization on one Director endpoint, shared by every provider instance connected
+ * to it. A token bucket caps the sustained request rate and a counter caps the number of requests in flight.
+ * Callers that must wait are served interactive first: a background request (a poll of a wait loop or a
+ * refresh by a sampler thread) is not admitted while an interactive one is queued.
+ * <p>
+ * The time spent waiting is recorded in the <code>wait.interactive</code> and <code>wait.background</code>
+ * histograms, requests that had to wait are counted in <code>delayed</code>, and the number of requests in
+ * flight is published as the <code>inFlight</code> gauge. Each name is {@link MetricScope scoped} by the
+ * endpoint and organization, as in <code>governor[https://vcd.example.com/api|acme].inFlight</code>.
+ * </p>
+ * <p>
+ * Waiting uses a {@link ReentrantLock} rather than a monitor so that virtual threads (see
+ * {@link DirectorExecutors}) waiting here release their carrier thread.
+ * </p>
+ */
+public class RequestGovernor {
+    static private final ConcurrentHashMap<String,RequestGovernor> governors = new ConcurrentHashMap<String,RequestGovernor>();
+
+    static private final ThreadLocal<Boolean> backgroundThread = new ThreadLocal<Boolean>();
+    static private final ThreadLocal<Boolean> nextIsBackground = new ThreadLocal<Boolean>();
+
+    /**
+     * @param endpoint the Director endpoint
+     * @param org the organization
+     * @return the governor shared by all connections to the specified organization on the specified endpoint
+     */
+    static public @Nonnull RequestGovernor getInstance(@Nonnull String endpoint, @Nonnull String org) {
+        String key = endpoint + "|" + org;
+        RequestGovernor governor = governors.get(key);
+
+        if( governor == null ) {
+            governor = new RequestGovernor(key);
+            RequestGovernor existing = governors.putIfAbsent(key, governor);
+
+            if( existing != null ) {
+                governor = existing;
+            }
+        }
+        return governor;
+    }
+
+    /**
+     * Marks the next request made by the calling thread as a poll so that it yields to interactive requests.
+     */
+    static public void markPoll() {
+        nextIsBackground.set(Boolean.TRUE);
+    }
+
+    /**
+     * Marks every request made by the calling thread as background work, or interactive again.
+     * @param background true for a background thread such as a sampler
+     */
+    static public void setBackgroundThread(boolean background) {
+        if( background ) {
+            backgroundThread.set(Boolean.TRUE);
+        }
+        else {
+            backgroundThread.remove();
+        }
+    }
+
+    /**
+     * Consumes any poll mark set by {@link #markPoll()}.
+     * @return true if the next request of the calling thread is background work
+     */
+    static public boolean takeBackground() {
+        boolean poll = (nextIsBackground.get() != null);
+
+        if( poll ) {
+            nextIsBackground.remove();
+        }
+        return (poll || backgroundThread.get() != null);
+    }
+
+    private int                 backgroundWaiting;
+    private double              burst;
+    private final Condition     changed;
+    private final String        metricPrefix;
+    private int                 inFlight;
+    private int                 interactiveWaiting;
+    private long                lastRefill = System.nanoTime();
+    private final ReentrantLock lock = new ReentrantLock();
+    private int                 maxInFlight = Integer.MAX_VALUE;
+    private double              rate;
+    private double              tokens;
+
+    private RequestGovernor(@Nonnull String key) {
+        changed = lock.newCondition();
+        metricPrefix = MetricScope.prefix("governor", key) + ".";
+    }
+
+    /**
+     * Updates the limits. The most recent configuration wins when several contexts configure the same governor.
+     * @param requestsPerSecond the sustained request rate, or 0 for no rate limit
+     * @param burst the number of requests that may be issued at once after an idle period
+     * @param maxInFlight the maximum number of concurrent requests, or 0 for no limit
+     */
+    public void configure(double requestsPerSecond, int burst, int maxInFlight) {
+        lock.lock();
+        try {
+            boolean wasLimited = (rate > 0.0);
+
+            this.rate = Math.max(0.0, requestsPerSecond);
+            this.burst = Math.max(1, burst);
+            this.maxInFlight = (maxInFlight < 1 ? Integer.MAX_VALUE : maxInFlight);
+            if( !wasLimited ) {
+                tokens = this.burst;
+            }
+            tokens = Math.min(tokens, this.burst);
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of requests currently in flight
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of requests waiting to be admitted
+     */
+    public int getWaiting() {
+        lock.lock();
+        try {
+            return interactiveWaiting + backgroundWaiting;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until a request may be issued. Every successful call must be matched by a call to {@link #release(MetricsSink)}.
+     * @param sink the sink receiving the wait time
+     * @param background true if the request is background work that yields to interactive requests
+     * @throws InterruptedException the thread was interrupted while waiting
+     */
+    public void acquire(@Nonnull MetricsSink sink, boolean background) throws InterruptedException {
+        long start = System.nanoTime();
+        boolean waited = false;
+        int current;
+
+        lock.lock();
+        try {
+            if( background ) {
+                backgroundWaiting++;
+            }
+            else {
+                interactiveWaiting++;
+            }
+            try {
+                while( true ) {
+                    long now = System.nanoTime();
+
+                    if( rate > 0.0 ) {
+                        tokens = Math.min(burst, tokens + ((now - lastRefill) / 1000000000.0) * rate);
+                    }
+                    lastRefill = now;
+                    boolean yielding = (background && interactiveWaiting > 0);
+                    boolean slot = (inFlight < maxInFlight);
+                    boolean token = (rate <= 0.0 || tokens >= 1.0);
+
+                    if( !yielding && slot && token ) {
+                        if( rate > 0.0 ) {
+                            tokens -= 1.0;
+                        }
+                        inFlight++;
+                        break;
+                    }
+                    waited = true;
+                    if( slot && !token && !yielding ) {
+                        changed.await(Math.max(1L, (long)Math.ceil(((1.0 - tokens) / rate) * 1000.0)), TimeUnit.MILLISECONDS);
+                    }
+                    else {
+                        changed.await(100L, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+            finally {
+                if( background ) {
+                    backgroundWaiting--;
+                }
+                else {
+                    interactiveWaiting--;
+                    if( interactiveWaiting == 0 && backgroundWaiting > 0 ) {
+                        changed.signalAll();
+                    }
+                }
+            }
+            current = inFlight;
+        }
+        finally {
+            lock.unlock();
+        }
+        sink.gauge(metricPrefix + "inFlight", current);
+        if( waited ) {
+            sink.increment(metricPrefix + "delayed", 1L);
+        }
+        sink.record(metricPrefix + (background ? "wait.background" : "wait.interactive"), (System.nanoTime() - start) / 1000000L);
+    }
+
+    /**
+     * Returns the slot taken by {@link #acquire(MetricsSink, boolean)}.
+     * @param sink the sink receiving the in-flight gauge
+     */
+    public void release(@Nonnull MetricsSink sink) {
+        int current;
+
+        lock.lock();
+        try {
+            inFlight--;
+            current = inFlight;
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+        sink.gauge(metricPrefix + "inFlight", current);
+    }
+}
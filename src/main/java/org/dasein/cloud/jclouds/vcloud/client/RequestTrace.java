@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import java.net.URI;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.dasein.cloud.jclouds.vcloud.metrics.OperationTimer;
+
+/**
+ * Correlation of Director requests with the Dasein operation that issued them. Each operation carries a
+ * request ID that is held in a thread local and in the log4j MDC under <code>vcloud.requestId</code> and is
+ * sent to the Director in the <code>X-VMWARE-VCLOUD-CLIENT-REQUEST-ID</code> header, so that client logs,
+ * Director logs and slow-call reports can be matched up. Calls made outside of any operation get an ID of
+ * their own.
+ * <p>
+ * Requests taking longer than a threshold (the <code>vcloud.trace.slowMillis</code> custom property, 5000 ms
+ * by default) are logged at WARN by the <code>org.dasein.cloud.jclouds.vcloud.client.RequestTrace</code>
+ * logger; every request is logged at DEBUG. Nothing is formatted unless one of those is enabled.
+ * </p>
+ */
+public class RequestTrace {
+    static private final Logger logger = Logger.getLogger(RequestTrace.class);
+
+    static public final String HEADER  = "X-VMWARE-VCLOUD-CLIENT-REQUEST-ID";
+    static public final String MDC_KEY = "vcloud.requestId";
+
+    static public final long DEFAULT_SLOW_MILLIS = 5000L;
+
+    static private final String              prefix   = Long.toHexString(new SecureRandom().nextLong() & 0xffffffffffffL);
+    static private final AtomicLong          sequence = new AtomicLong(0L);
+    static private final ThreadLocal<String> current  = new ThreadLocal<String>();
+
+    /**
+     * @return the request ID of the operation running on this thread, or <code>null</code> if there is none
+     */
+    static public @Nullable String current() {
+        return current.get();
+    }
+
+    /**
+     * @return a new request ID, unique within this JVM and very probably across JVMs
+     */
+    static public @Nonnull String next() {
+        return "dasein-" + prefix + "-" + Long.toHexString(sequence.incrementAndGet());
+    }
+
+    /**
+     * Makes the specified ID the request ID of this thread.
+     * @param requestId the new ID, or <code>null</code> to clear it
+     * @return the ID it replaces, to be restored when the caller is done
+     */
+    static public @Nullable String set(@Nullable String requestId) {
+        String previous = current.get();
+
+        if( requestId == null ) {
+            current.remove();
+            MDC.remove(MDC_KEY);
+        }
+        else {
+            current.set(requestId);
+            MDC.put(MDC_KEY, requestId);
+        }
+        return previous;
+    }
+
+    /**
+     * Reports a completed Director request, logging it if it was slow.
+     * @param call the API method or HTTP method of the request
+     * @param uri the target of the request, if known
+     * @param millis how long the request took
+     * @param threshold the duration at or above which a request is logged as slow
+     * @param failed true if the request failed
+     */
+    static public void completed(@Nonnull String call, @Nullable URI uri, long millis, long threshold, boolean failed) {
+        if( millis >= threshold && threshold >= 0L ) {
+            if( logger.isEnabledFor(Level.WARN) ) {
+                logger.warn(describe(call, uri, millis, failed));
+            }
+        }
+        else if( logger.isDebugEnabled() ) {
+            logger.debug(describe(call, uri, millis, failed));
+        }
+    }
+
+    static private @Nonnull String describe(@Nonnull String call, @Nullable URI uri, long millis, boolean failed) {
+        OperationTimer timer = OperationTimer.current();
+        StringBuilder str = new StringBuilder();
+
+        str.append(call);
+        if( uri != null ) {
+            str.append(" ").append(uri);
+        }
+        str.append(failed ? " failed after " : " took ").append(millis).append("ms");
+        if( timer != null ) {
+            str.append(" in ").append(timer.getDescription());
+            if( timer.getPhase() != null ) {
+                str.append(" (").append(timer.getPhase()).append(")");
+            }
+        }
+        str.append(" [").append(current.get()).append("]");
+        return str.toString();
+    }
+}
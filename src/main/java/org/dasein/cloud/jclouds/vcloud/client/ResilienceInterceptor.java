@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import java.util.concurrent.CancellationException;
+
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.jclouds.vcloud.metrics.MetricsSink;
+
+/**
+ * Retries transient failures of API calls according to a {@link RetryPolicy} and guards the endpoint with a
+ * {@link CircuitBreaker}. Calls whose names start with <code>get</code>, <code>list</code> or
+ * <code>find</code> are treated as idempotent. Retries are counted in the <code>resilience.retries</code>
+ * counter, calls that exhausted their attempts in <code>resilience.exhausted</code>, calls refused by an open
+ * breaker in <code>resilience.rejected</code>, and each opening of the breaker in <code>resilience.opened</code>.
+ */
+public class ResilienceInterceptor implements ApiInterceptor {
+    static private final Logger logger = Logger.getLogger(ResilienceInterceptor.class);
+
+    static public boolean isIdempotent(@Nonnull String method) {
+        return (method.startsWith("get") || method.startsWith("list") || method.startsWith("find"));
+    }
+
+    private final CircuitBreaker breaker;
+    private final RetryPolicy    policy;
+    private final MetricsSink    sink;
+
+    public ResilienceInterceptor(@Nonnull RetryPolicy policy, @Nonnull CircuitBreaker breaker, @Nonnull MetricsSink sink) {
+        this.policy = policy;
+        this.breaker = breaker;
+        this.sink = sink;
+    }
+
+    @Override
+    public Object intercept(@Nonnull ApiCall call) throws Throwable {
+        boolean idempotent = isIdempotent(call.getName());
+
+        for( int attempt=1; ; attempt++ ) {
+            boolean trial;
+
+            try {
+                trial = breaker.allow();
+            }
+            catch( CircuitOpenException e ) {
+                sink.increment("resilience.rejected", 1L);
+                throw e;
+            }
+            try {
+                Object result = call.proceed();
+
+                breaker.succeeded(trial);
+                return result;
+            }
+            catch( Throwable t ) {
+                if( RetryPolicy.isEndpointFailure(t) ) {
+                    if( breaker.failed(trial) ) {
+                        sink.increment("resilience.opened", 1L);
+                    }
+                }
+                else {
+                    breaker.succeeded(trial);
+                }
+                if( !policy.isRetryable(t, idempotent) ) {
+                    throw t;
+                }
+                if( attempt >= policy.getMaxAttempts() ) {
+                    sink.increment("resilience.exhausted", 1L);
+                    throw t;
+                }
+                long delay = policy.getDelay(attempt);
+
+                if( logger.isDebugEnabled() ) {
+                    logger.debug("Retrying " + call + " in " + delay + "ms after attempt " + attempt + " failed: " + t.getMessage());
+                }
+                sink.increment("resilience.retries", 1L);
+                try {
+                    Thread.sleep(delay);
+                }
+                catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("Interrupted while retrying " + call);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.jclouds.http.HttpResponseException;
+
+/**
+ * Decides which Director failures are transient and how long to wait before trying again. An idempotent call
+ * is retried if the Director answered 429, 502, 503 or 504, if the entity was busy with another task, or if the
+ * connection failed or timed out. A call that is not idempotent is retried only when the Director is known not
+ * to have acted on it: a 429, a 503 or a busy entity. A 502 or 504 comes from a gateway that may have passed
+ * the request on, so repeating it could, for example, instantiate or capture twice. The delay before attempt <i>n</i> is drawn
+ * uniformly between zero and <code>min(maxMillis, baseMillis * 2^(n-1))</code> (&quot;full jitter&quot;) so that
+ * many clients backing off from the same cell do not retry in lockstep.
+ */
+public class RetryPolicy {
+    static private final Random random = new Random();
+
+    /**
+     * @param t a failure of a Director call
+     * @return the HTTP status of the failure, or -1 if it did not carry one
+     */
+    static public int getStatus(@Nullable Throwable t) {
+        for( int depth=0; t != null && depth < 10; depth++ ) {
+            if( t instanceof HttpResponseException ) {
+                HttpResponseException e = (HttpResponseException)t;
+
+                if( e.getResponse() != null ) {
+                    return e.getResponse().getStatusCode();
+                }
+            }
+            t = t.getCause();
+        }
+        return -1;
+    }
+
+    /**
+     * @param status an HTTP status code
+     * @return true if the status means the Director is temporarily unable to serve the request
+     */
+    static public boolean isRetryableStatus(int status) {
+        return (status == 429 || status == 502 || status == 503 || status == 504);
+    }
+
+    /**
+     * @param status an HTTP status code
+     * @return true if the status means the Director refused the request without acting on it
+     */
+    static public boolean isRejectedStatus(int status) {
+        return (status == 429 || status == 503);
+    }
+
+    /**
+     * @param t a failure of a Director call
+     * @return true if the call was refused because the target entity is busy with another task
+     */
+    static public boolean isBusy(@Nullable Throwable t) {
+        for( int depth=0; t != null && depth < 10; depth++ ) {
+            if( t instanceof IllegalStateException || t instanceof HttpResponseException ) {
+                String msg = t.getMessage();
+
+                if( msg != null && (msg.contains("BUSY_ENTITY") || msg.toLowerCase().contains(" is busy")) ) {
+                    return true;
+                }
+            }
+            t = t.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * @param t a failure of a Director call
+     * @return true if the failure was a reset, refused or timed out connection
+     */
+    static public boolean isConnectionFailure(@Nullable Throwable t) {
+        for( int depth=0; t != null && depth < 10; depth++ ) {
+            if( t instanceof SocketException || t instanceof SocketTimeoutException ) {
+                return true;
+            }
+            t = t.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * @param t a failure of a Director call
+     * @return true if the failure says something about the health of the endpoint rather than the request
+     */
+    static public boolean isEndpointFailure(@Nullable Throwable t) {
+        return (isRetryableStatus(getStatus(t)) || isConnectionFailure(t));
+    }
+
+    private final long baseMillis;
+    private final int  maxAttempts;
+    private final long maxMillis;
+
+    /**
+     * @param maxAttempts the total number of attempts, including the first
+     * @param baseMillis the upper bound of the delay before the first retry
+     * @param maxMillis the upper bound of any delay
+     */
+    public RetryPolicy(int maxAttempts, long baseMillis, long maxMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseMillis = Math.max(1L, baseMillis);
+        this.maxMillis = Math.max(this.baseMillis, maxMillis);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param t the failure of an attempt
+     * @param idempotent true if repeating the call cannot apply it twice
+     * @return true if the call should be tried again
+     */
+    public boolean isRetryable(@Nonnull Throwable t, boolean idempotent) {
+        if( t instanceof CircuitOpenException ) {
+            return false;
+        }
+        int status = getStatus(t);
+
+        if( !idempotent ) {
+            return (isRejectedStatus(status) || isBusy(t));
+        }
+        return (isRetryableStatus(status) || isBusy(t) || isConnectionFailure(t));
+    }
+
+    /**
+     * @param attempt the attempt that just failed, starting at 1
+     * @return the jittered delay in milliseconds before the next attempt
+     */
+    public long getDelay(int attempt) {
+        long ceiling = maxMillis;
+
+        if( attempt < 31 ) {
+            ceiling = Math.min(maxMillis, baseMillis << (attempt - 1));
+        }
+        synchronized( random ) {
+            return (long)(random.nextDouble() * ceiling);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Collapses identical concurrent reads into one request. The first caller for a key (the leader) makes the
+ * request; callers arriving with the same key while it is in flight wait for it and receive the same result
+ * or failure. A completed result may optionally be handed to later callers for a short time as well.
+ * Instances are shared per endpoint and organization so that all provider instances benefit.
+ */
+public class SingleFlight {
+    static private final int MAX_RETAINED = 10000;
+
+    static private final ConcurrentHashMap<String,SingleFlight> instances = new ConcurrentHashMap<String,SingleFlight>();
+
+    /**
+     * @param endpoint the Director endpoint
+     * @param org the organization
+     * @return the single-flight group shared by all connections to the organization on the endpoint
+     */
+    static public @Nonnull SingleFlight getInstance(@Nonnull String endpoint, @Nonnull String org) {
+        String key = endpoint + "|" + org;
+        SingleFlight group = instances.get(key);
+
+        if( group == null ) {
+            group = new SingleFlight();
+            SingleFlight existing = instances.putIfAbsent(key, group);
+
+            if( existing != null ) {
+                group = existing;
+            }
+        }
+        return group;
+    }
+
+    /**
+     * The work a leader performs on behalf of every caller with the same key.
+     */
+    public interface Request {
+        public Object execute() throws Throwable;
+    }
+
+    /**
+     * How a call was satisfied.
+     */
+    public enum Outcome { EXECUTED, COALESCED, REUSED }
+
+    static private class Flight {
+        public final CountDownLatch done = new CountDownLatch(1);
+        public volatile long        completedAt;
+        public volatile Throwable   error;
+        public volatile Object      result;
+    }
+
+    private final ConcurrentHashMap<String,Flight> flights = new ConcurrentHashMap<String,Flight>();
+
+    private SingleFlight() { }
+
+    /**
+     * @return the number of requests in flight or retained for reuse
+     */
+    public int size() {
+        return flights.size();
+    }
+
+    /**
+     * Executes a request unless an identical one is already in flight or was completed within
+     * <code>reuseMillis</code>.
+     * @param key the identity of the request, typically the API method and href
+     * @param reuseMillis how long a successful result may be handed to later callers, 0 for no reuse
+     * @param request the request to execute if this caller becomes the leader
+     * @param outcome receives how the call was satisfied; may be <code>null</code>
+     * @return the result of the request
+     * @throws Throwable the failure of the request
+     */
+    public @Nullable Object execute(@Nonnull String key, long reuseMillis, @Nonnull Request request, @Nullable Outcome[] outcome) throws Throwable {
+        Flight mine = new Flight();
+
+        while( true ) {
+            Flight flight = flights.putIfAbsent(key, mine);
+
+            if( flight == null ) {
+                break;
+            }
+            if( flight.completedAt > 0L ) {
+                if( flight.error == null && System.currentTimeMillis() - flight.completedAt < reuseMillis ) {
+                    setOutcome(outcome, Outcome.REUSED);
+                    return flight.result;
+                }
+                flights.remove(key, flight);
+                continue;
+            }
+            flight.done.await();
+            setOutcome(outcome, Outcome.COALESCED);
+            if( flight.error != null ) {
+                throw flight.error;
+            }
+            return flight.result;
+        }
+        setOutcome(outcome, Outcome.EXECUTED);
+        try {
+            mine.result = request.execute();
+            return mine.result;
+        }
+        catch( Throwable t ) {
+            mine.error = t;
+            throw t;
+        }
+        finally {
+            mine.completedAt = System.currentTimeMillis();
+            if( reuseMillis < 1L || mine.error != null ) {
+                flights.remove(key, mine);
+            }
+            else if( flights.size() > MAX_RETAINED ) {
+                purge(reuseMillis);
+            }
+            mine.done.countDown();
+        }
+    }
+
+    private void purge(long reuseMillis) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String,Flight>> it = flights.entrySet().iterator();
+
+        while( it.hasNext() ) {
+            Flight f = it.next().getValue();
+
+            if( f.completedAt > 0L && now - f.completedAt >= reuseMillis ) {
+                it.remove();
+            }
+        }
+    }
+
+    static private void setOutcome(@Nullable Outcome[] outcome, @Nonnull Outcome value) {
+        if( outcome != null && outcome.length > 0 ) {
+            outcome[0] = value;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import java.net.URI;
+import java.util.concurrent.CancellationException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.jclouds.vcloud.metrics.MetricsSink;
+
+/**
+ * Routes read calls (<code>get*</code>, <code>list*</code>, <code>find*</code>) whose arguments are all hrefs or
+ * names through a {@link SingleFlight} group keyed by API method and arguments, so that concurrent identical
+ * reads issue a single request. Reads served by another caller's request are counted in
+ * <code>singleFlight.coalesced</code> and reads served from a recently completed request in
+ * <code>singleFlight.reused</code>.
+ */
+public class SingleFlightInterceptor implements ApiInterceptor {
+    private final SingleFlight group;
+    private final long         reuseMillis;
+    private final MetricsSink  sink;
+
+    /**
+     * @param group the single-flight group of the organization
+     * @param reuseMillis how long a completed read may be reused, 0 to share only in-flight reads
+     * @param sink the sink receiving the coalescing counters
+     */
+    public SingleFlightInterceptor(@Nonnull SingleFlight group, long reuseMillis, @Nonnull MetricsSink sink) {
+        this.group = group;
+        this.reuseMillis = reuseMillis;
+        this.sink = sink;
+    }
+
+    @Override
+    public Object intercept(@Nonnull final ApiCall call) throws Throwable {
+        String key = getKey(call);
+
+        if( key == null ) {
+            return call.proceed();
+        }
+        SingleFlight.Outcome[] outcome = new SingleFlight.Outcome[1];
+
+        try {
+            return group.execute(key, reuseMillis, new SingleFlight.Request() {
+                public Object execute() throws Throwable {
+                    return call.proceed();
+                }
+            }, outcome);
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for a shared call to " + call);
+        }
+        finally {
+            if( outcome[0] == SingleFlight.Outcome.COALESCED ) {
+                sink.increment("singleFlight.coalesced", 1L);
+            }
+            else if( outcome[0] == SingleFlight.Outcome.REUSED ) {
+                sink.increment("singleFlight.reused", 1L);
+            }
+        }
+    }
+
+    private @Nullable String getKey(@Nonnull ApiCall call) {
+        if( !ResilienceInterceptor.isIdempotent(call.getName()) ) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(call.toString());
+        Object[] args = call.getArguments();
+
+        if( args != null ) {
+            for( Object arg : args ) {
+                if( arg != null && !(arg instanceof URI) && !(arg instanceof String) ) {
+                    return null;
+                }
+                key.append('|').append(arg);
+            }
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import java.net.URI;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Assigns a request ID to API calls made outside of any operation and reports every call to
+ * {@link RequestTrace} so that slow calls are logged with their target and the operation that made them.
+ */
+public class TracingInterceptor implements ApiInterceptor {
+    private final long slowMillis;
+
+    /**
+     * @param slowMillis the duration at or above which a call is logged as slow
+     */
+    public TracingInterceptor(long slowMillis) {
+        this.slowMillis = slowMillis;
+    }
+
+    @Override
+    public Object intercept(@Nonnull ApiCall call) throws Throwable {
+        String assigned = null;
+
+        if( RequestTrace.current() == null ) {
+            assigned = RequestTrace.next();
+            RequestTrace.set(assigned);
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+
+        try {
+            Object result = call.proceed();
+
+            failed = false;
+            return result;
+        }
+        finally {
+            RequestTrace.completed(call.toString(), getTarget(call), (System.nanoTime() - start) / 1000000L, slowMillis, failed);
+            if( assigned != null ) {
+                RequestTrace.set(null);
+            }
+        }
+    }
+
+    private @Nullable URI getTarget(@Nonnull ApiCall call) {
+        Object[] args = call.getArguments();
+
+        if( args != null ) {
+            for( Object arg : args ) {
+                if( arg instanceof URI ) {
+                    return (URI)arg;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.compute;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.jclouds.vcloud.VcloudDirector;
+import org.dasein.cloud.jclouds.vcloud.metrics.OperationTimer;
+import org.jclouds.rest.ApiContext;
+import org.jclouds.vcloud.VCloudApi;
+import org.jclouds.vcloud.domain.VApp;
+import org.jclouds.vcloud.domain.Vm;
+
+/**
+ * Terminates many VMs concurrently. VMs are grouped by their parent vApp; a vApp whose children are all
+ * targeted is removed as a whole in a single power off/undeploy/delete pipeline, otherwise its VMs are
+ * terminated one after another so that no two operations compete for the same vApp. Groups run in parallel
+ * up to the configured concurrency and each group is retried a bounded number of times.
+ */
+class BulkTerminator {
+    static private final Logger logger = Logger.getLogger(BulkTerminator.class);
+
+    static private final long RETRY_DELAY = 5000L;
+
+    private abstract class Attempt {
+        public abstract void run() throws CloudException, InternalException;
+    }
+
+    private final int             maxAttempts;
+    private final int             maxConcurrency;
+    private final VcloudDirector  provider;
+    private final VcloudVMSupport support;
+
+    BulkTerminator(@Nonnull VcloudDirector provider, @Nonnull VcloudVMSupport support, int maxConcurrency, int maxAttempts) {
+        this.provider = provider;
+        this.support = support;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    private void execute(@Nonnull Attempt attempt, @Nonnull List<TerminationResult> results) {
+        long start = System.currentTimeMillis();
+        int count = 0;
+
+        while( true ) {
+            count++;
+            try {
+                attempt.run();
+                for( TerminationResult r : results ) {
+                    r.setTerminated(true);
+                    r.setError(null);
+                }
+                break;
+            }
+            catch( Throwable t ) {
+                String msg = (t.getMessage() == null ? t.getClass().getName() : t.getMessage());
+
+                for( TerminationResult r : results ) {
+                    r.setError(msg);
+                }
+                if( count >= maxAttempts ) {
+                    logger.error("Giving up on " + results + " after " + count + " attempts: " + msg);
+                    break;
+                }
+                logger.warn("Attempt " + count + " of " + maxAttempts + " failed for " + results + ": " + msg);
+                try { Thread.sleep(RETRY_DELAY * count); }
+                catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        for( TerminationResult r : results ) {
+            r.setAttempts(count);
+            r.setMillis(System.currentTimeMillis() - start);
+        }
+    }
+
+    @Nonnull Map<String,TerminationResult> terminate(@Nonnull Collection<String> vmIds) throws CloudException, InternalException {
+        LinkedHashMap<String,TerminationResult> results = new LinkedHashMap<String,TerminationResult>();
+        final LinkedHashMap<URI,List<TerminationResult>> groups = new LinkedHashMap<URI,List<TerminationResult>>();
+        final HashSet<URI> whole = new HashSet<URI>();
+        OperationTimer timer = provider.startOperation("bulkTerminate", vmIds.size() + " VMs");
+
+        try {
+            timer.phase("group");
+            ApiContext<VCloudApi> ctx = provider.getCloudClient();
+
+            try {
+                for( String vmId : vmIds ) {
+                    if( results.containsKey(vmId) ) {
+                        continue;
+                    }
+                    TerminationResult result = new TerminationResult(vmId);
+
+                    results.put(vmId, result);
+                    try {
+                        Vm vm = ctx.getApi().getVmApi().getVm(provider.toHref(ctx, vmId));
+
+                        if( vm == null || vm.getParent() == null ) {
+                            result.setError("No such VM: " + vmId);
+                            continue;
+                        }
+                        URI parent = vm.getParent().getHref();
+                        List<TerminationResult> group = groups.get(parent);
+
+                        if( group == null ) {
+                            group = new ArrayList<TerminationResult>();
+                            groups.put(parent, group);
+                        }
+                        result.setProviderVAppId(provider.toId(ctx, parent));
+                        group.add(result);
+                    }
+                    catch( RuntimeException e ) {
+                        result.setError(e.getMessage());
+                    }
+                }
+                for( Map.Entry<URI,List<TerminationResult>> entry : groups.entrySet() ) {
+                    try {
+                        VApp app = ctx.getApi().getVAppApi().getVApp(entry.getKey());
+
+                        if( app == null ) {
+                            continue;
+                        }
+                        HashSet<String> targeted = new HashSet<String>();
+                        boolean all = true;
+
+                        for( TerminationResult r : entry.getValue() ) {
+                            targeted.add(r.getProviderVirtualMachineId());
+                        }
+                        for( Vm child : app.getChildren() ) {
+                            if( !targeted.contains(provider.toId(ctx, child.getHref())) ) {
+                                all = false;
+                                break;
+                            }
+                        }
+                        if( all ) {
+                            whole.add(entry.getKey());
+                        }
+                    }
+                    catch( RuntimeException e ) {
+                        logger.warn("Unable to inspect vApp " + entry.getKey() + ", terminating its VMs individually: " + e.getMessage());
+                    }
+                }
+            }
+            finally {
+                ctx.close();
+            }
+            if( groups.isEmpty() ) {
+                return results;
+            }
+            timer.phase("terminate");
+            ExecutorService pool = provider.newExecutor("Terminate", Math.min(maxConcurrency, groups.size()));
+            ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+
+            try {
+                for( Map.Entry<URI,List<TerminationResult>> entry : groups.entrySet() ) {
+                    final URI parent = entry.getKey();
+                    final List<TerminationResult> group = entry.getValue();
+
+                    futures.add(pool.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            terminateGroup(parent, group, whole.contains(parent));
+                        }
+                    }));
+                }
+                for( Future<?> f : futures ) {
+                    try {
+                        f.get();
+                    }
+                    catch( ExecutionException e ) {
+                        logger.error("Unexpected error in bulk terminate: " + e.getCause().getMessage());
+                    }
+                }
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                for( Future<?> f : futures ) {
+                    f.cancel(true);
+                }
+                throw new InternalException("Interrupted while terminating " + vmIds.size() + " VMs");
+            }
+            finally {
+                pool.shutdown();
+            }
+            return results;
+        }
+        finally {
+            timer.finish();
+        }
+    }
+
+    private void terminateGroup(@Nonnull final URI parent, @Nonnull List<TerminationResult> group, boolean wholeVApp) {
+        if( wholeVApp ) {
+            for( TerminationResult r : group ) {
+                r.setWholeVApp(true);
+            }
+            execute(new Attempt() {
+                @Override
+                public void run() throws CloudException, InternalException {
+                    support.terminate(parent);
+                }
+            }, group);
+        }
+        else {
+            for( final TerminationResult r : group ) {
+                execute(new Attempt() {
+                    @Override
+                    public void run() throws CloudException, InternalException {
+                        support.terminate(r.getProviderVirtualMachineId());
+                    }
+                }, Collections.singletonList(r));
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.compute;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.jclouds.vcloud.client.DirectorExecutors;
+import org.dasein.cloud.jclouds.vcloud.metrics.MetricsSink;
+
+/**
+ * Runs image captures with bounded concurrency. Captures wait in a FIFO queue of limited size and are started
+ * when fewer than the global maximum are running and fewer than the per-organization maximum are running for
+ * the organization (on its endpoint) that owns the source VM. The executor is shared by every provider in the
+ * JVM so that the limits hold no matter how many provider instances are in use. Since no one context owns them,
+ * the global limits are read once from the <code>vcloud.capture.concurrency</code> (default 4) and
+ * <code>vcloud.capture.queueSize</code> (default 100) system properties. Queue depth and in-flight counts are reported
+ * as the gauges <code>capture.queued</code> and <code>capture.inFlight</code>, and the time spent waiting as
+ * the histogram <code>capture.queueWait.millis</code>.
+ */
+public class ImageCaptureExecutor {
+    static private final Logger logger = Logger.getLogger(ImageCaptureExecutor.class);
+
+    static private final ImageCaptureExecutor instance = new ImageCaptureExecutor();
+
+    static public @Nonnull ImageCaptureExecutor getInstance() {
+        return instance;
+    }
+
+    static private class Job {
+        public MetricsSink      metrics;
+        public Runnable         onCancel;
+        public String           org;
+        public int              orgLimit;
+        public long             queuedAt;
+        public ImageCaptureTask task;
+        public Runnable         work;
+    }
+
+    private final HashMap<String,Integer> activeByOrg = new HashMap<String,Integer>();
+    private int                           inFlight    = 0;
+    private int                           maxInFlight;
+    private int                           maxQueued;
+    private final LinkedList<Job>         queue       = new LinkedList<Job>();
+    private final ExecutorService         threads;
+
+    private ImageCaptureExecutor() {
+        setLimits(Integer.getInteger("vcloud.capture.concurrency", 4), Integer.getInteger("vcloud.capture.queueSize", 100));
+        // shared by all contexts, so the mode comes from the system property; concurrency is limited by the queue
+        threads = DirectorExecutors.newExecutor("Image capture", 0, DirectorExecutors.isVirtual(DirectorExecutors.getDefaultMode()));
+    }
+
+    synchronized boolean cancel(@Nonnull ImageCaptureTask task) {
+        Iterator<Job> it = queue.iterator();
+
+        while( it.hasNext() ) {
+            Job job = it.next();
+
+            if( job.task == task ) {
+                it.remove();
+                report(job.metrics);
+                task.setPhase("cancelled", task.getPercentComplete());
+                task.complete(new CloudException("Image capture was cancelled before it started"));
+                if( job.onCancel != null ) {
+                    job.onCancel.run();
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void dispatch() {
+        Iterator<Job> it = queue.iterator();
+
+        while( inFlight < maxInFlight && it.hasNext() ) {
+            final Job job = it.next();
+            Integer active = activeByOrg.get(job.org);
+
+            if( active != null && active >= job.orgLimit ) {
+                continue;
+            }
+            it.remove();
+            inFlight++;
+            activeByOrg.put(job.org, (active == null ? 1 : active + 1));
+            job.metrics.record("capture.queueWait.millis", System.currentTimeMillis() - job.queuedAt);
+            report(job.metrics);
+            threads.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        job.work.run();
+                    }
+                    catch( Throwable t ) {
+                        logger.error("Unexpected error in image capture: " + t.getMessage());
+                        if( !job.task.isComplete() ) {
+                            job.task.complete(t);
+                        }
+                    }
+                    finally {
+                        finished(job);
+                    }
+                }
+            });
+        }
+    }
+
+    private void finished(@Nonnull Job job) {
+        synchronized( this ) {
+            Integer active = activeByOrg.get(job.org);
+
+            inFlight--;
+            if( active == null || active <= 1 ) {
+                activeByOrg.remove(job.org);
+            }
+            else {
+                activeByOrg.put(job.org, active - 1);
+            }
+            report(job.metrics);
+        }
+        dispatch();
+    }
+
+    synchronized int getQueuePosition(@Nonnull ImageCaptureTask task) {
+        int position = 0;
+
+        for( Job job : queue ) {
+            position++;
+            if( job.task == task ) {
+                return position;
+            }
+        }
+        return 0;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    private void report(@Nonnull MetricsSink metrics) {
+        metrics.gauge("capture.queued", queue.size());
+        metrics.gauge("capture.inFlight", inFlight);
+    }
+
+    /**
+     * Adjusts the global limits of the executor, overriding the system properties read at startup.
+     * @param maxInFlight the maximum number of captures running at once
+     * @param maxQueued the maximum number of captures waiting to start
+     */
+    public synchronized void setLimits(int maxInFlight, int maxQueued) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxQueued = Math.max(0, maxQueued);
+    }
+
+    /**
+     * Queues a capture for execution.
+     * @param task the task tracking the capture
+     * @param org the endpoint and account of the organization owning the source VM
+     * @param orgLimit the maximum number of captures that may run at once for the organization
+     * @param metrics the sink for queue metrics
+     * @param work the capture itself, which must complete the task
+     * @param onCancel cleanup to run instead of the work if the capture is cancelled while queued
+     * @throws CloudException the queue is full
+     */
+    void submit(@Nonnull ImageCaptureTask task, @Nonnull String org, int orgLimit, @Nonnull MetricsSink metrics, @Nonnull Runnable work, @Nullable Runnable onCancel) throws CloudException {
+        synchronized( this ) {
+            Integer active = activeByOrg.get(org);
+            // a capture that starts at once never waits, which matters only when maxQueued is 0
+            boolean startsNow = (queue.isEmpty() && inFlight < maxInFlight && (active == null || active < Math.max(1, orgLimit)));
+
+            if( queue.size() >= maxQueued && !startsNow ) {
+                throw new CloudException("Too many image captures are pending (" + queue.size() + " queued, " + inFlight + " running)");
+            }
+            Job job = new Job();
+
+            job.task = task;
+            job.org = org;
+            job.orgLimit = Math.max(1, orgLimit);
+            job.metrics = metrics;
+            job.queuedAt = System.currentTimeMillis();
+            job.work = work;
+            job.onCancel = onCancel;
+            queue.add(job);
+            report(metrics);
+        }
+        dispatch();
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.compute;
+
+import javax.annotation.Nonnull;
+
+import org.dasein.cloud.AsynchronousTask;
+
+/**
+ * Tracks an image capture submitted through {@link VappTemplateSupport#imageVirtualMachine(String, String, String)}.
+ * In addition to the usual completion state, the task reports its position in the capture queue, the phase
+ * the capture is in (with a matching completion percentage) and may be cancelled while it is still queued.
+ */
+public class ImageCaptureTask extends AsynchronousTask<String> {
+    private final ImageCaptureExecutor executor;
+    private volatile String            phase;
+
+    ImageCaptureTask(@Nonnull ImageCaptureExecutor executor) {
+        this.executor = executor;
+        this.phase = "queued";
+    }
+
+    /**
+     * Cancels the capture if it has not yet started. A capture that is already running cannot be cancelled.
+     * @return true if the capture was removed from the queue
+     */
+    public boolean cancel() {
+        return executor.cancel(this);
+    }
+
+    /**
+     * @return the name of the capture phase currently in progress, <code>queued</code> while waiting
+     */
+    public @Nonnull String getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return the 1-based position of this capture in the queue, or 0 if it is running or complete
+     */
+    public int getQueuePosition() {
+        return executor.getQueuePosition(this);
+    }
+
+    void setPhase(@Nonnull String phase, double percentComplete) {
+        this.phase = phase;
+        setPercentComplete(percentComplete);
+    }
+}
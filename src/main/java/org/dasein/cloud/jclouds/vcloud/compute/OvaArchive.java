@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.compute;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Reads and writes the ustar headers of an OVA archive, which is a tar file holding an OVF descriptor
+ * followed by the files it references. Sizes that do not fit the 11 octal digits of classic ustar (8 GB and
+ * larger, which is common for disks) are written in the base-256 form understood by GNU tar and VMware tools.
+ */
+class OvaArchive {
+    static public final int BLOCK = 512;
+
+    /**
+     * A member of the archive.
+     */
+    static public class Entry {
+        public String name;
+        public long   size;
+
+        public Entry(@Nonnull String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+
+        /**
+         * @return the number of bytes of padding that follow the content of this entry
+         */
+        public int getPadding() {
+            int rem = (int)(size % BLOCK);
+
+            return (rem == 0 ? 0 : BLOCK - rem);
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + size + " bytes)";
+        }
+    }
+
+    static private void octal(@Nonnull byte[] header, int offset, int length, long value) {
+        String str = Long.toOctalString(value);
+
+        for( int i=0; i<length - 1; i++ ) {
+            int idx = str.length() - (length - 1) + i;
+
+            header[offset + i] = (byte)(idx < 0 ? '0' : str.charAt(idx));
+        }
+        header[offset + length - 1] = 0;
+    }
+
+    static private long parseSize(@Nonnull byte[] header) {
+        if( (header[124] & 0x80) != 0 ) {
+            long size = 0L;
+
+            for( int i=125; i<136; i++ ) {
+                size = (size << 8) | (header[i] & 0xff);
+            }
+            return size;
+        }
+        long size = 0L;
+
+        for( int i=124; i<136; i++ ) {
+            byte b = header[i];
+
+            if( b == 0 || b == ' ' ) {
+                if( size > 0L ) {
+                    break;
+                }
+                continue;
+            }
+            size = (size << 3) + (b - '0');
+        }
+        return size;
+    }
+
+    /**
+     * Reads the next header from a stream positioned on a block boundary.
+     * @param in the archive
+     * @return the next entry or <code>null</code> at the end of the archive
+     * @throws IOException the stream ended in the middle of a header or the header is corrupt
+     */
+    static public @Nullable Entry readHeader(@Nonnull ReadableByteChannel in) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK);
+
+        while( buffer.hasRemaining() ) {
+            if( in.read(buffer) < 0 ) {
+                if( buffer.position() == 0 ) {
+                    return null;
+                }
+                throw new EOFException("Truncated OVA header");
+            }
+        }
+        byte[] header = buffer.array();
+
+        if( header[0] == 0 ) {
+            return null;
+        }
+        long sum = 0L;
+
+        for( int i=0; i<BLOCK; i++ ) {
+            sum += ((i >= 148 && i < 156) ? ' ' : (header[i] & 0xff));
+        }
+        long expected = 0L;
+
+        for( int i=148; i<156 && header[i] != 0 && header[i] != ' '; i++ ) {
+            expected = (expected << 3) + (header[i] - '0');
+        }
+        if( sum != expected ) {
+            throw new IOException("OVA header checksum mismatch");
+        }
+        int len = 0;
+
+        while( len < 100 && header[len] != 0 ) {
+            len++;
+        }
+        return new Entry(new String(header, 0, len, "utf-8"), parseSize(header));
+    }
+
+    /**
+     * Writes the two zero blocks that terminate an archive.
+     * @param out the archive
+     * @throws IOException the write failed
+     */
+    static public void writeEnd(@Nonnull WritableByteChannel out) throws IOException {
+        write(out, ByteBuffer.wrap(new byte[BLOCK * 2]));
+    }
+
+    /**
+     * Writes the header for an entry. The caller then writes exactly <code>entry.size</code> bytes followed by
+     * {@link #writePadding(WritableByteChannel, Entry)}.
+     * @param out the archive
+     * @param entry the entry about to be written
+     * @throws IOException the write failed
+     */
+    static public void writeHeader(@Nonnull WritableByteChannel out, @Nonnull Entry entry) throws IOException {
+        byte[] header = new byte[BLOCK];
+        byte[] name = entry.name.getBytes("utf-8");
+
+        System.arraycopy(name, 0, header, 0, Math.min(name.length, 100));
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        if( entry.size < 077777777777L ) {
+            octal(header, 124, 12, entry.size);
+        }
+        else {
+            long size = entry.size;
+
+            header[124] = (byte)0x80;
+            for( int i=135; i>124; i-- ) {
+                header[i] = (byte)(size & 0xff);
+                size >>>= 8;
+            }
+        }
+        octal(header, 136, 12, System.currentTimeMillis()/1000L);
+        header[156] = '0';
+        System.arraycopy("ustar".getBytes("ascii"), 0, header, 257, 5);
+        header[263] = '0';
+        header[264] = '0';
+        for( int i=148; i<156; i++ ) {
+            header[i] = ' ';
+        }
+        long sum = 0L;
+
+        for( byte b : header ) {
+            sum += (b & 0xff);
+        }
+        octal(header, 148, 7, sum);
+        header[155] = ' ';
+        write(out, ByteBuffer.wrap(header));
+    }
+
+    /**
+     * Pads the content of an entry to the next block boundary.
+     * @param out the archive
+     * @param entry the entry just written
+     * @throws IOException the write failed
+     */
+    static public void writePadding(@Nonnull WritableByteChannel out, @Nonnull Entry entry) throws IOException {
+        int padding = entry.getPadding();
+
+        if( padding > 0 ) {
+            write(out, ByteBuffer.wrap(new byte[padding]));
+        }
+    }
+
+    static private void write(@Nonnull WritableByteChannel out, @Nonnull ByteBuffer buffer) throws IOException {
+        while( buffer.hasRemaining() ) {
+            out.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.compute;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.jclouds.vcloud.VcloudDirector;
+import org.dasein.cloud.jclouds.vcloud.client.DirectorHttp;
+import org.dasein.cloud.jclouds.vcloud.metrics.OperationTimer;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Streams a vApp template out of the Director as an OVA archive: the OVF descriptor followed by every file it
+ * references. Files are copied from the transfer service to the caller through a small buffer, so no disk is
+ * ever held in memory. A transfer interrupted by a network failure is resumed from the last byte
+ * written using an HTTP range request. Bytes transferred are counted in <code>download.bytes</code> and the
+ * throughput of each file is recorded in the <code>download.kbPerSecond</code> histogram.
+ */
+class OvfExporter {
+    static private final Logger logger = Logger.getLogger(OvfExporter.class);
+
+    static public final String OVF_NS = "http://schemas.dmtf.org/ovf/envelope/1";
+
+    static private final int  BUFFER_SIZE  = 256 * 1024;
+    static private final int  MAX_RESUMES  = 5;
+    static private final long RESUME_DELAY = 2000L;
+
+    static private class OvfFile {
+        public String href;
+        public long   size;
+    }
+
+    /**
+     * Signals a failure writing to the caller's stream, which unlike a failure reading from the Director cannot
+     * be resumed.
+     */
+    static private class SinkException extends Exception {
+        private static final long serialVersionUID = -3917455318274811504L;
+
+        public SinkException(@Nonnull IOException cause) { super(cause); }
+    }
+
+    private final VcloudDirector provider;
+
+    OvfExporter(@Nonnull VcloudDirector provider) { this.provider = provider; }
+
+    private void copy(@Nonnull DirectorHttp http, @Nonnull URI uri, long size, @Nonnull OutputStream out) throws CloudException, SinkException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long start = System.currentTimeMillis();
+        long offset = 0L;
+        int resumes = 0;
+
+        try {
+            while( offset < size ) {
+                HttpURLConnection connection = http.execute("GET", uri, (offset > 0L ? Collections.singletonMap("Range", "bytes=" + offset + "-") : null), null);
+                InputStream in = null;
+
+                try {
+                    in = connection.getInputStream();
+                    if( offset > 0L && connection.getResponseCode() != 206 ) {
+                        // the transfer service ignored the range, so skip what has already been written
+                        long skipped = 0L;
+
+                        while( skipped < offset ) {
+                            long n = in.skip(offset - skipped);
+
+                            if( n <= 0L ) {
+                                throw new EOFException("Unable to skip to offset " + offset + " of " + uri);
+                            }
+                            skipped += n;
+                        }
+                    }
+                    while( offset < size ) {
+                        int n = in.read(buffer, 0, (int)Math.min(buffer.length, size - offset));
+
+                        if( n < 0 ) {
+                            throw new EOFException("Transfer of " + uri + " ended at " + offset + " of " + size + " bytes");
+                        }
+                        try {
+                            out.write(buffer, 0, n);
+                            offset += n;
+                        }
+                        catch( IOException e ) {
+                            throw new SinkException(e);
+                        }
+                    }
+                }
+                catch( IOException e ) {
+                    if( ++resumes > MAX_RESUMES ) {
+                        throw new CloudException(e);
+                    }
+                    logger.warn("Transfer of " + uri + " interrupted at " + offset + " of " + size + " bytes, resuming: " + e.getMessage());
+                    try { Thread.sleep(RESUME_DELAY * resumes); }
+                    catch( InterruptedException interrupted ) {
+                        Thread.currentThread().interrupt();
+                        throw new CloudException("Interrupted while downloading " + uri);
+                    }
+                }
+                finally {
+                    if( in != null ) {
+                        try { in.close(); }
+                        catch( IOException ignore ) { }
+                    }
+                    connection.disconnect();
+                }
+            }
+        }
+        finally {
+            long millis = Math.max(1L, System.currentTimeMillis() - start);
+
+            provider.getMetrics().increment("download.bytes", offset);
+            provider.getMetrics().record("download.kbPerSecond", (offset * 1000L)/(millis * 1024L));
+        }
+    }
+
+    void export(@Nonnull String machineImageId, @Nonnull OutputStream output) throws CloudException, InternalException {
+        OperationTimer timer = provider.startOperation("download", machineImageId);
+        DirectorHttp http = provider.getDirectorHttp();
+        URI href = URI.create(http.getVersionedEndpoint() + machineImageId);
+        boolean enabled = false;
+
+        try {
+            timer.phase("enableDownload");
+            waitFor(http.post(URI.create(href + "/action/enableDownload"), null, null));
+            enabled = true;
+            timer.phase("descriptor");
+            URI ovf = DirectorHttp.link(http.get(href), "download:default");
+
+            if( ovf == null ) {
+                throw new CloudException("No download link was provided for " + machineImageId);
+            }
+            byte[] descriptor = http.getBytes(ovf);
+            List<OvfFile> files = parseReferences(descriptor);
+            WritableByteChannel out = Channels.newChannel(output);
+            String path = ovf.getPath();
+            OvaArchive.Entry entry = new OvaArchive.Entry(path.substring(path.lastIndexOf('/') + 1), descriptor.length);
+
+            timer.phase("transfer");
+            try {
+                OvaArchive.writeHeader(out, entry);
+                out.write(ByteBuffer.wrap(descriptor));
+                OvaArchive.writePadding(out, entry);
+                for( OvfFile file : files ) {
+                    URI uri = ovf.resolve(file.href);
+                    long size = file.size;
+
+                    if( size < 0L ) {
+                        size = getLength(http, uri);
+                    }
+                    entry = new OvaArchive.Entry(file.href, size);
+                    OvaArchive.writeHeader(out, entry);
+                    copy(http, uri, size, output);
+                    OvaArchive.writePadding(out, entry);
+                }
+                OvaArchive.writeEnd(out);
+                output.flush();
+            }
+            catch( IOException e ) {
+                throw new CloudException(e);
+            }
+            catch( SinkException e ) {
+                throw new CloudException(e.getCause());
+            }
+        }
+        finally {
+            if( enabled ) {
+                try {
+                    http.post(URI.create(href + "/action/disableDownload"), null, null);
+                }
+                catch( Throwable t ) {
+                    logger.warn("Unable to disable download of " + machineImageId + ": " + t.getMessage());
+                }
+            }
+            timer.finish();
+        }
+    }
+
+    private long getLength(@Nonnull DirectorHttp http, @Nonnull URI uri) throws CloudException {
+        HttpURLConnection connection = http.execute("HEAD", uri, null, null);
+
+        try {
+            String length = connection.getHeaderField("Content-Length");
+
+            if( length == null ) {
+                throw new CloudException("The size of " + uri + " is unknown");
+            }
+            return Long.parseLong(length.trim());
+        }
+        finally {
+            connection.disconnect();
+        }
+    }
+
+    private @Nonnull List<OvfFile> parseReferences(@Nonnull byte[] descriptor) throws CloudException {
+        Document doc = DirectorHttp.parse(new ByteArrayInputStream(descriptor));
+        ArrayList<OvfFile> files = new ArrayList<OvfFile>();
+
+        for( Element ref : DirectorHttp.elements(doc, "References") ) {
+            for( Element f : DirectorHttp.elements(ref, "File") ) {
+                OvfFile file = new OvfFile();
+                String size = f.getAttributeNS(OVF_NS, "size");
+
+                file.href = f.getAttributeNS(OVF_NS, "href");
+                file.size = ((size == null || size.equals("")) ? -1L : Long.parseLong(size));
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    private void waitFor(@Nonnull Document task) throws CloudException {
+        String taskHref = task.getDocumentElement().getAttribute("href");
+
+        if( taskHref != null && !taskHref.equals("") ) {
+            provider.waitForTask(URI.create(taskHref));
+        }
+    }
+}
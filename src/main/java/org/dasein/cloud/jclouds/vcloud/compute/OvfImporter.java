@@ -0,0 +1,456 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.compute;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.jclouds.vcloud.VcloudDirector;
+import org.dasein.cloud.jclouds.vcloud.client.DirectorHttp;
+import org.dasein.cloud.jclouds.vcloud.metrics.OperationTimer;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Uploads an OVA archive (an OVF descriptor followed by its disks) into a new vApp template. The descriptor is
+ * sent first so that the Director can announce the disks it expects; each disk is then sent in chunks with
+ * <code>Content-Range</code> headers. When a chunk fails, the Director is asked how many bytes of the file it
+ * has acknowledged and the upload resumes from there rather than from the start of the file.
+ * <p>
+ * When the archive is a local file, disks are located by scanning the tar headers and uploaded in parallel
+ * from the {@link FileChannel} with positional <code>transferTo</code>, so that no disk is staged in memory.
+ * The connection's output stream is not a selectable channel, so the JDK still copies each transfer through
+ * a small intermediate buffer. Any other stream is read once, in order, with each chunk kept in memory so
+ * that it can be resent.
+ * </p>
+ */
+class OvfImporter {
+    static private final Logger logger = Logger.getLogger(OvfImporter.class);
+
+    static private final int  MAX_CHUNK_FAILURES = 5;
+    static private final long POLL_INTERVAL      = 2000L;
+    static private final int  MAX_POLLS          = 150;
+
+    /**
+     * Source of the bytes of one file in the archive.
+     */
+    static private abstract class Source {
+        public final long size;
+
+        protected Source(long size) { this.size = size; }
+
+        /**
+         * Writes <code>length</code> bytes starting at <code>offset</code> within the file.
+         */
+        public abstract void write(long offset, long length, @Nonnull OutputStream out) throws IOException;
+    }
+
+    /**
+     * A file inside a local archive, read with positional <code>transferTo</code> so that many files may be
+     * sent at once from the same channel without moving its position.
+     */
+    static private class FileSource extends Source {
+        private final FileChannel channel;
+        private final long        start;
+
+        public FileSource(@Nonnull FileChannel channel, long start, long size) {
+            super(size);
+            this.channel = channel;
+            this.start = start;
+        }
+
+        @Override
+        public void write(long offset, long length, @Nonnull OutputStream out) throws IOException {
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = start + offset;
+            long end = position + length;
+
+            while( position < end ) {
+                long n = channel.transferTo(position, end - position, target);
+
+                if( n <= 0L ) {
+                    throw new IOException("Unexpected end of archive at " + position);
+                }
+                position += n;
+            }
+        }
+    }
+
+    /**
+     * A file read in order from a stream. The most recent chunk is kept in a heap buffer so that it can be
+     * sent again after a failure; the connection only accepts byte arrays, so a direct buffer would be copied
+     * anyway.
+     */
+    static private class StreamSource extends Source {
+        private final ByteBuffer          buffer;
+        private final ReadableByteChannel in;
+        private long                      windowStart = 0L;
+        private long                      read        = 0L;
+
+        public StreamSource(@Nonnull ReadableByteChannel in, long size, int chunkSize) {
+            super(size);
+            this.in = in;
+            this.buffer = ByteBuffer.allocate(chunkSize);
+            this.buffer.limit(0);
+        }
+
+        /**
+         * Consumes whatever is left of this file in the stream, leaving it positioned at the next tar block.
+         */
+        public void skipRemainder(int padding) throws IOException {
+            ByteBuffer scratch = ByteBuffer.allocate(64 * 1024);
+            long remaining = (size - read) + padding;
+
+            while( remaining > 0L ) {
+                scratch.clear();
+                if( remaining < scratch.capacity() ) {
+                    scratch.limit((int)remaining);
+                }
+                int n = in.read(scratch);
+
+                if( n < 0 ) {
+                    throw new IOException("Unexpected end of archive");
+                }
+                remaining -= n;
+            }
+            read = size;
+        }
+
+        @Override
+        public void write(long offset, long length, @Nonnull OutputStream out) throws IOException {
+            if( offset == read ) {
+                buffer.clear();
+                buffer.limit((int)Math.min(buffer.capacity(), length));
+                while( buffer.hasRemaining() ) {
+                    if( in.read(buffer) < 0 ) {
+                        throw new IOException("Unexpected end of archive");
+                    }
+                }
+                buffer.flip();
+                windowStart = offset;
+                read = offset + buffer.limit();
+            }
+            if( offset < windowStart || offset + length > read ) {
+                throw new IOException("Cannot resend bytes " + offset + "-" + (offset + length) + " from a stream that has been read to " + read);
+            }
+            out.write(buffer.array(), (int)(offset - windowStart), (int)length);
+        }
+    }
+
+    private final VcloudDirector provider;
+    private final int            chunkSize;
+    private final int            parallelism;
+
+    OvfImporter(@Nonnull VcloudDirector provider) {
+        this.provider = provider;
+        // clamped before the cast: each chunk is staged in a single array for stream uploads
+        this.chunkSize = (int)Math.min(Integer.MAX_VALUE - 8L, Math.max(1024L * 1024L, provider.getCustomProperty("vcloud.upload.chunkSize", 16L * 1024L * 1024L)));
+        this.parallelism = (int)Math.max(1L, provider.getCustomProperty("vcloud.upload.parallelism", 4L));
+    }
+
+    private long getAcknowledged(@Nonnull DirectorHttp http, @Nonnull URI template, @Nonnull String name) {
+        try {
+            for( Element file : DirectorHttp.elements(http.get(template), "File") ) {
+                if( name.equals(file.getAttribute("name")) ) {
+                    String transferred = file.getAttribute("bytesTransferred");
+
+                    return ((transferred == null || transferred.equals("")) ? -1L : Long.parseLong(transferred));
+                }
+            }
+        }
+        catch( Throwable t ) {
+            logger.warn("Unable to determine upload progress of " + name + ": " + t.getMessage());
+        }
+        return -1L;
+    }
+
+    /**
+     * Uploads the archive and registers the resulting template in the target catalog.
+     * @param name the name of the new template, or <code>null</code> to name it after the OVF descriptor
+     * @param vdc the href of the VDC in which to create the template
+     * @param archive the OVA archive
+     * @return the href of the new template
+     * @throws CloudException the upload failed
+     * @throws InternalException the upload was interrupted
+     */
+    @Nonnull URI install(@Nullable String name, @Nonnull URI vdc, @Nonnull InputStream archive) throws CloudException, InternalException {
+        OperationTimer timer = provider.startOperation("upload", name);
+        DirectorHttp http = provider.getDirectorHttp();
+
+        try {
+            FileChannel file = (archive instanceof FileInputStream ? ((FileInputStream)archive).getChannel() : null);
+            ReadableByteChannel in = (file == null ? Channels.newChannel(archive) : file);
+
+            timer.phase("descriptor");
+            OvaArchive.Entry descriptor = OvaArchive.readHeader(in);
+
+            if( descriptor == null || !descriptor.name.toLowerCase().endsWith(".ovf") ) {
+                throw new CloudException("The upload must be an OVA archive beginning with an OVF descriptor");
+            }
+            StreamSource ovf = new StreamSource(in, descriptor.size, (int)descriptor.size);
+
+            if( name == null ) {
+                name = provider.validateName(descriptor.name.substring(0, descriptor.name.length() - 4));
+            }
+            String params = "<UploadVAppTemplateParams xmlns=\"" + http.getNamespace() + "\" name=\"" + escape(name) + "\"><Description>" + escape(name) + "</Description></UploadVAppTemplateParams>";
+            Document template = http.post(URI.create(vdc + "/action/uploadVAppTemplate"), "application/vnd.vmware.vcloud.uploadVAppTemplateParams+xml", params);
+            URI href = URI.create(template.getDocumentElement().getAttribute("href"));
+            URI descriptorLink = null;
+
+            for( Element f : DirectorHttp.elements(template, "File") ) {
+                descriptorLink = DirectorHttp.link(f, "upload:default");
+                if( descriptorLink != null ) {
+                    break;
+                }
+            }
+            if( descriptorLink == null ) {
+                throw new CloudException("No upload link was provided for the descriptor of " + href);
+            }
+            upload(http, href, descriptorLink, descriptor.name, ovf);
+            ovf.skipRemainder(descriptor.getPadding());
+
+            timer.phase("awaitFiles");
+            Map<String,URI> links = waitForFileLinks(http, href, descriptor.name);
+
+            timer.phase("transfer");
+            if( file != null ) {
+                uploadFromFile(http, href, file, links);
+            }
+            else {
+                OvaArchive.Entry entry;
+
+                while( (entry = OvaArchive.readHeader(in)) != null ) {
+                    StreamSource source = new StreamSource(in, entry.size, chunkSize);
+                    URI link = links.get(entry.name);
+
+                    if( link == null ) {
+                        logger.warn("Skipping " + entry + " which is not referenced by the descriptor");
+                    }
+                    else {
+                        upload(http, href, link, entry.name, source);
+                    }
+                    source.skipRemainder(entry.getPadding());
+                }
+            }
+            timer.phase("import");
+            for( Element task : DirectorHttp.elements(http.get(href), "Task") ) {
+                String taskHref = task.getAttribute("href");
+
+                if( taskHref != null && !taskHref.equals("") ) {
+                    provider.waitForTask(URI.create(taskHref));
+                }
+            }
+            return href;
+        }
+        catch( IOException e ) {
+            throw new CloudException(e);
+        }
+        finally {
+            timer.finish();
+        }
+    }
+
+    private @Nonnull String escape(@Nonnull String str) {
+        return str.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * Sends one file in chunks. A chunk that fails is resumed from what the Director acknowledged; the upload
+     * is abandoned only after {@link #MAX_CHUNK_FAILURES} consecutive failures.
+     */
+    private void upload(@Nonnull DirectorHttp http, @Nonnull URI template, @Nonnull URI link, @Nonnull String name, @Nonnull final Source source) throws CloudException, InternalException {
+        long start = System.currentTimeMillis();
+        long acknowledged = 0L;
+        int failures = 0;
+
+        do {
+            final long offset = acknowledged;
+            final long length = Math.min(chunkSize, source.size - offset);
+            Map<String,String> headers = null;
+
+            if( length > 0L ) {
+                headers = Collections.singletonMap("Content-Range", "bytes " + offset + "-" + (offset + length - 1) + "/" + source.size);
+            }
+            try {
+                HttpURLConnection connection = http.execute("PUT", link, headers, new DirectorHttp.Body() {
+                    public long getLength() { return length; }
+                    public String getContentType() { return "application/octet-stream"; }
+                    public void writeTo(@Nonnull OutputStream out) throws IOException { source.write(offset, length, out); }
+                });
+
+                connection.disconnect();
+                acknowledged = offset + length;
+                failures = 0;
+                provider.getMetrics().increment("upload.bytes", length);
+            }
+            catch( CloudException e ) {
+                if( ++failures > MAX_CHUNK_FAILURES ) {
+                    throw e;
+                }
+                long server = getAcknowledged(http, template, name);
+
+                if( server >= 0L && server <= offset ) {
+                    acknowledged = server;
+                }
+                logger.warn("Chunk " + offset + "-" + (offset + length) + " of " + name + " failed, resuming from " + acknowledged + ": " + e.getMessage());
+                try { Thread.sleep(POLL_INTERVAL * failures); }
+                catch( InterruptedException interrupted ) {
+                    Thread.currentThread().interrupt();
+                    throw new InternalException("Interrupted while uploading " + name);
+                }
+            }
+        } while( acknowledged < source.size );
+        long millis = Math.max(1L, System.currentTimeMillis() - start);
+
+        provider.getMetrics().record("upload.kbPerSecond", (source.size * 1000L)/(millis * 1024L));
+    }
+
+    private void uploadFromFile(@Nonnull final DirectorHttp http, @Nonnull final URI template, @Nonnull FileChannel file, @Nonnull Map<String,URI> links) throws IOException, CloudException, InternalException {
+        ArrayList<OvaArchive.Entry> entries = new ArrayList<OvaArchive.Entry>();
+        ArrayList<Long> offsets = new ArrayList<Long>();
+        OvaArchive.Entry entry;
+        long position = file.position();
+
+        while( (entry = OvaArchive.readHeader(file)) != null ) {
+            position += OvaArchive.BLOCK;
+            if( links.containsKey(entry.name) ) {
+                entries.add(entry);
+                offsets.add(position);
+            }
+            position += entry.size + entry.getPadding();
+            file.position(position);
+        }
+        if( entries.isEmpty() ) {
+            return;
+        }
+        final AtomicInteger count = new AtomicInteger(0);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, entries.size()), new ThreadFactory() {
+            @Override
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread t = new Thread(r);
+
+                t.setName("Upload " + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+
+        try {
+            for( int i=0; i<entries.size(); i++ ) {
+                final OvaArchive.Entry e = entries.get(i);
+                final FileSource source = new FileSource(file, offsets.get(i), e.size);
+                final URI link = links.get(e.name);
+
+                futures.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws CloudException, InternalException {
+                        upload(http, template, link, e.name, source);
+                        return null;
+                    }
+                }));
+            }
+            for( Future<?> f : futures ) {
+                try {
+                    f.get();
+                }
+                catch( ExecutionException e ) {
+                    Throwable cause = e.getCause();
+
+                    if( cause instanceof CloudException ) {
+                        throw (CloudException)cause;
+                    }
+                    if( cause instanceof InternalException ) {
+                        throw (InternalException)cause;
+                    }
+                    throw new CloudException(cause);
+                }
+            }
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while uploading " + template);
+        }
+        finally {
+            for( Future<?> f : futures ) {
+                f.cancel(true);
+            }
+            pool.shutdown();
+        }
+    }
+
+    private @Nonnull Map<String,URI> waitForFileLinks(@Nonnull DirectorHttp http, @Nonnull URI template, @Nonnull String descriptorName) throws CloudException, InternalException {
+        for( int i=0; i<MAX_POLLS; i++ ) {
+            HashMap<String,URI> links = new HashMap<String,URI>();
+            boolean complete = true;
+            Document doc = http.get(template);
+
+            for( Element f : DirectorHttp.elements(doc, "File") ) {
+                String name = f.getAttribute("name");
+                URI link = DirectorHttp.link(f, "upload:default");
+
+                if( name == null || name.equals(descriptorName) ) {
+                    continue;
+                }
+                if( link == null ) {
+                    complete = false;
+                }
+                else {
+                    links.put(name, link);
+                }
+            }
+            if( complete && !links.isEmpty() ) {
+                return links;
+            }
+            OperationTimer.polled();
+            try { Thread.sleep(POLL_INTERVAL); }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InternalException("Interrupted while waiting for the upload links of " + template);
+            }
+        }
+        throw new CloudException("The Director did not provide upload links for the disks of " + template);
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.compute;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Fixed-capacity ring of samples for one VM. Each row holds a timestamp and one value per metric column;
+ * metrics missing from a sample are stored as {@link Double#NaN}. Rows must arrive in time order and the
+ * oldest row is overwritten once the ring is full.
+ */
+class StatisticsRing {
+    private final String[]   columns;
+    private final String[]   units;
+    private final long[]     timestamps;
+    private final double[][] values;
+    private int              head = 0;
+    private int              size = 0;
+
+    StatisticsRing(@Nonnull String[] columns, int capacity) {
+        this.columns = columns;
+        this.units = new String[columns.length];
+        this.timestamps = new long[capacity];
+        this.values = new double[columns.length][capacity];
+    }
+
+    /**
+     * Appends a row taken from the current usage of a VM. Rows not newer than the last one are ignored.
+     * @param timestamp the time of the sample
+     * @param usage the current usage keyed by metric name
+     * @return true if the row was stored
+     */
+    synchronized boolean add(long timestamp, @Nonnull Map<String,VmMetricsClient.Series> usage) {
+        if( size > 0 && timestamp <= timestamps[(head + timestamps.length - 1) % timestamps.length] ) {
+            return false;
+        }
+        timestamps[head] = timestamp;
+        for( int c=0; c<columns.length; c++ ) {
+            VmMetricsClient.Series s = usage.get(columns[c]);
+
+            if( s == null || s.size < 1 ) {
+                values[c][head] = Double.NaN;
+            }
+            else {
+                values[c][head] = s.values[s.size-1];
+                units[c] = s.unit;
+            }
+        }
+        head = (head + 1) % timestamps.length;
+        if( size < timestamps.length ) {
+            size++;
+        }
+        return true;
+    }
+
+    /**
+     * @return the timestamp of the oldest row held, or {@link Long#MAX_VALUE} if the ring is empty
+     */
+    synchronized long getOldest() {
+        if( size == 0 ) {
+            return Long.MAX_VALUE;
+        }
+        return timestamps[(head - size + timestamps.length) % timestamps.length];
+    }
+
+    /**
+     * Copies the rows within a window into series, appending to any series already provided so that
+     * older samples fetched from the API can precede them.
+     * @param from the start of the window
+     * @param to the end of the window
+     * @param into series to append to, or <code>null</code> to start afresh
+     * @return the series keyed by metric name
+     */
+    synchronized @Nonnull Map<String,VmMetricsClient.Series> slice(long from, long to, @Nullable Map<String,VmMetricsClient.Series> into) {
+        Map<String,VmMetricsClient.Series> result = (into == null ? new HashMap<String,VmMetricsClient.Series>() : into);
+        int start = (head - size + timestamps.length) % timestamps.length;
+
+        for( int i=0; i<size; i++ ) {
+            int row = (start + i) % timestamps.length;
+            long t = timestamps[row];
+
+            if( t < from || t > to ) {
+                continue;
+            }
+            for( int c=0; c<columns.length; c++ ) {
+                double v = values[c][row];
+
+                if( Double.isNaN(v) ) {
+                    continue;
+                }
+                VmMetricsClient.Series s = result.get(columns[c]);
+
+                if( s == null ) {
+                    s = new VmMetricsClient.Series(columns[c], units[c]);
+                    result.put(columns[c], s);
+                }
+                s.add(t, v);
+            }
+        }
+        return result;
+    }
+}
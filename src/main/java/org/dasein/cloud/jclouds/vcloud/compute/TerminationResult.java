@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.compute;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Outcome of terminating a single virtual machine as part of
+ * {@link VcloudVMSupport#terminate(java.util.Collection)}.
+ */
+public class TerminationResult {
+    private int     attempts;
+    private String  error;
+    private long    millis;
+    private String  providerVAppId;
+    private String  providerVirtualMachineId;
+    private boolean terminated;
+    private boolean wholeVApp;
+
+    public TerminationResult() { }
+
+    public TerminationResult(@Nonnull String providerVirtualMachineId) {
+        this.providerVirtualMachineId = providerVirtualMachineId;
+    }
+
+    /**
+     * @return the number of attempts made to terminate this VM (or the vApp containing it)
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    /**
+     * @return the message of the last error encountered, or <code>null</code> if none occurred
+     */
+    public @Nullable String getError() {
+        return error;
+    }
+
+    public void setError(@Nullable String error) {
+        this.error = error;
+    }
+
+    /**
+     * @return the wall time spent terminating this VM in milliseconds
+     */
+    public long getMillis() {
+        return millis;
+    }
+
+    public void setMillis(long millis) {
+        this.millis = millis;
+    }
+
+    public @Nullable String getProviderVAppId() {
+        return providerVAppId;
+    }
+
+    public void setProviderVAppId(@Nullable String providerVAppId) {
+        this.providerVAppId = providerVAppId;
+    }
+
+    public String getProviderVirtualMachineId() {
+        return providerVirtualMachineId;
+    }
+
+    public void setProviderVirtualMachineId(String providerVirtualMachineId) {
+        this.providerVirtualMachineId = providerVirtualMachineId;
+    }
+
+    public boolean isTerminated() {
+        return terminated;
+    }
+
+    public void setTerminated(boolean terminated) {
+        this.terminated = terminated;
+    }
+
+    /**
+     * @return true if the VM was removed by deleting its entire parent vApp
+     */
+    public boolean isWholeVApp() {
+        return wholeVApp;
+    }
+
+    public void setWholeVApp(boolean wholeVApp) {
+        this.wholeVApp = wholeVApp;
+    }
+
+    @Override
+    public String toString() {
+        return providerVirtualMachineId + (terminated ? " terminated" : " failed") + " after " + attempts + " attempt(s) in " + millis + "ms" + (error == null ? "" : (": " + error));
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.compute;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+
+import javax.annotation.Nonnull;
+
+import org.jclouds.cim.ResourceAllocationSettingData;
+import org.jclouds.cim.ResourceAllocationSettingData.ResourceType;
+import org.jclouds.vcloud.domain.GuestCustomizationSection;
+import org.jclouds.vcloud.domain.NetworkConnection;
+import org.jclouds.vcloud.domain.NetworkConnectionSection;
+import org.jclouds.vcloud.domain.Status;
+import org.jclouds.vcloud.domain.Task;
+import org.jclouds.vcloud.domain.VApp;
+import org.jclouds.vcloud.domain.Vm;
+
+/**
+ * The fields of a vApp and its VMs that are needed to build Dasein {@link org.dasein.cloud.compute.VirtualMachine}s,
+ * either projected from a vApp document by {@link VAppSummaryParser} or copied from the jclouds domain objects.
+ */
+final class VAppSummary {
+    /**
+     * A network connection of a VM.
+     */
+    static final class Connection {
+        String externalIpAddress;
+        int    index;
+        String ipAddress;
+        String network;
+    }
+
+    /**
+     * A task of a VM, reduced to the text searched for the operation and its start time.
+     */
+    static final class TaskSummary {
+        long   startTime = -1L;
+        String text;
+    }
+
+    static final class VmSummary {
+        String                 adminPassword;
+        ArrayList<Connection>  connections = new ArrayList<Connection>();
+        long                   cpus = 1L;
+        String                 description;
+        URI                    href;
+        String                 name;
+        String                 osType;
+        int                    primaryConnectionIndex = -1;
+        long                   ramInMb = 256L;
+        Status                 status;
+        ArrayList<TaskSummary> tasks = new ArrayList<TaskSummary>();
+    }
+
+    String               description;
+    URI                  href;
+    String               name;
+    URI                  vdcHref;
+    ArrayList<VmSummary> vms = new ArrayList<VmSummary>();
+
+    /**
+     * Copies the fields of a jclouds vApp without its VMs.
+     * @param app the vApp
+     * @return the summary
+     */
+    static @Nonnull VAppSummary from(@Nonnull VApp app) {
+        VAppSummary summary = new VAppSummary();
+
+        summary.href = app.getHref();
+        summary.name = app.getName();
+        summary.description = app.getDescription();
+        summary.vdcHref = (app.getVDC() == null ? null : app.getVDC().getHref());
+        return summary;
+    }
+
+    /**
+     * Copies the fields of a jclouds VM.
+     * @param vm the VM
+     * @return the summary
+     */
+    static @Nonnull VmSummary from(@Nonnull Vm vm) {
+        VmSummary summary = new VmSummary();
+
+        summary.href = vm.getHref();
+        summary.name = vm.getName();
+        summary.description = vm.getDescription();
+        summary.status = vm.getStatus();
+        summary.osType = vm.getOperatingSystemSection().getVmwOsType();
+        for( ResourceAllocationSettingData allocation : vm.getVirtualHardwareSection().getItems() ) {
+            if( allocation.getResourceType().equals(ResourceType.MEMORY) ) {
+                summary.ramInMb = allocation.getVirtualQuantity();
+            }
+            else if( allocation.getResourceType().equals(ResourceType.PROCESSOR) ) {
+                summary.cpus = allocation.getVirtualQuantity();
+            }
+        }
+        NetworkConnectionSection section = vm.getNetworkConnectionSection();
+
+        summary.primaryConnectionIndex = section.getPrimaryNetworkConnectionIndex();
+        for( NetworkConnection c : section.getConnections() ) {
+            Connection connection = new Connection();
+
+            connection.index = c.getNetworkConnectionIndex();
+            connection.network = c.getNetwork();
+            connection.ipAddress = c.getIpAddress();
+            connection.externalIpAddress = c.getExternalIpAddress();
+            summary.connections.add(connection);
+        }
+        GuestCustomizationSection customization = vm.getGuestCustomizationSection();
+
+        summary.adminPassword = (customization == null ? null : customization.getAdminPassword());
+        for( Task task : vm.getTasks() ) {
+            if( task != null ) {
+                TaskSummary t = new TaskSummary();
+                Date d = task.getStartTime();
+
+                t.text = task.getName() + " " + task.getType();
+                t.startTime = (d == null ? -1L : d.getTime());
+                summary.tasks.add(t);
+            }
+        }
+        return summary;
+    }
+}
@@ -0,0 +1,358 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.compute;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Date;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.dasein.cloud.CloudException;
+import org.jclouds.date.DateService;
+import org.jclouds.date.internal.SimpleDateFormatDateService;
+import org.jclouds.vcloud.domain.Status;
+
+/**
+ * Streams a vApp document through StAX and projects only the fields a VM listing needs into a
+ * {@link VAppSummary}. OVF sections other than hardware and operating system, links, owner and lease settings
+ * are skipped without being materialized, which makes listing far cheaper than building the jclouds domain
+ * graph with {@link org.jclouds.vcloud.xml.VAppHandler}.
+ */
+final class VAppSummaryParser {
+    static private final DateService dates = new SimpleDateFormatDateService();
+
+    static private final XMLInputFactory factory;
+
+    static {
+        factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    }
+
+    private VAppSummaryParser() { }
+
+    /**
+     * Parses a vApp document.
+     * @param in the stream holding the document, which is closed by this method
+     * @return the projected vApp and VMs
+     * @throws CloudException the document could not be read or is not a vApp
+     */
+    static @Nonnull VAppSummary parse(@Nonnull InputStream in) throws CloudException {
+        XMLStreamReader reader = null;
+
+        try {
+            reader = factory.createXMLStreamReader(in);
+            while( reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT ) { }
+            if( !reader.isStartElement() || !reader.getLocalName().equals("VApp") ) {
+                throw new CloudException("Not a vApp document");
+            }
+            return readVApp(reader);
+        }
+        catch( XMLStreamException e ) {
+            throw new CloudException(e);
+        }
+        finally {
+            if( reader != null ) {
+                try { reader.close(); }
+                catch( XMLStreamException ignore ) { }
+            }
+            try { in.close(); }
+            catch( IOException ignore ) { }
+        }
+    }
+
+    static private @Nonnull VAppSummary readVApp(@Nonnull XMLStreamReader reader) throws XMLStreamException {
+        VAppSummary app = new VAppSummary();
+
+        app.href = href(reader);
+        app.name = attribute(reader, "name");
+        while( nextChild(reader) ) {
+            String name = reader.getLocalName();
+
+            if( name.equals("Link") ) {
+                String type = attribute(reader, "type");
+
+                if( "up".equals(attribute(reader, "rel")) && type != null && type.endsWith("vdc+xml") ) {
+                    app.vdcHref = href(reader);
+                }
+                skip(reader);
+            }
+            else if( name.equals("Description") ) {
+                app.description = reader.getElementText();
+            }
+            else if( name.equals("Children") ) {
+                while( nextChild(reader) ) {
+                    if( reader.getLocalName().equals("Vm") ) {
+                        app.vms.add(readVm(reader));
+                    }
+                    else {
+                        skip(reader);
+                    }
+                }
+            }
+            else {
+                skip(reader);
+            }
+        }
+        return app;
+    }
+
+    static private @Nonnull VAppSummary.VmSummary readVm(@Nonnull XMLStreamReader reader) throws XMLStreamException {
+        VAppSummary.VmSummary vm = new VAppSummary.VmSummary();
+        String status = attribute(reader, "status");
+
+        vm.href = href(reader);
+        vm.name = attribute(reader, "name");
+        if( status != null ) {
+            try {
+                vm.status = Status.fromValue(Integer.parseInt(status.trim()));
+            }
+            catch( RuntimeException ignore ) {
+                // an unknown status is reported like a missing one
+            }
+        }
+        while( nextChild(reader) ) {
+            String name = reader.getLocalName();
+
+            if( name.equals("Description") ) {
+                vm.description = reader.getElementText();
+            }
+            else if( name.equals("VirtualHardwareSection") ) {
+                readHardware(reader, vm);
+            }
+            else if( name.equals("OperatingSystemSection") ) {
+                vm.osType = attribute(reader, "osType");
+                skip(reader);
+            }
+            else if( name.equals("NetworkConnectionSection") ) {
+                readConnections(reader, vm);
+            }
+            else if( name.equals("GuestCustomizationSection") ) {
+                while( nextChild(reader) ) {
+                    if( reader.getLocalName().equals("AdminPassword") ) {
+                        vm.adminPassword = reader.getElementText();
+                    }
+                    else {
+                        skip(reader);
+                    }
+                }
+            }
+            else if( name.equals("Tasks") ) {
+                readTasks(reader, vm);
+            }
+            else {
+                skip(reader);
+            }
+        }
+        return vm;
+    }
+
+    static private void readHardware(@Nonnull XMLStreamReader reader, @Nonnull VAppSummary.VmSummary vm) throws XMLStreamException {
+        while( nextChild(reader) ) {
+            if( !reader.getLocalName().equals("Item") ) {
+                skip(reader);
+                continue;
+            }
+            String type = null, quantity = null;
+
+            while( nextChild(reader) ) {
+                String name = reader.getLocalName();
+
+                if( name.equals("ResourceType") ) {
+                    type = reader.getElementText().trim();
+                }
+                else if( name.equals("VirtualQuantity") ) {
+                    quantity = reader.getElementText().trim();
+                }
+                else {
+                    skip(reader);
+                }
+            }
+            if( quantity != null ) {
+                try {
+                    if( "4".equals(type) ) {
+                        vm.ramInMb = Long.parseLong(quantity);
+                    }
+                    else if( "3".equals(type) ) {
+                        vm.cpus = Long.parseLong(quantity);
+                    }
+                }
+                catch( NumberFormatException ignore ) {
+                    // keep the default
+                }
+            }
+        }
+    }
+
+    static private void readConnections(@Nonnull XMLStreamReader reader, @Nonnull VAppSummary.VmSummary vm) throws XMLStreamException {
+        while( nextChild(reader) ) {
+            String name = reader.getLocalName();
+
+            if( name.equals("PrimaryNetworkConnectionIndex") ) {
+                vm.primaryConnectionIndex = toInt(reader.getElementText(), -1);
+            }
+            else if( name.equals("NetworkConnection") ) {
+                VAppSummary.Connection connection = new VAppSummary.Connection();
+
+                connection.network = attribute(reader, "network");
+                while( nextChild(reader) ) {
+                    String field = reader.getLocalName();
+
+                    if( field.equals("NetworkConnectionIndex") ) {
+                        connection.index = toInt(reader.getElementText(), 0);
+                    }
+                    else if( field.equals("IpAddress") ) {
+                        connection.ipAddress = reader.getElementText().trim();
+                    }
+                    else if( field.equals("ExternalIpAddress") ) {
+                        connection.externalIpAddress = reader.getElementText().trim();
+                    }
+                    else {
+                        skip(reader);
+                    }
+                }
+                vm.connections.add(connection);
+            }
+            else {
+                skip(reader);
+            }
+        }
+    }
+
+    static private void readTasks(@Nonnull XMLStreamReader reader, @Nonnull VAppSummary.VmSummary vm) throws XMLStreamException {
+        while( nextChild(reader) ) {
+            if( reader.getLocalName().equals("Task") ) {
+                VAppSummary.TaskSummary task = new VAppSummary.TaskSummary();
+                String start = attribute(reader, "startTime");
+
+                StringBuilder text = new StringBuilder();
+
+                for( String field : new String[] { "operationName", "operation", "type" } ) {
+                    String value = attribute(reader, field);
+
+                    if( value != null ) {
+                        text.append(value).append(' ');
+                    }
+                }
+                task.text = text.toString();
+                if( start != null ) {
+                    Date d = parseDate(start);
+
+                    task.startTime = (d == null ? -1L : d.getTime());
+                }
+                vm.tasks.add(task);
+            }
+            skip(reader);
+        }
+    }
+
+    static private @Nullable Date parseDate(@Nonnull String text) {
+        try {
+            return dates.iso8601DateParse(text);
+        }
+        catch( RuntimeException e ) {
+            try {
+                return dates.iso8601SecondsDateParse(text);
+            }
+            catch( RuntimeException ignore ) {
+                return null;
+            }
+        }
+    }
+
+    static private @Nullable String attribute(@Nonnull XMLStreamReader reader, @Nonnull String localName) {
+        int count = reader.getAttributeCount();
+
+        for( int i=0; i<count; i++ ) {
+            if( localName.equals(reader.getAttributeLocalName(i)) ) {
+                return reader.getAttributeValue(i);
+            }
+        }
+        return null;
+    }
+
+    static private @Nullable URI href(@Nonnull XMLStreamReader reader) throws XMLStreamException {
+        String href = attribute(reader, "href");
+
+        try {
+            return (href == null ? null : URI.create(href));
+        }
+        catch( IllegalArgumentException e ) {
+            throw new XMLStreamException("Invalid href " + href, reader.getLocation());
+        }
+    }
+
+    /**
+     * Advances to the next child element of the current element.
+     * @param reader the reader positioned on the current element or one of its children
+     * @return true if positioned on the start of the next child, false if the current element has ended
+     * @throws XMLStreamException the document is malformed
+     */
+    static private boolean nextChild(@Nonnull XMLStreamReader reader) throws XMLStreamException {
+        while( reader.hasNext() ) {
+            int event = reader.next();
+
+            if( event == XMLStreamConstants.START_ELEMENT ) {
+                return true;
+            }
+            if( event == XMLStreamConstants.END_ELEMENT ) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Skips the rest of the current element, leaving the reader on its end tag.
+     * @param reader the reader positioned on the start of an element
+     * @throws XMLStreamException the document is malformed
+     */
+    static private void skip(@Nonnull XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+
+        while( depth > 0 && reader.hasNext() ) {
+            int event = reader.next();
+
+            if( event == XMLStreamConstants.START_ELEMENT ) {
+                depth++;
+            }
+            else if( event == XMLStreamConstants.END_ELEMENT ) {
+                depth--;
+            }
+        }
+    }
+
+    static private int toInt(@Nonnull String text, int defaultValue) {
+        try {
+            return Integer.parseInt(text.trim());
+        }
+        catch( NumberFormatException e ) {
+            return defaultValue;
+        }
+    }
+}
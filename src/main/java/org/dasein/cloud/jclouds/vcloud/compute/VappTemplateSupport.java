@@ -20,12 +20,15 @@ package org.dasein.cloud.jclouds.vcloud.compute;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 import org.dasein.cloud.AsynchronousTask;
@@ -33,6 +36,7 @@ import org.dasein.cloud.CloudException;
 import org.dasein.cloud.CloudProvider;
 import org.dasein.cloud.InternalException;
 import org.dasein.cloud.OperationNotSupportedException;
+import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.compute.Architecture;
 import org.dasein.cloud.compute.MachineImage;
 import org.dasein.cloud.compute.MachineImageFormat;
@@ -43,8 +47,10 @@ import org.dasein.cloud.compute.Platform;
 import org.dasein.cloud.compute.VirtualMachine;
 import org.dasein.cloud.identity.ServiceAction;
 import org.dasein.cloud.jclouds.vcloud.VcloudDirector;
+import org.dasein.cloud.jclouds.vcloud.metrics.OperationTimer;
 import org.jclouds.rest.ApiContext;
 import org.jclouds.rest.AuthorizationException;
+import org.jclouds.rest.ResourceNotFoundException;
 import org.jclouds.rest.RestContext;
 import org.jclouds.vcloud.VCloudApi;
 import org.jclouds.vcloud.VCloudMediaType;
@@ -75,30 +81,125 @@ public class VappTemplateSupport implements MachineImageSupport {
     
     static public final String TEMPLATE = "vAppTemplate";
     
-    private VcloudDirector provider;
+    private final VcloudDirector provider;
     
     VappTemplateSupport(@Nonnull VcloudDirector provider) { this.provider = provider; }
     
+    /**
+     * Writes the template to the stream as an OVA archive (the OVF descriptor followed by its disks). The
+     * stream is not closed.
+     */
     @Override
     public void downloadImage(@Nonnull String machineImageId, @Nonnull OutputStream toOutput) throws CloudException, InternalException {
-        throw new OperationNotSupportedException("Not supported");
+        new OvfExporter(provider).export(machineImageId, toOutput);
+    }
+
+    /**
+     * Target catalogs already resolved, keyed by endpoint, org and pin. The support instance lives as long as
+     * its provider context, so this cache does too.
+     */
+    private final ConcurrentHashMap<String,URI> targetCatalogs = new ConcurrentHashMap<String,URI>();
+
+    private @Nonnull String getCatalogCacheKey() throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        return ctx.getEndpoint() + "|" + ctx.getAccountNumber() + "|" + provider.getCustomProperty("vcloud.catalog", "");
+    }
+
+    /**
+     * Adds a template to the catalog that receives new templates, resolving that catalog only if it is not
+     * already cached. If the Director answers that the cached catalog is not found or not accessible, the cache
+     * entry is dropped and the add is tried once more against a freshly resolved catalog. Any other failure is
+     * rethrown unchanged, since the add may already have taken effect.
+     * @param ctx the context in which the calls are made
+     * @param template the template to add
+     * @param name the name of the catalog item
+     * @param description the description of the catalog item
+     * @return true if the template was added, false if there is no catalog to add it to
+     * @throws CloudException an error occurred resolving the catalog
+     */
+    private boolean addToCatalog(@Nonnull ApiContext<VCloudApi> ctx, @Nonnull URI template, @Nonnull String name, @Nonnull String description) throws CloudException {
+        String key = getCatalogCacheKey();
+        boolean cached = targetCatalogs.containsKey(key);
+        URI catalog = findCatalog(ctx);
+
+        if( catalog == null ) {
+            return false;
+        }
+        try {
+            if( logger.isInfoEnabled() ) {
+                logger.info("Adding " + template + " to catalog " + catalog);
+            }
+            // note you can also add properties here, if you want
+            ctx.getApi().getCatalogApi().addVAppTemplateOrMediaImageToCatalogAndNameItem(template, catalog, name, CatalogItemOptions.Builder.description(description));
+            return true;
+        }
+        catch( RuntimeException e ) {
+            // a 404 or 403 means the cached catalog is gone; anything else may follow an add that took effect
+            if( !(e instanceof ResourceNotFoundException) && !(e instanceof AuthorizationException) ) {
+                throw e;
+            }
+            targetCatalogs.remove(key);
+            if( !cached ) {
+                throw e;
+            }
+            logger.warn("Cached catalog " + catalog + " is no longer available, resolving it again: " + e.getMessage());
+            catalog = findCatalog(ctx);
+            if( catalog == null ) {
+                return false;
+            }
+            ctx.getApi().getCatalogApi().addVAppTemplateOrMediaImageToCatalogAndNameItem(template, catalog, name, CatalogItemOptions.Builder.description(description));
+            return true;
+        }
     }
 
-    private @Nullable Catalog findCatalog(@Nonnull ApiContext<VCloudApi> ctx) throws CloudException {
+    /**
+     * Identifies the catalog that receives new templates. The catalog may be pinned by name or ID with the
+     * <code>vcloud.catalog</code> custom property; otherwise it is the unpublished catalog of the org that sorts
+     * first by name. The result is cached until {@link #addToCatalog(ApiContext, URI, String, String)} finds
+     * that the catalog is no longer found or accessible.
+     * @param ctx the context in which the calls are made
+     * @return the href of the target catalog, or <code>null</code> if there is none
+     * @throws CloudException an error occurred looking up the org
+     */
+    private @Nullable URI findCatalog(@Nonnull ApiContext<VCloudApi> ctx) throws CloudException {
+        String key = getCatalogCacheKey();
+        URI href = targetCatalogs.get(key);
+
+        if( href != null ) {
+            return href;
+        }
+        String pin = provider.getCustomProperty("vcloud.catalog", null);
         Map<String,ReferenceType> map = provider.getOrg().getCatalogs();
-        
-        if( map == null ) {
-            return null;
+
+        if( pin != null ) {
+            if( pin.startsWith("/") ) {
+                href = provider.toHref(ctx, pin);
+            }
+            else if( map != null && map.containsKey(pin) ) {
+                href = map.get(pin).getHref();
+            }
+            else {
+                throw new CloudException("The catalog " + pin + " named by vcloud.catalog does not exist");
+            }
         }
-        
-        for( ReferenceType type : map.values() ) {
-            Catalog c = ctx.getApi().getCatalogApi().getCatalog(type.getHref()); 
-            
-            if( !c.isPublished() ) {
-                return c;
+        else if( map != null ) {
+            for( ReferenceType type : new TreeMap<String,ReferenceType>(map).values() ) {
+                Catalog c = ctx.getApi().getCatalogApi().getCatalog(type.getHref()); 
+
+                if( c != null && !c.isPublished() ) {
+                    href = c.getHref();
+                    break;
+                }
             }
         }
-        return null;
+        if( href != null ) {
+            targetCatalogs.put(key, href);
+        }
+        return href;
     }
     
     @Override
@@ -143,49 +244,79 @@ public class VappTemplateSupport implements MachineImageSupport {
         return false;
     }
 
+    /**
+     * Queues a capture of the vApp containing the specified VM on the shared {@link ImageCaptureExecutor}. At most
+     * <code>vcloud.capture.concurrencyPerOrg</code> captures (default 2) run at once for any one organization;
+     * the JVM-wide limits are system properties described by the executor.
+     * @return an {@link ImageCaptureTask} reporting queue position and capture phase
+     */
     @Override
     public @Nonnull AsynchronousTask<String> imageVirtualMachine(@Nonnull String vmId, @Nonnull String name, @Nonnull String description) throws CloudException, InternalException {
-        final AsynchronousTask<String> imageTask = new AsynchronousTask<String>();
+        ImageCaptureExecutor executor = ImageCaptureExecutor.getInstance();
+        final ImageCaptureTask imageTask = new ImageCaptureTask(executor);
         final String f_vmId = vmId;
         final String f_name = name;
         final String f_desc = description;
         
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
         imageTask.setStartTime(System.currentTimeMillis());
         provider.hold();
-        Thread t = new Thread() {
-            public void run() {
-                try {
-                    MachineImage image = executeImage(f_vmId, f_name, f_desc);
-                    
-                    imageTask.completeWithResult(image.getProviderMachineImageId());
-                }
-                catch( Throwable t ) {
-                    imageTask.complete(t);
+        try {
+            executor.submit(imageTask, ctx.getEndpoint() + "|" + ctx.getAccountNumber(), (int)provider.getCustomProperty("vcloud.capture.concurrencyPerOrg", 2L), provider.getMetrics(), new Runnable() {
+                public void run() {
+                    try {
+                        MachineImage image = executeImage(f_vmId, f_name, f_desc, imageTask);
+                        
+                        imageTask.setPhase("complete", 100.0);
+                        imageTask.completeWithResult(image.getProviderMachineImageId());
+                    }
+                    catch( Throwable t ) {
+                        imageTask.complete(t);
+                    }
+                    finally {
+                        provider.release();
+                    }
                 }
-                finally {
+            }, new Runnable() {
+                public void run() {
                     provider.release();
                 }
-            }
-        };
-        
-        t.setName("Image " + vmId + " - " + name);
-        t.setDaemon(true);
-        t.start();
+            });
+        }
+        catch( CloudException e ) {
+            provider.release();
+            throw e;
+        }
         return imageTask;
     }
+
+    private void phase(@Nonnull OperationTimer timer, @Nullable ImageCaptureTask task, @Nonnull String name, double percentComplete) {
+        timer.phase(name);
+        if( task != null ) {
+            task.setPhase(name, percentComplete);
+        }
+    }
     
-    private @Nonnull MachineImage executeImage(@Nonnull String vmId, @Nonnull String name, @Nonnull String description) throws CloudException, InternalException {
+    private @Nonnull MachineImage executeImage(@Nonnull String vmId, @Nonnull String name, @Nonnull String description, @Nullable ImageCaptureTask task) throws CloudException, InternalException {
+        OperationTimer timer = provider.startOperation("capture", vmId);
         ApiContext<VCloudApi> ctx = provider.getCloudClient();
         
         try {
             try {
+                phase(timer, task, "lookup", 0.0);
                 VirtualMachine vm = provider.getComputeServices().getVirtualMachineSupport().getVirtualMachine(vmId);
                 Vm vcloudVm = ctx.getApi().getVmApi().getVm(provider.toHref(ctx, vmId));
                 VApp parent = ctx.getApi().getVAppApi().getVApp(vcloudVm.getParent().getHref());
                 
+                phase(timer, task, "powerOff", 5.0);
                 if( parent.getStatus().equals(Status.ON) ) {
                     provider.waitForTask(ctx.getApi().getVAppApi().powerOffVApp(parent.getHref()));
                 }
+                phase(timer, task, "undeploy", 10.0);
                 provider.waitForTask(ctx.getApi().getVAppApi().undeployAndSaveStateOfVApp(parent.getHref()));
                 HashMap<String,Collection<NetworkConnection.Builder>> oldBuilders = new HashMap<String,Collection<NetworkConnection.Builder>>();
                 for( Vm child : parent.getChildren() ) {
@@ -228,6 +359,7 @@ public class VappTemplateSupport implements MachineImageSupport {
                 }
                 VAppTemplate template;
                 try {
+                    phase(timer, task, "capture", 20.0);
                     CaptureVAppOptions options = CaptureVAppOptions.Builder.withDescription(description);
                      
                     template = ctx.getApi().getVAppTemplateApi().captureVAppAsTemplateInVDC(parent.getHref(),  provider.validateName(name), provider.toHref(ctx, vm.getProviderDataCenterId()), options);
@@ -235,14 +367,8 @@ public class VappTemplateSupport implements MachineImageSupport {
                     if( logger.isDebugEnabled() ) {
                         logger.debug("Template=" + template);
                     }
-                    Catalog catalog = findCatalog(ctx);
-                    
-                    if( logger.isInfoEnabled() ) {
-                        logger.info("Adding " + template + " to catalog " + catalog);
-                    }
-                    if( catalog != null ) {
-                        // note you can also add properties here, if you want
-                        ctx.getApi().getCatalogApi().addVAppTemplateOrMediaImageToCatalogAndNameItem(template.getHref(), catalog.getHref(), name, CatalogItemOptions.Builder.description(description));
+                    phase(timer, task, "catalogAdd", 70.0);
+                    if( addToCatalog(ctx, template.getHref(), name, description) ) {
                         if( logger.isInfoEnabled() ) {
                             logger.info("Template added to catalog");
                         }
@@ -256,6 +382,7 @@ public class VappTemplateSupport implements MachineImageSupport {
                         logger.info("Turning source VM back on");
                     }
                     try {
+                        phase(timer, task, "networkRestore", 75.0);
                         parent = provider.waitForIdle(ctx, parent);
                         for( Vm child : parent.getChildren() ) {
                             child = provider.waitForIdle(ctx, child);
@@ -278,6 +405,7 @@ public class VappTemplateSupport implements MachineImageSupport {
                         }
                         parent = provider.waitForIdle(ctx, parent);
                         try {
+                            phase(timer, task, "powerOn", 85.0);
                             logger.info("Powering VM " + parent + " on");
                             provider.waitForTask(ctx.getApi().getVAppApi().deployAndPowerOnVApp(parent.getHref()));
                         }
@@ -295,6 +423,7 @@ public class VappTemplateSupport implements MachineImageSupport {
                 if( logger.isInfoEnabled() ) {
                     logger.info("Populating dasein image for new template: " + template);
                 }
+                phase(timer, task, "describe", 95.0);
                 return toMachineImage(ctx, provider.getOrg(vm.getProviderOwnerId()), ctx.getApi().getVAppTemplateApi().getVAppTemplate(template.getHref()));
             }
             catch( RuntimeException e ) {
@@ -307,6 +436,7 @@ public class VappTemplateSupport implements MachineImageSupport {
         }
         finally {
             ctx.close();
+            timer.finish();
         }
     }
 
@@ -315,9 +445,55 @@ public class VappTemplateSupport implements MachineImageSupport {
         throw new OperationNotSupportedException("Not supported");
     }
 
+    /**
+     * Creates a template from an OVA archive holding an OVF descriptor and its VMDK disks. The template is created
+     * in the VDC named by the <code>vcloud.upload.vdc</code> custom property, or in the first VDC of the org, and
+     * added to the catalog used for captured images.
+     */
     @Override
     public String installImageFromUpload(MachineImageFormat format, InputStream imageStream) throws CloudException, InternalException {
-        throw new OperationNotSupportedException("Not yet");
+        if( !MachineImageFormat.VMDK.equals(format) ) {
+            throw new OperationNotSupportedException("Only VMDK disks packaged in an OVA archive may be uploaded");
+        }
+        ApiContext<VCloudApi> ctx = provider.getCloudClient();
+
+        try {
+            try {
+                String vdcId = provider.getCustomProperty("vcloud.upload.vdc", null);
+                URI vdc = null;
+
+                if( vdcId != null ) {
+                    vdc = provider.toHref(ctx, vdcId);
+                }
+                else {
+                    Map<String,ReferenceType> map = provider.getOrg().getVDCs();
+
+                    if( map != null && !map.isEmpty() ) {
+                        vdc = map.values().iterator().next().getHref();
+                    }
+                }
+                if( vdc == null ) {
+                    throw new CloudException("No VDC is available to receive the upload");
+                }
+                URI href = new OvfImporter(provider).install(null, vdc, imageStream);
+                VAppTemplate template = ctx.getApi().getVAppTemplateApi().getVAppTemplate(href);
+
+                if( template == null || !addToCatalog(ctx, href, template.getName(), template.getName()) ) {
+                    logger.warn("No catalog exists for uploaded template " + href);
+                }
+                return provider.toId(ctx, href);
+            }
+            catch( RuntimeException e ) {
+                logger.error("Error uploading image: " + e.getMessage());
+                if( logger.isDebugEnabled() ) {
+                    e.printStackTrace();
+                }
+                throw new CloudException(e);
+            }
+        }
+        finally {
+            ctx.close();
+        }
     }
 
     @Override
@@ -517,7 +693,7 @@ public class VappTemplateSupport implements MachineImageSupport {
         throw new OperationNotSupportedException("Not supported");
     }
 
-    private MachineImage toMachineImage(ApiContext<VCloudApi> ctx, Org org, VAppTemplate template) {
+    MachineImage toMachineImage(ApiContext<VCloudApi> ctx, Org org, VAppTemplate template) {
         if( template == null) {
             return null;
         }
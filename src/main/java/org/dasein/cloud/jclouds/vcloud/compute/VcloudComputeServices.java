@@ -24,17 +24,21 @@ import org.dasein.cloud.jclouds.vcloud.VcloudDirector;
 import javax.annotation.Nonnull;
 
 public class VcloudComputeServices extends AbstractComputeServices {
-    private VcloudDirector provider;
+    private final VappTemplateSupport imageSupport;
+    private final VcloudVMSupport     vmSupport;
     
-    public VcloudComputeServices(@Nonnull VcloudDirector provider) { this.provider = provider; }
+    public VcloudComputeServices(@Nonnull VcloudDirector provider) {
+        imageSupport = new VappTemplateSupport(provider);
+        vmSupport = new VcloudVMSupport(provider);
+    }
         
     @Override
     public @Nonnull VappTemplateSupport getImageSupport() {
-        return new VappTemplateSupport(provider);
+        return imageSupport;
     }
     
     @Override
     public @Nonnull VcloudVMSupport getVirtualMachineSupport() {
-        return new VcloudVMSupport(provider);
+        return vmSupport;
     }
 }
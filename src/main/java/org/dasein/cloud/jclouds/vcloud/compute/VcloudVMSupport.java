@@ -21,6 +21,10 @@ package org.dasein.cloud.jclouds.vcloud.compute;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 import org.dasein.cloud.CloudException;
@@ -36,10 +40,9 @@ import org.dasein.cloud.compute.VmStatistics;
 import org.dasein.cloud.dc.DataCenter;
 import org.dasein.cloud.identity.ServiceAction;
 import org.dasein.cloud.jclouds.vcloud.VcloudDirector;
+import org.dasein.cloud.jclouds.vcloud.metrics.OperationTimer;
+import org.dasein.cloud.jclouds.vcloud.network.IpAddresses;
 import org.dasein.cloud.network.VLAN;
-import org.jclouds.cim.ResourceAllocationSettingData;
-import org.jclouds.cim.ResourceAllocationSettingData.ResourceType;
-import org.jclouds.ovf.VirtualHardwareSection;
 import org.jclouds.rest.ApiContext;
 import org.jclouds.rest.AuthorizationException;
 import org.jclouds.rest.RestContext;
@@ -62,11 +65,14 @@ import org.jclouds.vcloud.options.CloneVAppOptions;
 import org.jclouds.vcloud.options.InstantiateVAppTemplateOptions;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 public class VcloudVMSupport implements VirtualMachineSupport {
     static private final Logger logger = Logger.getLogger(VirtualMachineSupport.class);
+
+    static private final int DELETE_ATTEMPTS = 12;
     
-    private VcloudDirector provider;
+    private final VcloudDirector provider;
     
     VcloudVMSupport(VcloudDirector provider) { this.provider = provider; }
     
@@ -158,8 +164,29 @@ public class VcloudVMSupport implements VirtualMachineSupport {
     @Override
     public VirtualMachine getVirtualMachine(String vmId) throws InternalException, CloudException {
         ApiContext<VCloudApi> ctx = provider.getCloudClient();
-        Vm vm = ctx.getApi().getVmApi().getVm(provider.toHref(ctx, vmId));
-        return toVirtualMachine(ctx, vm);
+
+        try {
+            URI href;
+
+            try {
+                href = provider.toHref(ctx, vmId);
+            }
+            catch( IllegalArgumentException e ) {
+                logger.debug("getVirtualMachine(): " + e.getMessage());
+                return null;
+            }
+            return toVirtualMachine(ctx, ctx.getApi().getVmApi().getVm(href));
+        }
+        catch( RuntimeException e ) {
+            logger.error("Error getting virtual machine " + vmId + ": " + e.getMessage());
+            if( logger.isDebugEnabled() ) {
+                e.printStackTrace();
+            }
+            throw new CloudException(e);
+        }
+        finally {
+            ctx.close();
+        }
     }
 
     public Collection<VirtualMachine> getVirtualMachines(String vAppId) throws CloudException, InternalException {
@@ -176,42 +203,38 @@ public class VcloudVMSupport implements VirtualMachineSupport {
         return toVirtualMachines(ctx, app);
     }
 
+    /**
+     * Summarizes CPU, disk and network use of a VM from the vCloud metrics API (vCloud Director 5.6 or later).
+     */
     @Override
     public VmStatistics getVMStatistics(String vmId, long from, long to) throws InternalException, CloudException {
-        return new VmStatistics();
+        return new VmMetricsClient(provider).getStatistics(vmId, from, to);
     }
 
+    /**
+     * Summarizes many VMs at once, fetching their metrics in parallel.
+     * @param vmIds the VMs to summarize
+     * @param from the start of the window
+     * @param to the end of the window
+     * @return the statistics of each VM whose metrics could be read, keyed by VM ID
+     * @throws InternalException the operation was interrupted
+     * @throws CloudException an error occurred with the cloud provider
+     */
+    public @Nonnull Map<String,VmStatistics> getVMStatistics(@Nonnull Collection<String> vmIds, long from, long to) throws InternalException, CloudException {
+        return new VmMetricsClient(provider).getStatistics(vmIds, from, to);
+    }
+
+    /**
+     * Provides per-sample statistics for a VM. Recent windows are answered from an in-memory history fed by a
+     * background sampler; older samples come from the vCloud metrics API.
+     */
     @Override
     public Iterable<VmStatistics> getVMStatisticsForPeriod(String vmId, long from, long to) throws InternalException, CloudException {
-        return Collections.emptyList();
+        return VmStatisticsHistory.getInstance(provider).getStatisticsForPeriod(provider, vmId, from, to);
     }
 
-    private boolean isPublicIp(String ipAddress) {
-        if( !ipAddress.startsWith("10.") && !ipAddress.startsWith("192.168.") ) {
-            if( ipAddress.startsWith("172.") ) {
-                String[] nums = ipAddress.split("\\.");
-                
-                if( nums.length != 4 ) {
-                    return true;
-                }
-                else {
-                    try {
-                        int x = Integer.parseInt(nums[1]);
-                        
-                        if( x < 16 || x > 31 ) {
-                            return true;
-                        }
-                    }
-                    catch( NumberFormatException ignore ) {
-                        // ignore
-                    }
-                }
-            }
-            else {
-                return true;
-            }  
-        }
-        return false;
+    boolean isPublicIp(String ipAddress) {
+        return IpAddresses.isPublic(ipAddress);
     }
         
     @Override
@@ -242,15 +265,19 @@ public class VcloudVMSupport implements VirtualMachineSupport {
     }
 
     public Collection<VirtualMachine> launch(String fromMachineImageId, VirtualMachineProduct product, String dataCenterId, String name, String inVlanId, List<AllocationMode> modes) throws InternalException, CloudException {
+        OperationTimer timer = provider.startOperation("launch", fromMachineImageId);
         ApiContext<VCloudApi> ctx = provider.getCloudClient();
         try {
             try {
+                timer.phase("instantiate");
                 InstantiateVAppTemplateOptions options = InstantiateVAppTemplateOptions.Builder.description(fromMachineImageId);
                 VAppTemplate template = ctx.getApi().getVAppTemplateApi().getVAppTemplate(provider.toHref(ctx, fromMachineImageId));
 
-                for( Vm vm : template.getChildren() ) {
-                    for( NetworkConnection c : vm.getNetworkConnectionSection().getConnections() ) {
-                        System.out.println("Template connection: " + c.getIpAddressAllocationMode());
+                if( logger.isDebugEnabled() ) {
+                    for( Vm vm : template.getChildren() ) {
+                        for( NetworkConnection c : vm.getNetworkConnectionSection().getConnections() ) {
+                            logger.debug("Template connection of " + vm.getName() + ": " + c.getIpAddressAllocationMode());
+                        }
                     }
                 }
                 options.powerOn(false);
@@ -266,10 +293,12 @@ public class VcloudVMSupport implements VirtualMachineSupport {
                 if( app == null ) {
                     throw new CloudException("No vApp was instantiated for " + fromMachineImageId);
                 }
+                timer.phase("unresolved");
                 while (app.getStatus().equals(Status.UNRESOLVED)) {
                     try {
                         Thread.sleep(5000L);
                     } catch (InterruptedException ignored) {}
+                    OperationTimer.polled();
 
                     try {
                         app = ctx.getApi().getVAppApi().getVApp(app.getHref());
@@ -280,6 +309,7 @@ public class VcloudVMSupport implements VirtualMachineSupport {
                 int i = 0;
 
                 name = provider.validateName(name);
+                timer.phase("guestCustomization");
                 for( Vm vm : children ) {
                     i++;
                     vm = provider.waitForIdle(ctx, vm);
@@ -292,6 +322,7 @@ public class VcloudVMSupport implements VirtualMachineSupport {
                     ctx.getApi().getVmApi().updateGuestCustomizationOfVm(s, vm.getHref());
                 }
                 app = provider.waitForIdle(ctx, app);
+                timer.phase("networkLookup");
                 VLAN network = null;
 
                 if( inVlanId == null ) {
@@ -304,6 +335,7 @@ public class VcloudVMSupport implements VirtualMachineSupport {
                 }
 
                 for (i = 0; i < children.size(); i++) {
+                    timer.phase("networkReset");
                     Vm vm = provider.waitForIdle(ctx, children.get(i));
 
                     ArrayList<NetworkConnection> connections = new ArrayList<NetworkConnection>();
@@ -332,11 +364,13 @@ public class VcloudVMSupport implements VirtualMachineSupport {
                     section = sectionBuilder.build();
                     provider.waitForTask(ctx.getApi().getVmApi().updateNetworkConnectionOfVm(section, vm.getHref()));
                     vm = provider.waitForIdle(ctx, vm);
+                    timer.phase("hardware");
                     provider.waitForTask(ctx.getApi().getVmApi().updateCPUCountOfVm(product.getCpuCount(), vm.getHref()));
                     vm = provider.waitForIdle(ctx, vm);
                     provider.waitForTask(ctx.getApi().getVmApi().updateMemoryMBOfVm(product.getRamInMb(), vm.getHref()));
                     vm = provider.waitForIdle(ctx, vm);
                 }
+                timer.phase("deploy");
                 app = provider.waitForIdle(ctx, app);
                 ctx.getApi().getVAppApi().deployAndPowerOnVApp(app.getHref());
 
@@ -352,6 +386,7 @@ public class VcloudVMSupport implements VirtualMachineSupport {
         }
         finally {
             ctx.close();
+            timer.finish();
         }
     }
     
@@ -360,11 +395,13 @@ public class VcloudVMSupport implements VirtualMachineSupport {
         return Collections.emptyList();
     }
 
-    static private Iterable<VirtualMachineProduct> products = null;
-    
-    @Override
-    public Iterable<VirtualMachineProduct> listProducts(Architecture architecture) throws InternalException, CloudException {
-        if( products == null ) {
+    /**
+     * Holds the product list, built once on first use and safely published to every thread by class initialization.
+     */
+    static private final class Products {
+        static private final List<VirtualMachineProduct> products;
+
+        static {
             ArrayList<VirtualMachineProduct> sizes = new ArrayList<VirtualMachineProduct>();
             
             for( int ram : new int[] { 512, 1024, 1536, 2048, 4096, 8192, 12288, 16384 } ) {
@@ -382,21 +419,25 @@ public class VcloudVMSupport implements VirtualMachineSupport {
             }
             products = Collections.unmodifiableList(sizes);
         }
-        return products;
+    }
+    
+    @Override
+    public Iterable<VirtualMachineProduct> listProducts(Architecture architecture) throws InternalException, CloudException {
+        return Products.products;
     }
 
     @Override
     public Iterable<VirtualMachine> listVirtualMachines() throws InternalException, CloudException {
+        OperationTimer timer = provider.startOperation("listVirtualMachines", provider.getContext().getRegionId());
         ApiContext<VCloudApi> ctx = provider.getCloudClient();
         
         try {
             try {
-                ArrayList<VirtualMachine> list = new ArrayList<VirtualMachine>();
-                
+                ArrayList<URI> vApps = new ArrayList<URI>();
+
                 for( DataCenter dc : provider.getDataCenterServices().listDataCenters(provider.getContext().getRegionId()) ) {
-                    System.out.println("DC=" + dc);
                     VDC vdc = provider.getDataCenterServices().getVDC(dc.getProviderDataCenterId());
-                    System.out.println("dc for " + dc.getProviderDataCenterId() + "=" + vdc);
+
                     if( vdc != null ) {
                         Map<String, ReferenceType> map = vdc.getResourceEntities();
                     
@@ -405,16 +446,12 @@ public class VcloudVMSupport implements VirtualMachineSupport {
                         }
                         for( ReferenceType type : map.values() ) {
                             if( type.getType().equals(VCloudMediaType.VAPP_XML) ) {
-                                VApp app = ctx.getApi().getVAppApi().getVApp(type.getHref());
-                                
-                                if( app != null ) {
-                                    list.addAll(toVirtualMachines(ctx, app));
-                               }
+                                vApps.add(type.getHref());
                             }
                         }
                     }
                 }
-                return list;
+                return listVirtualMachines(ctx, vApps);
             }
             catch( RuntimeException e ) {
                 logger.error("Error listing virtual machines in " + provider.getContext().getRegionId() + ": " + e.getMessage());
@@ -426,9 +463,108 @@ public class VcloudVMSupport implements VirtualMachineSupport {
         }
         finally {
             ctx.close();
+            timer.finish();
         }
     }
 
+    /**
+     * Lists the VMs of several vApps, fetching up to <code>vcloud.listing.parallelism</code> (default 4) vApps at
+     * once on threads of the execution mode of the context (see {@link VcloudDirector#isVirtualThreads()}).
+     * @param ctx the API context
+     * @param vApps the hrefs of the vApps
+     * @return the VMs in the order of the vApps
+     * @throws CloudException an error occurred fetching a vApp
+     * @throws InternalException an error occurred converting the VMs
+     */
+    private @Nonnull List<VirtualMachine> listVirtualMachines(@Nonnull final ApiContext<VCloudApi> ctx, @Nonnull List<URI> vApps) throws CloudException, InternalException {
+        final boolean streaming = !"false".equalsIgnoreCase(provider.getCustomProperty("vcloud.listing.streaming", "true"));
+        int parallelism = (int)Math.min(vApps.size(), Math.max(1L, provider.getCustomProperty("vcloud.listing.parallelism", 4L)));
+        ArrayList<VirtualMachine> list = new ArrayList<VirtualMachine>();
+
+        if( parallelism < 2 ) {
+            for( URI href : vApps ) {
+                list.addAll(listVirtualMachines(ctx, href, streaming));
+            }
+            return list;
+        }
+        ExecutorService pool = provider.newExecutor("List vApps", parallelism);
+        ArrayList<Future<Collection<VirtualMachine>>> futures = new ArrayList<Future<Collection<VirtualMachine>>>();
+
+        try {
+            for( final URI href : vApps ) {
+                futures.add(pool.submit(new Callable<Collection<VirtualMachine>>() {
+                    public Collection<VirtualMachine> call() throws CloudException, InternalException {
+                        return listVirtualMachines(ctx, href, streaming);
+                    }
+                }));
+            }
+            for( Future<Collection<VirtualMachine>> f : futures ) {
+                try {
+                    list.addAll(f.get());
+                }
+                catch( ExecutionException e ) {
+                    Throwable cause = e.getCause();
+
+                    if( cause instanceof CloudException ) {
+                        throw (CloudException)cause;
+                    }
+                    if( cause instanceof InternalException ) {
+                        throw (InternalException)cause;
+                    }
+                    if( cause instanceof RuntimeException ) {
+                        throw (RuntimeException)cause;
+                    }
+                    throw new CloudException(cause);
+                }
+            }
+            return list;
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while listing virtual machines");
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Lists the VMs of a vApp. Unless streaming is turned off with the <code>vcloud.listing.streaming</code>
+     * custom property, the vApp document is fetched directly and only the fields needed for the listing are
+     * projected from it by {@link VAppSummaryParser}; if that fails, for example because the vApp is gone, the
+     * vApp is fetched through jclouds instead.
+     * @param ctx the API context
+     * @param href the href of the vApp
+     * @param streaming true to project the listing from the streamed document
+     * @return the VMs of the vApp, empty if it no longer exists
+     * @throws CloudException an error occurred fetching the vApp
+     * @throws InternalException an error occurred converting the VMs
+     */
+    private @Nonnull Collection<VirtualMachine> listVirtualMachines(@Nonnull ApiContext<VCloudApi> ctx, @Nonnull URI href, boolean streaming) throws CloudException, InternalException {
+        if( streaming ) {
+            VAppSummary summary = null;
+
+            try {
+                OperationTimer.apiCalled();
+                summary = VAppSummaryParser.parse(provider.getDirectorHttp().getStream(href));
+            }
+            catch( CloudException e ) {
+                if( logger.isDebugEnabled() ) {
+                    logger.debug("Unable to stream " + href + ", falling back to jclouds: " + e.getMessage());
+                }
+            }
+            if( summary != null ) {
+                return toVirtualMachines(ctx, summary);
+            }
+        }
+        VApp app = ctx.getApi().getVAppApi().getVApp(href);
+
+        if( app == null ) {
+            return Collections.emptyList();
+        }
+        return toVirtualMachines(ctx, app);
+    }
+
     @Override
     public @Nonnull String[] mapServiceAction(@Nonnull ServiceAction action) {
         return new String[0];
@@ -482,21 +618,149 @@ public class VcloudVMSupport implements VirtualMachineSupport {
     }
 
     public void terminate(URI vApp) throws CloudException {
+        OperationTimer timer = provider.startOperation("terminateVApp", vApp.toString());
         ApiContext<VCloudApi> ctx = provider.getCloudClient();
 
-        provider.waitForTask(ctx.getApi().getVAppApi().powerOffVApp(vApp));
+        try {
+            try {
+                timer.phase("lookup");
+                VApp app = ctx.getApi().getVAppApi().getVApp(vApp);
+
+                if( app == null ) {
+                    throw new CloudException("No such vApp: " + vApp);
+                }
+                app = provider.waitForIdle(ctx, app);
+                if( app != null ) {
+                    destroy(ctx, app, timer);
+                }
+            }
+            catch( RuntimeException e ) {
+                logger.error("Error terminating " + vApp + ": " + e.getMessage());
+                if( logger.isDebugEnabled() ) {
+                    e.printStackTrace();
+                }
+                throw new CloudException(e);
+            }
+        }
+        finally {
+            ctx.close();
+            timer.finish();
+        }
+    }
+
+    /**
+     * Removes a vApp with the minimum number of Director tasks. An undeploy without saved state powers the vApp
+     * off as part of the same task, so no separate power off is issued, and the undeploy itself is skipped when
+     * the vApp is powered off. A powered off vApp may still be deployed, in which case the Director refuses the
+     * delete with a 400 saying that it is not undeployed; that refusal triggers the undeploy and the delete is
+     * then retried.
+     * @param ctx the context in which the calls are made
+     * @param app the vApp to remove
+     * @param timer the timer for the operation under way
+     * @throws CloudException the vApp could not be removed
+     */
+    private void destroy(@Nonnull ApiContext<VCloudApi> ctx, @Nonnull VApp app, @Nonnull OperationTimer timer) throws CloudException {
+        URI href = app.getHref();
+        boolean undeployed = false;
+
+        if( !isUndeployed(app.getStatus()) ) {
+            timer.phase("undeploy");
+            provider.waitForTask(ctx.getApi().getVAppApi().undeployVApp(href));
+            undeployed = true;
+        }
+        int attempts = 0;
 
-        provider.waitForTask(ctx.getApi().getVAppApi().undeployVApp(vApp));
+        timer.phase("delete");
+        while( true ) {
+            try {
+                provider.waitForTask(ctx.getApi().getVAppApi().deleteVApp(href));
+                return;
+            }
+            catch( IllegalArgumentException e ) {
+                // 400: powered off but still deployed
+                if( undeployed || !isNotUndeployed(e) ) {
+                    throw e;
+                }
+                timer.phase("undeploy");
+                provider.waitForTask(ctx.getApi().getVAppApi().undeployVApp(href));
+                undeployed = true;
+                timer.phase("delete");
+            }
+            catch( IllegalStateException vCloudLies ) {
+                if( ++attempts >= DELETE_ATTEMPTS ) {
+                    throw new CloudException("vApp " + href + " still could not be deleted after " + attempts + " attempts: " + vCloudLies.getMessage());
+                }
+                if( !undeployed ) {
+                    timer.phase("undeploy");
+                    provider.waitForTask(ctx.getApi().getVAppApi().undeployVApp(href));
+                    undeployed = true;
+                    timer.phase("delete");
+                    continue;
+                }
+                try { Thread.sleep(5000L); }
+                catch( InterruptedException e ) { }
+                OperationTimer.polled();
+            }
+        }
+    }
 
-        provider.waitForTask(ctx.getApi().getVAppApi().deleteVApp(vApp));
+    /**
+     * @param t a failure of a delete
+     * @return true if the Director refused the delete because the entity is still deployed
+     */
+    private boolean isNotUndeployed(@Nullable Throwable t) {
+        for( int depth=0; t != null && depth < 10; depth++ ) {
+            String msg = t.getMessage();
+
+            if( msg != null && msg.toLowerCase().contains("not undeployed") ) {
+                return true;
+            }
+            t = t.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * @param status the power status of a vApp or VM
+     * @return true if the status suggests the entity needs no undeploy; a powered off entity may still be deployed
+     */
+    private boolean isUndeployed(@Nullable Status status) {
+        if( status == null ) {
+            return false;
+        }
+        switch( status ) {
+            case OFF: case RESOLVED: case UNRESOLVED: case ERROR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Terminates many virtual machines in parallel. VMs are grouped by parent vApp and an entire vApp is deleted
+     * in one pass when all of its VMs are targeted. The number of vApps processed at once is bounded by the
+     * <code>vcloud.terminate.concurrency</code> custom property (default 8) and each vApp or VM is tried up to
+     * <code>vcloud.terminate.attempts</code> times (default 3).
+     * @param vmIds the IDs of the VMs to terminate
+     * @return the outcome for each requested VM, in request order
+     * @throws CloudException an error occurred looking up the VMs in the cloud
+     * @throws InternalException the operation was interrupted
+     */
+    public @Nonnull Map<String,TerminationResult> terminate(@Nonnull Collection<String> vmIds) throws InternalException, CloudException {
+        int concurrency = (int)provider.getCustomProperty("vcloud.terminate.concurrency", 8L);
+        int attempts = (int)provider.getCustomProperty("vcloud.terminate.attempts", 3L);
+
+        return new BulkTerminator(provider, this, concurrency, attempts).terminate(vmIds);
     }
 
     @Override
     public void terminate(String vmId) throws InternalException, CloudException {
+        OperationTimer timer = provider.startOperation("terminate", vmId);
         ApiContext<VCloudApi> ctx = provider.getCloudClient();
         
         try {
             try {
+                timer.phase("lookup");
                 Vm vm = ctx.getApi().getVmApi().getVm(provider.toHref(ctx, vmId));
                 
                 if( vm == null ) {
@@ -505,58 +769,39 @@ public class VcloudVMSupport implements VirtualMachineSupport {
                 VApp parent = ctx.getApi().getVAppApi().getVApp(vm.getParent().getHref());
                 
                 if( parent.getType().equals(VCloudMediaType.VAPP_XML) ) {
-                    parent = provider.waitForIdle(ctx, parent);
-                    vm = ctx.getApi().getVmApi().getVm(vm.getHref());
-                    if( vm.getStatus().equals(Status.ON) ) {
-                        vm = provider.waitForIdle(ctx, vm);
-                        provider.waitForTask(ctx.getApi().getVmApi().powerOffVm(vm.getHref()));
-                    }
-                    vm = provider.waitForIdle(ctx, vm);
-                    parent = ctx.getApi().getVAppApi().getVApp(parent.getHref());
-                    
-                    int count = 0;
-                    
+                    int running = 0;
+
                     for( Vm child : parent.getChildren() ) {
-                        if( child.getStatus().equals(Status.ON) ) {
-                            count++;
+                        if( !child.getHref().equals(vm.getHref()) && child.getStatus().equals(Status.ON) ) {
+                            running++;
                         }
                     }
-                    if( count < 1 ) {
-                        parent = provider.waitForIdle(ctx, parent);
-                        try { provider.waitForTask(ctx.getApi().getVAppApi().undeployVApp(parent.getHref())); }
-                        catch( Throwable ignore ) { }
-                        parent = provider.waitForIdle(ctx, parent);
-                        for( Vm child : parent.getChildren() ) {
-                            provider.waitForIdle(ctx, child);
-                        }
-                        boolean running = true;
-                        
-                        while( running ) {
-                            try {
-                                provider.waitForTask(ctx.getApi().getVAppApi().deleteVApp(parent.getHref()));
-                                running = false;
-                            }
-                            catch( IllegalStateException vCloudLies ) {
-                                try { Thread.sleep(5000L); }
-                                catch( InterruptedException e ) { }
-                            }
-                        }
+                    parent = provider.waitForIdle(ctx, parent);
+                    if( parent == null ) {
+                        return;
                     }
-                }
-                else {
-                    if( vm.getStatus().equals(Status.ON) ){
-                        vm = provider.waitForIdle(ctx, vm);
+                    if( running < 1 ) {
+                        // nothing else in the vApp is running, so remove the whole vApp in the fewest tasks
+                        destroy(ctx, parent, timer);
+                    }
+                    else if( vm.getStatus().equals(Status.ON) ) {
+                        timer.phase("powerOff");
                         provider.waitForTask(ctx.getApi().getVmApi().powerOffVm(vm.getHref()));
                     }
+                }
+                else if( !isUndeployed(vm.getStatus()) || Status.OFF.equals(vm.getStatus()) ) {
+                    // undeploy powers off as part of the same task
+                    timer.phase("undeploy");
                     vm = provider.waitForIdle(ctx, vm);
-                    if( vm.getStatus().equals(Status.DEPLOYED) ){
+                    try {
                         provider.waitForTask(ctx.getApi().getVmApi().undeployVm(vm.getHref()));
-                        while( vm != null && vm.getStatus().equals(Status.DEPLOYED) ) {
-                            try { Thread.sleep(5000L); }
-                            catch( InterruptedException e ) { }
-                            try { vm = ctx.getApi().getVmApi().getVm(vm.getHref()); }
-                            catch( Throwable ignore ) { }
-                        }                    
+                    }
+                    catch( IllegalArgumentException e ) {
+                        // a powered off VM may or may not still be deployed; 400 here means it already is not
+                        if( !Status.OFF.equals(vm.getStatus()) ) {
+                            throw e;
+                        }
+                        logger.debug("VM " + vmId + " was already undeployed: " + e.getMessage());
                     }
                 }
             }
@@ -570,32 +815,37 @@ public class VcloudVMSupport implements VirtualMachineSupport {
         }
         finally {
             ctx.close();
+            timer.finish();
         }
     }
     
-    private VirtualMachine toVirtualMachine(ApiContext<VCloudApi> ctx, VApp app, Vm vcloudVm) throws CloudException, InternalException {
+    VirtualMachine toVirtualMachine(ApiContext<VCloudApi> ctx, VApp app, Vm vcloudVm) throws CloudException, InternalException {
         if( vcloudVm == null ) {
             return null;
         }
+        return toVirtualMachine(ctx, VAppSummary.from(app), VAppSummary.from(vcloudVm));
+    }
 
+    VirtualMachine toVirtualMachine(ApiContext<VCloudApi> ctx, VAppSummary app, VAppSummary.VmSummary vcloudVm) throws CloudException, InternalException {
         VirtualMachine vm = toVirtualMachine(ctx, vcloudVm);
 
-        vm.setProviderDataCenterId(provider.toId(ctx, app.getVDC().getHref()));
-
+        if( app.vdcHref != null ) {
+            vm.setProviderDataCenterId(provider.toId(ctx, app.vdcHref));
+        }
         if( vm.getName() == null ) {
-            vm.setName(app.getName());
+            vm.setName(app.name);
             if( vm.getName() == null ) {
                 vm.setName(vm.getProviderVirtualMachineId());
             }
         }
         if( vm.getDescription() == null ) {
-            vm.setDescription(app.getDescription());
+            vm.setDescription(app.description);
             if( vm.getDescription() == null ) {
                 vm.setDescription(vm.getName());
             }
         }
 
-        String imageId = app.getDescription();
+        String imageId = app.description;
 
         if( imageId != null ) {
             VAppTemplate template;
@@ -628,15 +878,22 @@ public class VcloudVMSupport implements VirtualMachineSupport {
     }
     
     private Collection<VirtualMachine> toVirtualMachines(ApiContext<VCloudApi> ctx, VApp app) throws CloudException, InternalException {
-        ArrayList<VirtualMachine> vms = new ArrayList<VirtualMachine>();
-        
+        VAppSummary summary = VAppSummary.from(app);
+
         for( Vm vm : app.getChildren() ) {
-            VirtualMachine v = toVirtualMachine(ctx, app, vm);
-            
-            if( v != null ) {
-                vms.add(v);
+            if( vm != null ) {
+                summary.vms.add(VAppSummary.from(vm));
             }
         }
+        return toVirtualMachines(ctx, summary);
+    }
+
+    Collection<VirtualMachine> toVirtualMachines(ApiContext<VCloudApi> ctx, VAppSummary app) throws CloudException, InternalException {
+        ArrayList<VirtualMachine> vms = new ArrayList<VirtualMachine>();
+        
+        for( VAppSummary.VmSummary vm : app.vms ) {
+            vms.add(toVirtualMachine(ctx, app, vm));
+        }
         return vms;
     }
 
@@ -644,16 +901,20 @@ public class VcloudVMSupport implements VirtualMachineSupport {
         if( vcloudVm == null ) {
             return null;
         }
+        return toVirtualMachine(ctx, VAppSummary.from(vcloudVm));
+    }
+
+    private VirtualMachine toVirtualMachine(ApiContext<VCloudApi> ctx, VAppSummary.VmSummary vcloudVm) throws CloudException, InternalException {
         VirtualMachine vm = new VirtualMachine();
-        String vmId = provider.toId(ctx, vcloudVm.getHref());
+        String vmId = provider.toId(ctx, vcloudVm.href);
 
         vm.setProviderVirtualMachineId(vmId);
-        vm.setName(vcloudVm.getName());
-        vm.setDescription(vcloudVm.getDescription());
+        vm.setName(vcloudVm.name);
+        vm.setDescription(vcloudVm.description);
         vm.setProviderOwnerId(provider.getOrg().getName());
         vm.setProviderRegionId(provider.getContext().getRegionId());
         vm.setProviderAssignedIpAddressId(null);
-        vm.setPlatform(Platform.guess(vcloudVm.getOperatingSystemSection().getVmwOsType()));
+        vm.setPlatform(Platform.guess(vcloudVm.osType));
         vm.setArchitecture(Architecture.I64);
         vm.setClonable(true);
         vm.setImagable(true);
@@ -661,17 +922,7 @@ public class VcloudVMSupport implements VirtualMachineSupport {
         vm.setPersistent(true);
         vm.setRebootable(true);
 
-        VirtualHardwareSection hardware = vcloudVm.getVirtualHardwareSection();
-        long ram = 256, cpus = 1;
-
-        for( ResourceAllocationSettingData allocation : hardware.getItems() ) {
-            if( allocation.getResourceType().equals(ResourceType.MEMORY) ) {
-                ram = allocation.getVirtualQuantity();
-            }
-            else if( allocation.getResourceType().equals(ResourceType.PROCESSOR) ) {
-                cpus = allocation.getVirtualQuantity();
-            }
-        }
+        long ram = vcloudVm.ramInMb, cpus = vcloudVm.cpus;
         VirtualMachineProduct product = getProduct(ram + ":" + cpus);
 
         if( product == null ) {
@@ -688,23 +939,22 @@ public class VcloudVMSupport implements VirtualMachineSupport {
         ArrayList<String> privateIpAddresses = new ArrayList<String>();
         String externalIp = null, providerNetworkId = null;
 
-        System.out.println("Checking network connections: " + vcloudVm.getNetworkConnectionSection().getConnections());
-
-        Set<NetworkConnection> connections = vcloudVm.getNetworkConnectionSection().getConnections();
-        for( NetworkConnection c : connections) {
-            System.out.println("EXT=" + c.getExternalIpAddress());
-            System.out.println("Assigned=" + c.getIpAddress());
-            System.out.println("Model=" + c.getIpAddressAllocationMode());
-            System.out.println("Network=" + c.getNetwork());
+        for( VAppSummary.Connection c : vcloudVm.connections ) {
+            if( logger.isTraceEnabled() ) {
+                logger.trace("Connection of " + vcloudVm.name + ": network=" + c.network + ", ip=" + c.ipAddress + ", external=" + c.externalIpAddress);
+            }
+            if( c.index == vcloudVm.primaryConnectionIndex ) {
+                VLAN network = (c.network == null ? null : provider.getNetworkServices().getVlanSupport().getVlanByName(c.network));
 
-            if( c.getNetworkConnectionIndex() == vcloudVm.getNetworkConnectionSection().getPrimaryNetworkConnectionIndex() ) {
-                providerNetworkId = provider.getNetworkServices().getVlanSupport().getVlanByName(c.getNetwork()).getProviderVlanId();
+                if( network != null ) {
+                    providerNetworkId = network.getProviderVlanId();
+                }
 
-                if( c.getExternalIpAddress() != null ) {
-                    externalIp = c.getExternalIpAddress();
+                if( c.externalIpAddress != null ) {
+                    externalIp = c.externalIpAddress;
                 }
-                if( c.getIpAddress() != null ) {
-                    String addr = c.getIpAddress();
+                if( c.ipAddress != null ) {
+                    String addr = c.ipAddress;
 
                     if( isPublicIp(addr) ) {
                         publicIpAddresses.add(addr);
@@ -724,36 +974,24 @@ public class VcloudVMSupport implements VirtualMachineSupport {
             vm.setPublicIpAddresses(publicIpAddresses.toArray(new String[0]));
         }
         vm.setProviderVlanId(providerNetworkId);
-        vm.setRootPassword(vcloudVm.getGuestCustomizationSection().getAdminPassword());
+        vm.setRootPassword(vcloudVm.adminPassword);
         vm.setRootUser(vm.getPlatform().isWindows() ? "administrator" : "root");
         vm.setTags(new HashMap<String,String>());
-        switch( vcloudVm.getStatus() ) {
-            case ON:
-                vm.setCurrentState(VmState.RUNNING);
-                break;
-            case OFF: case SUSPENDED:
-                vm.setCurrentState(VmState.PAUSED);
-                break;
-            case ERROR:
-                vm.setCurrentState(VmState.TERMINATED);
-                break;
-            default:
-                logger.warn("Unknown VM status: " + vm.getProviderVirtualMachineId());
-                vm.setCurrentState(VmState.PENDING);
-                break;
+        VmState state = toState(vcloudVm.status);
+
+        if( state == null ) {
+            logger.warn("Unknown VM status: " + vm.getProviderVirtualMachineId());
+            state = VmState.PENDING;
         }
+        vm.setCurrentState(state);
         long created = System.currentTimeMillis();
         long deployed = -1L, paused = -1L;
 
-        for( Task task : vcloudVm.getTasks() ) {
-            if( task == null ) {
-                continue;
-            }
-            Date d = task.getStartTime();
+        for( VAppSummary.TaskSummary task : vcloudVm.tasks ) {
+            long when = task.startTime;
 
-            if( d != null ) {
-                String txt = (task.getName() + " " + task.getType()).toLowerCase();
-                long when = d.getTime();
+            if( when >= 0L ) {
+                String txt = task.text.toLowerCase();
 
                 if( txt.contains("deploy") ) {
                     if( when > deployed ) {
@@ -766,7 +1004,7 @@ public class VcloudVMSupport implements VirtualMachineSupport {
                     }
                 }
                 if( when < created ) {
-                    created = d.getTime();
+                    created = when;
                 }
             }
         }
@@ -777,6 +1015,18 @@ public class VcloudVMSupport implements VirtualMachineSupport {
         return vm;
     }
 
+    private @Nullable VmState toState(@Nullable Status status) {
+        if( status == null ) {
+            return null;
+        }
+        switch( status ) {
+            case ON: return VmState.RUNNING;
+            case OFF: case SUSPENDED: return VmState.PAUSED;
+            case ERROR: return VmState.TERMINATED;
+            default: return null;
+        }
+    }
+
     public static class AllocationMode {
         private final String allocateMode;
         private final String ipAddress;
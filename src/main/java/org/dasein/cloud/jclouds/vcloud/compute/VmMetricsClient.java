@@ -0,0 +1,419 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.compute;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.compute.VmStatistics;
+import org.dasein.cloud.jclouds.vcloud.VcloudDirector;
+import org.dasein.cloud.jclouds.vcloud.client.DirectorHttp;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Reads VM performance data from the <code>/metrics/current</code> and <code>/metrics/historic</code>
+ * endpoints introduced in vCloud Director 5.6 and maps it onto Dasein {@link VmStatistics}. CPU utilization
+ * is reported as a percentage, disk and network rates in bytes per second. Dasein statistics have no memory
+ * fields, so memory samples are read but not mapped.
+ * <p>
+ * Parsed responses are cached for <code>vcloud.metrics.ttl</code> milliseconds (default 20000) so that
+ * dashboards polling the same VMs do not hit the Director on every refresh. The cache is kept per endpoint,
+ * user and organization, so a response is only ever reused for the credentials that fetched it.
+ * </p>
+ */
+class VmMetricsClient {
+    static private final Logger logger = Logger.getLogger(VmMetricsClient.class);
+
+    static private final String ACCEPT        = "application/*+xml;version=5.6";
+    static private final int    CACHE_LIMIT   = 10000;
+    static private final long   RECENT_MILLIS = 5L * 60L * 1000L;
+
+    static public final String CPU        = "cpu.usage.average";
+    static public final String CPU_MAX    = "cpu.usage.maximum";
+    static public final String DISK_READ  = "disk.read.average";
+    static public final String DISK_WRITE = "disk.write.average";
+    static public final String MEMORY     = "mem.usage.average";
+    static public final String NET_IN     = "net.received.average";
+    static public final String NET_OUT    = "net.transmitted.average";
+
+    /**
+     * Samples of one metric in time order.
+     */
+    static public class Series {
+        public final String name;
+        public final String unit;
+        public long[]       timestamps = new long[16];
+        public double[]     values     = new double[16];
+        public int          size       = 0;
+
+        public Series(@Nonnull String name, @Nullable String unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+
+        public void add(long timestamp, double value) {
+            if( size == timestamps.length ) {
+                long[] t = new long[size * 2];
+                double[] v = new double[size * 2];
+
+                System.arraycopy(timestamps, 0, t, 0, size);
+                System.arraycopy(values, 0, v, 0, size);
+                timestamps = t;
+                values = v;
+            }
+            timestamps[size] = timestamp;
+            values[size] = value;
+            size++;
+        }
+
+        /**
+         * @return the factor converting this series to the units used by {@link VmStatistics}
+         */
+        public double getScale() {
+            if( unit != null && unit.toUpperCase().startsWith("KILOBYTE") ) {
+                return 1024.0;
+            }
+            return 1.0;
+        }
+    }
+
+    static private class Usage {
+        public final long               fetchedAt;
+        public final Map<String,Series> series;
+
+        public Usage(long fetchedAt, @Nonnull Map<String,Series> series) {
+            this.fetchedAt = fetchedAt;
+            this.series = series;
+        }
+    }
+
+    static private final Map<String,Usage> cache = Collections.synchronizedMap(new LinkedHashMap<String,Usage>(256, 0.75f, true) {
+        private static final long serialVersionUID = 4702946305219011288L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Usage> eldest) {
+            return size() > CACHE_LIMIT;
+        }
+    });
+
+    static private @Nonnull String normalize(@Nonnull String name) {
+        String n = name.toLowerCase();
+
+        if( n.startsWith("net.") ) {
+            if( n.contains("rx") || n.contains("received") ) {
+                return NET_IN;
+            }
+            if( n.contains("tx") || n.contains("transmitted") ) {
+                return NET_OUT;
+            }
+        }
+        return n;
+    }
+
+    private final VcloudDirector provider;
+    private final long           ttl;
+
+    VmMetricsClient(@Nonnull VcloudDirector provider) {
+        this.provider = provider;
+        this.ttl = provider.getCustomProperty("vcloud.metrics.ttl", 20000L);
+    }
+
+    private void apply(@Nonnull VmStatistics stats, @Nonnull Map<String,Series> usage, long from, long to) {
+        double[] cpu = aggregate(usage.get(CPU), from, to);
+        double[] cpuMax = aggregate(usage.get(CPU_MAX), from, to);
+        double[] read = aggregate(usage.get(DISK_READ), from, to);
+        double[] write = aggregate(usage.get(DISK_WRITE), from, to);
+        double[] in = aggregate(usage.get(NET_IN), from, to);
+        double[] out = aggregate(usage.get(NET_OUT), from, to);
+        int samples = 0;
+
+        if( cpu != null ) {
+            stats.setAverageCpuUtilization(cpu[0]);
+            stats.setMinimumCpuUtilization(cpu[1]);
+            stats.setMaximumCpuUtilization(cpuMax == null ? cpu[2] : Math.max(cpu[2], cpuMax[2]));
+            samples = Math.max(samples, (int)cpu[3]);
+        }
+        if( read != null ) {
+            stats.setAverageDiskReadBytes(read[0]);
+            stats.setMinimumDiskReadBytes(read[1]);
+            stats.setMaximumDiskReadBytes(read[2]);
+            samples = Math.max(samples, (int)read[3]);
+        }
+        if( write != null ) {
+            stats.setAverageDiskWriteBytes(write[0]);
+            stats.setMinimumDiskWriteBytes(write[1]);
+            stats.setMaximumDiskWriteBytes(write[2]);
+            samples = Math.max(samples, (int)write[3]);
+        }
+        if( in != null ) {
+            stats.setAverageNetworkIn(in[0]);
+            stats.setMinimumNetworkIn(in[1]);
+            stats.setMaximumNetworkIn(in[2]);
+            samples = Math.max(samples, (int)in[3]);
+        }
+        if( out != null ) {
+            stats.setAverageNetworkOut(out[0]);
+            stats.setMinimumNetworkOut(out[1]);
+            stats.setMaximumNetworkOut(out[2]);
+            samples = Math.max(samples, (int)out[3]);
+        }
+        stats.setSamples(samples);
+        stats.setStartTimestamp(from);
+        stats.setEndTimestamp(to);
+    }
+
+    /**
+     * Computes the average, minimum, maximum and number of samples of a series within a window.
+     * @return the four values in that order, or <code>null</code> if there are no samples in the window
+     */
+    private @Nullable double[] aggregate(@Nullable Series series, long from, long to) {
+        if( series == null ) {
+            return null;
+        }
+        double scale = series.getScale();
+        double sum = 0.0, min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        int count = 0;
+
+        for( int i=0; i<series.size; i++ ) {
+            long t = series.timestamps[i];
+
+            if( t >= from && t <= to ) {
+                double v = series.values[i] * scale;
+
+                sum += v;
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+                count++;
+            }
+        }
+        if( count == 0 ) {
+            return null;
+        }
+        return new double[] { sum/count, min, max, count };
+    }
+
+    private @Nonnull Usage fetch(@Nonnull String vmId, boolean historic) throws CloudException {
+        DirectorHttp http = provider.getDirectorHttp();
+        String key = http.getEndpoint() + "|" + http.getUser() + "|" + vmId + (historic ? "|historic" : "|current");
+        Usage usage = cache.get(key);
+        long now = System.currentTimeMillis();
+
+        if( usage != null && (now - usage.fetchedAt) < ttl ) {
+            provider.getMetrics().increment("vmMetrics.cacheHits", 1L);
+            return usage;
+        }
+        URI uri = URI.create(http.getEndpoint() + vmId + "/metrics/" + (historic ? "historic" : "current"));
+        Document doc = DirectorHttp.parse(getStream(http, uri));
+        Map<String,Series> series = new HashMap<String,Series>();
+
+        if( historic ) {
+            for( Element s : DirectorHttp.elements(doc, "MetricSeries") ) {
+                Series data = new Series(normalize(s.getAttribute("name")), s.getAttribute("unit"));
+
+                for( Element sample : DirectorHttp.elements(s, "Sample") ) {
+                    try {
+                        data.add(DatatypeConverter.parseDateTime(sample.getAttribute("timestamp")).getTimeInMillis(), Double.parseDouble(sample.getAttribute("value")));
+                    }
+                    catch( IllegalArgumentException e ) {
+                        logger.debug("Ignoring malformed sample for " + data.name + " of " + vmId);
+                    }
+                }
+                series.put(data.name, data);
+            }
+        }
+        else {
+            for( Element m : DirectorHttp.elements(doc, "Metric") ) {
+                Series data = new Series(normalize(m.getAttribute("name")), m.getAttribute("unit"));
+
+                try {
+                    data.add(now, Double.parseDouble(m.getAttribute("value")));
+                    series.put(data.name, data);
+                }
+                catch( NumberFormatException e ) {
+                    logger.debug("Ignoring malformed metric " + data.name + " of " + vmId);
+                }
+            }
+        }
+        usage = new Usage(now, series);
+        cache.put(key, usage);
+        return usage;
+    }
+
+    private @Nonnull InputStream getStream(@Nonnull DirectorHttp http, @Nonnull URI uri) throws CloudException {
+        try {
+            return http.openBody(http.execute("GET", uri, http.negotiate(Collections.singletonMap("Accept", ACCEPT)), null));
+        }
+        catch( IOException e ) {
+            throw new CloudException(e);
+        }
+    }
+
+    /**
+     * Provides the current usage of a VM as single-sample series time stamped when they were fetched.
+     * @param vmId the VM
+     * @return the series keyed by normalized metric name
+     * @throws CloudException the Director does not provide metrics or the call failed
+     */
+    @Nonnull Map<String,Series> getCurrent(@Nonnull String vmId) throws CloudException {
+        return fetch(vmId, false).series;
+    }
+
+    /**
+     * Provides the raw historic samples of a VM, normally covering the last 24 hours.
+     * @param vmId the VM
+     * @return the series keyed by normalized metric name
+     * @throws CloudException the Director does not provide metrics or the call failed
+     */
+    @Nonnull Map<String,Series> getHistory(@Nonnull String vmId) throws CloudException {
+        return fetch(vmId, true).series;
+    }
+
+    /**
+     * Summarizes the performance of a VM over a window. Windows that end within the last few minutes and are
+     * no more than a few minutes long are answered from the current usage; others from the historic samples.
+     */
+    @Nonnull VmStatistics getStatistics(@Nonnull String vmId, long from, long to) throws CloudException {
+        long now = System.currentTimeMillis();
+        VmStatistics stats = new VmStatistics();
+
+        if( to >= now - RECENT_MILLIS && (to - from) <= RECENT_MILLIS ) {
+            Usage current = fetch(vmId, false);
+
+            apply(stats, current.series, Long.MIN_VALUE, Long.MAX_VALUE);
+            stats.setStartTimestamp(from);
+            stats.setEndTimestamp(to);
+        }
+        else {
+            apply(stats, fetch(vmId, true).series, from, to);
+        }
+        return stats;
+    }
+
+    /**
+     * Summarizes many VMs at once, fetching their data in parallel on up to
+     * <code>vcloud.metrics.parallelism</code> threads (default 8).
+     * @return the statistics of each VM for which data could be fetched, keyed by VM ID
+     */
+    @Nonnull Map<String,VmStatistics> getStatistics(@Nonnull Collection<String> vmIds, final long from, final long to) throws CloudException, InternalException {
+        LinkedHashMap<String,VmStatistics> results = new LinkedHashMap<String,VmStatistics>();
+
+        if( vmIds.isEmpty() ) {
+            return results;
+        }
+        int threads = (int)Math.max(1L, Math.min(vmIds.size(), provider.getCustomProperty("vcloud.metrics.parallelism", 8L)));
+        ExecutorService pool = provider.newExecutor("VM metrics", threads);
+        TreeMap<Integer,Future<VmStatistics>> futures = new TreeMap<Integer,Future<VmStatistics>>();
+        ArrayList<String> ids = new ArrayList<String>(vmIds);
+
+        try {
+            for( int i=0; i<ids.size(); i++ ) {
+                final String vmId = ids.get(i);
+
+                futures.put(i, pool.submit(new Callable<VmStatistics>() {
+                    public VmStatistics call() throws CloudException {
+                        return getStatistics(vmId, from, to);
+                    }
+                }));
+            }
+            for( Map.Entry<Integer,Future<VmStatistics>> entry : futures.entrySet() ) {
+                String vmId = ids.get(entry.getKey());
+
+                try {
+                    results.put(vmId, entry.getValue().get());
+                }
+                catch( ExecutionException e ) {
+                    logger.warn("Unable to read metrics for " + vmId + ": " + e.getCause().getMessage());
+                }
+            }
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while reading VM metrics");
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * Breaks the historic samples of a VM within a window into one {@link VmStatistics} per sample time.
+     */
+    @Nonnull List<VmStatistics> getStatisticsForPeriod(@Nonnull String vmId, long from, long to) throws CloudException {
+        return toPeriod(fetch(vmId, true).series, from, to);
+    }
+
+    /**
+     * Converts series into one {@link VmStatistics} per distinct sample time within a window, in time order.
+     */
+    @Nonnull List<VmStatistics> toPeriod(@Nonnull Map<String,Series> usage, long from, long to) {
+        TreeMap<Long,Map<String,Series>> byTime = new TreeMap<Long,Map<String,Series>>();
+
+        for( Series s : usage.values() ) {
+            for( int i=0; i<s.size; i++ ) {
+                long t = s.timestamps[i];
+
+                if( t < from || t > to ) {
+                    continue;
+                }
+                Map<String,Series> point = byTime.get(t);
+
+                if( point == null ) {
+                    point = new HashMap<String,Series>();
+                    byTime.put(t, point);
+                }
+                Series single = new Series(s.name, s.unit);
+
+                single.add(t, s.values[i]);
+                point.put(s.name, single);
+            }
+        }
+        ArrayList<VmStatistics> list = new ArrayList<VmStatistics>();
+
+        for( Map.Entry<Long,Map<String,Series>> entry : byTime.entrySet() ) {
+            VmStatistics stats = new VmStatistics();
+
+            apply(stats, entry.getValue(), entry.getKey(), entry.getKey());
+            list.add(stats);
+        }
+        return list;
+    }
+}
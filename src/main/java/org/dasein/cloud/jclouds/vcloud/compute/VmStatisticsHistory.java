@@ -0,0 +1,304 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.compute;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.compute.VmStatistics;
+import org.dasein.cloud.jclouds.vcloud.VcloudDirector;
+import org.dasein.cloud.jclouds.vcloud.client.RequestGovernor;
+
+/**
+ * In-memory statistics history for the VMs whose statistics have been asked for. Once a VM is tracked, a
+ * background sampler appends its current usage to a {@link StatisticsRing} every
+ * <code>vcloud.metrics.history.interval</code> milliseconds (default 60000), so that sliding-window queries
+ * are answered from memory and only the part of a window older than the ring is fetched from the API.
+ * <p>
+ * Memory is bounded by <code>vcloud.metrics.history.retention</code> (default six hours of samples per VM)
+ * and <code>vcloud.metrics.history.vms</code> (default 500 VMs, least recently queried evicted first; 0
+ * disables the history). VMs not queried for longer than the retention stop being sampled, and the sampler
+ * thread stops once no VM is left. Providers with different settings get separate histories.
+ * </p>
+ * <p>
+ * A VM is tracked per endpoint, account and VM ID. The VMs of one org are sampled through a single provider
+ * connected to the context of the request that first tracked one of them, never through a provider that has
+ * since been connected elsewhere, so each org holds at most one Director session for sampling. That session
+ * is ended once the org's last VM is evicted.
+ * </p>
+ */
+class VmStatisticsHistory {
+    static private final Logger logger = Logger.getLogger(VmStatisticsHistory.class);
+
+    static private final String[] COLUMNS = {
+        VmMetricsClient.CPU, VmMetricsClient.CPU_MAX, VmMetricsClient.DISK_READ, VmMetricsClient.DISK_WRITE,
+        VmMetricsClient.NET_IN, VmMetricsClient.NET_OUT
+    };
+
+    static private final HashMap<String,VmStatisticsHistory> instances = new HashMap<String,VmStatisticsHistory>();
+
+    static @Nonnull VmStatisticsHistory getInstance(@Nonnull VcloudDirector provider) {
+        long interval = provider.getCustomProperty("vcloud.metrics.history.interval", 60000L);
+        long retention = provider.getCustomProperty("vcloud.metrics.history.retention", 6L * 60L * 60000L);
+        int maxVms = (int)provider.getCustomProperty("vcloud.metrics.history.vms", 500L);
+        String key = interval + "/" + retention + "/" + maxVms;
+
+        synchronized( instances ) {
+            VmStatisticsHistory history = instances.get(key);
+
+            if( history == null ) {
+                history = new VmStatisticsHistory(interval, retention, maxVms);
+                instances.put(key, history);
+            }
+            return history;
+        }
+    }
+
+    static private class Tracked {
+        public final ProviderContext context;
+        public final String          orgKey;
+        public final String          vmId;
+        public final StatisticsRing  ring;
+        public volatile long         lastQueried;
+
+        public Tracked(@Nonnull ProviderContext context, @Nonnull String orgKey, @Nonnull String vmId, @Nonnull StatisticsRing ring) {
+            this.context = context;
+            this.orgKey = orgKey;
+            this.vmId = vmId;
+            this.ring = ring;
+        }
+    }
+
+    private final long                           interval;
+    private final long                           retention;
+    private final int                            maxVms;
+    private final HashMap<String,VcloudDirector> samplingProviders = new HashMap<String,VcloudDirector>();
+    private final LinkedHashMap<String,Tracked>  tracked;
+    private ScheduledExecutorService             sampler;
+
+    private VmStatisticsHistory(long interval, long retention, final int maxVms) {
+        this.interval = Math.max(1000L, interval);
+        this.retention = Math.max(this.interval, retention);
+        this.maxVms = Math.max(0, maxVms);
+        this.tracked = new LinkedHashMap<String,Tracked>(64, 0.75f, true) {
+            private static final long serialVersionUID = -3380469105371942917L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Tracked> eldest) {
+                return size() > maxVms;
+            }
+        };
+    }
+
+    /**
+     * Provides per-sample statistics for a window, from memory where the ring covers it.
+     * @param provider the provider making the request
+     * @param vmId the VM
+     * @param from the start of the window
+     * @param to the end of the window
+     * @return one statistics object per sample time, in time order
+     * @throws CloudException the part of the window outside the ring could not be fetched
+     */
+    @Nonnull List<VmStatistics> getStatisticsForPeriod(@Nonnull VcloudDirector provider, @Nonnull String vmId, long from, long to) throws CloudException {
+        VmMetricsClient client = new VmMetricsClient(provider);
+
+        if( maxVms < 1 ) {
+            return client.getStatisticsForPeriod(vmId, from, to);
+        }
+        Tracked vm = track(provider, vmId);
+        long oldest = vm.ring.getOldest();
+        Map<String,VmMetricsClient.Series> series;
+
+        if( from >= oldest ) {
+            provider.getMetrics().increment("vmHistory.hits", 1L);
+            series = vm.ring.slice(from, to, null);
+        }
+        else {
+            provider.getMetrics().increment("vmHistory.misses", 1L);
+            series = new HashMap<String,VmMetricsClient.Series>();
+            for( VmMetricsClient.Series s : client.getHistory(vmId).values() ) {
+                VmMetricsClient.Series older = new VmMetricsClient.Series(s.name, s.unit);
+
+                for( int i=0; i<s.size; i++ ) {
+                    long t = s.timestamps[i];
+
+                    if( t >= from && t <= to && t < oldest ) {
+                        older.add(t, s.values[i]);
+                    }
+                }
+                series.put(s.name, older);
+            }
+            if( oldest <= to ) {
+                vm.ring.slice(oldest, to, series);
+            }
+        }
+        return client.toPeriod(series, from, to);
+    }
+
+    private @Nonnull Tracked track(@Nonnull VcloudDirector provider, @Nonnull String vmId) throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was established for this request");
+        }
+        String orgKey = provider.getDirectorHttp().getEndpoint() + "|" + ctx.getAccountNumber();
+        String key = orgKey + "|" + vmId;
+        Tracked vm;
+
+        synchronized( tracked ) {
+            vm = tracked.get(key);
+            if( vm == null ) {
+                vm = new Tracked(ctx, orgKey, vmId, new StatisticsRing(COLUMNS, (int)Math.min(Integer.MAX_VALUE, retention/interval + 1)));
+                tracked.put(key, vm);
+            }
+            if( sampler == null ) {
+                sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@Nonnull Runnable r) {
+                        Thread t = new Thread(r);
+
+                        t.setName("VM statistics sampler");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+                sampler.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        RequestGovernor.setBackgroundThread(true);
+                        sample();
+                    }
+                }, 0L, interval, TimeUnit.MILLISECONDS);
+            }
+        }
+        vm.lastQueried = System.currentTimeMillis();
+        return vm;
+    }
+
+    /**
+     * Provides the provider through which the VMs of the given VM's org are sampled. Only called from the sampler.
+     * @param vm a tracked VM
+     * @return the org's sampling provider
+     */
+    private @Nonnull VcloudDirector getSamplingProvider(@Nonnull Tracked vm) {
+        synchronized( tracked ) {
+            VcloudDirector provider = samplingProviders.get(vm.orgKey);
+
+            if( provider == null ) {
+                provider = new VcloudDirector();
+                provider.connect(vm.context);
+                samplingProviders.put(vm.orgKey, provider);
+            }
+            return provider;
+        }
+    }
+
+    /**
+     * Removes the sampling providers of orgs that no longer have a tracked VM. Must hold the lock on
+     * <code>tracked</code>; the caller ends the returned providers' sessions outside of it.
+     * @return the providers removed
+     */
+    private @Nonnull List<VcloudDirector> removeIdleSamplingProviders() {
+        HashSet<String> orgs = new HashSet<String>();
+        ArrayList<VcloudDirector> idle = new ArrayList<VcloudDirector>();
+
+        for( Tracked vm : tracked.values() ) {
+            orgs.add(vm.orgKey);
+        }
+        Iterator<Map.Entry<String,VcloudDirector>> it = samplingProviders.entrySet().iterator();
+
+        while( it.hasNext() ) {
+            Map.Entry<String,VcloudDirector> entry = it.next();
+
+            if( !orgs.contains(entry.getKey()) ) {
+                idle.add(entry.getValue());
+                it.remove();
+            }
+        }
+        return idle;
+    }
+
+    private void release(@Nonnull VcloudDirector provider) {
+        try {
+            provider.getDirectorHttp().logout();
+        }
+        catch( CloudException e ) {
+            logger.debug("Unable to release sampling provider: " + e.getMessage());
+        }
+        catch( RuntimeException e ) {
+            logger.warn("Error releasing sampling provider: " + e.getMessage());
+        }
+    }
+
+    private void sample() {
+        ArrayList<Tracked> list;
+        List<VcloudDirector> idle;
+        long now = System.currentTimeMillis();
+
+        synchronized( tracked ) {
+            Iterator<Tracked> it = tracked.values().iterator();
+
+            while( it.hasNext() ) {
+                if( now - it.next().lastQueried > retention ) {
+                    it.remove();
+                }
+            }
+            if( tracked.isEmpty() && sampler != null ) {
+                // nothing left to sample; the next query starts a new sampler
+                sampler.shutdown();
+                sampler = null;
+            }
+            // also catches orgs whose VMs were evicted by the size limit since the last run
+            idle = removeIdleSamplingProviders();
+            list = new ArrayList<Tracked>(tracked.values());
+        }
+        for( VcloudDirector provider : idle ) {
+            release(provider);
+        }
+        for( Tracked vm : list ) {
+            try {
+                vm.ring.add(System.currentTimeMillis(), new VmMetricsClient(getSamplingProvider(vm)).getCurrent(vm.vmId));
+            }
+            catch( CloudException e ) {
+                logger.debug("Unable to sample " + vm.vmId + ": " + e.getMessage());
+            }
+            catch( RuntimeException e ) {
+                logger.warn("Error sampling " + vm.vmId + ": " + e.getMessage());
+            }
+        }
+        if( logger.isDebugEnabled() ) {
+            logger.debug("Sampled " + list.size() + " VMs in " + (System.currentTimeMillis() - now) + "ms");
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.metrics;
+
+import javax.annotation.Nonnull;
+
+import org.dasein.cloud.jclouds.vcloud.client.ApiCall;
+import org.dasein.cloud.jclouds.vcloud.client.ApiInterceptor;
+
+/**
+ * Records the number of calls, the number of failed calls and a latency histogram for every Director API
+ * method, named after the endpoint, the feature API and the method (for example
+ * <code>api[https://vcd.example.com/api].VAppApi.getVApp.calls</code>, <code>.errors</code> and
+ * <code>.millis</code>). A call counts as an error when jclouds throws.
+ */
+public class ApiMetricsInterceptor implements ApiInterceptor {
+    static public final String GROUP  = "api";
+    static public final String PREFIX = GROUP + "[";
+
+    private final String      prefix;
+    private final MetricsSink sink;
+
+    /**
+     * @param sink the sink receiving the metrics
+     * @param endpoint the endpoint whose calls are measured
+     */
+    public ApiMetricsInterceptor(@Nonnull MetricsSink sink, @Nonnull String endpoint) {
+        this.sink = sink;
+        this.prefix = MetricScope.prefix(GROUP, endpoint) + ".";
+        ApiTraffic.register();
+    }
+
+    @Override
+    public Object intercept(@Nonnull ApiCall call) throws Throwable {
+        String name = prefix + call.toString();
+        long start = System.nanoTime();
+        boolean failed = true;
+
+        try {
+            Object result = call.proceed();
+
+            failed = false;
+            return result;
+        }
+        finally {
+            sink.increment(name + ".calls", 1L);
+            if( failed ) {
+                sink.increment(name + ".errors", 1L);
+            }
+            sink.record(name + ".millis", (System.nanoTime() - start) / 1000000L);
+        }
+    }
+}
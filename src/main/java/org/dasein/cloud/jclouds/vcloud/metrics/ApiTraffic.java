@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Ranks the per-method, per-endpoint API metrics kept by {@link JmxMetricsSink} so that the calls dominating
+ * traffic can be seen at a glance under <code>org.dasein.cloud.jclouds.vcloud:type=ApiTraffic</code>. When
+ * another sink is configured the individual metrics go there instead and this view stays empty.
+ */
+public class ApiTraffic implements ApiTrafficMBean {
+    static private final Logger logger = Logger.getLogger(ApiTraffic.class);
+
+    static private boolean registered = false;
+
+    static synchronized void register() {
+        if( !registered ) {
+            registered = true;
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new ApiTraffic(), new ObjectName(JmxMetricsSink.DOMAIN + ":type=ApiTraffic"));
+            }
+            catch( Throwable t ) {
+                logger.warn("Unable to register API traffic view with JMX: " + t.getMessage());
+            }
+        }
+    }
+
+    private ApiTraffic() { }
+
+    @Override
+    public String[] getCalls() {
+        JmxMetricsSink sink = JmxMetricsSink.getInstance();
+        ArrayList<Map.Entry<String,Histogram>> calls = new ArrayList<Map.Entry<String,Histogram>>();
+
+        for( Map.Entry<String,Histogram> entry : sink.getHistograms().entrySet() ) {
+            if( entry.getKey().startsWith(ApiMetricsInterceptor.PREFIX) && entry.getKey().endsWith(".millis") ) {
+                calls.add(entry);
+            }
+        }
+        Collections.sort(calls, new Comparator<Map.Entry<String,Histogram>>() {
+            @Override
+            public int compare(Map.Entry<String,Histogram> a, Map.Entry<String,Histogram> b) {
+                long ca = a.getValue().getCount(), cb = b.getValue().getCount();
+
+                return (ca == cb ? a.getKey().compareTo(b.getKey()) : (ca > cb ? -1 : 1));
+            }
+        });
+        String[] lines = new String[calls.size()];
+        int i = 0;
+
+        for( Map.Entry<String,Histogram> entry : calls ) {
+            String name = entry.getKey().substring(0, entry.getKey().length() - ".millis".length());
+            Counter errors = sink.getCounter(name + ".errors");
+            Histogram h = entry.getValue();
+
+            lines[i++] = MetricScope.unscoped(name).substring(ApiMetricsInterceptor.GROUP.length() + 1) + " (" + MetricScope.scopeOf(name) + ") calls=" + h.getCount() + " errors=" + (errors == null ? 0L : errors.getValue()) + " p50=" + h.getP50() + "ms p99=" + h.getP99() + "ms max=" + h.getMax() + "ms";
+        }
+        return lines;
+    }
+
+    @Override
+    public long getTotalCalls() {
+        long total = 0L;
+
+        for( Map.Entry<String,Counter> entry : JmxMetricsSink.getInstance().getCounters().entrySet() ) {
+            if( entry.getKey().startsWith(ApiMetricsInterceptor.PREFIX) && entry.getKey().endsWith(".calls") ) {
+                total += entry.getValue().getValue();
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public long getTotalErrors() {
+        long total = 0L;
+
+        for( Map.Entry<String,Counter> entry : JmxMetricsSink.getInstance().getCounters().entrySet() ) {
+            if( entry.getKey().startsWith(ApiMetricsInterceptor.PREFIX) && entry.getKey().endsWith(".errors") ) {
+                total += entry.getValue().getValue();
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public void reset() {
+        JmxMetricsSink sink = JmxMetricsSink.getInstance();
+
+        for( Map.Entry<String,Histogram> entry : sink.getHistograms().entrySet() ) {
+            if( entry.getKey().startsWith(ApiMetricsInterceptor.PREFIX) ) {
+                entry.getValue().reset();
+            }
+        }
+        for( Map.Entry<String,Counter> entry : sink.getCounters().entrySet() ) {
+            if( entry.getKey().startsWith(ApiMetricsInterceptor.PREFIX) ) {
+                entry.getValue().set(0L);
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.metrics;
+
+/**
+ * JMX overview of Director API traffic across all API methods.
+ */
+public interface ApiTrafficMBean {
+    /**
+     * @return one line per API method and endpoint, busiest first, with its call count, error count and latency
+     * percentiles
+     */
+    public String[] getCalls();
+
+    public long getTotalCalls();
+
+    public long getTotalErrors();
+
+    public void reset();
+}
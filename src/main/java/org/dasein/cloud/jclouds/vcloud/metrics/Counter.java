@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single long value used both for monotonic counters and for gauges.
+ */
+public class Counter implements CounterMBean {
+    private final AtomicLong value = new AtomicLong(0L);
+
+    public Counter() { }
+
+    public long add(long delta) {
+        return value.addAndGet(delta);
+    }
+
+    public void set(long v) {
+        value.set(v);
+    }
+
+    @Override
+    public long getValue() {
+        return value.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(value.get());
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram over fixed 1-2-5 buckets from 1 to 5x10^8 plus an overflow bucket. Percentiles are reported as the upper
+ * bound of the bucket holding the requested rank, which is precise enough to spot regressions in timings
+ * that range from milliseconds to hours.
+ */
+public class Histogram implements HistogramMBean {
+    static private final long[] bounds;
+
+    static {
+        bounds = new long[28];
+        long decade = 1L;
+        int i = 0;
+
+        while( i < bounds.length - 1 ) {
+            bounds[i++] = decade;
+            bounds[i++] = decade * 2;
+            bounds[i++] = decade * 5;
+            decade *= 10;
+        }
+        bounds[bounds.length - 1] = Long.MAX_VALUE;
+    }
+
+    static private int bucketFor(long value) {
+        for( int i=0; i<bounds.length; i++ ) {
+            if( value <= bounds[i] ) {
+                return i;
+            }
+        }
+        return bounds.length - 1;
+    }
+
+    private final AtomicLongArray buckets = new AtomicLongArray(bounds.length);
+    private final AtomicLong      count   = new AtomicLong(0L);
+    private final AtomicLong      max     = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong      min     = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong      sum     = new AtomicLong(0L);
+
+    public Histogram() { }
+
+    public void update(long value) {
+        buckets.incrementAndGet(bucketFor(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current = max.get();
+
+        while( value > current && !max.compareAndSet(current, value) ) {
+            current = max.get();
+        }
+        current = min.get();
+        while( value < current && !min.compareAndSet(current, value) ) {
+            current = min.get();
+        }
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public long getMax() {
+        return (count.get() == 0L ? 0L : max.get());
+    }
+
+    @Override
+    public double getMean() {
+        long c = count.get();
+
+        return (c == 0L ? 0.0 : ((double)sum.get())/c);
+    }
+
+    @Override
+    public long getMin() {
+        return (count.get() == 0L ? 0L : min.get());
+    }
+
+    @Override
+    public long getP50() {
+        return getPercentile(0.50);
+    }
+
+    @Override
+    public long getP95() {
+        return getPercentile(0.95);
+    }
+
+    @Override
+    public long getP99() {
+        return getPercentile(0.99);
+    }
+
+    public long getPercentile(double p) {
+        long c = count.get();
+
+        if( c == 0L ) {
+            return 0L;
+        }
+        long rank = (long)Math.ceil(p * c);
+        long seen = 0L;
+
+        for( int i=0; i<bounds.length; i++ ) {
+            seen += buckets.get(i);
+            if( seen >= rank ) {
+                return Math.min(bounds[i], getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    @Override
+    public void reset() {
+        for( int i=0; i<bounds.length; i++ ) {
+            buckets.set(i, 0L);
+        }
+        count.set(0L);
+        sum.set(0L);
+        max.set(Long.MIN_VALUE);
+        min.set(Long.MAX_VALUE);
+    }
+
+    @Override
+    public String toString() {
+        return "[count=" + getCount() + ",mean=" + getMean() + ",p50=" + getP50() + ",p95=" + getP95() + ",max=" + getMax() + "]";
+    }
+}
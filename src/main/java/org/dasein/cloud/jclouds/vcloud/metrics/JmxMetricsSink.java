@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Default {@link MetricsSink} that keeps every histogram, counter and gauge in memory and registers each
+ * one with the platform MBean server under the <code>org.dasein.cloud.jclouds.vcloud</code> domain. A
+ * single JVM-wide instance is shared by all providers so that metric names never collide in JMX. The scope
+ * of a {@link MetricScope scoped} metric becomes the <code>scope</code> key property of its MBean name.
+ */
+public class JmxMetricsSink implements MetricsSink {
+    static private final Logger logger = Logger.getLogger(JmxMetricsSink.class);
+
+    static public final String DOMAIN = "org.dasein.cloud.jclouds.vcloud";
+
+    static private final JmxMetricsSink instance = new JmxMetricsSink();
+
+    static public @Nonnull JmxMetricsSink getInstance() {
+        return instance;
+    }
+
+    private final ConcurrentHashMap<String,Counter>   counters   = new ConcurrentHashMap<String,Counter>();
+    private final ConcurrentHashMap<String,Counter>   gauges     = new ConcurrentHashMap<String,Counter>();
+    private final ConcurrentHashMap<String,Histogram> histograms = new ConcurrentHashMap<String,Histogram>();
+
+    private JmxMetricsSink() { }
+
+    public @Nullable Counter getCounter(@Nonnull String name) {
+        return counters.get(name);
+    }
+
+    public @Nonnull Map<String,Counter> getCounters() {
+        return Collections.unmodifiableMap(new TreeMap<String,Counter>(counters));
+    }
+
+    public @Nullable Counter getGauge(@Nonnull String name) {
+        return gauges.get(name);
+    }
+
+    public @Nullable Histogram getHistogram(@Nonnull String name) {
+        return histograms.get(name);
+    }
+
+    public @Nonnull Map<String,Histogram> getHistograms() {
+        return Collections.unmodifiableMap(new TreeMap<String,Histogram>(histograms));
+    }
+
+    @Override
+    public void gauge(@Nonnull String gauge, long value) {
+        Counter c = gauges.get(gauge);
+
+        if( c == null ) {
+            c = register(gauges, "Gauge", gauge, new Counter());
+        }
+        c.set(value);
+    }
+
+    @Override
+    public void increment(@Nonnull String counter, long delta) {
+        Counter c = counters.get(counter);
+
+        if( c == null ) {
+            c = register(counters, "Counter", counter, new Counter());
+        }
+        c.add(delta);
+    }
+
+    @Override
+    public void record(@Nonnull String metric, long value) {
+        Histogram h = histograms.get(metric);
+
+        if( h == null ) {
+            h = register(histograms, "Histogram", metric, new Histogram());
+        }
+        h.update(value);
+    }
+
+    private @Nonnull <T> T register(@Nonnull ConcurrentHashMap<String,T> map, @Nonnull String type, @Nonnull String name, @Nonnull T bean) {
+        T existing = map.putIfAbsent(name, bean);
+
+        if( existing != null ) {
+            return existing;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+            String scope = MetricScope.scopeOf(name);
+
+            if( scope == null ) {
+                server.registerMBean(bean, new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name)));
+            }
+            else {
+                server.registerMBean(bean, new ObjectName(DOMAIN + ":type=" + type + ",scope=" + ObjectName.quote(scope) + ",name=" + ObjectName.quote(MetricScope.unscoped(name))));
+            }
+        }
+        catch( Throwable t ) {
+            // metrics are still collected in memory even if JMX is unavailable
+            logger.warn("Unable to register " + type + " " + name + " with JMX: " + t.getMessage());
+        }
+        return bean;
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.metrics;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Names metrics that belong to one endpoint or org rather than to the whole JVM. A scoped metric is named
+ * <code>&lt;group&gt;[&lt;scope&gt;].&lt;name&gt;</code>, for example
+ * <code>api[https://vcd.example.com/api].VAppApi.getVApp.calls</code>, so that every {@link MetricsSink}
+ * keeps the traffic of each scope apart. {@link JmxMetricsSink} publishes the scope as the <code>scope</code>
+ * key property of the MBean name.
+ */
+public final class MetricScope {
+    /**
+     * @param group the metric group, e.g. <code>api</code>
+     * @param scope the endpoint, or the endpoint and account, the metrics belong to
+     * @return the prefix to which metric names are appended after a dot
+     */
+    static public @Nonnull String prefix(@Nonnull String group, @Nonnull String scope) {
+        return group + "[" + scope + "]";
+    }
+
+    /**
+     * @param metric a metric name
+     * @return the scope of the metric, or <code>null</code> if it is not scoped
+     */
+    static public @Nullable String scopeOf(@Nonnull String metric) {
+        int open = metric.indexOf('[');
+        int close = metric.lastIndexOf("].");
+
+        return (open < 0 || close < open ? null : metric.substring(open + 1, close));
+    }
+
+    /**
+     * @param metric a metric name
+     * @return the metric name without its scope, e.g. <code>api.VAppApi.getVApp.calls</code>
+     */
+    static public @Nonnull String unscoped(@Nonnull String metric) {
+        int open = metric.indexOf('[');
+        int close = metric.lastIndexOf("].");
+
+        return (open < 0 || close < open ? metric : metric.substring(0, open) + metric.substring(close + 1));
+    }
+
+    private MetricScope() { }
+}
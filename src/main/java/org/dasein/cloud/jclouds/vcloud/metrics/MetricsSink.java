@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.metrics;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Destination for the measurements taken by this adapter. The default sink publishes everything through
+ * JMX; an alternate implementation may be named by class in the <code>vcloud.metrics.sink</code> custom
+ * property of the provider context. Implementations must be thread safe and must never throw.
+ */
+public interface MetricsSink {
+    /**
+     * Adds a sample to the histogram with the specified name.
+     * @param metric the name of the histogram
+     * @param value the sampled value (milliseconds for timings)
+     */
+    public void record(@Nonnull String metric, long value);
+
+    /**
+     * Adds the specified delta to a monotonic counter.
+     * @param counter the name of the counter
+     * @param delta the amount to add
+     */
+    public void increment(@Nonnull String counter, long delta);
+
+    /**
+     * Sets the current value of a gauge.
+     * @param gauge the name of the gauge
+     * @param value the current value
+     */
+    public void gauge(@Nonnull String gauge, long value);
+}
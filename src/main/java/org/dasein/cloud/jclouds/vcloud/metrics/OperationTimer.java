@@ -0,0 +1,256 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.metrics;
+
+import java.util.ArrayList;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.dasein.cloud.jclouds.vcloud.client.RequestGovernor;
+import org.dasein.cloud.jclouds.vcloud.client.RequestTrace;
+
+/**
+ * Breaks a long running operation such as a launch or a terminate into named phases and records the wall
+ * time, the number of Director API calls and the number of poll iterations spent in each one. The timer is
+ * bound to the calling thread while it runs so that the API layer and the wait loops in
+ * {@link org.dasein.cloud.jclouds.vcloud.VcloudDirector} can attribute their work to the current phase
+ * without any extra plumbing. The operation and phase are also placed in the log4j MDC under
+ * {@link #MDC_OPERATION} and {@link #MDC_PHASE}, and the operation is given a {@link RequestTrace request ID}
+ * unless it runs inside another operation, whose ID it then shares.
+ * <p>
+ * For each phase the sink receives the histograms <code>&lt;operation&gt;.&lt;phase&gt;.millis</code>,
+ * <code>.apiCalls</code> and <code>.polls</code>; the whole operation is recorded as
+ * <code>&lt;operation&gt;.total.millis</code>.
+ * </p>
+ * <p>
+ * A finished operation is logged with its phase breakdown at INFO if it took at least the slow threshold
+ * (the <code>vcloud.operation.slowMillis</code> custom property, {@link #DEFAULT_SLOW_MILLIS} by default)
+ * and at DEBUG otherwise.
+ * </p>
+ */
+public class OperationTimer {
+    static private final Logger logger = Logger.getLogger(OperationTimer.class);
+
+    static public final String MDC_OPERATION = "vcloud.operation";
+    static public final String MDC_PHASE     = "vcloud.phase";
+
+    static public final long DEFAULT_SLOW_MILLIS = 60000L;
+
+    static private final ThreadLocal<OperationTimer> current = new ThreadLocal<OperationTimer>();
+
+    /**
+     * Starts timing an operation on the current thread. Any operation already running on this thread is
+     * suspended and resumes when the new one is finished.
+     * @param sink the sink to which phase measurements are reported
+     * @param operation the operation name, e.g. <code>launch</code>
+     * @param target the ID of the resource being acted on, used only for logging
+     * @return the new timer, which must be {@link #finish() finished} in a <code>finally</code> block
+     */
+    static public @Nonnull OperationTimer start(@Nonnull MetricsSink sink, @Nonnull String operation, @Nullable String target) {
+        return start(sink, operation, target, DEFAULT_SLOW_MILLIS);
+    }
+
+    /**
+     * Starts timing an operation on the current thread with a specific slow threshold.
+     * @param sink the sink to which phase measurements are reported
+     * @param operation the operation name, e.g. <code>launch</code>
+     * @param target the ID of the resource being acted on, used only for logging
+     * @param slowMillis the duration at or above which the finished operation is logged at INFO, or a negative
+     * value to log it only at DEBUG
+     * @return the new timer, which must be {@link #finish() finished} in a <code>finally</code> block
+     */
+    static public @Nonnull OperationTimer start(@Nonnull MetricsSink sink, @Nonnull String operation, @Nullable String target, long slowMillis) {
+        OperationTimer timer = new OperationTimer(sink, operation, target, current.get(), slowMillis);
+        String requestId = RequestTrace.current();
+
+        timer.previousRequestId = RequestTrace.set(requestId == null ? RequestTrace.next() : requestId);
+        current.set(timer);
+        MDC.put(MDC_OPERATION, timer.getDescription());
+        return timer;
+    }
+
+    static public @Nullable OperationTimer current() {
+        return current.get();
+    }
+
+    /**
+     * Counts a Director API call against the current phase of the operation running on this thread, if any.
+     */
+    static public void apiCalled() {
+        OperationTimer timer = current.get();
+
+        if( timer != null ) {
+            timer.apiCalls++;
+        }
+    }
+
+    /**
+     * Counts one iteration of a wait loop against the current phase of the operation running on this
+     * thread, if any, and marks the poll that follows as background work for the {@link RequestGovernor}.
+     */
+    static public void polled() {
+        OperationTimer timer = current.get();
+
+        RequestGovernor.markPoll();
+        if( timer != null ) {
+            timer.polls++;
+        }
+    }
+
+    static private class Phase {
+        public String name;
+        public long   millis;
+        public int    apiCalls;
+        public int    polls;
+    }
+
+    private int                    apiCalls;
+    private final ArrayList<Phase> completed = new ArrayList<Phase>();
+    private boolean                finished;
+    private final String           operation;
+    private final OperationTimer   parent;
+    private String                 phase;
+    private long                   phaseStart;
+    private int                    polls;
+    private String                 previousRequestId;
+    private final MetricsSink      sink;
+    private final long             slowMillis;
+    private final long             start;
+    private final String           target;
+
+    private OperationTimer(@Nonnull MetricsSink sink, @Nonnull String operation, @Nullable String target, @Nullable OperationTimer parent, long slowMillis) {
+        this.sink = sink;
+        this.operation = operation;
+        this.target = target;
+        this.parent = parent;
+        this.slowMillis = slowMillis;
+        this.start = System.currentTimeMillis();
+        this.phaseStart = start;
+    }
+
+    private void endPhase(long now) {
+        if( phase != null ) {
+            Phase p = new Phase();
+
+            p.name = phase;
+            p.millis = now - phaseStart;
+            p.apiCalls = apiCalls;
+            p.polls = polls;
+            completed.add(p);
+            sink.record(operation + "." + phase + ".millis", p.millis);
+            sink.record(operation + "." + phase + ".apiCalls", p.apiCalls);
+            sink.record(operation + "." + phase + ".polls", p.polls);
+        }
+        phase = null;
+        phaseStart = now;
+        apiCalls = 0;
+        polls = 0;
+    }
+
+    /**
+     * Ends the operation, reports the last phase and the total, and restores the suspended operation (if any)
+     * on this thread. Calling this method more than once has no effect.
+     */
+    public void finish() {
+        if( finished ) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+
+        finished = true;
+        endPhase(now);
+        sink.record(operation + ".total.millis", now - start);
+        long millis = now - start;
+
+        if( millis >= slowMillis && slowMillis >= 0L ) {
+            if( logger.isInfoEnabled() ) {
+                logger.info(getDescription() + " completed in " + millis + "ms " + summarize());
+            }
+        }
+        else if( logger.isDebugEnabled() ) {
+            logger.debug(getDescription() + " completed in " + millis + "ms " + summarize());
+        }
+        if( current.get() == this ) {
+            RequestTrace.set(previousRequestId);
+            if( parent == null ) {
+                current.remove();
+                MDC.remove(MDC_OPERATION);
+                MDC.remove(MDC_PHASE);
+            }
+            else {
+                current.set(parent);
+                MDC.put(MDC_OPERATION, parent.getDescription());
+                if( parent.phase == null ) {
+                    MDC.remove(MDC_PHASE);
+                }
+                else {
+                    MDC.put(MDC_PHASE, parent.phase);
+                }
+            }
+        }
+    }
+
+    public @Nonnull String getDescription() {
+        return (target == null ? operation : (operation + " " + target));
+    }
+
+    public @Nonnull String getOperation() {
+        return operation;
+    }
+
+    public @Nullable String getPhase() {
+        return phase;
+    }
+
+    /**
+     * Closes the current phase (if any) and begins a new one.
+     * @param name the name of the phase now starting
+     */
+    public void phase(@Nonnull String name) {
+        endPhase(System.currentTimeMillis());
+        phase = name;
+        MDC.put(MDC_PHASE, name);
+        if( logger.isDebugEnabled() ) {
+            logger.debug(getDescription() + ": entering " + name);
+        }
+    }
+
+    private @Nonnull String summarize() {
+        StringBuilder str = new StringBuilder();
+
+        str.append("[");
+        for( Phase p : completed ) {
+            if( str.length() > 1 ) {
+                str.append(", ");
+            }
+            str.append(p.name).append("=").append(p.millis).append("ms/").append(p.apiCalls).append(" calls/").append(p.polls).append(" polls");
+        }
+        str.append("]");
+        return str.toString();
+    }
+
+    @Override
+    public String toString() {
+        return getDescription() + " " + summarize();
+    }
+}
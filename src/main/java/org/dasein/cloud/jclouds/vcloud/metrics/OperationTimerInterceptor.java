@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.metrics;
+
+import javax.annotation.Nonnull;
+
+import org.dasein.cloud.jclouds.vcloud.client.ApiCall;
+import org.dasein.cloud.jclouds.vcloud.client.ApiInterceptor;
+
+/**
+ * Attributes each Director API call to the phase of the {@link OperationTimer} running on the calling
+ * thread.
+ */
+public class OperationTimerInterceptor implements ApiInterceptor {
+    public OperationTimerInterceptor() { }
+
+    @Override
+    public Object intercept(@Nonnull ApiCall call) throws Throwable {
+        OperationTimer.apiCalled();
+        return call.proceed();
+    }
+}
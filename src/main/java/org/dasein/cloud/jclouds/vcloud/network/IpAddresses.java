@@ -0,0 +1,418 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.network;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Parsing, masking and classification of IPv4 and IPv6 addresses without regular expressions or intermediate
+ * strings. IPv4 addresses are packed into the low 32 bits of a <code>long</code> (-1 means invalid) and IPv6
+ * addresses into two <code>long</code>s, high word first. Zone suffixes (<code>%eth0</code>) and brackets are
+ * accepted on IPv6 input and ignored.
+ */
+public final class IpAddresses {
+    /**
+     * The reach of an address.
+     */
+    public enum Scope {
+        /** <code>0.0.0.0/8</code> or <code>::</code> */
+        UNSPECIFIED,
+        /** <code>127.0.0.0/8</code> or <code>::1</code> */
+        LOOPBACK,
+        /** <code>169.254.0.0/16</code> or <code>fe80::/10</code> */
+        LINK_LOCAL,
+        /** RFC 1918 ranges, IPv6 unique local <code>fc00::/7</code> and site local <code>fec0::/10</code> */
+        PRIVATE,
+        /** carrier grade NAT space, <code>100.64.0.0/10</code> */
+        SHARED,
+        /** <code>224.0.0.0/4</code> or <code>ff00::/8</code> */
+        MULTICAST,
+        /** <code>240.0.0.0/4</code> including the limited broadcast address */
+        RESERVED,
+        /** everything else */
+        PUBLIC
+    }
+
+    private IpAddresses() { }
+
+    /**
+     * @param address a dotted quad such as <code>10.1.2.3</code>
+     * @return the address in the low 32 bits, or -1 if it is not a valid IPv4 address
+     */
+    static public long parseIPv4(@Nonnull CharSequence address) {
+        return parseIPv4(address, 0, address.length());
+    }
+
+    static private long parseIPv4(@Nonnull CharSequence s, int start, int end) {
+        long value = 0L;
+        int octets = 0, octet = -1;
+
+        for( int i=start; i<end; i++ ) {
+            char c = s.charAt(i);
+
+            if( c >= '0' && c <= '9' ) {
+                octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                if( octet > 255 ) {
+                    return -1L;
+                }
+            }
+            else if( c == '.' ) {
+                if( octet < 0 || octets == 3 ) {
+                    return -1L;
+                }
+                value = (value << 8) | octet;
+                octets++;
+                octet = -1;
+            }
+            else {
+                return -1L;
+            }
+        }
+        if( octet < 0 || octets != 3 ) {
+            return -1L;
+        }
+        return (value << 8) | octet;
+    }
+
+    /**
+     * Parses an IPv6 address, including the <code>::</code> shorthand and a trailing dotted quad.
+     * @param address the address to parse
+     * @param into a two element array receiving the high and low 64 bits
+     * @return true if the address was valid
+     */
+    static public boolean parseIPv6(@Nonnull CharSequence address, @Nonnull long[] into) {
+        int start = 0, end = address.length();
+
+        // brackets enclose the zone, as in [fe80::1%eth0], so they come off first
+        if( end - start > 1 && address.charAt(start) == '[' && address.charAt(end - 1) == ']' ) {
+            start++;
+            end--;
+        }
+        for( int i=start; i<end; i++ ) {
+            if( address.charAt(i) == '%' ) {
+                end = i;
+                break;
+            }
+        }
+        if( end - start < 2 ) {
+            return false;
+        }
+        int[] words = new int[8];
+        int count = 0, gap = -1, i = start;
+
+        if( address.charAt(i) == ':' ) {
+            if( address.charAt(i + 1) != ':' ) {
+                return false;
+            }
+            gap = 0;
+            i += 2;
+        }
+        while( i < end ) {
+            int groupStart = i, value = 0, digits = 0;
+
+            if( count == 8 ) {
+                return false;
+            }
+            while( i < end && address.charAt(i) != ':' ) {
+                char c = address.charAt(i);
+
+                if( c == '.' ) {
+                    long v4 = (count > 6 ? -1L : parseIPv4(address, groupStart, end));
+
+                    if( v4 < 0L ) {
+                        return false;
+                    }
+                    words[count++] = (int)(v4 >>> 16);
+                    value = (int)(v4 & 0xFFFFL);
+                    i = end;
+                    break;
+                }
+                int d = Character.digit(c, 16);
+
+                if( d < 0 || ++digits > 4 ) {
+                    return false;
+                }
+                value = (value << 4) | d;
+                i++;
+            }
+            if( digits == 0 ) {
+                return false;
+            }
+            words[count++] = value;
+            if( i < end ) {
+                i++;
+                if( i < end && address.charAt(i) == ':' ) {
+                    if( gap >= 0 ) {
+                        return false;
+                    }
+                    gap = count;
+                    i++;
+                }
+                else if( i == end ) {
+                    return false;
+                }
+            }
+        }
+        if( gap < 0 ? count != 8 : count > 7 ) {
+            return false;
+        }
+        int shift = 8 - count;
+
+        into[0] = 0L;
+        into[1] = 0L;
+        for( int w=0; w<count; w++ ) {
+            int pos = ((gap >= 0 && w >= gap) ? w + shift : w);
+
+            into[pos >> 2] |= ((long)words[w]) << (48 - 16 * (pos & 3));
+        }
+        return true;
+    }
+
+    /**
+     * @param prefix a prefix length from 0 to 32
+     * @return the IPv4 netmask with that prefix length
+     */
+    static public long maskOf(int prefix) {
+        if( prefix < 0 || prefix > 32 ) {
+            throw new IllegalArgumentException("Invalid IPv4 prefix length: " + prefix);
+        }
+        return (prefix == 0 ? 0L : (0xFFFFFFFFL << (32 - prefix)) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param mask an IPv4 netmask
+     * @return the prefix length of the mask, or -1 if its bits are not contiguous
+     */
+    static public int prefixLength(long mask) {
+        int ones = Long.bitCount(mask & 0xFFFFFFFFL);
+
+        return (maskOf(ones) == (mask & 0xFFFFFFFFL) ? ones : -1);
+    }
+
+    static private int prefixLength(long hi, long lo) {
+        int ones = Long.bitCount(hi) + Long.bitCount(lo);
+        long expectHi = (ones >= 64 ? -1L : (ones == 0 ? 0L : -1L << (64 - ones)));
+        long expectLo = (ones <= 64 ? 0L : (ones == 128 ? -1L : -1L << (128 - ones)));
+
+        return (hi == expectHi && lo == expectLo ? ones : -1);
+    }
+
+    /**
+     * @param address an IPv4 address
+     * @return the scope of the address
+     */
+    static public @Nonnull Scope scopeOfIPv4(long address) {
+        int a = (int)((address >>> 24) & 0xFF), b = (int)((address >>> 16) & 0xFF);
+
+        if( a == 0 ) {
+            return Scope.UNSPECIFIED;
+        }
+        if( a == 127 ) {
+            return Scope.LOOPBACK;
+        }
+        if( a == 10 || (a == 172 && (b & 0xF0) == 16) || (a == 192 && b == 168) ) {
+            return Scope.PRIVATE;
+        }
+        if( a == 169 && b == 254 ) {
+            return Scope.LINK_LOCAL;
+        }
+        if( a == 100 && (b & 0xC0) == 64 ) {
+            return Scope.SHARED;
+        }
+        if( (a & 0xF0) == 224 ) {
+            return Scope.MULTICAST;
+        }
+        if( (a & 0xF0) == 240 ) {
+            return Scope.RESERVED;
+        }
+        return Scope.PUBLIC;
+    }
+
+    /**
+     * @param hi the high 64 bits of an IPv6 address
+     * @param lo the low 64 bits of an IPv6 address
+     * @return the scope of the address; IPv4-mapped addresses take the scope of the IPv4 address
+     */
+    static public @Nonnull Scope scopeOfIPv6(long hi, long lo) {
+        if( hi == 0L ) {
+            if( lo == 0L ) {
+                return Scope.UNSPECIFIED;
+            }
+            if( lo == 1L ) {
+                return Scope.LOOPBACK;
+            }
+            if( (lo >>> 32) == 0xFFFFL ) {
+                return scopeOfIPv4(lo & 0xFFFFFFFFL);
+            }
+        }
+        int top = (int)(hi >>> 48);
+
+        if( (top & 0xFF00) == 0xFF00 ) {
+            return Scope.MULTICAST;
+        }
+        if( (top & 0xFFC0) == 0xFE80 ) {
+            return Scope.LINK_LOCAL;
+        }
+        if( (top & 0xFFC0) == 0xFEC0 || (top & 0xFE00) == 0xFC00 ) {
+            return Scope.PRIVATE;
+        }
+        return Scope.PUBLIC;
+    }
+
+    /**
+     * @param address an IPv4 or IPv6 address
+     * @return the scope of the address, or <code>null</code> if it is not a valid address
+     */
+    static public @Nullable Scope scopeOf(@Nonnull String address) {
+        long v4 = parseIPv4(address);
+
+        if( v4 >= 0L ) {
+            return scopeOfIPv4(v4);
+        }
+        long[] v6 = new long[2];
+
+        return (parseIPv6(address, v6) ? scopeOfIPv6(v6[0], v6[1]) : null);
+    }
+
+    /**
+     * Decides whether an address is reachable from the public Internet. Strings that are not addresses at all
+     * are treated as public, which is how hostnames reported by the cloud have always been classified.
+     * @param address an IPv4 or IPv6 address
+     * @return true unless the address is private, shared, link local, loopback or otherwise not routable
+     */
+    static public boolean isPublic(@Nonnull String address) {
+        Scope scope = scopeOf(address);
+
+        return (scope == null || scope == Scope.PUBLIC);
+    }
+
+    /**
+     * Computes the network in CIDR notation from any address in the network and its netmask.
+     * @param address an address in the network, typically the gateway
+     * @param netmask a dotted IPv4 netmask, an IPv6 mask or a prefix length
+     * @return the network address and prefix length, e.g. <code>10.112.78.0/23</code>
+     * @throws IllegalArgumentException the address or mask is invalid or the mask bits are not contiguous
+     */
+    static public @Nonnull String toCidr(@Nonnull String address, @Nonnull String netmask) {
+        long v4 = parseIPv4(address);
+        int prefix = parsePrefix(netmask);
+
+        if( v4 >= 0L ) {
+            if( prefix < 0 ) {
+                long mask = parseIPv4(netmask);
+
+                prefix = (mask < 0L ? -1 : prefixLength(mask));
+            }
+            if( prefix < 0 || prefix > 32 ) {
+                throw new IllegalArgumentException("Invalid IPv4 netmask: " + netmask);
+            }
+            return formatIPv4(v4 & maskOf(prefix)) + "/" + prefix;
+        }
+        long[] v6 = new long[2];
+
+        if( !parseIPv6(address, v6) ) {
+            throw new IllegalArgumentException("Invalid IP address: " + address);
+        }
+        if( prefix < 0 ) {
+            long[] mask = new long[2];
+
+            prefix = (parseIPv6(netmask, mask) ? prefixLength(mask[0], mask[1]) : -1);
+        }
+        if( prefix < 0 || prefix > 128 ) {
+            throw new IllegalArgumentException("Invalid IPv6 netmask: " + netmask);
+        }
+        long hiMask = (prefix >= 64 ? -1L : (prefix == 0 ? 0L : -1L << (64 - prefix)));
+        long loMask = (prefix <= 64 ? 0L : (prefix == 128 ? -1L : -1L << (128 - prefix)));
+
+        return formatIPv6(v6[0] & hiMask, v6[1] & loMask) + "/" + prefix;
+    }
+
+    static private int parsePrefix(@Nonnull String s) {
+        int start = (s.startsWith("/") ? 1 : 0), end = s.length(), value = 0;
+
+        if( end <= start || end - start > 3 ) {
+            return -1;
+        }
+        for( int i=start; i<end; i++ ) {
+            char c = s.charAt(i);
+
+            if( c < '0' || c > '9' ) {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * @param address an IPv4 address in the low 32 bits
+     * @return the dotted quad form of the address
+     */
+    static public @Nonnull String formatIPv4(long address) {
+        StringBuilder str = new StringBuilder(15);
+
+        str.append((address >>> 24) & 0xFF).append('.').append((address >>> 16) & 0xFF).append('.');
+        str.append((address >>> 8) & 0xFF).append('.').append(address & 0xFF);
+        return str.toString();
+    }
+
+    /**
+     * @param hi the high 64 bits of an IPv6 address
+     * @param lo the low 64 bits of an IPv6 address
+     * @return the canonical RFC 5952 form of the address
+     */
+    static public @Nonnull String formatIPv6(long hi, long lo) {
+        int bestStart = -1, bestLength = 1, runStart = -1;
+
+        for( int i=0; i<=8; i++ ) {
+            boolean zero = (i < 8 && word(hi, lo, i) == 0);
+
+            if( zero && runStart < 0 ) {
+                runStart = i;
+            }
+            else if( !zero && runStart >= 0 ) {
+                if( i - runStart > bestLength ) {
+                    bestStart = runStart;
+                    bestLength = i - runStart;
+                }
+                runStart = -1;
+            }
+        }
+        StringBuilder str = new StringBuilder(39);
+
+        for( int i=0; i<8; i++ ) {
+            if( i == bestStart ) {
+                str.append("::");
+                i += bestLength - 1;
+                continue;
+            }
+            if( str.length() > 0 && str.charAt(str.length() - 1) != ':' ) {
+                str.append(':');
+            }
+            str.append(Integer.toHexString(word(hi, lo, i)));
+        }
+        return str.toString();
+    }
+
+    static private int word(long hi, long lo, int index) {
+        return (int)(((index < 4 ? hi : lo) >>> (48 - 16 * (index & 3))) & 0xFFFFL);
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.network;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.jclouds.vcloud.metrics.MetricsSink;
+import org.dasein.cloud.network.VLAN;
+
+/**
+ * The org networks of one provider context indexed by provider ID and by name. The index is loaded as a whole
+ * and reloaded on the first lookup after it is older than its TTL, after {@link #invalidate()}, or when a
+ * lookup by ID or {@link #getByName(String) name} misses an index that has not been reloaded for
+ * {@link #MISS_REFRESH_MILLIS}. One thread loads while
+ * the others wait for its result. Entries hold the VLAN built from each network, with the IP scope already
+ * parsed into gateway, netmask, DNS servers and CIDR; lookups hand out copies.
+ * <p>
+ * Reloads are counted in <code>vlanCache.loads</code>, lookups answered without one in <code>vlanCache.hits</code>.
+ * </p>
+ */
+class NetworkIndex {
+    /**
+     * Minimum age of the index before a lookup of an unknown ID or name reloads it.
+     */
+    static public final long MISS_REFRESH_MILLIS = 5000L;
+
+    /**
+     * Loads the current networks of the organization.
+     */
+    interface Loader {
+        public @Nonnull Collection<Entry> load() throws CloudException, InternalException;
+    }
+
+    /**
+     * One org network.
+     */
+    static class Entry {
+        final String netmask;
+        final VLAN   vlan;
+
+        Entry(@Nonnull VLAN vlan, @Nullable String netmask) {
+            this.vlan = vlan;
+            this.netmask = netmask;
+        }
+
+        /**
+         * @return a copy of the VLAN that the caller may modify
+         */
+        @Nonnull VLAN toVlan() {
+            VLAN copy = new VLAN();
+            String[] dns = vlan.getDnsServers();
+
+            copy.setProviderOwnerId(vlan.getProviderOwnerId());
+            copy.setProviderRegionId(vlan.getProviderRegionId());
+            copy.setProviderVlanId(vlan.getProviderVlanId());
+            copy.setName(vlan.getName());
+            copy.setDescription(vlan.getDescription());
+            copy.setCidr(vlan.getCidr());
+            copy.setGateway(vlan.getGateway());
+            copy.setDnsServers(dns == null ? new String[0] : dns.clone());
+            return copy;
+        }
+    }
+
+    static private class Snapshot {
+        final Map<String,Entry> byId;
+        final Map<String,Entry> byName;
+        final long              loadedAt;
+
+        Snapshot(@Nonnull Collection<Entry> entries) {
+            LinkedHashMap<String,Entry> ids = new LinkedHashMap<String,Entry>();
+            HashMap<String,Entry> names = new HashMap<String,Entry>();
+
+            for( Entry entry : entries ) {
+                ids.put(entry.vlan.getProviderVlanId(), entry);
+                if( entry.vlan.getName() != null ) {
+                    names.put(entry.vlan.getName(), entry);
+                }
+            }
+            byId = Collections.unmodifiableMap(ids);
+            byName = Collections.unmodifiableMap(names);
+            loadedAt = System.currentTimeMillis();
+        }
+    }
+
+    private final Loader        loader;
+    private final ReentrantLock loading = new ReentrantLock();
+    private final long          missRefresh;
+    private final MetricsSink   sink;
+    private volatile Snapshot   snapshot;
+    private final long          ttl;
+
+    /**
+     * @param loader the source of the networks
+     * @param ttl the maximum age of the index in milliseconds before it is reloaded
+     * @param sink the sink receiving the hit and load counters
+     */
+    NetworkIndex(@Nonnull Loader loader, long ttl, @Nonnull MetricsSink sink) {
+        this(loader, ttl, MISS_REFRESH_MILLIS, sink);
+    }
+
+    /**
+     * @param loader the source of the networks
+     * @param ttl the maximum age of the index in milliseconds before it is reloaded
+     * @param missRefresh the minimum age of the index in milliseconds before a missed lookup reloads it
+     * @param sink the sink receiving the hit and load counters
+     */
+    NetworkIndex(@Nonnull Loader loader, long ttl, long missRefresh, @Nonnull MetricsSink sink) {
+        this.loader = loader;
+        this.ttl = ttl;
+        this.missRefresh = missRefresh;
+        this.sink = sink;
+    }
+
+    /**
+     * @return all networks in the order the organization lists them
+     * @throws CloudException the networks could not be loaded
+     * @throws InternalException the networks could not be loaded
+     */
+    @Nonnull Collection<Entry> list() throws CloudException, InternalException {
+        return get(false).byId.values();
+    }
+
+    /**
+     * @param vlanId the provider ID of the network
+     * @return the matching network, or <code>null</code> if the organization has no such network
+     * @throws CloudException the networks could not be loaded
+     * @throws InternalException the networks could not be loaded
+     */
+    @Nullable Entry getById(@Nonnull String vlanId) throws CloudException, InternalException {
+        Entry entry = get(false).byId.get(vlanId);
+
+        if( entry == null && reloadOnMiss() ) {
+            entry = get(true).byId.get(vlanId);
+        }
+        return entry;
+    }
+
+    /**
+     * @param name the name of the network
+     * @return the matching network, or <code>null</code> if the organization has no such network
+     * @throws CloudException the networks could not be loaded
+     * @throws InternalException the networks could not be loaded
+     */
+    @Nullable Entry getByName(@Nonnull String name) throws CloudException, InternalException {
+        Entry entry = get(false).byName.get(name);
+
+        if( entry == null && reloadOnMiss() ) {
+            entry = get(true).byName.get(name);
+        }
+        return entry;
+    }
+
+    /**
+     * Looks up a name that may well not be an org network, such as the network of a NIC that may be private to
+     * its vApp. Unlike {@link #getByName(String)}, a miss never reloads the index.
+     * @param name the name of the network
+     * @return the matching network, or <code>null</code> if the index has no network of that name
+     * @throws CloudException the networks could not be loaded
+     * @throws InternalException the networks could not be loaded
+     */
+    @Nullable Entry findByName(@Nonnull String name) throws CloudException, InternalException {
+        return get(false).byName.get(name);
+    }
+
+    /**
+     * Forces the next lookup to reload the networks.
+     */
+    void invalidate() {
+        snapshot = null;
+    }
+
+    private boolean reloadOnMiss() {
+        Snapshot current = snapshot;
+
+        return (current == null || (System.currentTimeMillis() - current.loadedAt) >= missRefresh);
+    }
+
+    private boolean isFresh(@Nullable Snapshot s, boolean force) {
+        if( s == null ) {
+            return false;
+        }
+        long age = System.currentTimeMillis() - s.loadedAt;
+
+        return (age < (force ? missRefresh : ttl));
+    }
+
+    private @Nonnull Snapshot get(boolean force) throws CloudException, InternalException {
+        Snapshot current = snapshot;
+
+        if( !force && isFresh(current, false) ) {
+            sink.increment("vlanCache.hits", 1L);
+            return current;
+        }
+        loading.lock();
+        try {
+            current = snapshot;
+            // another thread may have reloaded while this one waited
+            if( isFresh(current, force) ) {
+                return current;
+            }
+            current = new Snapshot(loader.load());
+            snapshot = current;
+            sink.increment("vlanCache.loads", 1L);
+            return current;
+        }
+        finally {
+            loading.unlock();
+        }
+    }
+}
@@ -24,12 +24,12 @@ import org.dasein.cloud.network.AbstractNetworkServices;
 import javax.annotation.Nonnull;
 
 public class VcloudNetworkServices extends AbstractNetworkServices {
-    private VcloudDirector provider;
+    private final VcloudNetworkSupport vlanSupport;
     
-    public VcloudNetworkServices(@Nonnull VcloudDirector provider) { this.provider = provider; }
+    public VcloudNetworkServices(@Nonnull VcloudDirector provider) { vlanSupport = new VcloudNetworkSupport(provider); }
     
     @Override
     public @Nonnull VcloudNetworkSupport getVlanSupport() {
-        return new VcloudNetworkSupport(provider);
+        return vlanSupport;
     }
 }
@@ -19,6 +19,7 @@
 package org.dasein.cloud.jclouds.vcloud.network;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Locale;
 import java.util.Map;
@@ -27,6 +28,7 @@ import org.apache.log4j.Logger;
 import org.dasein.cloud.CloudException;
 import org.dasein.cloud.InternalException;
 import org.dasein.cloud.OperationNotSupportedException;
+import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.identity.ServiceAction;
 import org.dasein.cloud.jclouds.vcloud.VcloudDirector;
 import org.dasein.cloud.network.NetworkInterface;
@@ -43,16 +45,29 @@ import org.jclouds.vcloud.domain.ReferenceType;
 import org.jclouds.vcloud.domain.Vm;
 import org.jclouds.vcloud.domain.network.IpScope;
 import org.jclouds.vcloud.domain.network.OrgNetwork;
-import org.jclouds.vcloud.features.NetworkApi;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
+/**
+ * Org networks as Dasein VLANs. Networks are answered from a {@link NetworkIndex} of the organization that is
+ * reloaded after <code>vcloud.network.ttl</code> milliseconds (default 60000), when a lookup misses, or after
+ * {@link #refreshVlans()}.
+ */
 public class VcloudNetworkSupport implements VLANSupport {
 	static private final Logger logger = Logger.getLogger(VcloudNetworkSupport.class);
 
-	private VcloudDirector provider;
+	private final NetworkIndex   index;
+	private final VcloudDirector provider;
 
-	VcloudNetworkSupport(VcloudDirector provider) { this.provider = provider; }
+	VcloudNetworkSupport(VcloudDirector provider) {
+		this.provider = provider;
+		this.index = new NetworkIndex(new NetworkIndex.Loader() {
+			public @Nonnull Collection<NetworkIndex.Entry> load() throws CloudException, InternalException {
+				return loadNetworks();
+			}
+		}, provider.getCustomProperty("vcloud.network.ttl", 60000L), provider.getMetrics());
+	}
 
 	@Override
 	public boolean allowsNewVlanCreation() throws CloudException, InternalException {
@@ -66,15 +81,22 @@ public class VcloudNetworkSupport implements VLANSupport {
 
 	@Override
 	public VLAN getVlan(String vlanId) throws CloudException, InternalException {
-        ApiContext<VCloudApi> ctx = provider.getCloudClient();
-        return toVlan(ctx, ctx.getApi().getNetworkApi().getNetwork(provider.toHref(ctx, vlanId)));
+		NetworkIndex.Entry entry = index.getById(vlanId);
+
+		return (entry == null ? null : entry.toVlan());
 	}
 
-    public VLAN getVlanByName(String name) throws CloudException, InternalException {
-        ApiContext<VCloudApi> ctx = provider.getCloudClient();
-        ReferenceType vlan = provider.getOrg().getNetworks().get(name);
-        return toVlan(ctx, ctx.getApi().getNetworkApi().getNetwork(vlan.getHref()));
-    }
+	/**
+	 * @param name the name of the org network
+	 * @return the matching VLAN, or <code>null</code> if the organization has no network of that name
+	 * @throws CloudException the networks could not be loaded
+	 * @throws InternalException the networks could not be loaded
+	 */
+	public @Nullable VLAN getVlanByName(@Nonnull String name) throws CloudException, InternalException {
+		NetworkIndex.Entry entry = index.getByName(name);
+
+		return (entry == null ? null : entry.toVlan());
+	}
 
 	@Override
 	public boolean isSubscribed() throws CloudException, InternalException {
@@ -96,41 +118,27 @@ public class VcloudNetworkSupport implements VLANSupport {
 
 		try {
 			try {
-				Map<String,ReferenceType> map = provider.getOrg().getNetworks();
 				ArrayList<NetworkInterface> list = new ArrayList<NetworkInterface>();
-				ArrayList<OrgNetwork> networks = new ArrayList<OrgNetwork>();
 				Vm vm = ctx.getApi().getVmApi().getVm(provider.toHref(ctx, forVmId));
 				NetworkConnection def = null;
 
-				if( map != null ) {
-					for( ReferenceType t : map.values() ) {
-						if( t.getType().equals(VCloudMediaType.NETWORK_XML) ) {
-							OrgNetwork network = ctx.getApi().getNetworkApi().getNetwork(t.getHref());
-
-							if( network != null ) {
-								networks.add(network);
-							}
-						}
-					}
-				}
 				for( NetworkConnection c : vm.getNetworkConnectionSection().getConnections() ) {
 					NetworkInterface nic = new NetworkInterface();
+					// vApp networks are never in the index, so a miss here must not reload the org
+					NetworkIndex.Entry network = (c.getNetwork() == null ? null : index.findByName(c.getNetwork()));
 
 					nic.setProviderNetworkInterfaceId(c.getMACAddress());
 					nic.setIpAddress(c.getIpAddress());
 					nic.setProviderVirtualMachineId(forVmId);
-					for( OrgNetwork network : networks ) {
-						if( network.getName().equals(c.getNetwork()) ) {
-							IpScope scope = network.getConfiguration().getIpScope();
-
-							if( def == null || def.getNetworkConnectionIndex() > c.getNetworkConnectionIndex() ) {
-								def = c;
-							}
-							nic.setGatewayAddress(scope.getGateway());
-							nic.setNetmask(scope.getNetmask());
-							nic.setProviderVlanId(provider.toId(ctx, network.getHref()));
+					if( network != null ) {
+						if( def == null || def.getNetworkConnectionIndex() > c.getNetworkConnectionIndex() ) {
+							def = c;
 						}
+						nic.setGatewayAddress(network.vlan.getGateway());
+						nic.setNetmask(network.netmask);
+						nic.setProviderVlanId(network.vlan.getProviderVlanId());
 					}
+					list.add(nic);
 				}
 				if( def != null ) {
 					for( NetworkInterface nic : list ) {
@@ -156,139 +164,120 @@ public class VcloudNetworkSupport implements VLANSupport {
 
 	@Override
 	public Iterable<VLAN> listVlans() throws CloudException, InternalException {
-		logger.trace("enter - listVlans()");
+		ArrayList<VLAN> list = new ArrayList<VLAN>();
+
+		for( NetworkIndex.Entry entry : index.list() ) {
+			list.add(entry.toVlan());
+		}
+		return list;
+	}
+
+	/**
+	 * Loads every org network of the organization of the current context. Networks that cannot be read are
+	 * logged and left out.
+	 * @return the networks in the order the organization lists them
+	 * @throws CloudException the organization could not be read
+	 */
+	private @Nonnull Collection<NetworkIndex.Entry> loadNetworks() throws CloudException {
+		logger.trace("enter - loadNetworks()");
+		ProviderContext pctx = provider.getContext();
+
+		if( pctx == null ) {
+			throw new CloudException("No context was established for this request");
+		}
 		ApiContext<VCloudApi> ctx = provider.getCloudClient();
 
 		try {
-			ArrayList<VLAN> list = new ArrayList<VLAN>();
-			Org org = provider.getOrg();
-			Map<String,ReferenceType> map = null;
-			if (org != null) {
-				map = org.getNetworks();
+			ArrayList<NetworkIndex.Entry> entries = new ArrayList<NetworkIndex.Entry>();
+			Org org;
+
+			try {
+				// fetched fresh rather than through provider.getOrg() so that new networks show up
+				org = ctx.getApi().getOrgApi().findOrgNamed(pctx.getAccountNumber());
 			}
-			else {
-				logger.warn("listVlans(): Org is null");
+			catch( RuntimeException e ) {
+				logger.error("Error loading organization " + pctx.getAccountNumber() + ": " + e.getMessage());
+				if( logger.isDebugEnabled() ) {
+					e.printStackTrace();
+				}
+				throw new CloudException(e);
 			}
-
+			if( org == null ) {
+				logger.warn("loadNetworks(): No organization " + pctx.getAccountNumber());
+				return entries;
+			}
+			Map<String,ReferenceType> map = org.getNetworks();
 
 			if( map == null ) {
-				return Collections.emptyList();
+				return entries;
 			}
-			logger.debug("map size = " + map.size());
 			for( ReferenceType type : map.values() ) {
-				if( type.getType().equals(VCloudMediaType.NETWORK_XML) ) {
-					VCloudApi client = ctx.getApi();
-					NetworkApi networkClient = null;
-					if (client != null){
-						networkClient = client.getNetworkApi();
-					}
-					else {
-						logger.warn("listVlans(): VCloudApi is null");
-					}
-					if (networkClient != null){
-						logger.debug("listVlans(): type name = " + type.getName());
-						logger.debug("listVlans(): type uri = " + type.getHref());
-						logger.debug("listVlans(): type type = " + type.getType());
-						if (type.getHref() != null) {
-							OrgNetwork network = null;
-							try {
-								network = networkClient.getNetwork(type.getHref());
-							}
-							catch( RuntimeException e ) {
-								logger.error("Error getting network for " + type.getName() + " - " + type.getHref() + ": " + e.getMessage());
-								if( logger.isDebugEnabled() ) {
-									e.printStackTrace();
-								}
-								continue;
-							}
-							VLAN vlan = toVlan(ctx, network);
-							if( vlan != null ) {
-								list.add(vlan);
-							}
-						}
+				if( type.getHref() == null || !VCloudMediaType.NETWORK_XML.equals(type.getType()) ) {
+					continue;
+				}
+				try {
+					OrgNetwork network = ctx.getApi().getNetworkApi().getNetwork(type.getHref());
+
+					if( network != null ) {
+						IpScope scope = getIpScope(network);
+
+						entries.add(new NetworkIndex.Entry(toVlan(ctx, network, org.getName()), scope == null ? null : scope.getNetmask()));
 					}
-					else {
-						logger.warn("listVlans(): NetworkClient is null");
+				}
+				catch( RuntimeException e ) {
+					logger.error("Error loading network " + type.getName() + " - " + type.getHref() + ": " + e.getMessage());
+					if( logger.isDebugEnabled() ) {
+						e.printStackTrace();
 					}
 				}
 			}
-			return list;
+			return entries;
 		}
 		finally {
 			ctx.close();
-			logger.trace("exit - listVlans()");
+			logger.trace("exit - loadNetworks()");
 		}
 	}
 
+	private @Nullable IpScope getIpScope(@Nonnull OrgNetwork network) {
+		OrgNetwork.Configuration configuration = network.getConfiguration();
+
+		return (configuration == null ? null : configuration.getIpScope());
+	}
+
 	@Override
 	public @Nonnull String[] mapServiceAction(@Nonnull ServiceAction action) {
 		return new String[0];
 	}
 
+	/**
+	 * Discards the cached org networks so that the next lookup reloads them, e.g. after a network was added or
+	 * changed outside of Dasein.
+	 */
+	public void refreshVlans() {
+		index.invalidate();
+	}
+
 	@Override
 	public void removeVlan(String vlanId) throws CloudException, InternalException {
 		throw new OperationNotSupportedException("Network provisioning is not supported");
 	}
 
-	private String toCidr(String gateway, String netmask) {
-		String[] dots = netmask.split("\\.");
-		int cidr = 0;
-
-		for( String item : dots ) {
-			int x = Integer.parseInt(item);
-
-			for( ; x > 0 ; x = (x<<1)%256 ) {
-				cidr++;
-			}
-		}
-		StringBuilder network = new StringBuilder();
-
-		dots = gateway.split("\\.");
-		int start = 0;
-
-		for( String item : dots ) {
-			if( ((start+8) < cidr) || cidr == 0 ) {
-				network.append(item);
-			}
-			else {
-				int addresses = (int)Math.pow(2, (start+8)-cidr);
-				int subnets = 256/addresses;
-				int gw = Integer.parseInt(item);
-
-				for( int i=0; i<subnets; i++ ) {
-					int base = i*addresses;
-					int top = ((i+1)*addresses);
-
-					if( gw >= base && gw < top ) {
-						network.append(String.valueOf(base));
-						break;
-					}
-				}
-			}
-			start += 8;
-			if( start < 32 ) {
-				if ((network.charAt(network.length()-1) == ('.'))){
-					network.append("0");
-				}
-				network.append(".");
-			}
-		}
-		if ((network.charAt(network.length()-1) == ('.'))){
-			network.append("0");
-		}
-		network.append("/");
-		network.append(String.valueOf(cidr));
-		return network.toString();
+	String toCidr(String gateway, String netmask) {
+		return IpAddresses.toCidr(gateway.trim(), netmask.trim());
 	}
 
-	private VLAN toVlan(ApiContext<VCloudApi> ctx, OrgNetwork network) throws CloudException {
+	VLAN toVlan(ApiContext<VCloudApi> ctx, OrgNetwork network) throws CloudException {
 		if( network == null ) {
 			return null;
 		}
-		Org org = provider.getOrg(network.getOrg().getHref());
+		return toVlan(ctx, network, provider.getOrg(network.getOrg().getHref()).getName());
+	}
+
+	private @Nonnull VLAN toVlan(@Nonnull ApiContext<VCloudApi> ctx, @Nonnull OrgNetwork network, @Nullable String owner) {
 		VLAN vlan = new VLAN();
 
-		vlan.setProviderOwnerId(org.getName());
+		vlan.setProviderOwnerId(owner);
 		vlan.setProviderRegionId(provider.getContext().getRegionId());
 		vlan.setProviderVlanId(provider.toId(ctx, network.getHref()));
 		vlan.setName(network.getName());
@@ -299,14 +288,19 @@ public class VcloudNetworkSupport implements VLANSupport {
 		if( vlan.getDescription() == null ) {
 			vlan.setDescription(vlan.getName());
 		}
-		IpScope scope = network.getConfiguration().getIpScope();
+		IpScope scope = getIpScope(network);
 
 		if( scope != null ) {
 			String netmask = scope.getNetmask();
 			String gateway = scope.getGateway();
 
 			if( netmask != null && gateway != null ) {
-				vlan.setCidr(toCidr(gateway, netmask));
+				try {
+					vlan.setCidr(toCidr(gateway, netmask));
+				}
+				catch( IllegalArgumentException e ) {
+					logger.warn("Unable to determine the CIDR of " + vlan.getProviderVlanId() + ": " + e.getMessage());
+				}
 			}
 			vlan.setGateway(gateway);
 			if( scope.getDns2() == null ) {
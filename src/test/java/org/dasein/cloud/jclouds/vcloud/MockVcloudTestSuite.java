@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud;
+
+import junit.framework.Test;
+
+import org.dasein.cloud.jclouds.vcloud.mock.MockDirector;
+import org.dasein.cloud.test.ComprehensiveTestSuite;
+
+/**
+ * Runs the Dasein comprehensive test suite against an embedded {@link MockDirector} rather than a real cloud.
+ * The inventory size and latency may be tuned with the <code>mock.vdcs</code>, <code>mock.vms</code>,
+ * <code>mock.latency.min</code>, <code>mock.latency.max</code>, <code>mock.errorRate</code>,
+ * <code>mock.rateLimit</code> and <code>mock.taskMillis</code> system properties.
+ */
+public class MockVcloudTestSuite {
+    static public Test suite() throws Exception {
+        MockDirector mock = new MockDirector();
+
+        mock.setInventory(Integer.getInteger("mock.vdcs", 20), Integer.getInteger("mock.vms", 10000));
+        mock.setLatency(Long.getLong("mock.latency.min", 0L), Long.getLong("mock.latency.max", 0L));
+        mock.setErrorRate(Double.parseDouble(System.getProperty("mock.errorRate", "0")));
+        mock.setRateLimit(Integer.getInteger("mock.rateLimit", 0));
+        mock.setTaskMillis(Long.getLong("mock.taskMillis", 1000L));
+        mock.start();
+        System.setProperty("endpoint", mock.getEndpoint());
+        System.setProperty("accountNumber", mock.getAccountNumber());
+        System.setProperty("apiSharedKey", "mock");
+        System.setProperty("apiSecretKey", "mock");
+        System.setProperty("cloudName", "Mock vCloud");
+        System.setProperty("providerName", "Mock");
+        System.setProperty("regionId", mock.getAccountNumber());
+        System.setProperty("test.region", mock.getAccountNumber());
+        System.setProperty("test.dataCenter", "/vdc/1");
+        System.setProperty("test.machineImage", "/vAppTemplate/vappTemplate-1");
+        return new ComprehensiveTestSuite(VcloudDirector.class);
+    }
+}
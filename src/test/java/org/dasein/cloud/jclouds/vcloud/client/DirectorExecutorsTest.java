@@ -0,0 +1,280 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.dasein.cloud.jclouds.vcloud.metrics.MetricsSink;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Runs the same concurrency checks against platform threads and, on runtimes that have them, virtual threads.
+ */
+@RunWith(Parameterized.class)
+public class DirectorExecutorsTest {
+    static private final MetricsSink discard = new MetricsSink() {
+        public void record(@Nonnull String metric, long value) { }
+        public void increment(@Nonnull String counter, long delta) { }
+        public void gauge(@Nonnull String gauge, long value) { }
+    };
+
+    @Parameters
+    static public Collection<Object[]> modes() {
+        ArrayList<Object[]> modes = new ArrayList<Object[]>();
+
+        modes.add(new Object[] { Boolean.FALSE });
+        if( DirectorExecutors.isVirtualAvailable() ) {
+            modes.add(new Object[] { Boolean.TRUE });
+        }
+        return modes;
+    }
+
+    private final boolean virtual;
+
+    public DirectorExecutorsTest(Boolean virtual) {
+        this.virtual = virtual;
+    }
+
+    /**
+     * @return the number of tasks to block at once: thousands on virtual threads, a pool's worth otherwise
+     */
+    private int getBlockingTasks() {
+        return (virtual ? 2000 : 32);
+    }
+
+    private void shutdown(@Nonnull ExecutorService pool) throws InterruptedException {
+        pool.shutdown();
+        assertTrue("Executor did not terminate", pool.awaitTermination(30, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void resolvesModes() {
+        assertFalse(DirectorExecutors.isVirtual(DirectorExecutors.MODE_PLATFORM));
+        assertEquals(DirectorExecutors.isVirtualAvailable(), DirectorExecutors.isVirtual(DirectorExecutors.MODE_AUTO));
+        assertEquals(DirectorExecutors.isVirtualAvailable(), DirectorExecutors.isVirtual(DirectorExecutors.MODE_VIRTUAL));
+    }
+
+    @Test
+    public void namesDaemonThreads() throws Exception {
+        ExecutorService pool = DirectorExecutors.newExecutor("Test", 2, virtual);
+
+        try {
+            Thread thread = pool.submit(new Callable<Thread>() {
+                public Thread call() {
+                    return Thread.currentThread();
+                }
+            }).get(10, TimeUnit.SECONDS);
+
+            assertTrue(thread.getName(), thread.getName().startsWith("Test "));
+            assertTrue(thread.isDaemon());
+        }
+        finally {
+            shutdown(pool);
+        }
+    }
+
+    @Test
+    public void boundsRunningTasks() throws Exception {
+        final int limit = 8;
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger peak = new AtomicInteger(0);
+        final AtomicInteger completed = new AtomicInteger(0);
+        ExecutorService pool = DirectorExecutors.newExecutor("Bounded", limit, virtual);
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+
+        try {
+            for( int i=0; i<400; i++ ) {
+                futures.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws InterruptedException {
+                        int now = running.incrementAndGet();
+
+                        while( true ) {
+                            int max = peak.get();
+
+                            if( now <= max || peak.compareAndSet(max, now) ) {
+                                break;
+                            }
+                        }
+                        Thread.sleep(1L);
+                        running.decrementAndGet();
+                        completed.incrementAndGet();
+                        return null;
+                    }
+                }));
+            }
+            for( Future<?> f : futures ) {
+                f.get(30, TimeUnit.SECONDS);
+            }
+        }
+        finally {
+            shutdown(pool);
+        }
+        assertEquals(400, completed.get());
+        assertTrue("Peak of " + peak.get() + " running tasks exceeds " + limit, peak.get() <= limit);
+    }
+
+    @Test
+    public void blocksManyTasksAtOnce() throws Exception {
+        int count = getBlockingTasks();
+        final CountDownLatch started = new CountDownLatch(count);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = DirectorExecutors.newExecutor("Blocking", count, virtual);
+
+        try {
+            for( int i=0; i<count; i++ ) {
+                pool.submit(new Callable<Void>() {
+                    public Void call() throws InterruptedException {
+                        started.countDown();
+                        release.await();
+                        return null;
+                    }
+                });
+            }
+            assertTrue("Only " + (count - started.getCount()) + " of " + count + " tasks ran at once", started.await(30, TimeUnit.SECONDS));
+        }
+        finally {
+            release.countDown();
+            shutdown(pool);
+        }
+    }
+
+    @Test
+    public void governorBoundsRequestsInFlight() throws Exception {
+        final RequestGovernor governor = RequestGovernor.getInstance("https://executors.example.com/api", "test-" + virtual);
+        final AtomicInteger inFlight = new AtomicInteger(0);
+        final AtomicInteger peak = new AtomicInteger(0);
+        int count = Math.min(getBlockingTasks(), 500);
+        ExecutorService pool = DirectorExecutors.newExecutor("Governed", count, virtual);
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+
+        governor.configure(0.0, 1, 4);
+        try {
+            for( int i=0; i<count; i++ ) {
+                futures.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws InterruptedException {
+                        governor.acquire(discard, false);
+                        try {
+                            int now = inFlight.incrementAndGet();
+
+                            while( true ) {
+                                int max = peak.get();
+
+                                if( now <= max || peak.compareAndSet(max, now) ) {
+                                    break;
+                                }
+                            }
+                            Thread.sleep(1L);
+                            inFlight.decrementAndGet();
+                        }
+                        finally {
+                            governor.release(discard);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for( Future<?> f : futures ) {
+                f.get(60, TimeUnit.SECONDS);
+            }
+        }
+        finally {
+            shutdown(pool);
+        }
+        assertTrue("Peak of " + peak.get() + " requests in flight exceeds 4", peak.get() <= 4);
+        assertEquals(0, governor.getInFlight());
+        assertEquals(0, governor.getWaiting());
+    }
+
+    @Test
+    public void skipsTaskCancelledWhileQueued() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean ran = new AtomicBoolean(false);
+        ExecutorService pool = DirectorExecutors.newExecutor("Cancel", 1, virtual);
+
+        try {
+            pool.submit(new Callable<Void>() {
+                public Void call() throws InterruptedException {
+                    started.countDown();
+                    release.await();
+                    return null;
+                }
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            Future<?> queued = pool.submit(new Runnable() {
+                public void run() {
+                    ran.set(true);
+                }
+            });
+
+            assertTrue(queued.cancel(false));
+        }
+        finally {
+            release.countDown();
+            shutdown(pool);
+        }
+        assertFalse(ran.get());
+    }
+
+    @Test
+    public void shutdownNowDropsQueuedTasks() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger ran = new AtomicInteger();
+        ExecutorService pool = DirectorExecutors.newExecutor("Stop", 1, virtual);
+
+        pool.submit(new Callable<Void>() {
+            public Void call() throws InterruptedException {
+                started.countDown();
+                Thread.sleep(60000L);
+                return null;
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        for( int i=0; i<20; i++ ) {
+            pool.submit(new Runnable() {
+                public void run() {
+                    ran.incrementAndGet();
+                }
+            });
+        }
+        // let virtual threads reach the permit wait
+        Thread.sleep(100L);
+        pool.shutdownNow();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(0, ran.get());
+    }
+}
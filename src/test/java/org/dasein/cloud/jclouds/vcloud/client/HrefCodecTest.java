@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.net.URI;
+
+import org.junit.Test;
+
+public class HrefCodecTest {
+    private void assertInvalidId(HrefCodec codec, String id) {
+        try {
+            codec.toHref(id);
+            fail("\"" + id + "\" was accepted");
+        }
+        catch( IllegalArgumentException expected ) {
+            // malformed ID
+        }
+    }
+
+    private void assertForeign(HrefCodec codec, String href) {
+        try {
+            codec.toId(URI.create(href));
+            fail(href + " was accepted");
+        }
+        catch( IllegalArgumentException expected ) {
+            // not part of this API
+        }
+    }
+
+    @Test
+    public void roundTripsIds() {
+        HrefCodec codec = new HrefCodec("https://vcd.example.com/api/", "1.0");
+
+        assertEquals("https://vcd.example.com/api/v1.0", codec.getBase());
+        assertEquals(URI.create("https://vcd.example.com/api/v1.0/vApp/vm-1234"), codec.toHref("/vApp/vm-1234"));
+        assertEquals("/vApp/vm-1234", codec.toId(URI.create("https://vcd.example.com/api/v1.0/vApp/vm-1234")));
+        assertEquals("/vdc/5", codec.toId(codec.toHref("/vdc/5")));
+    }
+
+    @Test
+    public void rejectsMalformedIds() {
+        HrefCodec codec = new HrefCodec("https://vcd.example.com/api", "1.0");
+
+        assertInvalidId(codec, "");
+        assertInvalidId(codec, "/");
+        assertInvalidId(codec, "vApp/vm-1234");
+        assertInvalidId(codec, "/vApp/vm 1234");
+        assertInvalidId(codec, "/vApp/vm-{1234}");
+    }
+
+    @Test
+    public void acceptsEitherProtocol() {
+        HrefCodec codec = new HrefCodec("https://vcd.example.com/api", "1.0");
+
+        assertEquals("/vApp/vm-1", codec.toId(URI.create("http://vcd.example.com/api/v1.0/vApp/vm-1")));
+        assertEquals("/vApp/vm-1", codec.toId(URI.create("https://vcd.example.com/api/v1.0/vApp/vm-1")));
+        codec = new HrefCodec("http://vcd.example.com/api", "1.0");
+        assertEquals("/vApp/vm-1", codec.toId(URI.create("https://vcd.example.com/api/v1.0/vApp/vm-1")));
+        assertEquals(URI.create("http://vcd.example.com/api/v1.0/vApp/vm-1"), codec.toHref("/vApp/vm-1"));
+    }
+
+    @Test
+    public void matchesForeignHostsOnTheApiPath() {
+        HrefCodec codec = new HrefCodec("https://vcd.example.com/api", "1.0");
+
+        assertEquals("/vApp/vm-1", codec.toId(URI.create("https://cell2.example.com/api/v1.0/vApp/vm-1")));
+        assertEquals("/vApp/vm-1?page=2", codec.toId(URI.create("https://10.0.0.5:8443/api/v1.0/vApp/vm-1?page=2")));
+        assertForeign(codec, "https://other.example.com/cloud/v1.0/vApp/vm-1");
+        assertForeign(codec, "https://vcd.example.com/api/v1.5/vApp/vm-1");
+        assertForeign(codec, "https://cell2.example.com/api/v1.0/");
+        assertForeign(codec, "https://vcd.example.com/api/v1.0");
+    }
+
+    @Test
+    public void rejectsInvalidEndpoints() {
+        try {
+            new HrefCodec("vcd.example.com/api", "1.0");
+            fail("A relative endpoint was accepted");
+        }
+        catch( IllegalArgumentException expected ) {
+            // no scheme
+        }
+        try {
+            new HrefCodec("ftp://vcd.example.com/api", "1.0");
+            fail("An ftp endpoint was accepted");
+        }
+        catch( IllegalArgumentException expected ) {
+            // wrong scheme
+        }
+    }
+
+    @Test
+    public void evictsWhenTheCacheIsFull() {
+        HrefCodec codec = new HrefCodec("https://vcd.example.com/api", "1.0", 2);
+        URI first = codec.toHref("/vApp/vm-1");
+
+        assertSame(first, codec.toHref("/vApp/vm-1"));
+        codec.toHref("/vApp/vm-2");
+        codec.toHref("/vApp/vm-3");
+        URI again = codec.toHref("/vApp/vm-1");
+
+        assertNotSame(first, again);
+        assertEquals(first, again);
+    }
+
+    @Test
+    public void internsNothingWithoutACache() {
+        HrefCodec codec = new HrefCodec("https://vcd.example.com/api", "1.0", 0);
+
+        assertNotSame(codec.toHref("/vApp/vm-1"), codec.toHref("/vApp/vm-1"));
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.junit.Test;
+
+public class ResilienceTest {
+    static private HttpResponseException status(int code) {
+        return new HttpResponseException("status " + code, null, HttpResponse.builder().statusCode(code).build());
+    }
+
+    private CircuitBreaker open(String endpoint) throws InterruptedException {
+        CircuitBreaker breaker = CircuitBreaker.getInstance(endpoint);
+
+        breaker.configure(1, 10L);
+        assertFalse(breaker.allow());
+        assertTrue(breaker.failed(false));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(20L);
+        return breaker;
+    }
+
+    @Test
+    public void refusesSecondTrial() throws Exception {
+        CircuitBreaker breaker = open("https://breaker-trial.example.com/api");
+
+        assertTrue(breaker.allow());
+        try {
+            breaker.allow();
+            fail("A second trial was let through while the first was running");
+        }
+        catch( CircuitOpenException expected ) {
+            // only one trial at a time
+        }
+        breaker.succeeded(true);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void abandonedTrialHandsOverTrial() throws Exception {
+        CircuitBreaker breaker = open("https://breaker-abandoned.example.com/api");
+
+        assertTrue(breaker.allow());
+        breaker.abandoned(true);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.allow());
+        breaker.succeeded(true);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void retriesGatewayErrorsOnlyWhenIdempotent() {
+        RetryPolicy policy = new RetryPolicy(4, 1L, 10L);
+
+        for( int code : new int[] { 429, 502, 503, 504 } ) {
+            assertTrue(String.valueOf(code), policy.isRetryable(status(code), true));
+        }
+        assertTrue(policy.isRetryable(status(429), false));
+        assertTrue(policy.isRetryable(status(503), false));
+        assertFalse(policy.isRetryable(status(502), false));
+        assertFalse(policy.isRetryable(status(504), false));
+        assertTrue(policy.isRetryable(new IllegalStateException("BUSY_ENTITY: vApp is busy"), false));
+        assertFalse(policy.isRetryable(status(500), true));
+    }
+}
@@ -0,0 +1,339 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.mock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.ProviderContext;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An embedded stand-in for the vCloud Director 1.0 API, used to exercise the adapter end to end without a
+ * real cloud. It serves a generated {@link MockInventory} of configurable size and can add latency, inject
+ * errors and rate limit callers so the support classes can be measured under realistic conditions.
+ * <pre>
+ *     MockDirector mock = new MockDirector();
+ *
+ *     mock.setInventory(20, 10000);
+ *     mock.setLatency(5, 50);
+ *     mock.start();
+ *     ProviderContext ctx = mock.newContext();
+ * </pre>
+ */
+public class MockDirector {
+    static private final Logger logger = Logger.getLogger(MockDirector.class);
+
+    static public final String AUTH_HEADER = "x-vcloud-authorization";
+
+    private String  account         = "mock-org";
+    private double  errorRate       = 0.0;
+    private long    maxLatency      = 0L;
+    private long    minLatency      = 0L;
+    private int     networkCount    = 4;
+    private int     rateLimit       = 0;
+    private double  taskFailureRate = 0.0;
+    private long    taskMillis      = 1000L;
+    private int     templateCount   = 4;
+    private int     threads         = 32;
+    private int     vdcCount        = 2;
+    private int     vmCount         = 20;
+    private int     vmsPerVApp      = 1;
+
+    private final AtomicLong                      errors    = new AtomicLong();
+    private final AtomicLong                      rejected  = new AtomicLong();
+    private final AtomicLong                      requests  = new AtomicLong();
+    private final ConcurrentHashMap<String,Long>  sessions  = new ConcurrentHashMap<String,Long>();
+    private final Random                          random    = new Random();
+
+    private ExecutorService executor;
+    private MockInventory   inventory;
+    private HttpServer      server;
+    private double          tokens;
+    private long            lastRefill;
+
+    public MockDirector() { }
+
+    public void setAccount(@Nonnull String account) { this.account = account; }
+
+    /**
+     * @param errorRate the probability that an authenticated request fails with an HTTP 500
+     */
+    public void setErrorRate(double errorRate) { this.errorRate = errorRate; }
+
+    /**
+     * @param vdcCount the number of VDCs to generate
+     * @param vmCount the total number of VMs to spread over those VDCs
+     */
+    public void setInventory(int vdcCount, int vmCount) {
+        this.vdcCount = vdcCount;
+        this.vmCount = vmCount;
+    }
+
+    /**
+     * @param minMillis the minimum delay added to every response
+     * @param maxMillis the maximum delay added to every response
+     */
+    public void setLatency(long minMillis, long maxMillis) {
+        this.minLatency = minMillis;
+        this.maxLatency = Math.max(minMillis, maxMillis);
+    }
+
+    public void setNetworkCount(int networkCount) { this.networkCount = networkCount; }
+
+    /**
+     * @param requestsPerSecond the sustained request rate above which callers receive an HTTP 503, or 0 for no limit
+     */
+    public void setRateLimit(int requestsPerSecond) { this.rateLimit = requestsPerSecond; }
+
+    /**
+     * @param taskFailureRate the probability that a task ends in the <code>error</code> state
+     */
+    public void setTaskFailureRate(double taskFailureRate) { this.taskFailureRate = taskFailureRate; }
+
+    /**
+     * @param taskMillis how long every task runs before completing
+     */
+    public void setTaskMillis(long taskMillis) { this.taskMillis = taskMillis; }
+
+    public void setTemplateCount(int templateCount) { this.templateCount = templateCount; }
+
+    public void setThreads(int threads) { this.threads = threads; }
+
+    public void setVmsPerVApp(int vmsPerVApp) { this.vmsPerVApp = vmsPerVApp; }
+
+    public @Nonnull String getAccountNumber() { return account; }
+
+    /**
+     * @return the endpoint to place in {@link ProviderContext#setEndpoint(String)}
+     */
+    public @Nonnull String getEndpoint() {
+        if( server == null ) {
+            throw new IllegalStateException("The mock server has not been started");
+        }
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/api";
+    }
+
+    public long getErrorCount() { return errors.get(); }
+
+    public @Nonnull MockInventory getInventory() {
+        if( inventory == null ) {
+            throw new IllegalStateException("The mock server has not been started");
+        }
+        return inventory;
+    }
+
+    public long getRejectedCount() { return rejected.get(); }
+
+    public long getRequestCount() { return requests.get(); }
+
+    /**
+     * @return a provider context that connects to this server
+     */
+    public @Nonnull ProviderContext newContext() {
+        ProviderContext ctx = new ProviderContext();
+
+        ctx.setEndpoint(getEndpoint());
+        ctx.setAccountNumber(account);
+        ctx.setAccessKeys("mock".getBytes(), "mock".getBytes());
+        ctx.setRegionId(account);
+        ctx.setCloudName("Mock vCloud");
+        ctx.setProviderName("Mock");
+        return ctx;
+    }
+
+    /**
+     * Generates the inventory and starts listening on an ephemeral port of the loopback interface.
+     * @throws IOException the server could not be started
+     */
+    public synchronized void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 256);
+        inventory = new MockInventory("http://127.0.0.1:" + server.getAddress().getPort() + "/api/v" + MockInventory.VERSION, account, vdcCount, vmCount, vmsPerVApp, templateCount, networkCount, taskMillis, taskFailureRate);
+        executor = Executors.newFixedThreadPool(threads);
+        tokens = rateLimit;
+        lastRefill = System.nanoTime();
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+        if( logger.isInfoEnabled() ) {
+            logger.info("Mock vCloud Director serving " + vmCount + " VMs in " + vdcCount + " VDCs at " + getEndpoint());
+        }
+    }
+
+    public synchronized void stop() {
+        if( server != null ) {
+            server.stop(0);
+            executor.shutdownNow();
+            if( logger.isInfoEnabled() ) {
+                logger.info("Mock vCloud Director stopped after " + requests.get() + " requests (" + errors.get() + " injected errors, " + rejected.get() + " rate limited)");
+            }
+            server = null;
+        }
+    }
+
+    private synchronized boolean admit() {
+        if( rateLimit < 1 ) {
+            return true;
+        }
+        long now = System.nanoTime();
+
+        tokens = Math.min(rateLimit, tokens + ((now - lastRefill) / 1000000000.0) * rateLimit);
+        lastRefill = now;
+        if( tokens < 1.0 ) {
+            return false;
+        }
+        tokens -= 1.0;
+        return true;
+    }
+
+    private void delay() {
+        if( maxLatency < 1L ) {
+            return;
+        }
+        long millis = minLatency + (maxLatency > minLatency ? (long)(random.nextDouble() * (maxLatency - minLatency)) : 0L);
+
+        try { Thread.sleep(millis); }
+        catch( InterruptedException e ) { Thread.currentThread().interrupt(); }
+    }
+
+    private void serve(@Nonnull HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            MockInventory.Response response;
+
+            requests.incrementAndGet();
+            delay();
+            if( path.startsWith("/api") ) {
+                path = path.substring(4);
+            }
+            if( path.startsWith("/v" + MockInventory.VERSION + "/") ) {
+                path = path.substring(MockInventory.VERSION.length() + 2);
+            }
+            if( path.length() > 1 && path.endsWith("/") ) {
+                path = path.substring(0, path.length() - 1);
+            }
+            if( !admit() ) {
+                rejected.incrementAndGet();
+                response = MockInventory.error(503, "SERVICE_UNAVAILABLE", "Request rate exceeded");
+                exchange.getResponseHeaders().set("Retry-After", "1");
+            }
+            else if( path.equals("/versions") ) {
+                response = new MockInventory.Response(200, "text/xml", versions());
+            }
+            else if( path.equals("/login") || path.equals("/sessions") ) {
+                response = login(exchange);
+            }
+            else if( !sessions.containsKey(String.valueOf(exchange.getRequestHeaders().getFirst(AUTH_HEADER))) ) {
+                response = MockInventory.error(401, "UNAUTHORIZED", "Authentication required");
+            }
+            else if( errorRate > 0.0 && random.nextDouble() < errorRate ) {
+                errors.incrementAndGet();
+                response = MockInventory.error(500, "INTERNAL_SERVER_ERROR", "Injected failure");
+            }
+            else {
+                response = inventory.handle(method, path, read(exchange.getRequestBody()));
+            }
+            if( logger.isTraceEnabled() ) {
+                logger.trace(method + " " + path + " -> " + response.status);
+            }
+            send(exchange, response);
+        }
+        catch( RuntimeException e ) {
+            logger.error("Mock server failed: " + e.getMessage(), e);
+            send(exchange, MockInventory.error(500, "INTERNAL_SERVER_ERROR", String.valueOf(e.getMessage())));
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private @Nonnull MockInventory.Response login(@Nonnull HttpExchange exchange) {
+        String auth = exchange.getRequestHeaders().getFirst("Authorization");
+
+        if( !"POST".equals(exchange.getRequestMethod()) || auth == null || !auth.startsWith("Basic ") ) {
+            return MockInventory.error(401, "UNAUTHORIZED", "Basic authentication is required");
+        }
+        String user = new String(DatatypeConverter.parseBase64Binary(auth.substring(6).trim()));
+        int idx = user.indexOf('@');
+        int colon = user.indexOf(':');
+
+        if( idx < 0 || colon < idx || !user.substring(idx + 1, colon).equals(account) ) {
+            return MockInventory.error(401, "UNAUTHORIZED", "Unknown organization");
+        }
+        String token = UUID.randomUUID().toString().replace("-", "");
+
+        sessions.put(token, System.currentTimeMillis());
+        exchange.getResponseHeaders().set(AUTH_HEADER, token);
+        return new MockInventory.Response(200, "application/vnd.vmware.vcloud.orgList+xml", inventory.orgList());
+    }
+
+    private @Nonnull String versions() {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<SupportedVersions xmlns=\"http://www.vmware.com/vcloud/versions\">"
+                + "<VersionInfo><Version>" + MockInventory.VERSION + "</Version><LoginUrl>" + getEndpoint() + "/v" + MockInventory.VERSION + "/login</LoginUrl></VersionInfo>"
+                + "</SupportedVersions>";
+    }
+
+    static private String read(@Nonnull InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+
+        while( (count = in.read(buffer)) > -1 ) {
+            out.write(buffer, 0, count);
+        }
+        return (out.size() == 0 ? null : new String(out.toByteArray(), "utf-8"));
+    }
+
+    static private void send(@Nonnull HttpExchange exchange, @Nonnull MockInventory.Response response) throws IOException {
+        if( response.body == null ) {
+            exchange.sendResponseHeaders(response.status, -1);
+            return;
+        }
+        byte[] bytes = response.body.getBytes("utf-8");
+
+        exchange.getResponseHeaders().set("Content-Type", response.contentType);
+        exchange.sendResponseHeaders(response.status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+
+        out.write(bytes);
+        out.flush();
+    }
+}
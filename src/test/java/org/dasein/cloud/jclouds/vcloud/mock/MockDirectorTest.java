@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.mock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.compute.MachineImage;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.dc.DataCenter;
+import org.dasein.cloud.jclouds.vcloud.VcloudDirector;
+import org.dasein.cloud.network.VLAN;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs the support classes end to end against {@link MockDirector} and logs the latency of each call.
+ */
+public class MockDirectorTest {
+    static private final Logger logger = Logger.getLogger(MockDirectorTest.class);
+
+    static private MockDirector mock;
+
+    @BeforeClass
+    static public void startMock() throws Exception {
+        mock = new MockDirector();
+        mock.setInventory(2, 24);
+        mock.setVmsPerVApp(2);
+        mock.setTaskMillis(200L);
+        mock.start();
+    }
+
+    @AfterClass
+    static public void stopMock() {
+        if( mock != null ) {
+            mock.stop();
+        }
+    }
+
+    private VcloudDirector connect() {
+        VcloudDirector provider = new VcloudDirector();
+
+        provider.connect(mock.newContext());
+        return provider;
+    }
+
+    private void report(String operation, long started, int items) {
+        long millis = Math.max(1L, System.currentTimeMillis() - started);
+
+        if( logger.isInfoEnabled() ) {
+            logger.info(operation + ": " + items + " items in " + millis + " ms (" + (items * 1000L / millis) + "/s)");
+        }
+    }
+
+    @Test
+    public void listDataCenters() throws CloudException, InternalException {
+        VcloudDirector provider = connect();
+        long started = System.currentTimeMillis();
+        Collection<DataCenter> dcs = provider.getDataCenterServices().listDataCenters(mock.getAccountNumber());
+
+        report("listDataCenters", started, dcs.size());
+        assertEquals(2, dcs.size());
+    }
+
+    @Test
+    public void listVirtualMachines() throws CloudException, InternalException {
+        VcloudDirector provider = connect();
+        long started = System.currentTimeMillis();
+        int count = 0;
+
+        for( VirtualMachine vm : provider.getComputeServices().getVirtualMachineSupport().listVirtualMachines() ) {
+            assertNotNull(vm.getProviderVirtualMachineId());
+            assertNotNull(vm.getCurrentState());
+            count++;
+        }
+        report("listVirtualMachines", started, count);
+        assertEquals(mock.getInventory().getVmCount(), count);
+    }
+
+    @Test
+    public void getVirtualMachine() throws CloudException, InternalException {
+        VcloudDirector provider = connect();
+        String vmId = mock.getInventory().getVmIds("/vApp/vapp-1").get(0);
+        long started = System.currentTimeMillis();
+        VirtualMachine vm = provider.getComputeServices().getVirtualMachineSupport().getVirtualMachine(vmId);
+
+        report("getVirtualMachine", started, 1);
+        assertNotNull(vm);
+        assertEquals(vmId, vm.getProviderVirtualMachineId());
+    }
+
+    @Test
+    public void listVlans() throws CloudException, InternalException {
+        VcloudDirector provider = connect();
+        long started = System.currentTimeMillis();
+        List<VLAN> vlans = new ArrayList<VLAN>();
+
+        for( VLAN vlan : provider.getNetworkServices().getVlanSupport().listVlans() ) {
+            vlans.add(vlan);
+        }
+        report("listVlans", started, vlans.size());
+        assertFalse(vlans.isEmpty());
+    }
+
+    @Test
+    public void getVlanByName() throws CloudException, InternalException {
+        VcloudDirector provider = connect();
+        long started = System.currentTimeMillis();
+        VLAN vlan = provider.getNetworkServices().getVlanSupport().getVlanByName("net-1");
+
+        report("getVlanByName", started, 1);
+        assertNotNull(vlan);
+        assertEquals("10.1.0.0/16", vlan.getCidr());
+        assertEquals(vlan.getProviderVlanId(), provider.getNetworkServices().getVlanSupport().getVlan(vlan.getProviderVlanId()).getProviderVlanId());
+        assertNull(provider.getNetworkServices().getVlanSupport().getVlanByName("no-such-network"));
+        long requests = mock.getRequestCount();
+
+        provider.getNetworkServices().getVlanSupport().listVlans();
+        provider.getNetworkServices().getVlanSupport().getVlanByName("net-1");
+        assertEquals("VLAN lookups after the first load must come from the cache", requests, mock.getRequestCount());
+    }
+
+    @Test
+    public void listMachineImages() throws CloudException, InternalException {
+        VcloudDirector provider = connect();
+        long started = System.currentTimeMillis();
+        int count = 0;
+
+        for( MachineImage image : provider.getComputeServices().getImageSupport().listMachineImages() ) {
+            assertNotNull(image.getProviderMachineImageId());
+            count++;
+        }
+        report("listMachineImages", started, count);
+        assertTrue(count > 0);
+    }
+
+    @Test
+    public void powerCycle() throws CloudException, InternalException {
+        VcloudDirector provider = connect();
+        String vmId = mock.getInventory().getVmIds("/vApp/vapp-3").get(0);
+        long started = System.currentTimeMillis();
+
+        provider.getComputeServices().getVirtualMachineSupport().boot(vmId);
+        assertEquals(VmState.RUNNING, provider.getComputeServices().getVirtualMachineSupport().getVirtualMachine(vmId).getCurrentState());
+        provider.getComputeServices().getVirtualMachineSupport().pause(vmId);
+        report("powerCycle", started, 2);
+        assertEquals(VmState.PAUSED, provider.getComputeServices().getVirtualMachineSupport().getVirtualMachine(vmId).getCurrentState());
+    }
+
+    @Test
+    public void terminateAfterPause() throws CloudException, InternalException {
+        VcloudDirector provider = connect();
+        List<String> vmIds = mock.getInventory().getVmIds("/vApp/vapp-5");
+        long started = System.currentTimeMillis();
+
+        // powered off but still deployed: the delete is refused until the vApp is undeployed
+        for( String vmId : vmIds ) {
+            provider.getComputeServices().getVirtualMachineSupport().pause(vmId);
+        }
+        provider.getComputeServices().getVirtualMachineSupport().terminate(vmIds.get(0));
+        report("terminateAfterPause", started, vmIds.size());
+        assertTrue(mock.getInventory().getVmIds("/vApp/vapp-5").isEmpty());
+    }
+
+    @Test
+    public void throughput() throws Exception {
+        final VcloudDirector provider = connect();
+        final List<String> vms = new ArrayList<String>();
+
+        for( String vApp : mock.getInventory().getVAppIds() ) {
+            vms.addAll(mock.getInventory().getVmIds(vApp));
+        }
+        long requests = mock.getRequestCount();
+        long started = System.currentTimeMillis();
+
+        for( String vmId : vms ) {
+            assertNotNull(provider.getComputeServices().getVirtualMachineSupport().getVirtualMachine(vmId));
+        }
+        report("getVirtualMachine x" + vms.size() + " (" + (mock.getRequestCount() - requests) + " HTTP requests)", started, vms.size());
+    }
+}
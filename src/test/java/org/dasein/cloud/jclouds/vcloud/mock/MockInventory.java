@@ -0,0 +1,890 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.mock;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The simulated contents of a single vCloud organization and the XML views of it served by {@link MockDirector}.
+ * Every resource is keyed by its unversioned path (for example <code>/vApp/vm-12</code>), which is also the
+ * resource ID the adapter derives from its href. State changing requests return a task that completes after
+ * the configured task duration, at which point its effect (power state change, deletion, ...) is applied.
+ */
+public class MockInventory {
+    static public final String NS      = "http://www.vmware.com/vcloud/v1";
+    static public final String NS_15   = "http://www.vmware.com/vcloud/v1.5";
+    static public final String VERSION = "1.0";
+
+    static private final String OVF_NS = "xmlns:ovf=\"http://schemas.dmtf.org/ovf/envelope/1\" "
+            + "xmlns:vssd=\"http://schemas.dmtf.org/wbem/wscim/1/cim-schema/2/CIM_VirtualSystemSettingData\" "
+            + "xmlns:rasd=\"http://schemas.dmtf.org/wbem/wscim/1/cim-schema/2/CIM_ResourceAllocationSettingData\" "
+            + "xmlns:vmw=\"http://www.vmware.com/schema/ovf\" xmlns:vcloud=\"" + NS + "\"";
+
+    static public final int STATUS_UNRESOLVED = 0;
+    static public final int STATUS_RESOLVED   = 1;
+    static public final int STATUS_SUSPENDED  = 3;
+    static public final int STATUS_ON         = 4;
+    static public final int STATUS_OFF        = 8;
+
+    static private final Pattern NAME   = Pattern.compile("\\sname=\"([^\"]*)\"");
+    static private final Pattern SOURCE = Pattern.compile("<(?:\\w+:)?(?:Source|Entity)[^>]*href=\"([^\"]*)\"");
+
+    /**
+     * The outcome of a request: a status, a content type and an XML body.
+     */
+    static public class Response {
+        public final String body;
+        public final String contentType;
+        public final int    status;
+
+        public Response(int status, @Nullable String contentType, @Nullable String body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+
+    static private class Resource {
+        public String id;
+        public String name;
+        public String description;
+    }
+
+    static private class Vdc extends Resource {
+        public final ArrayList<String> entities = new ArrayList<String>();
+    }
+
+    static private class VApp extends Resource {
+        public String            vdc;
+        public boolean           deployed;
+        public int               status;
+        public final ArrayList<String> vms = new ArrayList<String>();
+    }
+
+    static private class Vm extends Resource {
+        public String  vApp;
+        public int     cpus;
+        public boolean deployed;
+        public String  ipAddress;
+        public long    memory;
+        public String  network;
+        public String  osType;
+        public int     status;
+    }
+
+    static private class Template extends Resource {
+        public String vdc;
+        public String osType;
+        public int    status;
+    }
+
+    static private class Network extends Resource {
+        public String gateway;
+        public String netmask;
+    }
+
+    static private class Catalog extends Resource {
+        public final ArrayList<String> items = new ArrayList<String>();
+    }
+
+    static private class CatalogItem extends Resource {
+        public String catalog;
+        public String entity;
+    }
+
+    static private abstract class Task extends Resource {
+        public long    completes;
+        public boolean failed;
+        public String  owner;
+        public String  ownerType;
+        public long    started;
+        public String  status = "running";
+
+        public abstract void apply();
+    }
+
+    private final String                       account;
+    private final String                       base;
+    private final HashMap<String,Resource>     resources = new HashMap<String,Resource>();
+    private final ArrayList<String>            catalogs  = new ArrayList<String>();
+    private final ArrayList<String>            networks  = new ArrayList<String>();
+    private final ArrayList<Task>              pending   = new ArrayList<Task>();
+    private final Random                       random    = new Random(17L);
+    private final long                         taskMillis;
+    private final double                       taskFailureRate;
+    private final ArrayList<String>            vdcs      = new ArrayList<String>();
+    private int                                sequence  = 1000;
+
+    /**
+     * Generates an inventory.
+     * @param base the versioned API endpoint used to form hrefs, e.g. <code>http://127.0.0.1:8080/api/v1.0</code>
+     * @param account the organization name
+     * @param vdcCount the number of VDCs
+     * @param vmCount the total number of VMs, spread evenly over the VDCs
+     * @param vmsPerVApp the number of VMs in each vApp
+     * @param templateCount the number of vApp templates in the organization catalog
+     * @param networkCount the number of org networks
+     * @param taskMillis how long each task runs before it completes
+     * @param taskFailureRate the probability that a task ends in error
+     */
+    public MockInventory(@Nonnull String base, @Nonnull String account, int vdcCount, int vmCount, int vmsPerVApp, int templateCount, int networkCount, long taskMillis, double taskFailureRate) {
+        this.base = base;
+        this.account = account;
+        this.taskMillis = taskMillis;
+        this.taskFailureRate = taskFailureRate;
+        for( int i=1; i<=Math.max(1, networkCount); i++ ) {
+            Network n = new Network();
+
+            n.id = "/network/" + i;
+            n.name = "net-" + i;
+            n.description = "Routed network " + i;
+            n.gateway = "10." + i + ".0.1";
+            n.netmask = "255.255.0.0";
+            resources.put(n.id, n);
+            networks.add(n.id);
+        }
+        for( int i=1; i<=Math.max(1, vdcCount); i++ ) {
+            Vdc vdc = new Vdc();
+
+            vdc.id = "/vdc/" + i;
+            vdc.name = "vdc-" + i;
+            vdc.description = "Virtual data center " + i;
+            resources.put(vdc.id, vdc);
+            vdcs.add(vdc.id);
+        }
+        Catalog catalog = new Catalog();
+
+        catalog.id = "/catalog/1";
+        catalog.name = "mock-catalog";
+        catalog.description = "Organization catalog";
+        resources.put(catalog.id, catalog);
+        catalogs.add(catalog.id);
+        for( int i=1; i<=Math.max(1, templateCount); i++ ) {
+            Template t = new Template();
+
+            t.id = "/vAppTemplate/vappTemplate-" + i;
+            t.name = (i % 2 == 0 ? "windows-2008-64-bit-" + i : "ubuntu-12.04-amd64-" + i);
+            t.description = t.name;
+            t.osType = (i % 2 == 0 ? "windows7Server64Guest" : "ubuntu64Guest");
+            t.status = STATUS_OFF;
+            t.vdc = vdcs.get(0);
+            resources.put(t.id, t);
+            ((Vdc)resources.get(t.vdc)).entities.add(t.id);
+            addToCatalog(catalog, t.id, t.name);
+        }
+        int apps = (vmCount + Math.max(1, vmsPerVApp) - 1) / Math.max(1, vmsPerVApp);
+        int vmIndex = 0;
+
+        for( int i=1; i<=apps; i++ ) {
+            VApp app = new VApp();
+
+            app.id = "/vApp/vapp-" + i;
+            app.name = "app-" + i;
+            app.description = "/vAppTemplate/vappTemplate-" + (1 + (i % Math.max(1, templateCount)));
+            app.vdc = vdcs.get(i % vdcs.size());
+            app.deployed = (i % 3 != 0);
+            app.status = (app.deployed ? STATUS_ON : STATUS_OFF);
+            resources.put(app.id, app);
+            ((Vdc)resources.get(app.vdc)).entities.add(app.id);
+            for( int j=0; j<vmsPerVApp && vmIndex < vmCount; j++ ) {
+                vmIndex++;
+                addVm(app, "vm-" + vmIndex, "vm-" + vmIndex, (i % 2 == 0 ? "windows7Server64Guest" : "ubuntu64Guest"));
+            }
+        }
+    }
+
+    private @Nonnull CatalogItem addToCatalog(@Nonnull Catalog catalog, @Nonnull String entity, @Nonnull String name) {
+        CatalogItem item = new CatalogItem();
+
+        item.id = "/catalogItem/" + (++sequence);
+        item.name = name;
+        item.description = name;
+        item.catalog = catalog.id;
+        item.entity = entity;
+        resources.put(item.id, item);
+        catalog.items.add(item.id);
+        return item;
+    }
+
+    private @Nonnull Vm addVm(@Nonnull VApp app, @Nonnull String key, @Nonnull String name, @Nonnull String osType) {
+        Vm vm = new Vm();
+        int n = Math.abs(key.hashCode());
+
+        vm.id = "/vApp/" + key;
+        vm.name = name;
+        vm.description = name;
+        vm.vApp = app.id;
+        vm.cpus = 1 << (n % 3);
+        vm.memory = 512L << (n % 4);
+        vm.osType = osType;
+        vm.status = app.status;
+        vm.deployed = app.deployed;
+        vm.network = networks.get(n % networks.size());
+        vm.ipAddress = ((Network)resources.get(vm.network)).gateway.replaceAll("\\.1$", "") + "." + ((n / 7) % 250 + 2);
+        resources.put(vm.id, vm);
+        app.vms.add(vm.id);
+        return vm;
+    }
+
+    /**
+     * @return the number of VMs currently in the inventory
+     */
+    public synchronized int getVmCount() {
+        int count = 0;
+
+        for( Resource r : resources.values() ) {
+            if( r instanceof Vm ) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the IDs of all vApps currently in the inventory
+     */
+    public synchronized @Nonnull List<String> getVAppIds() {
+        ArrayList<String> ids = new ArrayList<String>();
+
+        for( Resource r : resources.values() ) {
+            if( r instanceof VApp ) {
+                ids.add(r.id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return the IDs of the VMs of the specified vApp
+     */
+    public synchronized @Nonnull List<String> getVmIds(@Nonnull String vAppId) {
+        Resource r = resources.get(vAppId);
+
+        return (r instanceof VApp ? new ArrayList<String>(((VApp)r).vms) : new ArrayList<String>());
+    }
+
+    /**
+     * Answers a request against the API.
+     * @param method the HTTP method
+     * @param path the unversioned path, e.g. <code>/vApp/vm-12</code>
+     * @param body the request body, if any
+     * @return the response to send
+     */
+    public synchronized @Nonnull Response handle(@Nonnull String method, @Nonnull String path, @Nullable String body) {
+        settle();
+        if( method.equals("GET") ) {
+            return get(path);
+        }
+        if( method.equals("DELETE") ) {
+            return delete(path);
+        }
+        if( method.equals("POST") && path.endsWith("/action/instantiateVAppTemplate") ) {
+            return instantiate(path.substring(0, path.length() - "/action/instantiateVAppTemplate".length()), body);
+        }
+        if( method.equals("POST") && path.endsWith("/action/captureVApp") ) {
+            return capture(path.substring(0, path.length() - "/action/captureVApp".length()), body);
+        }
+        if( method.equals("POST") && path.endsWith("/catalogItems") ) {
+            return catalog(path.substring(0, path.length() - "/catalogItems".length()), body);
+        }
+        if( method.equals("POST") || method.equals("PUT") ) {
+            return act(path, body);
+        }
+        return error(405, "METHOD_NOT_ALLOWED", method + " is not supported");
+    }
+
+    private void settle() {
+        long now = System.currentTimeMillis();
+        Iterator<Task> it = pending.iterator();
+
+        while( it.hasNext() ) {
+            Task task = it.next();
+
+            if( task.completes <= now ) {
+                it.remove();
+                if( task.failed ) {
+                    task.status = "error";
+                }
+                else {
+                    task.status = "success";
+                    task.apply();
+                }
+            }
+        }
+    }
+
+    private @Nonnull Task start(@Nonnull Task task, @Nonnull String operation, @Nonnull String owner, @Nonnull String ownerType) {
+        task.id = "/task/" + (++sequence);
+        task.name = operation;
+        task.description = operation;
+        task.owner = owner;
+        task.ownerType = ownerType;
+        task.started = System.currentTimeMillis();
+        task.completes = task.started + taskMillis;
+        task.failed = (taskFailureRate > 0.0 && random.nextDouble() < taskFailureRate);
+        resources.put(task.id, task);
+        pending.add(task);
+        return task;
+    }
+
+    private @Nonnull Response get(@Nonnull String path) {
+        if( path.equals("/org") ) {
+            return ok("orgList", orgList());
+        }
+        if( path.endsWith("/metrics/current") || path.endsWith("/metrics/historic") ) {
+            Resource r = resources.get(path.substring(0, path.lastIndexOf("/metrics/")));
+
+            if( !(r instanceof Vm) ) {
+                return notFound(path);
+            }
+            return new Response(200, "application/vnd.vmware.vcloud.metrics." + (path.endsWith("current") ? "currentUsageSpec" : "historicUsageSpec") + "+xml", metrics((Vm)r, path.endsWith("historic")));
+        }
+        if( path.equals("/org/1") ) {
+            return ok("org", org());
+        }
+        Resource r = resources.get(path);
+
+        if( r instanceof Vdc ) {
+            return ok("vdc", vdc((Vdc)r));
+        }
+        if( r instanceof VApp ) {
+            return ok("vApp", vApp((VApp)r));
+        }
+        if( r instanceof Vm ) {
+            return ok("vm", vm((Vm)r, true));
+        }
+        if( r instanceof Template ) {
+            return ok("vAppTemplate", template((Template)r));
+        }
+        if( r instanceof Network ) {
+            return ok("network", network((Network)r));
+        }
+        if( r instanceof Catalog ) {
+            return ok("catalog", catalog((Catalog)r));
+        }
+        if( r instanceof CatalogItem ) {
+            return ok("catalogItem", catalogItem((CatalogItem)r));
+        }
+        if( r instanceof Task ) {
+            return ok("task", task((Task)r, true));
+        }
+        return notFound(path);
+    }
+
+    private @Nonnull Response delete(@Nonnull String path) {
+        final Resource r = resources.get(path);
+
+        if( r instanceof VApp ) {
+            final VApp app = (VApp)r;
+
+            if( app.deployed ) {
+                return error(400, "BAD_REQUEST", "The requested operation could not be executed since vApp \"" + app.name + "\" is not undeployed.");
+            }
+            return ok("task", task(start(new Task() {
+                public void apply() {
+                    for( String vm : app.vms ) {
+                        resources.remove(vm);
+                    }
+                    resources.remove(app.id);
+                    ((Vdc)resources.get(app.vdc)).entities.remove(app.id);
+                }
+            }, "vdcDeleteVapp", app.id, "vApp"), false));
+        }
+        if( r instanceof Template ) {
+            final Template t = (Template)r;
+
+            return ok("task", task(start(new Task() {
+                public void apply() {
+                    resources.remove(t.id);
+                    ((Vdc)resources.get(t.vdc)).entities.remove(t.id);
+                    for( String c : catalogs ) {
+                        Iterator<String> it = ((Catalog)resources.get(c)).items.iterator();
+
+                        while( it.hasNext() ) {
+                            String item = it.next();
+
+                            if( t.id.equals(((CatalogItem)resources.get(item)).entity) ) {
+                                it.remove();
+                                resources.remove(item);
+                            }
+                        }
+                    }
+                }
+            }, "vdcDeleteTemplate", t.id, "vAppTemplate"), false));
+        }
+        if( r instanceof CatalogItem ) {
+            resources.remove(r.id);
+            ((Catalog)resources.get(((CatalogItem)r).catalog)).items.remove(r.id);
+            return new Response(204, null, null);
+        }
+        return notFound(path);
+    }
+
+    private @Nonnull Response act(@Nonnull String path, @Nullable String body) {
+        String id = path;
+        Resource r = null;
+
+        while( id.lastIndexOf('/') > 0 ) {
+            r = resources.get(id);
+            if( r != null ) {
+                break;
+            }
+            id = id.substring(0, id.lastIndexOf('/'));
+        }
+        if( r == null ) {
+            return notFound(path);
+        }
+        String action = path.substring(path.lastIndexOf('/') + 1);
+        final ArrayList<Vm> vms = new ArrayList<Vm>();
+        final VApp app;
+
+        if( r instanceof VApp ) {
+            app = (VApp)r;
+            for( String vm : app.vms ) {
+                vms.add((Vm)resources.get(vm));
+            }
+        }
+        else if( r instanceof Vm ) {
+            app = (VApp)resources.get(((Vm)r).vApp);
+            vms.add((Vm)r);
+        }
+        else {
+            final Resource target = r;
+
+            return ok("task", task(start(new Task() {
+                public void apply() { }
+            }, action, target.id, (target instanceof Template ? "vAppTemplate" : "entity")), false));
+        }
+        final int vmStatus;
+        final Boolean deployed;
+
+        if( action.equals("powerOn") ) {
+            vmStatus = STATUS_ON;
+            deployed = Boolean.TRUE;
+        }
+        else if( action.equals("powerOff") || action.equals("shutdown") ) {
+            vmStatus = STATUS_OFF;
+            deployed = null;
+        }
+        else if( action.equals("suspend") ) {
+            vmStatus = STATUS_SUSPENDED;
+            deployed = null;
+        }
+        else if( action.equals("deploy") ) {
+            vmStatus = (body != null && body.contains("powerOn=\"true\"") ? STATUS_ON : -1);
+            deployed = Boolean.TRUE;
+        }
+        else if( action.equals("undeploy") ) {
+            vmStatus = (body != null && body.contains("saveState=\"true\"") ? STATUS_SUSPENDED : STATUS_OFF);
+            deployed = Boolean.FALSE;
+        }
+        else {
+            vmStatus = -1;
+            deployed = null;
+        }
+        return ok("task", task(start(new Task() {
+            public void apply() {
+                for( Vm vm : vms ) {
+                    if( vmStatus >= 0 ) {
+                        vm.status = vmStatus;
+                    }
+                    if( deployed != null ) {
+                        vm.deployed = deployed;
+                    }
+                }
+                boolean on = false, anyDeployed = false;
+
+                for( String id : app.vms ) {
+                    Vm vm = (Vm)resources.get(id);
+
+                    on = on || vm.status == STATUS_ON;
+                    anyDeployed = anyDeployed || vm.deployed;
+                }
+                app.status = (on ? STATUS_ON : STATUS_OFF);
+                app.deployed = anyDeployed;
+            }
+        }, (r instanceof VApp ? "vapp" : "vm") + action, r.id, (r instanceof VApp ? "vApp" : "vm")), false));
+    }
+
+    private @Nonnull Response instantiate(@Nonnull String vdcId, @Nullable String body) {
+        Resource vdc = resources.get(vdcId);
+        String name = find(NAME, body);
+        String source = find(SOURCE, body);
+        Resource t = (source == null ? null : resources.get(toId(source)));
+
+        if( !(vdc instanceof Vdc) ) {
+            return notFound(vdcId);
+        }
+        if( !(t instanceof Template) || name == null ) {
+            return error(400, "BAD_REQUEST", "A valid template and name are required");
+        }
+        final VApp app = new VApp();
+
+        app.id = "/vApp/vapp-" + (++sequence);
+        app.name = name;
+        app.description = t.id;
+        app.vdc = vdc.id;
+        app.status = STATUS_UNRESOLVED;
+        resources.put(app.id, app);
+        ((Vdc)vdc).entities.add(app.id);
+        final Vm vm = addVm(app, "vm-" + (++sequence), name, ((Template)t).osType);
+
+        vm.status = STATUS_UNRESOLVED;
+        start(new Task() {
+            public void apply() {
+                app.status = STATUS_OFF;
+                vm.status = STATUS_OFF;
+            }
+        }, "vdcInstantiateVapp", app.id, "vApp");
+        return new Response(201, "application/vnd.vmware.vcloud.vApp+xml", vApp(app));
+    }
+
+    private @Nonnull Response capture(@Nonnull String vdcId, @Nullable String body) {
+        Resource vdc = resources.get(vdcId);
+        String name = find(NAME, body);
+        String source = find(SOURCE, body);
+        Resource app = (source == null ? null : resources.get(toId(source)));
+
+        if( !(vdc instanceof Vdc) ) {
+            return notFound(vdcId);
+        }
+        if( !(app instanceof VApp) || name == null ) {
+            return error(400, "BAD_REQUEST", "A valid vApp and name are required");
+        }
+        final Template t = new Template();
+
+        t.id = "/vAppTemplate/vappTemplate-" + (++sequence);
+        t.name = name;
+        t.description = name;
+        t.vdc = vdc.id;
+        t.status = STATUS_UNRESOLVED;
+        List<String> vms = ((VApp)app).vms;
+        t.osType = (vms.isEmpty() ? "otherGuest" : ((Vm)resources.get(vms.get(0))).osType);
+        resources.put(t.id, t);
+        ((Vdc)vdc).entities.add(t.id);
+        start(new Task() {
+            public void apply() {
+                t.status = STATUS_OFF;
+            }
+        }, "vdcCaptureTemplate", t.id, "vAppTemplate");
+        return new Response(201, "application/vnd.vmware.vcloud.vAppTemplate+xml", template(t));
+    }
+
+    private @Nonnull Response catalog(@Nonnull String catalogId, @Nullable String body) {
+        Resource c = resources.get(catalogId);
+        String name = find(NAME, body);
+        String entity = find(SOURCE, body);
+
+        if( !(c instanceof Catalog) ) {
+            return notFound(catalogId);
+        }
+        if( entity == null || !resources.containsKey(toId(entity)) ) {
+            return error(400, "BAD_REQUEST", "A valid entity is required");
+        }
+        CatalogItem item = addToCatalog((Catalog)c, toId(entity), (name == null ? "item" : name));
+
+        return new Response(201, "application/vnd.vmware.vcloud.catalogItem+xml", catalogItem(item));
+    }
+
+    private @Nullable String find(@Nonnull Pattern pattern, @Nullable String body) {
+        if( body == null ) {
+            return null;
+        }
+        Matcher m = pattern.matcher(body);
+
+        return (m.find() ? m.group(1) : null);
+    }
+
+    private @Nonnull String toId(@Nonnull String href) {
+        int idx = href.indexOf("/api/");
+
+        if( idx < 0 ) {
+            return href;
+        }
+        String path = href.substring(idx + 4);
+
+        return (path.startsWith("/v" + VERSION + "/") ? path.substring(VERSION.length() + 2) : path);
+    }
+
+    /**
+     * @param status the HTTP status
+     * @param minor the vCloud minor error code
+     * @param message the error message
+     * @return an error response in the vCloud format
+     */
+    static public @Nonnull Response error(int status, @Nonnull String minor, @Nonnull String message) {
+        return new Response(status, "application/vnd.vmware.vcloud.error+xml", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Error xmlns=\"" + NS + "\" minorErrorCode=\"" + minor + "\" message=\"" + escape(message) + "\" majorErrorCode=\"" + status + "\"/>");
+    }
+
+    private @Nonnull Response notFound(@Nonnull String path) {
+        return error(403, "ACCESS_TO_RESOURCE_IS_FORBIDDEN", "No access to entity \"" + path + "\".");
+    }
+
+    private @Nonnull Response ok(@Nonnull String type, @Nonnull String xml) {
+        return new Response(200, "application/vnd.vmware.vcloud." + type + "+xml", xml);
+    }
+
+    static private @Nonnull String escape(@Nullable String s) {
+        if( s == null ) {
+            return "";
+        }
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private @Nonnull String href(@Nonnull String id) {
+        return base + id;
+    }
+
+    private @Nonnull String ref(@Nonnull String element, @Nullable String rel, @Nonnull String type, @Nullable String name, @Nonnull String id) {
+        return "<" + element + (rel == null ? "" : " rel=\"" + rel + "\"") + " type=\"application/vnd.vmware.vcloud." + type + "+xml\"" + (name == null ? "" : " name=\"" + escape(name) + "\"") + " href=\"" + href(id) + "\"/>";
+    }
+
+    static private @Nonnull String date(long when) {
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+        fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return fmt.format(new Date(when));
+    }
+
+    /**
+     * @return the <code>OrgList</code> returned by login and by <code>GET /org</code>
+     */
+    public @Nonnull String orgList() {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<OrgList xmlns=\"" + NS + "\" type=\"application/vnd.vmware.vcloud.orgList+xml\" href=\"" + href("/org") + "\">"
+                + ref("Org", null, "org", account, "/org/1") + "</OrgList>";
+    }
+
+    private @Nonnull String org() {
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Org xmlns=\"").append(NS).append("\" name=\"").append(escape(account)).append("\" type=\"application/vnd.vmware.vcloud.org+xml\" href=\"").append(href("/org/1")).append("\">");
+        for( String id : vdcs ) {
+            xml.append(ref("Link", "down", "vdc", resources.get(id).name, id));
+        }
+        for( String id : catalogs ) {
+            xml.append(ref("Link", "down", "catalog", resources.get(id).name, id));
+        }
+        xml.append(ref("Link", "down", "tasksList", null, "/tasksList/1"));
+        for( String id : networks ) {
+            xml.append(ref("Link", "down", "network", resources.get(id).name, id));
+        }
+        xml.append("<Description>Mock organization</Description><FullName>").append(escape(account)).append("</FullName></Org>");
+        return xml.toString();
+    }
+
+    private @Nonnull String vdc(@Nonnull Vdc vdc) {
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Vdc xmlns=\"").append(NS).append("\" status=\"1\" name=\"").append(escape(vdc.name)).append("\" type=\"application/vnd.vmware.vcloud.vdc+xml\" href=\"").append(href(vdc.id)).append("\">");
+        xml.append(ref("Link", "up", "org", account, "/org/1"));
+        xml.append(ref("Link", "add", "instantiateVAppTemplateParams", null, vdc.id + "/action/instantiateVAppTemplate"));
+        xml.append(ref("Link", "add", "captureVAppParams", null, vdc.id + "/action/captureVApp"));
+        xml.append("<Description>").append(escape(vdc.description)).append("</Description>");
+        xml.append("<AllocationModel>AllocationPool</AllocationModel>");
+        xml.append("<StorageCapacity><Units>MB</Units><Allocated>1024000</Allocated><Limit>1024000</Limit><Used>0</Used><Overhead>0</Overhead></StorageCapacity>");
+        xml.append("<ComputeCapacity><Cpu><Units>MHz</Units><Allocated>20000</Allocated><Limit>20000</Limit><Used>0</Used><Overhead>0</Overhead></Cpu>");
+        xml.append("<Memory><Units>MB</Units><Allocated>40960</Allocated><Limit>40960</Limit><Used>0</Used><Overhead>0</Overhead></Memory></ComputeCapacity>");
+        xml.append("<ResourceEntities>");
+        for( String id : vdc.entities ) {
+            Resource r = resources.get(id);
+
+            xml.append(ref("ResourceEntity", null, (r instanceof Template ? "vAppTemplate" : "vApp"), r.name, id));
+        }
+        xml.append("</ResourceEntities><AvailableNetworks>");
+        for( String id : networks ) {
+            xml.append(ref("Network", null, "network", resources.get(id).name, id));
+        }
+        xml.append("</AvailableNetworks><NicQuota>0</NicQuota><NetworkQuota>20</NetworkQuota><VmQuota>0</VmQuota><IsEnabled>true</IsEnabled></Vdc>");
+        return xml.toString();
+    }
+
+    private @Nonnull String tasks(@Nonnull String owner) {
+        StringBuilder xml = new StringBuilder();
+
+        for( Task task : pending ) {
+            if( task.owner.equals(owner) ) {
+                xml.append(task(task, false));
+            }
+        }
+        return (xml.length() == 0 ? "" : "<Tasks>" + xml + "</Tasks>");
+    }
+
+    private @Nonnull String vApp(@Nonnull VApp app) {
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<VApp xmlns=\"").append(NS).append("\" ").append(OVF_NS).append(" deployed=\"").append(app.deployed).append("\" status=\"").append(app.status).append("\" name=\"").append(escape(app.name)).append("\" type=\"application/vnd.vmware.vcloud.vApp+xml\" href=\"").append(href(app.id)).append("\">");
+        xml.append(ref("Link", "up", "vdc", null, app.vdc));
+        xml.append(ref("Link", "power:powerOn", "vApp", null, app.id + "/power/action/powerOn"));
+        xml.append(ref("Link", "deploy", "deployVAppParams", null, app.id + "/action/deploy"));
+        xml.append(ref("Link", "undeploy", "undeployVAppParams", null, app.id + "/action/undeploy"));
+        xml.append("<Description>").append(escape(app.description)).append("</Description>");
+        xml.append(tasks(app.id));
+        xml.append("<Children>");
+        for( String id : app.vms ) {
+            xml.append(vm((Vm)resources.get(id), false));
+        }
+        xml.append("</Children></VApp>");
+        return xml.toString();
+    }
+
+    private @Nonnull String vm(@Nonnull Vm vm, boolean document) {
+        StringBuilder xml = new StringBuilder();
+        String h = href(vm.id);
+        Network net = (Network)resources.get(vm.network);
+
+        if( document ) {
+            xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Vm xmlns=\"").append(NS).append("\" ").append(OVF_NS);
+        }
+        else {
+            xml.append("<Vm");
+        }
+        xml.append(" deployed=\"").append(vm.deployed).append("\" status=\"").append(vm.status).append("\" name=\"").append(escape(vm.name)).append("\" type=\"application/vnd.vmware.vcloud.vm+xml\" href=\"").append(h).append("\">");
+        xml.append(ref("Link", "up", "vApp", null, vm.vApp));
+        xml.append("<Description>").append(escape(vm.description)).append("</Description>");
+        xml.append(tasks(vm.id));
+        xml.append("<ovf:VirtualHardwareSection vcloud:type=\"application/vnd.vmware.vcloud.virtualHardwareSection+xml\" vcloud:href=\"").append(h).append("/virtualHardwareSection/\">");
+        xml.append("<ovf:Info>Virtual hardware requirements</ovf:Info><ovf:System><vssd:ElementName>Virtual Hardware Family</vssd:ElementName><vssd:InstanceID>0</vssd:InstanceID>");
+        xml.append("<vssd:VirtualSystemIdentifier>").append(escape(vm.name)).append("</vssd:VirtualSystemIdentifier><vssd:VirtualSystemType>vmx-07</vssd:VirtualSystemType></ovf:System>");
+        xml.append("<ovf:Item><rasd:Address>00:50:56:01:").append(String.format("%02x:%02x", (vm.id.hashCode() >> 8) & 0xff, vm.id.hashCode() & 0xff)).append("</rasd:Address><rasd:AddressOnParent>0</rasd:AddressOnParent><rasd:AutomaticAllocation>true</rasd:AutomaticAllocation>");
+        xml.append("<rasd:Connection vcloud:ipAddress=\"").append(vm.ipAddress).append("\" vcloud:primaryNetworkConnection=\"true\" vcloud:ipAddressingMode=\"POOL\">").append(escape(net.name)).append("</rasd:Connection>");
+        xml.append("<rasd:Description>PCNet32 ethernet adapter</rasd:Description><rasd:ElementName>Network adapter 0</rasd:ElementName><rasd:InstanceID>1</rasd:InstanceID><rasd:ResourceSubType>PCNet32</rasd:ResourceSubType><rasd:ResourceType>10</rasd:ResourceType></ovf:Item>");
+        xml.append("<ovf:Item><rasd:AllocationUnits>hertz * 10^6</rasd:AllocationUnits><rasd:Description>Number of Virtual CPUs</rasd:Description><rasd:ElementName>").append(vm.cpus).append(" virtual CPU(s)</rasd:ElementName><rasd:InstanceID>4</rasd:InstanceID><rasd:Reservation>0</rasd:Reservation><rasd:ResourceType>3</rasd:ResourceType><rasd:VirtualQuantity>").append(vm.cpus).append("</rasd:VirtualQuantity><rasd:Weight>0</rasd:Weight></ovf:Item>");
+        xml.append("<ovf:Item><rasd:AllocationUnits>byte * 2^20</rasd:AllocationUnits><rasd:Description>Memory Size</rasd:Description><rasd:ElementName>").append(vm.memory).append(" MB of memory</rasd:ElementName><rasd:InstanceID>5</rasd:InstanceID><rasd:Reservation>0</rasd:Reservation><rasd:ResourceType>4</rasd:ResourceType><rasd:VirtualQuantity>").append(vm.memory).append("</rasd:VirtualQuantity><rasd:Weight>0</rasd:Weight></ovf:Item>");
+        xml.append("</ovf:VirtualHardwareSection>");
+        xml.append("<ovf:OperatingSystemSection ovf:id=\"94\" vcloud:type=\"application/vnd.vmware.vcloud.operatingSystemSection+xml\" vmw:osType=\"").append(vm.osType).append("\" vcloud:href=\"").append(h).append("/operatingSystemSection/\"><ovf:Info>Specifies the operating system installed</ovf:Info><ovf:Description>").append(vm.osType).append("</ovf:Description></ovf:OperatingSystemSection>");
+        xml.append("<NetworkConnectionSection type=\"application/vnd.vmware.vcloud.networkConnectionSection+xml\" href=\"").append(h).append("/networkConnectionSection/\" ovf:required=\"false\"><ovf:Info>Specifies the available VM network connections</ovf:Info>");
+        xml.append("<PrimaryNetworkConnectionIndex>0</PrimaryNetworkConnectionIndex><NetworkConnection network=\"").append(escape(net.name)).append("\"><NetworkConnectionIndex>0</NetworkConnectionIndex><IpAddress>").append(vm.ipAddress).append("</IpAddress>");
+        xml.append("<IsConnected>true</IsConnected><MACAddress>00:50:56:01:01:01</MACAddress><IpAddressAllocationMode>POOL</IpAddressAllocationMode></NetworkConnection></NetworkConnectionSection>");
+        xml.append("<GuestCustomizationSection type=\"application/vnd.vmware.vcloud.guestCustomizationSection+xml\" href=\"").append(h).append("/guestCustomizationSection/\" ovf:required=\"false\"><ovf:Info>Specifies Guest OS Customization Settings</ovf:Info>");
+        xml.append("<Enabled>true</Enabled><ChangeSid>false</ChangeSid><VirtualMachineId>").append(vm.id.substring(vm.id.lastIndexOf('-') + 1)).append("</VirtualMachineId><JoinDomainEnabled>false</JoinDomainEnabled><UseOrgSettings>false</UseOrgSettings>");
+        xml.append("<DomainName/><DomainUserName/><DomainUserPassword/><AdminPasswordEnabled>true</AdminPasswordEnabled><AdminPasswordAuto>true</AdminPasswordAuto><AdminPassword>mock-password</AdminPassword><ResetPasswordRequired>false</ResetPasswordRequired><CustomizationScript/>");
+        xml.append("<ComputerName>").append(escape(vm.name)).append("</ComputerName></GuestCustomizationSection>");
+        xml.append("<VAppScopedLocalId>").append(escape(vm.name)).append("</VAppScopedLocalId></Vm>");
+        return xml.toString();
+    }
+
+    private @Nonnull String template(@Nonnull Template t) {
+        StringBuilder xml = new StringBuilder();
+        String child = "/vAppTemplate/vm-" + t.id.substring(t.id.lastIndexOf('-') + 1);
+
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<VAppTemplate xmlns=\"").append(NS).append("\" ").append(OVF_NS).append(" ovfDescriptorUploaded=\"true\" status=\"").append(t.status).append("\" name=\"").append(escape(t.name)).append("\" type=\"application/vnd.vmware.vcloud.vAppTemplate+xml\" href=\"").append(href(t.id)).append("\">");
+        xml.append(ref("Link", "up", "vdc", null, t.vdc));
+        xml.append("<Description>").append(escape(t.description)).append("</Description>");
+        xml.append(tasks(t.id));
+        xml.append("<Children><Vm name=\"").append(escape(t.name)).append("\" type=\"application/vnd.vmware.vcloud.vm+xml\" href=\"").append(href(child)).append("\">");
+        xml.append(ref("Link", "up", "vAppTemplate", null, t.id));
+        xml.append("<Description/><ovf:OperatingSystemSection ovf:id=\"94\" vmw:osType=\"").append(t.osType).append("\"><ovf:Info>Specifies the operating system installed</ovf:Info><ovf:Description>").append(t.osType).append("</ovf:Description></ovf:OperatingSystemSection>");
+        xml.append("<NetworkConnectionSection type=\"application/vnd.vmware.vcloud.networkConnectionSection+xml\" href=\"").append(href(child)).append("/networkConnectionSection/\" ovf:required=\"false\"><ovf:Info>Specifies the available VM network connections</ovf:Info>");
+        xml.append("<PrimaryNetworkConnectionIndex>0</PrimaryNetworkConnectionIndex><NetworkConnection network=\"none\"><NetworkConnectionIndex>0</NetworkConnectionIndex><IsConnected>false</IsConnected><MACAddress>00:50:56:01:00:01</MACAddress><IpAddressAllocationMode>NONE</IpAddressAllocationMode></NetworkConnection></NetworkConnectionSection>");
+        xml.append("<VAppScopedLocalId>").append(escape(t.name)).append("</VAppScopedLocalId></Vm></Children></VAppTemplate>");
+        return xml.toString();
+    }
+
+    private @Nonnull String network(@Nonnull Network n) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<OrgNetwork xmlns=\"" + NS + "\" name=\"" + escape(n.name) + "\" type=\"application/vnd.vmware.vcloud.network+xml\" href=\"" + href(n.id) + "\">"
+                + ref("Link", "up", "org", account, "/org/1")
+                + "<Description>" + escape(n.description) + "</Description><Configuration><IpScope><IsInherited>false</IsInherited>"
+                + "<Gateway>" + n.gateway + "</Gateway><Netmask>" + n.netmask + "</Netmask><Dns1>8.8.8.8</Dns1><Dns2>8.8.4.4</Dns2>"
+                + "<IpRanges><IpRange><StartAddress>" + n.gateway.replaceAll("\\.1$", ".2") + "</StartAddress><EndAddress>" + n.gateway.replaceAll("\\.0\\.1$", ".255.254") + "</EndAddress></IpRange></IpRanges>"
+                + "</IpScope><FenceMode>natRouted</FenceMode></Configuration></OrgNetwork>";
+    }
+
+    private @Nonnull String catalog(@Nonnull Catalog c) {
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Catalog xmlns=\"").append(NS).append("\" name=\"").append(escape(c.name)).append("\" type=\"application/vnd.vmware.vcloud.catalog+xml\" href=\"").append(href(c.id)).append("\">");
+        xml.append(ref("Link", "up", "org", account, "/org/1"));
+        xml.append(ref("Link", "add", "catalogItem", null, c.id + "/catalogItems"));
+        xml.append("<Description>").append(escape(c.description)).append("</Description><CatalogItems>");
+        for( String id : c.items ) {
+            xml.append(ref("CatalogItem", null, "catalogItem", resources.get(id).name, id));
+        }
+        xml.append("</CatalogItems><IsPublished>false</IsPublished></Catalog>");
+        return xml.toString();
+    }
+
+    private @Nonnull String catalogItem(@Nonnull CatalogItem item) {
+        Resource entity = resources.get(item.entity);
+
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<CatalogItem xmlns=\"" + NS + "\" name=\"" + escape(item.name) + "\" type=\"application/vnd.vmware.vcloud.catalogItem+xml\" href=\"" + href(item.id) + "\">"
+                + ref("Link", "up", "catalog", null, item.catalog)
+                + "<Description>" + escape(item.description) + "</Description>"
+                + ref("Entity", null, "vAppTemplate", (entity == null ? item.name : entity.name), item.entity)
+                + "</CatalogItem>";
+    }
+
+    private @Nonnull String task(@Nonnull Task task, boolean document) {
+        StringBuilder xml = new StringBuilder();
+
+        xml.append(document ? "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Task xmlns=\"" + NS + "\"" : "<Task");
+        xml.append(" status=\"").append(task.status).append("\" startTime=\"").append(date(task.started)).append("\" operation=\"").append(escape(task.name)).append("\"");
+        if( !task.status.equals("running") ) {
+            xml.append(" endTime=\"").append(date(task.completes)).append("\"");
+        }
+        xml.append(" expiryTime=\"").append(date(task.started + 86400000L)).append("\" type=\"application/vnd.vmware.vcloud.task+xml\" href=\"").append(href(task.id)).append("\">");
+        if( task.status.equals("running") ) {
+            xml.append(ref("Link", "task:cancel", "task", null, task.id + "/action/cancel"));
+        }
+        xml.append(ref("Owner", null, task.ownerType, null, task.owner));
+        if( task.status.equals("error") ) {
+            xml.append("<Error minorErrorCode=\"INTERNAL_SERVER_ERROR\" message=\"Injected task failure\" majorErrorCode=\"500\"/>");
+        }
+        xml.append("</Task>");
+        return xml.toString();
+    }
+
+    private @Nonnull String metrics(@Nonnull Vm vm, boolean historic) {
+        String[][] metrics = {
+            { "cpu.usage.average", "PERCENT" }, { "cpu.usage.maximum", "PERCENT" }, { "mem.usage.average", "PERCENT" },
+            { "disk.read.average", "KILOBYTES_PER_SECOND" }, { "disk.write.average", "KILOBYTES_PER_SECOND" }
+        };
+        StringBuilder xml = new StringBuilder();
+        long now = System.currentTimeMillis();
+        boolean on = (vm.status == STATUS_ON);
+
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<").append(historic ? "HistoricUsage" : "CurrentUsage").append(" xmlns=\"").append(NS_15).append("\">");
+        for( String[] m : metrics ) {
+            if( historic ) {
+                xml.append("<MetricSeries name=\"").append(m[0]).append("\" unit=\"").append(m[1]).append("\" expectedInterval=\"300\">");
+                for( int i=287; i>=0; i-- ) {
+                    xml.append("<Sample timestamp=\"").append(date(now - i * 300000L)).append("\" value=\"").append(on ? String.valueOf(random.nextInt(10000) / 100.0) : "0.0").append("\"/>");
+                }
+                xml.append("</MetricSeries>");
+            }
+            else {
+                xml.append("<Metric name=\"").append(m[0]).append("\" unit=\"").append(m[1]).append("\" value=\"").append(on ? String.valueOf(random.nextInt(10000) / 100.0) : "0.0").append("\"/>");
+            }
+        }
+        xml.append("</").append(historic ? "HistoricUsage" : "CurrentUsage").append(">");
+        return xml.toString();
+    }
+}
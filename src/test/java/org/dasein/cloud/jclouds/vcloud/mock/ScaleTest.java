@@ -0,0 +1,270 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.mock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.compute.Architecture;
+import org.dasein.cloud.compute.MachineImage;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.VirtualMachineProduct;
+import org.dasein.cloud.jclouds.vcloud.VcloudDirector;
+import org.dasein.cloud.jclouds.vcloud.compute.TerminationResult;
+import org.dasein.cloud.jclouds.vcloud.compute.VcloudVMSupport;
+import org.dasein.cloud.network.VLAN;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Measures how listing and lifecycle operations scale with inventory size against {@link MockDirector}.
+ * For each size in <code>scale.sizes</code> (default 10, 100, 1000, 10000, 50000) a fresh mock is started and
+ * every operation is timed, recording the HTTP requests it issued, its wall time and the peak heap and
+ * thread count of the JVM (which includes the mock server) while it ran. The results are written as JSON to
+ * <code>scale.report</code> (default <code>target/scale-report.json</code>).
+ * <p>
+ * The suite takes minutes at the larger sizes and therefore only runs when <code>-Dscale=true</code> or
+ * <code>scale.sizes</code> is given. <code>scale.launch</code> (default 10) controls how many VMs the bulk
+ * launch and terminate steps create and remove.
+ * </p>
+ */
+public class ScaleTest {
+    static private final Logger logger = Logger.getLogger(ScaleTest.class);
+
+    static public class Measurement {
+        public int    inventory;
+        public int    items;
+        public long   millis;
+        public String operation;
+        public long   peakHeap;
+        public int    peakThreads;
+        public long   requests;
+    }
+
+    private interface Operation {
+        public int run() throws Exception;
+    }
+
+    private final List<Measurement> results = new ArrayList<Measurement>();
+
+    @Test
+    public void scale() throws Exception {
+        String sizes = System.getProperty("scale.sizes");
+
+        Assume.assumeTrue(sizes != null || Boolean.getBoolean("scale"));
+        if( sizes == null ) {
+            sizes = "10,100,1000,10000,50000";
+        }
+        for( String size : sizes.split(",") ) {
+            run(Integer.parseInt(size.trim()));
+        }
+        write(new File(System.getProperty("scale.report", "target/scale-report.json")));
+    }
+
+    private void run(final int size) throws Exception {
+        final MockDirector mock = new MockDirector();
+
+        mock.setInventory(Math.max(1, Math.min(20, size / 10)), size);
+        mock.setTaskMillis(50L);
+        mock.start();
+        try {
+            final VcloudDirector provider = new VcloudDirector();
+            final VcloudVMSupport vms = provider.getComputeServices().getVirtualMachineSupport();
+
+            provider.connect(mock.newContext());
+            measure(mock, size, "listDataCenters", new Operation() {
+                public int run() throws Exception {
+                    return provider.getDataCenterServices().listDataCenters(mock.getAccountNumber()).size();
+                }
+            });
+            measure(mock, size, "listVirtualMachines", new Operation() {
+                public int run() throws Exception {
+                    int count = 0;
+
+                    for( @SuppressWarnings("unused") VirtualMachine vm : vms.listVirtualMachines() ) {
+                        count++;
+                    }
+                    assertEquals(size, count);
+                    return count;
+                }
+            });
+            measure(mock, size, "listMachineImages", new Operation() {
+                public int run() throws Exception {
+                    int count = 0;
+
+                    for( @SuppressWarnings("unused") MachineImage image : provider.getComputeServices().getImageSupport().listMachineImages() ) {
+                        count++;
+                    }
+                    return count;
+                }
+            });
+            measure(mock, size, "listVlans", new Operation() {
+                public int run() throws Exception {
+                    int count = 0;
+
+                    for( @SuppressWarnings("unused") VLAN vlan : provider.getNetworkServices().getVlanSupport().listVlans() ) {
+                        count++;
+                    }
+                    return count;
+                }
+            });
+            final List<String> launched = new ArrayList<String>();
+            final int launches = Integer.getInteger("scale.launch", 10);
+
+            measure(mock, size, "launch", new Operation() {
+                public int run() throws Exception {
+                    final VirtualMachineProduct product = vms.listProducts(Architecture.I64).iterator().next();
+                    ExecutorService executor = Executors.newFixedThreadPool(launches);
+                    List<Future<Collection<VirtualMachine>>> futures = new ArrayList<Future<Collection<VirtualMachine>>>();
+
+                    try {
+                        for( int i=0; i<launches; i++ ) {
+                            final String name = "scale" + i;
+
+                            futures.add(executor.submit(new Callable<Collection<VirtualMachine>>() {
+                                public Collection<VirtualMachine> call() throws Exception {
+                                    List<VcloudVMSupport.AllocationMode> modes = new ArrayList<VcloudVMSupport.AllocationMode>();
+
+                                    modes.add(new VcloudVMSupport.AllocationMode());
+                                    return vms.launch("/vAppTemplate/vappTemplate-1", product, "/vdc/1", name, null, modes);
+                                }
+                            }));
+                        }
+                        for( Future<Collection<VirtualMachine>> f : futures ) {
+                            for( VirtualMachine vm : f.get() ) {
+                                launched.add(vm.getProviderVirtualMachineId());
+                            }
+                        }
+                    }
+                    finally {
+                        executor.shutdown();
+                    }
+                    assertEquals(launches, launched.size());
+                    return launched.size();
+                }
+            });
+            measure(mock, size, "terminate", new Operation() {
+                public int run() throws Exception {
+                    int count = 0;
+
+                    for( TerminationResult result : vms.terminate(launched).values() ) {
+                        assertTrue(result.getError(), result.isTerminated());
+                        count++;
+                    }
+                    return count;
+                }
+            });
+        }
+        finally {
+            mock.stop();
+        }
+    }
+
+    private void measure(MockDirector mock, int size, String operation, Operation op) throws Exception {
+        Measurement m = new Measurement();
+        long requests = mock.getRequestCount();
+        long started;
+
+        for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+            if( pool.getType() == MemoryType.HEAP ) {
+                pool.resetPeakUsage();
+            }
+        }
+        ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+        started = System.currentTimeMillis();
+        m.items = op.run();
+        m.millis = System.currentTimeMillis() - started;
+        m.inventory = size;
+        m.operation = operation;
+        m.requests = mock.getRequestCount() - requests;
+        m.peakThreads = ManagementFactory.getThreadMXBean().getPeakThreadCount();
+        for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+            if( pool.getType() == MemoryType.HEAP ) {
+                m.peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        results.add(m);
+        if( logger.isInfoEnabled() ) {
+            logger.info(operation + " @ " + size + ": " + m.items + " items, " + m.requests + " requests, " + m.millis + " ms, peak heap " + (m.peakHeap / 1048576L) + " MB, peak threads " + m.peakThreads);
+        }
+    }
+
+    private void write(File report) throws IOException {
+        Map<Integer,List<Measurement>> bySize = new LinkedHashMap<Integer,List<Measurement>>();
+
+        for( Measurement m : results ) {
+            List<Measurement> list = bySize.get(m.inventory);
+
+            if( list == null ) {
+                list = new ArrayList<Measurement>();
+                bySize.put(m.inventory, list);
+            }
+            list.add(m);
+        }
+        if( report.getParentFile() != null ) {
+            report.getParentFile().mkdirs();
+        }
+        Writer out = new OutputStreamWriter(new FileOutputStream(report), "utf-8");
+
+        try {
+            out.write("{\n  \"generated\": " + System.currentTimeMillis() + ",\n  \"java\": \"" + System.getProperty("java.version") + "\",\n  \"runs\": [");
+            boolean firstSize = true;
+
+            for( Map.Entry<Integer,List<Measurement>> entry : bySize.entrySet() ) {
+                out.write((firstSize ? "" : ",") + "\n    { \"inventory\": " + entry.getKey() + ", \"operations\": [");
+                boolean first = true;
+
+                for( Measurement m : entry.getValue() ) {
+                    out.write((first ? "" : ",") + "\n      { \"operation\": \"" + m.operation + "\", \"items\": " + m.items + ", \"requests\": " + m.requests
+                            + ", \"millis\": " + m.millis + ", \"peakHeapBytes\": " + m.peakHeap + ", \"peakThreads\": " + m.peakThreads + " }");
+                    first = false;
+                }
+                out.write("\n    ] }");
+                firstSize = false;
+            }
+            out.write("\n  ]\n}\n");
+        }
+        finally {
+            out.close();
+        }
+        if( logger.isInfoEnabled() ) {
+            logger.info("Scale report written to " + report.getAbsolutePath());
+        }
+    }
+}
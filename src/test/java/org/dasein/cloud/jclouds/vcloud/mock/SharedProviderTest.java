@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.mock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.jclouds.vcloud.VcloudDirector;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Shares one {@link VcloudDirector} between many request threads against {@link MockDirector} and checks that
+ * the services, the organization and the HTTP session are built once per context and replaced with it.
+ */
+public class SharedProviderTest {
+    static private final int THREADS    = 32;
+    static private final int ITERATIONS = 200;
+
+    static private MockDirector mock;
+
+    @BeforeClass
+    static public void startMock() throws Exception {
+        mock = new MockDirector();
+        mock.setInventory(2, 12);
+        mock.setVmsPerVApp(2);
+        mock.start();
+    }
+
+    @AfterClass
+    static public void stopMock() {
+        if( mock != null ) {
+            mock.stop();
+        }
+    }
+
+    private <T> List<T> runAll(final Callable<T> task) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+
+        try {
+            List<Future<T>> futures = new ArrayList<Future<T>>();
+            List<T> results = new ArrayList<T>();
+
+            for( int i=0; i<THREADS; i++ ) {
+                futures.add(pool.submit(new Callable<T>() {
+                    public T call() throws Exception {
+                        start.await();
+                        return task.call();
+                    }
+                }));
+            }
+            start.countDown();
+            for( Future<T> future : futures ) {
+                results.add(future.get());
+            }
+            return results;
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private int distinct(List<?> objects) {
+        Set<Object> identities = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+
+        identities.addAll(objects);
+        return identities.size();
+    }
+
+    @Test
+    public void sharesStateAcrossThreads() throws Exception {
+        final VcloudDirector provider = new VcloudDirector();
+
+        provider.connect(mock.newContext());
+        List<Object[]> seen = runAll(new Callable<Object[]>() {
+            public Object[] call() throws Exception {
+                Object[] first = null;
+
+                for( int i=0; i<ITERATIONS; i++ ) {
+                    Object[] current = new Object[] {
+                            provider.getComputeServices(),
+                            provider.getComputeServices().getVirtualMachineSupport(),
+                            provider.getDataCenterServices(),
+                            provider.getNetworkServices().getVlanSupport(),
+                            provider.getApiInterceptors(),
+                            provider.getDirectorHttp(),
+                            provider.getMetrics(),
+                            provider.getOrg(),
+                            provider.getComputeServices().getVirtualMachineSupport().listProducts(null)
+                    };
+
+                    if( first == null ) {
+                        first = current;
+                    }
+                    for( int j=0; j<current.length; j++ ) {
+                        assertSame("Object " + j + " changed between calls", first[j], current[j]);
+                    }
+                }
+                return first;
+            }
+        });
+
+        for( int j=0; j<seen.get(0).length; j++ ) {
+            List<Object> column = new ArrayList<Object>();
+
+            for( Object[] row : seen ) {
+                column.add(row[j]);
+            }
+            assertEquals("Object " + j + " was built more than once", 1, distinct(column));
+        }
+    }
+
+    @Test
+    public void listsConcurrently() throws Exception {
+        final VcloudDirector provider = new VcloudDirector();
+
+        provider.connect(mock.newContext());
+        List<Integer> counts = runAll(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                int count = 0;
+
+                for( @SuppressWarnings("unused") VirtualMachine vm : provider.getComputeServices().getVirtualMachineSupport().listVirtualMachines() ) {
+                    count++;
+                }
+                return count;
+            }
+        });
+
+        for( Integer count : counts ) {
+            assertEquals(mock.getInventory().getVmCount(), count.intValue());
+        }
+    }
+
+    @Test
+    public void replacesStateWithContext() throws Exception {
+        VcloudDirector provider = new VcloudDirector();
+        Map<String,Object> before = new HashMap<String,Object>();
+
+        provider.connect(mock.newContext());
+        before.put("compute", provider.getComputeServices());
+        before.put("dc", provider.getDataCenterServices());
+        before.put("network", provider.getNetworkServices());
+        before.put("http", provider.getDirectorHttp());
+        assertSame(provider.getOrg(), provider.getOrg());
+
+        provider.connect(mock.newContext());
+        assertNotSame(before.get("compute"), provider.getComputeServices());
+        assertNotSame(before.get("dc"), provider.getDataCenterServices());
+        assertNotSame(before.get("network"), provider.getNetworkServices());
+        assertNotSame(before.get("http"), provider.getDirectorHttp());
+        assertEquals(mock.getAccountNumber(), provider.getOrg().getName());
+    }
+}
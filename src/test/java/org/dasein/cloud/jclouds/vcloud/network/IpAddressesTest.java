@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.dasein.cloud.jclouds.vcloud.network.IpAddresses.Scope;
+import org.junit.Test;
+
+public class IpAddressesTest {
+    private String v6(String address) {
+        long[] words = new long[2];
+
+        assertTrue(address, IpAddresses.parseIPv6(address, words));
+        return IpAddresses.formatIPv6(words[0], words[1]);
+    }
+
+    private boolean isV6(String address) {
+        return IpAddresses.parseIPv6(address, new long[2]);
+    }
+
+    private void assertInvalidCidr(String address, String netmask) {
+        try {
+            IpAddresses.toCidr(address, netmask);
+            fail(address + " with " + netmask + " was accepted");
+        }
+        catch( IllegalArgumentException expected ) {
+            // invalid mask
+        }
+    }
+
+    @Test
+    public void parsesIPv4() {
+        assertEquals(0x0A01020FL, IpAddresses.parseIPv4("10.1.2.15"));
+        assertEquals(0xFFFFFFFFL, IpAddresses.parseIPv4("255.255.255.255"));
+        assertEquals(-1L, IpAddresses.parseIPv4("256.1.1.1"));
+        assertEquals(-1L, IpAddresses.parseIPv4("1.2.3"));
+        assertEquals(-1L, IpAddresses.parseIPv4("1.2.3.4.5"));
+        assertEquals(-1L, IpAddresses.parseIPv4("1..3.4"));
+        assertEquals(-1L, IpAddresses.parseIPv4("1.2.3.4 "));
+        assertEquals(-1L, IpAddresses.parseIPv4(""));
+    }
+
+    @Test
+    public void parsesIPv6Shorthand() {
+        assertEquals("::", v6("::"));
+        assertEquals("1::", v6("1::"));
+        assertEquals("::1", v6("::1"));
+        assertEquals("2001:db8::1", v6("2001:0db8:0000:0000:0000:0000:0000:0001"));
+        assertEquals("2001:db8:0:1:1:1:1:1", v6("2001:db8:0:1:1:1:1:1"));
+        assertEquals("2001:db8::1:0:0:1", v6("2001:db8:0:0:1:0:0:1"));
+        assertEquals("::ffff:102:304", v6("::ffff:1.2.3.4"));
+        assertEquals("1:2:3:4:5:6:7:8", v6("1:2:3:4:5:6:7:8"));
+    }
+
+    @Test
+    public void rejectsMalformedIPv6() {
+        assertFalse(isV6("1:2:3:4:5:6:7:8::"));
+        assertFalse(isV6("::1:2:3:4:5:6:7:8"));
+        assertFalse(isV6("1:2:3:4:5:6:7"));
+        assertFalse(isV6("1:2:3:4:5:6:7:8:9"));
+        assertFalse(isV6("1::2::3"));
+        assertFalse(isV6(":::"));
+        assertFalse(isV6(":1::"));
+        assertFalse(isV6("1:2:3:4:5:6:7:"));
+        assertFalse(isV6("12345::"));
+        assertFalse(isV6("g::"));
+        assertFalse(isV6("1:2:3:4:5:6:7:1.2.3.4"));
+        assertFalse(isV6("::1.2.3"));
+        assertFalse(isV6(":"));
+        assertFalse(isV6(""));
+    }
+
+    @Test
+    public void acceptsZonesAndBrackets() {
+        assertEquals("fe80::1", v6("fe80::1%eth0"));
+        assertEquals("fe80::1", v6("[fe80::1]"));
+        assertEquals("fe80::1", v6("[fe80::1%eth0]"));
+        assertFalse(isV6("[fe80::1"));
+        assertFalse(isV6("[]"));
+        assertEquals(Scope.LINK_LOCAL, IpAddresses.scopeOf("[fe80::1%eth0]"));
+    }
+
+    @Test
+    public void computesCidrs() {
+        assertEquals("10.112.78.0/23", IpAddresses.toCidr("10.112.78.1", "255.255.254.0"));
+        assertEquals("10.112.78.0/23", IpAddresses.toCidr("10.112.79.254", "/23"));
+        assertEquals("10.112.78.0/23", IpAddresses.toCidr("10.112.79.254", "23"));
+        assertEquals("192.168.1.200/29", IpAddresses.toCidr("192.168.1.201", "255.255.255.248"));
+        assertEquals("0.0.0.0/0", IpAddresses.toCidr("8.8.8.8", "0.0.0.0"));
+        assertEquals("8.8.8.8/32", IpAddresses.toCidr("8.8.8.8", "255.255.255.255"));
+        assertEquals("2001:db8::/32", IpAddresses.toCidr("2001:db8:1::1", "/32"));
+        assertEquals("2001:db8:1::/64", IpAddresses.toCidr("2001:db8:1::1", "ffff:ffff:ffff:ffff::"));
+    }
+
+    @Test
+    public void rejectsBadMasks() {
+        assertInvalidCidr("10.0.0.1", "255.0.255.0");
+        assertInvalidCidr("10.0.0.1", "255.255.255.1");
+        assertInvalidCidr("10.0.0.1", "0.255.255.255");
+        assertInvalidCidr("10.0.0.1", "33");
+        assertInvalidCidr("10.0.0.1", "255.255.256.0");
+        assertInvalidCidr("2001:db8::1", "ffff::ffff");
+        assertInvalidCidr("2001:db8::1", "129");
+        assertInvalidCidr("not an address", "255.255.255.0");
+        assertEquals(-1, IpAddresses.prefixLength(0xFF00FF00L));
+        assertEquals(23, IpAddresses.prefixLength(0xFFFFFE00L));
+    }
+
+    @Test
+    public void classifiesPrivateBoundaries() {
+        assertEquals(Scope.PUBLIC, IpAddresses.scopeOf("9.255.255.255"));
+        assertEquals(Scope.PRIVATE, IpAddresses.scopeOf("10.0.0.0"));
+        assertEquals(Scope.PRIVATE, IpAddresses.scopeOf("10.255.255.255"));
+        assertEquals(Scope.PUBLIC, IpAddresses.scopeOf("11.0.0.0"));
+        assertEquals(Scope.PUBLIC, IpAddresses.scopeOf("172.15.255.255"));
+        assertEquals(Scope.PRIVATE, IpAddresses.scopeOf("172.16.0.0"));
+        assertEquals(Scope.PRIVATE, IpAddresses.scopeOf("172.31.255.255"));
+        assertEquals(Scope.PUBLIC, IpAddresses.scopeOf("172.32.0.0"));
+        assertEquals(Scope.PUBLIC, IpAddresses.scopeOf("192.167.255.255"));
+        assertEquals(Scope.PRIVATE, IpAddresses.scopeOf("192.168.0.0"));
+        assertEquals(Scope.PRIVATE, IpAddresses.scopeOf("192.168.255.255"));
+        assertEquals(Scope.PUBLIC, IpAddresses.scopeOf("192.169.0.0"));
+    }
+
+    @Test
+    public void classifiesSpecialRanges() {
+        assertEquals(Scope.PUBLIC, IpAddresses.scopeOf("100.63.255.255"));
+        assertEquals(Scope.SHARED, IpAddresses.scopeOf("100.64.0.0"));
+        assertEquals(Scope.SHARED, IpAddresses.scopeOf("100.127.255.255"));
+        assertEquals(Scope.PUBLIC, IpAddresses.scopeOf("100.128.0.0"));
+        assertEquals(Scope.PUBLIC, IpAddresses.scopeOf("169.253.255.255"));
+        assertEquals(Scope.LINK_LOCAL, IpAddresses.scopeOf("169.254.0.0"));
+        assertEquals(Scope.LINK_LOCAL, IpAddresses.scopeOf("169.254.255.255"));
+        assertEquals(Scope.PUBLIC, IpAddresses.scopeOf("169.255.0.0"));
+        assertEquals(Scope.UNSPECIFIED, IpAddresses.scopeOf("0.0.0.0"));
+        assertEquals(Scope.LOOPBACK, IpAddresses.scopeOf("127.0.0.1"));
+        assertEquals(Scope.MULTICAST, IpAddresses.scopeOf("224.0.0.1"));
+        assertEquals(Scope.RESERVED, IpAddresses.scopeOf("255.255.255.255"));
+        assertEquals(Scope.UNSPECIFIED, IpAddresses.scopeOf("::"));
+        assertEquals(Scope.LOOPBACK, IpAddresses.scopeOf("::1"));
+        assertEquals(Scope.PRIVATE, IpAddresses.scopeOf("fd00::1"));
+        assertEquals(Scope.MULTICAST, IpAddresses.scopeOf("ff02::1"));
+        assertEquals(Scope.PUBLIC, IpAddresses.scopeOf("2001:4860::8888"));
+        assertEquals(Scope.PRIVATE, IpAddresses.scopeOf("::ffff:10.1.2.3"));
+        assertEquals(Scope.PUBLIC, IpAddresses.scopeOf("::ffff:8.8.8.8"));
+    }
+
+    @Test
+    public void treatsHostnamesAsPublic() {
+        assertNull(IpAddresses.scopeOf("vm.example.com"));
+        assertTrue(IpAddresses.isPublic("vm.example.com"));
+        assertFalse(IpAddresses.isPublic("10.1.2.3"));
+        assertFalse(IpAddresses.isPublic("100.64.1.1"));
+        assertTrue(IpAddresses.isPublic("8.8.8.8"));
+    }
+}
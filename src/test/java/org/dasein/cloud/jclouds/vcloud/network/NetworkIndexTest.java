@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.jclouds.vcloud.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.dasein.cloud.jclouds.vcloud.metrics.MetricsSink;
+import org.dasein.cloud.network.VLAN;
+import org.junit.Test;
+
+public class NetworkIndexTest {
+    static private final MetricsSink sink = new MetricsSink() {
+        public void record(@Nonnull String metric, long value) { }
+        public void increment(@Nonnull String counter, long delta) { }
+        public void gauge(@Nonnull String gauge, long value) { }
+    };
+
+    static private class CountingLoader implements NetworkIndex.Loader {
+        private final AtomicInteger loads = new AtomicInteger();
+        private final long          millis;
+
+        CountingLoader(long millis) { this.millis = millis; }
+
+        public @Nonnull Collection<NetworkIndex.Entry> load() {
+            List<NetworkIndex.Entry> entries = new ArrayList<NetworkIndex.Entry>();
+
+            loads.incrementAndGet();
+            if( millis > 0L ) {
+                try { Thread.sleep(millis); }
+                catch( InterruptedException ignore ) { }
+            }
+            entries.add(entry("network-1", "Internal", "10.0.1.1", "255.255.255.0"));
+            entries.add(entry("network-2", "External", "192.168.8.1", "255.255.252.0"));
+            return entries;
+        }
+    }
+
+    static private NetworkIndex.Entry entry(String id, String name, String gateway, String netmask) {
+        VLAN vlan = new VLAN();
+
+        vlan.setProviderVlanId(id);
+        vlan.setName(name);
+        vlan.setDescription(name);
+        vlan.setGateway(gateway);
+        vlan.setCidr(IpAddresses.toCidr(gateway, netmask));
+        vlan.setDnsServers(new String[] { "10.0.0.2" });
+        return new NetworkIndex.Entry(vlan, netmask);
+    }
+
+    @Test
+    public void indexesByIdAndName() throws Exception {
+        CountingLoader loader = new CountingLoader(0L);
+        NetworkIndex index = new NetworkIndex(loader, 60000L, sink);
+
+        assertEquals("External", index.getById("network-2").vlan.getName());
+        assertEquals("network-1", index.getByName("Internal").vlan.getProviderVlanId());
+        assertEquals("255.255.252.0", index.getByName("External").netmask);
+        assertEquals(2, index.list().size());
+        assertEquals(1, loader.loads.get());
+    }
+
+    @Test
+    public void missDoesNotReloadFreshIndex() throws Exception {
+        CountingLoader loader = new CountingLoader(0L);
+        NetworkIndex index = new NetworkIndex(loader, 60000L, sink);
+
+        assertNull(index.getByName("Missing"));
+        assertNull(index.getById("network-9"));
+        assertEquals(1, loader.loads.get());
+    }
+
+    @Test
+    public void missReloadsStaleIndexOnlyForOrgLookups() throws Exception {
+        CountingLoader loader = new CountingLoader(0L);
+        NetworkIndex index = new NetworkIndex(loader, 60000L, 50L, sink);
+
+        assertNotNull(index.getByName("Internal"));
+        Thread.sleep(100L);
+        assertNull(index.findByName("vapp-private"));
+        assertNull(index.findByName("vapp-private"));
+        assertEquals(1, loader.loads.get());
+        assertNull(index.getByName("vapp-private"));
+        assertEquals(2, loader.loads.get());
+    }
+
+    @Test
+    public void handsOutCopies() throws Exception {
+        NetworkIndex index = new NetworkIndex(new CountingLoader(0L), 60000L, sink);
+        VLAN vlan = index.getById("network-1").toVlan();
+
+        vlan.setName("Changed");
+        vlan.getDnsServers()[0] = "8.8.8.8";
+        assertEquals("Internal", index.getById("network-1").toVlan().getName());
+        assertEquals("10.0.0.2", index.getById("network-1").toVlan().getDnsServers()[0]);
+    }
+
+    @Test
+    public void reloadsAfterTtlAndInvalidate() throws Exception {
+        CountingLoader loader = new CountingLoader(0L);
+        NetworkIndex index = new NetworkIndex(loader, 50L, sink);
+
+        assertNotNull(index.getById("network-1"));
+        Thread.sleep(100L);
+        assertNotNull(index.getById("network-1"));
+        assertEquals(2, loader.loads.get());
+        index.invalidate();
+        assertNotNull(index.getById("network-1"));
+        assertEquals(3, loader.loads.get());
+    }
+
+    @Test
+    public void loadsOnceForConcurrentLookups() throws Exception {
+        final CountingLoader loader = new CountingLoader(200L);
+        final NetworkIndex index = new NetworkIndex(loader, 60000L, sink);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+
+        try {
+            List<Future<NetworkIndex.Entry>> futures = new ArrayList<Future<NetworkIndex.Entry>>();
+
+            for( int i=0; i<16; i++ ) {
+                futures.add(pool.submit(new Callable<NetworkIndex.Entry>() {
+                    public NetworkIndex.Entry call() throws Exception {
+                        start.await();
+                        return index.getByName("External");
+                    }
+                }));
+            }
+            start.countDown();
+            for( Future<NetworkIndex.Entry> future : futures ) {
+                assertEquals("network-2", future.get().vlan.getProviderVlanId());
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, loader.loads.get());
+    }
+}